@@ -26,6 +26,7 @@ import gaiasky.assets.GaiaAttitudeLoader.GaiaAttitudeLoaderParameter;
 import gaiasky.assets.SGLoader.SGLoaderParameter;
 import gaiasky.data.AssetBean;
 import gaiasky.data.StreamingOctreeLoader;
+import gaiasky.data.StreamingOctreeMetrics;
 import gaiasky.data.util.PointCloudData;
 import gaiasky.desktop.util.CrashReporter;
 import gaiasky.desktop.util.SysUtils;
@@ -622,6 +623,10 @@ public class GaiaSky implements ApplicationListener, IObserver, IMainRenderer {
                 EventManager.instance.post(Events.DEBUG_OBJECTS, OctreeNode.nObjectsObserved, StreamingOctreeLoader.getNLoadedStars());
                 // Observed octants
                 EventManager.instance.post(Events.DEBUG_QUEUE, OctreeNode.nOctantsObserved, StreamingOctreeLoader.getLoadQueueSize());
+                // Streaming
+                StreamingOctreeMetrics metrics = StreamingOctreeLoader.getMetrics();
+                if (metrics != null)
+                    EventManager.instance.post(Events.DEBUG_STREAMING, metrics.getBytesRate(), metrics.latency(StreamingOctreeMetrics.Phase.TOTAL).percentile(0.95), metrics.getEvictionRate(), metrics.getReloads(), metrics.getAborts());
                 // VRAM
                 EventManager.instance.post(Events.DEBUG_VRAM, VMemInfo.getUsedMemory(), VMemInfo.getTotalMemory());
             }
@@ -0,0 +1,162 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.data;
+
+import com.badlogic.gdx.utils.TimeUtils;
+import gaiasky.desktop.util.camera.CamRecorder;
+import gaiasky.scenegraph.camera.ICamera;
+import gaiasky.util.GlobalConf;
+import gaiasky.util.math.MathUtilsd;
+import gaiasky.util.math.Vector3d;
+import gaiasky.util.tree.LoadStatus;
+import gaiasky.util.tree.OctreeNode;
+
+/**
+ * Predicts the octants which will pass the view angle threshold in the
+ * next few seconds and puts them in the prefetch queue of the loader.
+ * The future camera states are extrapolated from the current camera velocity
+ * or, if a camera file is being played, read ahead from the file.
+ *
+ * @author tsagrista
+ */
+public class OctantPrefetcher {
+    /** Minimum time between two predictions **/
+    private static final long PREDICTION_INTERVAL_MS = 250;
+    /** Number of future camera states sampled in the prefetch time window **/
+    private static final int N_SAMPLES = 4;
+    /** Smoothing factor of the velocity and frame time estimations **/
+    private static final double SMOOTH = 0.2;
+
+    private final StreamingOctreeLoader loader;
+    /** Prefetch time window in seconds **/
+    private final double prefetchTime;
+
+    private final Vector3d lastPos, vel, aux;
+    private final Vector3d[] positions, directions;
+    private final int[] frames;
+    private long lastFrameNs, lastPredictionMs;
+    /** Smoothed frame time in seconds **/
+    private double frameTime;
+    private boolean initialized;
+
+    public OctantPrefetcher(StreamingOctreeLoader loader, double prefetchTime) {
+        this.loader = loader;
+        this.prefetchTime = prefetchTime;
+        this.lastPos = new Vector3d();
+        this.vel = new Vector3d();
+        this.aux = new Vector3d();
+        this.positions = new Vector3d[N_SAMPLES];
+        this.directions = new Vector3d[N_SAMPLES];
+        for (int i = 0; i < N_SAMPLES; i++) {
+            positions[i] = new Vector3d();
+            directions[i] = new Vector3d();
+        }
+        this.frames = new int[N_SAMPLES];
+        this.frameTime = 1d / 60d;
+        this.initialized = false;
+    }
+
+    /**
+     * Updates the camera motion estimation and, from time to time, predicts the
+     * octants to prefetch. Must be called every frame from the main thread.
+     *
+     * @param root   The root of the octree
+     * @param camera The camera
+     */
+    public void update(OctreeNode root, ICamera camera) {
+        long now = System.nanoTime();
+        Vector3d pos = camera.getPos();
+        if (initialized) {
+            double dt = (now - lastFrameNs) * 1e-9;
+            if (dt > 0) {
+                aux.set(pos).sub(lastPos).scl(1d / dt);
+                vel.scl(1d - SMOOTH).mulAdd(aux, SMOOTH);
+                frameTime = frameTime * (1d - SMOOTH) + dt * SMOOTH;
+            }
+        }
+        initialized = true;
+        lastPos.set(pos);
+        lastFrameNs = now;
+
+        if (TimeUtils.millis() - lastPredictionMs < PREDICTION_INTERVAL_MS || loader.isPrefetchQueueFull())
+            return;
+        lastPredictionMs = TimeUtils.millis();
+
+        int n = sampleFuture(camera);
+        if (n > 0) {
+            float cf = MathUtilsd.clamp(camera.getFovFactor() * 2.5f, 0.15f, 1f);
+            double th0 = GlobalConf.scene.OCTANT_THRESHOLD_0 * cf;
+            // Generous view cone, so that it covers the horizontal field of view
+            double cone = Math.toRadians(camera.getCamera().fieldOfView);
+            for (int i = 0; i < n; i++) {
+                if (!predict(root, positions[i], directions[i], th0, cone))
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Computes the future camera positions and directions
+     *
+     * @param camera The camera
+     * @return The number of samples
+     */
+    private int sampleFuture(ICamera camera) {
+        CamRecorder recorder = CamRecorder.instance;
+        if (recorder != null && recorder.isPlaying()) {
+            // One line of the camera file per frame
+            int framesAhead = (int) (prefetchTime / frameTime);
+            for (int i = 0; i < N_SAMPLES; i++) {
+                frames[i] = Math.max(i + 1, framesAhead * (i + 1) / N_SAMPLES);
+            }
+            return recorder.peekFrames(frames, positions, directions);
+        } else if (vel.len2() > 0) {
+            // Linear extrapolation, keeping the current direction
+            for (int i = 0; i < N_SAMPLES; i++) {
+                double t = prefetchTime * (i + 1) / N_SAMPLES;
+                positions[i].set(camera.getPos()).mulAdd(vel, t);
+                directions[i].set(camera.getDirection());
+            }
+            return N_SAMPLES;
+        }
+        return 0;
+    }
+
+    /**
+     * Adds the octants which would be observed from the given camera position and direction
+     * to the prefetch queue. The criteria mimic those of {@link OctreeNode#update}, but the
+     * frustum is approximated by a cone.
+     *
+     * @return False if the prefetch queue is full
+     */
+    private boolean predict(OctreeNode node, Vector3d pos, Vector3d dir, double th0, double cone) {
+        double dist = aux.set(node.centre).sub(pos).len();
+        double radius = node.getRadius();
+        if (Math.atan(radius / dist) * 2 < th0) {
+            // Too small, and so are its children
+            return true;
+        }
+        if (dist > radius) {
+            // Out of the octant, it must be in the view cone
+            double angle = Math.acos(MathUtilsd.clamp(aux.dot(dir) / (dist * dir.len()), -1d, 1d));
+            if (angle - Math.asin(radius / dist) > cone)
+                return true;
+        }
+
+        if (node.getStatus() == LoadStatus.NOT_LOADED) {
+            StreamingOctreeLoader.prefetch(node);
+            if (loader.isPrefetchQueueFull())
+                return false;
+        }
+        for (int i = 0; i < 8; i++) {
+            OctreeNode child = node.children[i];
+            if (child != null && !predict(child, pos, dir, th0, cone)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
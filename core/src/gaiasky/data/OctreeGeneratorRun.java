@@ -12,15 +12,24 @@ import com.badlogic.gdx.utils.TimeUtils;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import gaiasky.data.group.AbstractStarGroupDataProvider;
+import gaiasky.data.group.BinaryDataProvider;
+import gaiasky.data.group.CsvCatalogDataProvider;
 import gaiasky.data.group.IStarGroupDataProvider;
 import gaiasky.data.group.STILDataProvider;
 import gaiasky.data.octreegen.IStarGroupIO;
 import gaiasky.data.octreegen.MetadataBinaryIO;
+import gaiasky.data.octreegen.ParticleArchive;
+import gaiasky.data.octreegen.ParticleEncoder;
+import gaiasky.data.octreegen.SourceIdIndex;
 import gaiasky.data.octreegen.StarGroupBinaryIO;
+import gaiasky.data.octreegen.StarGroupQuantizedIO;
 import gaiasky.data.octreegen.StarGroupSerializedIO;
 import gaiasky.data.octreegen.generator.IOctreeGenerator;
+import gaiasky.data.octreegen.generator.OctreeGeneratorExternal;
 import gaiasky.data.octreegen.generator.OctreeGeneratorMag;
 import gaiasky.data.octreegen.generator.OctreeGeneratorParams;
+import gaiasky.data.octreegen.generator.OctreeGeneratorParallel;
+import gaiasky.data.octreegen.generator.OctreeUpdater;
 import gaiasky.data.util.HipNames;
 import gaiasky.desktop.format.DesktopDateFormatFactory;
 import gaiasky.desktop.format.DesktopNumberFormatFactory;
@@ -29,10 +38,13 @@ import gaiasky.interafce.ConsoleLogger;
 import gaiasky.interafce.MessageBean;
 import gaiasky.interafce.NotificationsInterface;
 import gaiasky.scenegraph.ParticleGroup.ParticleBean;
+import gaiasky.scenegraph.SceneGraphNode;
+import gaiasky.scenegraph.StarGroup;
 import gaiasky.scenegraph.StarGroup.StarBean;
 import gaiasky.util.*;
 import gaiasky.util.Logger.Log;
 import gaiasky.util.coord.Coordinates;
+import gaiasky.util.ds.LongIntMap;
 import gaiasky.util.format.DateFormatFactory;
 import gaiasky.util.format.NumberFormatFactory;
 import gaiasky.util.math.Vector3d;
@@ -41,10 +53,13 @@ import gaiasky.util.tree.OctreeNode;
 
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.*;
@@ -133,12 +148,51 @@ public class OctreeGeneratorRun {
     @Parameter(names = "--additional", description = "Comma-separated list of files or folders with (optionally gzipped) csv files containing additional columns (matched by name) of main catalog. The file can be gzipped and must contain a Gaia sourceid column in the first position")
     private String additionalFiles = null;
 
+    @Parameter(names = "--additional-store", description = "Instead of generating an octree, convert each of the --additional files or folders to a memory-mapped column store in the given folder, and exit. The stores can then be given to --additional, and are not parsed again")
+    private String additionalStore = null;
+
+    @Parameter(names = "--additional-float", description = "If --additional-store is on, store the additional values as floats instead of doubles")
+    private boolean additionalFloat = false;
+
     @Parameter(names = "--compat-mode", description = "Use compatibility mode format (DR1/DR2), where the files have tycho ids")
     private boolean compatibilityMode = false;
 
     @Parameter(names = "--serialized", description = "Use java serialization instead of the binary format to output particle files")
     private boolean serialized = false;
 
+    @Parameter(names = "--archive", description = "Pack the particles of all octants in a single archive file (particles.bin) with an offset index, instead of writing one file per octant")
+    private boolean archive = false;
+
+    @Parameter(names = "--quantized", description = "Write particle files in the compact quantized format (positions relative to the octant, 16-bit magnitudes and colours, compressed blocks), instead of the binary format")
+    private boolean quantized = false;
+
+    @Parameter(names = "--binary-v3", description = "Write particle files in version 3 of the binary format (self-describing header, fixed-width columns and a UTF-8 name table), which is decoded in bulk. Ignored if --quantized or --serialized are on")
+    private boolean binaryV3 = false;
+
+    @Parameter(names = "--convert", description = "Instead of generating an octree, convert the particles of the existing octree in the given folder (metadata.bin and particles/ or particles.bin) to the quantized format, or to version 3 of the binary format if --binary-v3 is on, and write it to the output folder")
+    private String convert = null;
+
+    @Parameter(names = "--external", description = "Generate the octree out of core, for catalogs which do not fit in memory. The stars are streamed from the loader and spilled to magnitude-sorted runs in temporary files, which are then merged. The output is the same as that of the in-memory generation. Not compatible with --serialized")
+    private boolean external = false;
+
+    @Parameter(names = "--runsize", description = "If --external is on, maximum number of stars held in memory at once. Defaults to 5000000")
+    private int runSize = 5000000;
+
+    @Parameter(names = "--tmpdir", description = "If --external is on, folder for the temporary files. Defaults to the system temp folder")
+    private String tmpDir = null;
+
+    @Parameter(names = "--parallel", description = "Generate the octree in memory using several threads (see --nthreads). The output is the same as that of the sequential generation. Ignored if --external is on")
+    private boolean parallel = false;
+
+    @Parameter(names = "--nthreads", description = "Number of threads used to generate the octree if --parallel is on, and to encode the particle files. Defaults to the number of processors")
+    private int nThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = "--update", description = "Instead of generating an octree, update the existing octree in the given folder in place with a delta: the stars loaded with -l and -i are added, or modified if their source id is already in the octree, and the stars in --remove are removed. Only the affected octants are rewritten. --maxpart should be the same as in the generation")
+    private String update = null;
+
+    @Parameter(names = "--remove", description = "If --update is on, file with the source ids of the stars to remove, one per line")
+    private String remove = null;
+
     @Parameter(names = {"-h", "--help"}, help = true)
     private boolean help = false;
 
@@ -184,7 +238,12 @@ public class OctreeGeneratorRun {
             }
             ConfInit.initialize(new DesktopConfInit(new FileInputStream(Path.of(ASSETS_LOC, "conf/global.properties").toFile()), new FileInputStream(dummyv.toFile())));
 
-            OctreeNode root = generateOctree();
+            if (additionalStore != null) {
+                convertAdditional();
+                return;
+            }
+
+            OctreeNode root = update != null ? updateOctree() : (convert != null ? convertOctree() : generateOctree());
 
             if (root != null) {
                 // Save arguments and structure
@@ -206,188 +265,348 @@ public class OctreeGeneratorRun {
         }
     }
 
+    /**
+     * Creates the catalog loader given with -l, if any
+     *
+     * @return The loader, or null
+     */
+    private IStarGroupDataProvider createLoader() throws InstantiationException, IllegalAccessException, ClassNotFoundException, NoSuchMethodException, InvocationTargetException {
+        if (loaderClass == null)
+            return null;
+        /* CATALOG */
+        String fullLoaderClass = "gaiasky.data.group." + loaderClass;
+        IStarGroupDataProvider loader = (IStarGroupDataProvider) Class.forName(fullLoaderClass).getDeclaredConstructor().newInstance();
+        loader.setColumns(columns);
+        loader.setParallaxErrorFactorFaint(pllxerrfaint);
+        loader.setParallaxErrorFactorBright(pllxerrbright);
+        loader.setParallaxZeroPoint(pllxzeropoint);
+        loader.setFileNumberCap(fileNumCap);
+        loader.setMagCorrections(magCorrections);
+        loader.setDistanceCap(distcap);
+        loader.setAdditionalFiles(additionalFiles);
+        loader.setRUWECap(ruwe);
+        return loader;
+    }
+
+    /**
+     * Reads the cross-match table between Gaia and HIP, if the loader and the HIP catalog are given,
+     * and makes the loader load the cross-matched stars
+     *
+     * @return The cross-match table, or null
+     */
+    private LongIntMap loadXmatchTable(IStarGroupDataProvider loader) {
+        LongIntMap xmatchTable = null;
+        if (loader != null && hip != null && xmatchFile != null && !xmatchFile.isEmpty()) {
+            // Load xmatchTable
+            xmatchTable = readXmatchTable(xmatchFile);
+            if (!xmatchTable.isEmpty()) {
+                // IDs which must be loaded regardless (we need them to update x-matched HIP stars)
+                loader.setMustLoadIds(xmatchTable);
+            }
+        }
+        return xmatchTable;
+    }
+
     private OctreeNode generateOctree() throws IOException, InstantiationException, IllegalAccessException, ClassNotFoundException, NoSuchMethodException, InvocationTargetException {
         long startMs = TimeUtils.millis();
 
         OctreeGeneratorParams ogp = new OctreeGeneratorParams(maxPart, sunCentre, postprocess, childCount, parentCount);
-        IOctreeGenerator og = new OctreeGeneratorMag(ogp);
-
-        List<ParticleBean> listLoader = null, list = null;
-        Map<Long, Integer> xmatchTable = null;
-        long[] countsPerMagGaia = null;
-
-        if (loaderClass != null) {
-            /* CATALOG */
-            String fullLoaderClass = "gaiasky.data.group." + loaderClass;
-            IStarGroupDataProvider loader = (IStarGroupDataProvider) Class.forName(fullLoaderClass).getDeclaredConstructor().newInstance();
-            loader.setColumns(columns);
-            loader.setParallaxErrorFactorFaint(pllxerrfaint);
-            loader.setParallaxErrorFactorBright(pllxerrbright);
-            loader.setParallaxZeroPoint(pllxzeropoint);
-            loader.setFileNumberCap(fileNumCap);
-            loader.setMagCorrections(magCorrections);
-            loader.setDistanceCap(distcap);
-            loader.setAdditionalFiles(additionalFiles);
-            loader.setRUWECap(ruwe);
-            countsPerMagGaia = loader.getCountsPerMag();
-
-            if (hip != null && xmatchFile != null && !xmatchFile.isEmpty()) {
-                // Load xmatchTable
-                xmatchTable = readXmatchTable(xmatchFile);
-                if (!xmatchTable.isEmpty()) {
-                    // IDs which must be loaded regardless (we need them to update x-matched HIP stars)
-                    loader.setMustLoadIds(new HashSet<>(xmatchTable.keySet()));
-                }
-            }
 
-            /* LOAD CATALOG */
-            listLoader = loader.loadData(input);
+        IStarGroupDataProvider loader = createLoader();
+        LongIntMap xmatchTable = loadXmatchTable(loader);
+        long[] countsPerMagGaia = loader != null ? loader.getCountsPerMag() : null;
+
+        if (external && serialized) {
+            logger.error("The out-of-core generation (--external) does not support the serialized format (--serialized)");
+            return null;
         }
 
-        if (hip != null) {
-            /* HIPPARCOS */
-            STILDataProvider stil = new STILDataProvider();
-
-            // All hip stars for which we have a Gaia star, bypass plx >= 0 condition in STILDataProvider
-            if (xmatchTable != null && !xmatchTable.isEmpty()) {
-                Set<Long> mustLoad = new HashSet<>();
-                for (int hipNumber : xmatchTable.values()) {
-                    mustLoad.add(Long.valueOf(hipNumber));
+        OctreeGeneratorExternal ogExternal = null;
+        try {
+            OctreeNode octree;
+            ParticleArchive.OctantSource source;
+            long nStars;
+            long loadingMs;
+            double loadingSecs;
+            if (external) {
+                /* OUT-OF-CORE GENERATION */
+                Path tmpPath = Path.of(tmpDir != null ? tmpDir : System.getProperty("java.io.tmpdir"));
+                ogExternal = new OctreeGeneratorExternal(ogp, tmpPath, runSize);
+                streamCatalog(loader, xmatchTable, countsPerMagGaia, ogExternal);
+                nStars = ogExternal.getStarCount();
+                if (nStars == 0) {
+                    logger.info("No stars were loaded, please check out the parameters");
+                    return null;
                 }
-                stil.setMustLoadIds(mustLoad);
-            }
 
-            List<ParticleBean> listHip = stil.loadData(hip);
+                loadingMs = TimeUtils.millis();
+                loadingSecs = ((loadingMs - startMs) / 1000.0);
+                logger.info("TIME STATS: Data loaded and sorted in " + loadingSecs + " seconds");
 
-            // Update HIP names using external source, if needed
-            if (hipNamesDir != null) {
-                HipNames hipNames = new HipNames();
-                hipNames.load(Paths.get(hipNamesDir));
+                logger.info("Generating octree out of core with " + nStars + " actual stars");
 
-                Map<Integer, Array<String>> hn = hipNames.getHipNames();
-                for (ParticleBean pb : listHip) {
-                    StarBean star = (StarBean) pb;
-                    if (hn.containsKey(star.hip())) {
-                        Array<String> names = hn.get(star.hip());
-                        for (String name : names)
-                            star.addName(name);
-                    }
+                octree = ogExternal.generateOctree();
+                source = ogExternal;
+            } else {
+                List<ParticleBean> list = loadCatalog(loader, xmatchTable, countsPerMagGaia);
+                if (list == null || list.isEmpty()) {
+                    logger.info("No stars were loaded, please check out the parameters");
+                    return null;
                 }
-            }
 
-            // Combine counts per magnitude
-            long[] countsPerMagHip = stil.getCountsPerMag();
-            combineCountsPerMag(countsPerMagGaia, countsPerMagHip);
+                loadingMs = TimeUtils.millis();
+                loadingSecs = ((loadingMs - startMs) / 1000.0);
+                logger.info("TIME STATS: Data loaded in " + loadingSecs + " seconds");
 
-            // Create HIP map
-            Map<Integer, StarBean> hipMap = new HashMap<>();
-            for (ParticleBean star : listHip) {
-                hipMap.put(((StarBean) star).hip(), (StarBean) star);
+                logger.info("Generating octree with " + list.size() + " actual stars");
+
+                IOctreeGenerator og = parallel ? new OctreeGeneratorParallel(ogp, nThreads) : new OctreeGeneratorMag(ogp);
+                octree = og.generateOctree(list);
+                logger.info(og.getDiscarded() + " particles have been discarded due to density");
+                source = octant -> octant.objects;
+                nStars = list.size();
             }
+            return writeOctree(octree, source, nStars, countsPerMagGaia, loadingMs, loadingSecs);
+        } finally {
+            if (ogExternal != null)
+                ogExternal.close();
+        }
+    }
 
-            // Check x-match file
+    /**
+     * Loads the catalog and the Hipparcos catalog, if any, into memory.
+     *
+     * @return The list of stars, with the Hipparcos stars first
+     */
+    private List<ParticleBean> loadCatalog(IStarGroupDataProvider loader, LongIntMap xmatchTable, long[] countsPerMagGaia) {
+        List<ParticleBean> listLoader = null;
+        if (loader != null) {
+            /* LOAD CATALOG */
+            listLoader = loader.loadData(input);
+        }
+
+        if (hip != null) {
+            List<ParticleBean> listHip = loadHip(xmatchTable, countsPerMagGaia);
             int hipnum = listHip.size();
-            int starhits = 0;
-            int notFoundHipStars = 0;
 
-            Vector3d aux1 = new Vector3d();
-            Vector3d aux2 = new Vector3d();
             if (listLoader != null) {
+                HipCrossMatch crossMatch = new HipCrossMatch(xmatchTable, listHip);
                 for (ParticleBean pb : listLoader) {
-                    StarBean gaiaStar = (StarBean) pb;
-                    // Check if star is also in HIP catalog
-                    if (xmatchTable == null || !xmatchTable.containsKey(gaiaStar.id)) {
+                    if (!crossMatch.update((StarBean) pb)) {
                         // No hit, add to main list
-                        listHip.add(gaiaStar);
-                    } else {
-                        // Update hipStar using gaiaStar data, only when:
-                        // TODO gaia.ruwe small enough (if present) and gaia.pllx_err <= hip.pllx_err
-                        int hipId = xmatchTable.get(gaiaStar.id);
-                        if (hipMap.containsKey(hipId)) {
-                            // Hip Star
-                            StarBean hipStar = hipMap.get(hipId);
-
-                            // Check parallax errors
-                            Double gaiaPllxErr = gaiaStar.getExtra("pllx_err");
-                            Double hipPllxErr = hipStar.getExtra("e_plx");
-
-                            if (gaiaPllxErr <= hipPllxErr) {
-                                // SIZE
-                                double size = gaiaStar.size();
-                                // POSITION
-                                double x = gaiaStar.x(), y = gaiaStar.y(), z = gaiaStar.z();
-                                aux1.set(x, y, z);
-                                boolean negativeGaiaDistance = Math.abs(aux1.len() - AbstractStarGroupDataProvider.NEGATIVE_DIST) < 1e-10;
-                                if (negativeGaiaDistance) {
-                                    // Negative distance in Gaia star!
-                                    // Use Gaia position, HIP distance and name(s)
-
-                                    // Fetch Gaia RA/DEC
-                                    Coordinates.cartesianToSpherical(aux1, aux2);
-                                    double gaiaRA = aux2.x;
-                                    double gaiaDEC = aux2.y;
-
-                                    // Fetch HIP distance
-                                    aux1.set(hipStar.x(), hipStar.y(), hipStar.z());
-                                    Coordinates.cartesianToSpherical(aux1, aux2);
-                                    double hipDIST = aux2.z;
-
-                                    // Compute new cartesian position
-                                    aux1.set(gaiaRA, gaiaDEC, hipDIST);
-                                    Coordinates.sphericalToCartesian(aux1, aux2);
-                                    x = aux2.x;
-                                    y = aux2.y;
-                                    z = aux2.z;
-
-                                    size = hipStar.size();
-                                }
-
-                                hipStar.id = gaiaStar.id;
-                                hipStar.data[StarBean.I_X] = x;
-                                hipStar.data[StarBean.I_Y] = y;
-                                hipStar.data[StarBean.I_Z] = z;
-                                hipStar.data[StarBean.I_PMX] = gaiaStar.pmx();
-                                hipStar.data[StarBean.I_PMY] = gaiaStar.pmy();
-                                hipStar.data[StarBean.I_PMZ] = gaiaStar.pmz();
-                                hipStar.data[StarBean.I_MUALPHA] = gaiaStar.mualpha();
-                                hipStar.data[StarBean.I_MUDELTA] = gaiaStar.mudelta();
-                                hipStar.data[StarBean.I_RADVEL] = gaiaStar.radvel();
-                                hipStar.data[StarBean.I_APPMAG] = gaiaStar.appmag();
-                                hipStar.data[StarBean.I_ABSMAG] = gaiaStar.absmag();
-                                hipStar.data[StarBean.I_COL] = gaiaStar.col();
-                                hipStar.data[StarBean.I_SIZE] = size;
-                                hipStar.addNames(gaiaStar.names);
-                                starhits++;
-                            }
-                        } else {
-                            notFoundHipStars++;
-                        }
+                        listHip.add(pb);
                     }
                 }
-                logger.info(starhits + " of " + hipnum + " HIP stars' data updated due to being matched to a Gaia star (" + notFoundHipStars + " not found - negative parallax?)");
+                crossMatch.log(hipnum);
                 // Free up some memory
                 listLoader.clear();
             }
             // Main list is listHip
-            list = listHip;
-
+            return listHip;
         } else {
-            list = listLoader;
+            return listLoader;
         }
+    }
 
-        if (list == null || list.isEmpty()) {
-            logger.info("No stars were loaded, please check out the parameters");
-            return null;
+    /**
+     * Streams the catalog through the out-of-core generator, without holding it in memory. The stars get the same
+     * catalog indices as in {@link #loadCatalog(IStarGroupDataProvider, LongIntMap, long[])}, so that the octree is the same.
+     */
+    private void streamCatalog(IStarGroupDataProvider loader, LongIntMap xmatchTable, long[] countsPerMagGaia, OctreeGeneratorExternal og) throws IOException {
+        List<ParticleBean> listHip = null;
+        HipCrossMatch crossMatch = null;
+        if (hip != null) {
+            // Hipparcos stars go first, and are updated with the Gaia data as it comes
+            listHip = loadHip(xmatchTable, countsPerMagGaia);
+            if (loader != null)
+                crossMatch = new HipCrossMatch(xmatchTable, listHip);
         }
 
-        long loadingMs = TimeUtils.millis();
-        double loadingSecs = ((loadingMs - startMs) / 1000.0);
-        logger.info("TIME STATS: Data loaded in " + loadingSecs + " seconds");
+        if (loader != null) {
+            /* STREAM CATALOG */
+            final HipCrossMatch cm = crossMatch;
+            final long[] index = new long[] { listHip != null ? listHip.size() : 0 };
+            final IOException[] error = new IOException[1];
+            loader.setStreamConsumer(pb -> {
+                if (error[0] == null && (cm == null || !cm.update((StarBean) pb))) {
+                    try {
+                        og.add((StarBean) pb, index[0]++);
+                    } catch (IOException e) {
+                        error[0] = e;
+                    }
+                }
+            });
+            try {
+                loader.loadData(input);
+            } finally {
+                loader.setStreamConsumer(null);
+            }
+            if (error[0] != null)
+                throw error[0];
+            if (cm != null)
+                cm.log(listHip.size());
+        }
 
-        logger.info("Generating octree with " + list.size() + " actual stars");
+        if (listHip != null) {
+            long index = 0;
+            for (ParticleBean pb : listHip) {
+                og.add((StarBean) pb, index++);
+            }
+        }
+    }
+
+    /**
+     * Loads the Hipparcos catalog, with the names from the external source, if any
+     */
+    private List<ParticleBean> loadHip(LongIntMap xmatchTable, long[] countsPerMagGaia) {
+        /* HIPPARCOS */
+        STILDataProvider stil = new STILDataProvider();
+
+        // All hip stars for which we have a Gaia star, bypass plx >= 0 condition in STILDataProvider
+        if (xmatchTable != null && !xmatchTable.isEmpty()) {
+            LongIntMap mustLoad = new LongIntMap();
+            xmatchTable.forEach((sourceId, hipNumber) -> mustLoad.put(hipNumber, hipNumber));
+            stil.setMustLoadIds(mustLoad);
+        }
+
+        List<ParticleBean> listHip = stil.loadData(hip);
 
-        OctreeNode octree = og.generateOctree(list);
+        // Update HIP names using external source, if needed
+        if (hipNamesDir != null) {
+            HipNames hipNames = new HipNames();
+            hipNames.load(Paths.get(hipNamesDir));
+
+            Map<Integer, Array<String>> hn = hipNames.getHipNames();
+            for (ParticleBean pb : listHip) {
+                StarBean star = (StarBean) pb;
+                if (hn.containsKey(star.hip())) {
+                    Array<String> names = hn.get(star.hip());
+                    for (String name : names)
+                        star.addName(name);
+                }
+            }
+        }
 
+        // Combine counts per magnitude
+        long[] countsPerMagHip = stil.getCountsPerMag();
+        combineCountsPerMag(countsPerMagGaia, countsPerMagHip);
+
+        return listHip;
+    }
+
+    /**
+     * Updates the Hipparcos stars with the data of the Gaia stars they are cross-matched to
+     */
+    private static class HipCrossMatch {
+        private final LongIntMap xmatchTable;
+        private final Map<Integer, StarBean> hipMap;
+        private final Vector3d aux1 = new Vector3d();
+        private final Vector3d aux2 = new Vector3d();
+        private int starhits = 0;
+        private int notFoundHipStars = 0;
+
+        HipCrossMatch(LongIntMap xmatchTable, List<ParticleBean> listHip) {
+            this.xmatchTable = xmatchTable;
+            // Create HIP map
+            this.hipMap = new HashMap<>();
+            for (ParticleBean star : listHip) {
+                hipMap.put(((StarBean) star).hip(), (StarBean) star);
+            }
+        }
+
+        /**
+         * Checks the given Gaia star against the x-match table and updates its Hipparcos star, if any
+         *
+         * @param gaiaStar The Gaia star
+         * @return Whether the star is in the x-match table. If not, it must be added to the main list
+         */
+        boolean update(StarBean gaiaStar) {
+            // Check if star is also in HIP catalog
+            int hipId = xmatchTable != null && gaiaStar.id != null ? xmatchTable.get(gaiaStar.id, -1) : -1;
+            if (hipId < 0) {
+                return false;
+            }
+            // Update hipStar using gaiaStar data, only when:
+            // TODO gaia.ruwe small enough (if present) and gaia.pllx_err <= hip.pllx_err
+            if (hipMap.containsKey(hipId)) {
+                // Hip Star
+                StarBean hipStar = hipMap.get(hipId);
+
+                // Check parallax errors
+                Double gaiaPllxErr = gaiaStar.getExtra("pllx_err");
+                Double hipPllxErr = hipStar.getExtra("e_plx");
+
+                if (gaiaPllxErr <= hipPllxErr) {
+                    // SIZE
+                    double size = gaiaStar.size();
+                    // POSITION
+                    double x = gaiaStar.x(), y = gaiaStar.y(), z = gaiaStar.z();
+                    aux1.set(x, y, z);
+                    boolean negativeGaiaDistance = Math.abs(aux1.len() - AbstractStarGroupDataProvider.NEGATIVE_DIST) < 1e-10;
+                    if (negativeGaiaDistance) {
+                        // Negative distance in Gaia star!
+                        // Use Gaia position, HIP distance and name(s)
+
+                        // Fetch Gaia RA/DEC
+                        Coordinates.cartesianToSpherical(aux1, aux2);
+                        double gaiaRA = aux2.x;
+                        double gaiaDEC = aux2.y;
+
+                        // Fetch HIP distance
+                        aux1.set(hipStar.x(), hipStar.y(), hipStar.z());
+                        Coordinates.cartesianToSpherical(aux1, aux2);
+                        double hipDIST = aux2.z;
+
+                        // Compute new cartesian position
+                        aux1.set(gaiaRA, gaiaDEC, hipDIST);
+                        Coordinates.sphericalToCartesian(aux1, aux2);
+                        x = aux2.x;
+                        y = aux2.y;
+                        z = aux2.z;
+
+                        size = hipStar.size();
+                    }
+
+                    hipStar.id = gaiaStar.id;
+                    hipStar.data[StarBean.I_X] = x;
+                    hipStar.data[StarBean.I_Y] = y;
+                    hipStar.data[StarBean.I_Z] = z;
+                    hipStar.data[StarBean.I_PMX] = gaiaStar.pmx();
+                    hipStar.data[StarBean.I_PMY] = gaiaStar.pmy();
+                    hipStar.data[StarBean.I_PMZ] = gaiaStar.pmz();
+                    hipStar.data[StarBean.I_MUALPHA] = gaiaStar.mualpha();
+                    hipStar.data[StarBean.I_MUDELTA] = gaiaStar.mudelta();
+                    hipStar.data[StarBean.I_RADVEL] = gaiaStar.radvel();
+                    hipStar.data[StarBean.I_APPMAG] = gaiaStar.appmag();
+                    hipStar.data[StarBean.I_ABSMAG] = gaiaStar.absmag();
+                    hipStar.data[StarBean.I_COL] = gaiaStar.col();
+                    hipStar.data[StarBean.I_SIZE] = size;
+                    hipStar.addNames(gaiaStar.names);
+                    starhits++;
+                }
+            } else {
+                notFoundHipStars++;
+            }
+            return true;
+        }
+
+        void log(int hipnum) {
+            logger.info(starhits + " of " + hipnum + " HIP stars' data updated due to being matched to a Gaia star (" + notFoundHipStars + " not found - negative parallax?)");
+        }
+    }
+
+    /**
+     * Writes the metadata and the particles of the given octree to the output folder, and logs the statistics
+     *
+     * @param octree           The octree
+     * @param source           The source of the objects of each octant
+     * @param nStars           The number of stars
+     * @param countsPerMagGaia The star counts per magnitude, or null
+     * @param loadingMs        The time the loading finished
+     * @param loadingSecs      The loading time in seconds
+     * @return The octree
+     */
+    private OctreeNode writeOctree(OctreeNode octree, ParticleArchive.OctantSource source, long nStars, long[] countsPerMagGaia, long loadingMs, double loadingSecs) throws IOException {
         PrintStream out = new PrintStream(System.out, true, StandardCharsets.UTF_8);
         out.println(octree.toString(true));
 
@@ -397,13 +616,16 @@ public class OctreeGeneratorRun {
 
         /** NUMBERS **/
         logger.info("Octree generated with " + octree.numNodes() + " octants and " + octree.nObjects + " particles");
-        logger.info(og.getDiscarded() + " particles have been discarded due to density");
-
+        
         /** CLEAN CURRENT OUT DIR **/
         File metadataFile = new File(outFolder, "metadata.bin");
         delete(metadataFile);
         File particlesFolder = new File(outFolder, "particles/");
         delete(particlesFolder);
+        File particlesArchive = new File(outFolder, "particles.bin");
+        delete(particlesArchive);
+        delete(new File(outFolder, SourceIdIndex.FILE));
+        delete(new File(outFolder, SourceIdIndex.OVERLAY_FILE));
 
         /** WRITE METADATA **/
         metadataFile.createNewFile();
@@ -414,9 +636,31 @@ public class OctreeGeneratorRun {
         metadataWriter.writeMetadata(octree, new FileOutputStream(metadataFile));
 
         /** WRITE PARTICLES **/
-        IStarGroupIO particleWriter = serialized ? new StarGroupSerializedIO() : new StarGroupBinaryIO();
-        particlesFolder.mkdirs();
-        writeParticlesToFiles(particleWriter, octree, compatibilityMode);
+        // The source id index is only built for the in-memory generation, otherwise it is built by the first update
+        SourceIdIndex.Builder indexBuilder = source instanceof OctreeGeneratorExternal ? null : new SourceIdIndex.Builder();
+        if (indexBuilder != null) {
+            ParticleArchive.OctantSource octantSource = source;
+            source = octant -> {
+                List<SceneGraphNode> objects = octantSource.objects(octant);
+                for (SceneGraphNode object : objects) {
+                    if (object instanceof StarGroup)
+                        indexBuilder.add(octant.pageId, ((StarGroup) object).data());
+                }
+                return objects;
+            };
+        }
+        IStarGroupIO particleWriter = serialized ? new StarGroupSerializedIO() : (quantized ? new StarGroupQuantizedIO() : new StarGroupBinaryIO(binaryV3));
+        if (archive) {
+            logger.info("Writing particles to archive: " + particlesArchive.getAbsolutePath());
+            int nPages = ParticleArchive.write(octree, source, particleWriter, particlesArchive, compatibilityMode, nThreads);
+            logger.info(nPages + " octants written to archive (" + particlesArchive.length() + " bytes)");
+        } else {
+            particlesFolder.mkdirs();
+            writeParticlesToFiles(particleWriter, source, octree, compatibilityMode);
+        }
+        if (indexBuilder != null) {
+            indexBuilder.write(new File(outFolder));
+        }
 
         long writingMs = TimeUtils.millis();
         double writingSecs = (writingMs - generatingMs) / 1000.0;
@@ -429,7 +673,7 @@ public class OctreeGeneratorRun {
             logger.info("STAR COUNTS STATS");
             logger.info("=================");
             for (int level = 0; level < countsPerMagGaia.length; level++) {
-                logger.info("Magnitude " + level + ": " + countsPerMagGaia[level] + " stars (" + formatter.format((double) countsPerMagGaia[level] * 100d / (double) list.size()) + "%)");
+                logger.info("Magnitude " + level + ": " + countsPerMagGaia[level] + " stars (" + formatter.format((double) countsPerMagGaia[level] * 100d / (double) nStars) + "%)");
             }
             logger.info();
         }
@@ -438,11 +682,11 @@ public class OctreeGeneratorRun {
         logger.info("OCTREE STATS");
         logger.info("============");
         logger.info("Octants: " + octree.numNodes());
-        logger.info("Particles: " + list.size());
+        logger.info("Particles: " + nStars);
         logger.info("Depth: " + octree.getMaxDepth());
         int level = 0;
         for (int[] levelinfo : stats) {
-            logger.info("   Level " + level + ": " + levelinfo[0] + " octants, " + levelinfo[1] + " stars (" + formatter.format((double) levelinfo[1] * 100d / (double) list.size()) + "%)");
+            logger.info("   Level " + level + ": " + levelinfo[0] + " octants, " + levelinfo[1] + " stars (" + formatter.format((double) levelinfo[1] * 100d / (double) nStars) + "%)");
             level++;
         }
 
@@ -458,6 +702,176 @@ public class OctreeGeneratorRun {
         return octree;
     }
 
+    /**
+     * Updates an existing octree in place with the delta given by the loader (additions and
+     * modifications) and the removal file (see {@link OctreeUpdater})
+     *
+     * @return The root of the updated octree, or null if it could not be updated
+     */
+    private OctreeNode updateOctree() throws IOException, InstantiationException, IllegalAccessException, ClassNotFoundException, NoSuchMethodException, InvocationTargetException {
+        long startMs = TimeUtils.millis();
+
+        File folder = new File(update);
+        if (!new File(folder, "metadata.bin").exists()) {
+            logger.error("Metadata file not found: " + new File(folder, "metadata.bin").getAbsolutePath());
+            return null;
+        }
+
+        /* DELTA */
+        List<Long> removed = remove != null ? readSourceIds(remove) : new ArrayList<>();
+        IStarGroupDataProvider loader = createLoader();
+        List<ParticleBean> stars = null;
+        if (loader != null || hip != null)
+            stars = loadCatalog(loader, loadXmatchTable(loader), null);
+        if (stars == null)
+            stars = new ArrayList<>();
+        logger.info("Delta loaded: " + stars.size() + " stars to add or modify, " + removed.size() + " to remove");
+
+        OctreeGeneratorParams ogp = new OctreeGeneratorParams(maxPart, sunCentre, postprocess, childCount, parentCount);
+        OctreeUpdater updater = new OctreeUpdater(ogp, folder, compatibilityMode, nThreads);
+        updater.update(stars, removed);
+        OctreeNode octree = updater.commit();
+
+        double updateSecs = (TimeUtils.millis() - startMs) / 1000.0;
+        logger.info("Octree updated in " + updateSecs + " secs (" + formatTimeSecs((long) updateSecs) + "): " + folder.getAbsolutePath());
+        return octree;
+    }
+
+    /**
+     * Reads a file with one source id per line. Empty lines and lines starting with # are skipped
+     */
+    private List<Long> readSourceIds(String file) throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file)))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#"))
+                    ids.add(Parser.parseLong(line));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Converts the additional columns files to memory-mapped column stores
+     */
+    private void convertAdditional() throws IOException {
+        if (additionalFiles == null || additionalFiles.isBlank()) {
+            logger.error("No additional files to convert, use --additional");
+            return;
+        }
+        long startMs = TimeUtils.millis();
+        File folder = new File(additionalStore);
+        folder.mkdirs();
+        CsvCatalogDataProvider provider = new CsvCatalogDataProvider();
+        provider.setAdditionalFiles(additionalFiles);
+        List<File> stores = provider.writeAdditionalStores(folder, additionalFloat);
+        double secs = (TimeUtils.millis() - startMs) / 1000.0;
+        logger.info(stores.size() + " additional column stores written in " + secs + " secs (" + formatTimeSecs((long) secs) + "): " + folder.getAbsolutePath());
+    }
+
+    /**
+     * Converts the particle files of an existing octree to the quantized format, or to version 3
+     * of the binary format. The metadata is copied as it is. Octants are converted one at a time.
+     *
+     * @return The root of the octree, or null if it could not be read
+     */
+    private OctreeNode convertOctree() throws IOException {
+        long startMs = TimeUtils.millis();
+
+        File inFolder = new File(convert);
+        File inMetadata = new File(inFolder, "metadata.bin");
+        File inParticlesArchive = new File(inFolder, "particles.bin");
+        File inParticlesFolder = new File(inFolder, "particles/");
+        if (!inMetadata.exists()) {
+            logger.error("Metadata file not found: " + inMetadata.getAbsolutePath());
+            return null;
+        }
+        if (inFolder.getCanonicalFile().equals(new File(outFolder).getCanonicalFile())) {
+            logger.error("The output folder must be different from the folder to convert: " + inFolder.getAbsolutePath());
+            return null;
+        }
+
+        MetadataBinaryIO metadataIO = new MetadataBinaryIO();
+        OctreeNode octree;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(inMetadata))) {
+            octree = metadataIO.readMetadata(in);
+        }
+        if (octree == null) {
+            return null;
+        }
+        ParticleArchive inArchive = ParticleArchive.isArchive(inParticlesArchive) ? ParticleArchive.open(inParticlesArchive.getPath()) : null;
+
+        BinaryDataProvider binaryReader = new BinaryDataProvider();
+        StarGroupQuantizedIO quantizedIO = new StarGroupQuantizedIO();
+        IStarGroupIO particleWriter = binaryV3 ? new StarGroupBinaryIO(true) : quantizedIO;
+        String format = binaryV3 ? "binary v3" : "quantized";
+        logger.info("Converting octree with " + octree.numNodes() + " octants to " + format + ": " + inFolder.getAbsolutePath());
+        long[] bytesIn = new long[1];
+        ParticleArchive.OctantSource source = octant -> {
+            ByteBuffer buffer;
+            if (inArchive != null) {
+                buffer = inArchive.slice(octant.pageId);
+            } else {
+                File file = new File(inParticlesFolder, "particles_" + String.format("%06d", octant.pageId) + ".bin");
+                try (FileChannel fc = new RandomAccessFile(file, "r").getChannel()) {
+                    buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+                }
+            }
+            bytesIn[0] += buffer.remaining();
+            StarGroup sg = new StarGroup();
+            if (StarGroupQuantizedIO.isQuantized(buffer)) {
+                sg.setColumns(quantizedIO.readColumns(buffer, octant), false);
+            } else {
+                sg.setColumns(binaryReader.loadColumns(buffer, 1.0, compatibilityMode), false);
+            }
+            sg.octant = octant;
+            List<SceneGraphNode> objects = new ArrayList<>(1);
+            objects.add(sg);
+            return objects;
+        };
+
+        /** CLEAN CURRENT OUT DIR **/
+        File metadataFile = new File(outFolder, "metadata.bin");
+        delete(metadataFile);
+        File particlesFolder = new File(outFolder, "particles/");
+        delete(particlesFolder);
+        File particlesArchive = new File(outFolder, "particles.bin");
+        delete(particlesArchive);
+        delete(new File(outFolder, SourceIdIndex.FILE));
+        delete(new File(outFolder, SourceIdIndex.OVERLAY_FILE));
+
+        /** COPY METADATA AND SOURCE ID INDEX **/
+        Files.copy(inMetadata.toPath(), metadataFile.toPath());
+        for (String indexFile : new String[] { SourceIdIndex.FILE, SourceIdIndex.OVERLAY_FILE }) {
+            File in = new File(inFolder, indexFile);
+            if (in.exists())
+                Files.copy(in.toPath(), new File(outFolder, indexFile).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        /** CONVERT PARTICLES **/
+        long bytesOut = 0;
+        if (archive) {
+            logger.info("Writing " + format + " particles to archive: " + particlesArchive.getAbsolutePath());
+            ParticleArchive.write(octree, source, particleWriter, particlesArchive, compatibilityMode, nThreads);
+            bytesOut = particlesArchive.length();
+        } else {
+            particlesFolder.mkdirs();
+            writeParticlesToFiles(particleWriter, source, octree, compatibilityMode);
+            File[] files = particlesFolder.listFiles();
+            if (files != null) {
+                for (File particles : files)
+                    bytesOut += particles.length();
+            }
+        }
+
+        double convertSecs = (TimeUtils.millis() - startMs) / 1000.0;
+        logger.info("Particles converted in " + convertSecs + " secs (" + formatTimeSecs((long) convertSecs) + "): " + bytesIn[0] + " bytes -> " + bytesOut + " bytes");
+
+        return octree;
+    }
+
     private String formatTimeSecs(long secs) {
         long hours = secs / 3600l;
         long minutes = (secs % 3600l) / 60l;
@@ -478,28 +892,22 @@ public class OctreeGeneratorRun {
         return cpm1;
     }
 
-    private void writeParticlesToFiles(IStarGroupIO particleWriter, OctreeNode current) throws IOException {
-        writeParticlesToFiles(particleWriter, current, true);
-    }
-
-    private void writeParticlesToFiles(IStarGroupIO particleWriter, OctreeNode current, boolean compat) throws IOException {
-        // Write current
-        if (current.ownObjects > 0) {
-            File particles = new File(outFolder + "/particles/", "particles_" + String.format("%06d", current.pageId) + ".bin");
-            logger.info("Writing " + current.ownObjects + " particles of node " + current.pageId + " to " + particles.getAbsolutePath());
-            particleWriter.writeParticles(current.objects, new BufferedOutputStream(new FileOutputStream(particles)), compat);
-        }
-
-        // Write each child
-        if (current.childrenCount > 0)
-            for (OctreeNode child : current.children) {
-                if (child != null)
-                    writeParticlesToFiles(particleWriter, child, compat);
-            }
+    private void writeParticlesToFiles(IStarGroupIO particleWriter, ParticleArchive.OctantSource source, OctreeNode root, boolean compat) throws IOException {
+        List<OctreeNode> nodes = new ArrayList<>();
+        new MetadataBinaryIO().toList(root, nodes);
+        // Page id order, so that sources which read the octants in batches do so sequentially
+        nodes.removeIf(node -> node.ownObjects <= 0);
+        nodes.sort(Comparator.comparingLong(node -> node.pageId));
+        // Particles are encoded concurrently, and the files written in order
+        new ParticleEncoder(particleWriter, compat, nThreads).encode(nodes, source, (node, bytes) -> {
+            File particles = new File(outFolder + "/particles/", "particles_" + String.format("%06d", node.pageId) + ".bin");
+            logger.info("Writing " + node.ownObjects + " particles of node " + node.pageId + " to " + particles.getAbsolutePath());
+            Files.write(particles.toPath(), bytes);
+        });
     }
 
-    private Map<Long, Integer> readXmatchTable(String xmatchFile) {
-        Map<Long, Integer> map = new HashMap<>();
+    private LongIntMap readXmatchTable(String xmatchFile) {
+        LongIntMap map = new LongIntMap();
         File xm = new File(xmatchFile);
         if (xm.exists()) {
             try {
@@ -508,8 +916,8 @@ public class OctreeGeneratorRun {
                 String line;
                 while ((line = br.readLine()) != null) {
                     String[] tokens = line.split(",");
-                    Long sourceId = Parser.parseLong(tokens[0]);
-                    Integer hip = Parser.parseInt(tokens[1]);
+                    long sourceId = Parser.parseLong(tokens[0]);
+                    int hip = Parser.parseInt(tokens[1]);
                     map.put(sourceId, hip);
                 }
                 br.close();
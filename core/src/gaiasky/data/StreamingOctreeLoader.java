@@ -13,20 +13,26 @@ import gaiasky.event.Events;
 import gaiasky.event.IObserver;
 import gaiasky.scenegraph.Constellation;
 import gaiasky.scenegraph.SceneGraphNode;
+import gaiasky.scenegraph.StarColumns;
+import gaiasky.scenegraph.StarGroup;
+import gaiasky.scenegraph.camera.ICamera;
 import gaiasky.scenegraph.octreewrapper.AbstractOctreeWrapper;
 import gaiasky.util.GlobalConf;
 import gaiasky.util.I18n;
 import gaiasky.util.Logger;
 import gaiasky.util.Logger.Log;
 import gaiasky.util.tree.LoadStatus;
+import gaiasky.util.tree.OctantLRU;
 import gaiasky.util.tree.OctreeNode;
 import uk.ac.starlink.util.DataSource;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Contains the infrastructure common to all multifile octree loaders which
@@ -45,6 +51,42 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
      */
     protected static final int LOAD_QUEUE_MAX_SIZE = 100;
 
+    /**
+     * Prefetch queue size in octants
+     */
+    protected static final int PREFETCH_QUEUE_MAX_SIZE = 50;
+
+    /**
+     * Prefetching only happens while the number of loaded stars is below
+     * this fraction of the maximum, so that it never causes evictions
+     */
+    protected static final double PREFETCH_MAX_LOAD_FRACTION = 0.85;
+
+    /**
+     * Estimated heap memory used by each loaded star, in bytes (star bean with its data and
+     * names, sorting metadata and indices, and name index entry)
+     */
+    protected static final long HEAP_BYTES_PER_STAR = 320;
+
+    /**
+     * Estimated heap memory used by each loaded star of a columnar star group, in bytes (sorting
+     * metadata and indices, and name index entry). The star data itself is off-heap, and is
+     * counted with {@link StarColumns#offHeapBytes()}
+     */
+    protected static final long COLUMNAR_HEAP_BYTES_PER_STAR = 64;
+
+    /**
+     * Video memory used by each loaded star, in bytes (position, proper motion, packed
+     * colour and two additional floats)
+     */
+    protected static final long VBO_BYTES_PER_STAR = 36;
+
+    /**
+     * When the budget is surpassed, octants are unloaded until the
+     * loaded data is below this fraction of the budget
+     */
+    protected static final double UNLOAD_TARGET_FRACTION = 0.85;
+
     /**
      * Minimum time to pass to be able to clear the queue again
      */
@@ -55,22 +97,62 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
      **/
     protected static final int MAX_LOAD_CHUNK = 5;
 
+    /**
+     * Time budget to integrate loaded octants in the main thread every frame, in ms. At least
+     * one octant is integrated per frame, and the rest wait for the next frames
+     **/
+    protected static final long INTEGRATION_BUDGET_MS = 3;
+
     public static StreamingOctreeLoader instance;
 
     /**
-     * Current number of stars that are loaded
+     * Current number of stars that are loaded. Updated from the main thread
+     * and read from the daemon loader thread
      **/
-    protected int nLoadedStars = 0;
+    protected final AtomicInteger nLoadedStars = new AtomicInteger(0);
     /**
      * Max number of stars loaded at once
      **/
     protected final long maxLoadedStars;
+    /**
+     * Current estimated memory footprint of the loaded octants, in bytes
+     **/
+    protected final AtomicLong residentBytes = new AtomicLong(0);
+    /**
+     * Max estimated memory footprint of the loaded octants, in bytes
+     **/
+    protected final long maxResidentBytes;
+    /**
+     * Streaming telemetry: load latencies, counters and queue depths
+     **/
+    protected final StreamingOctreeMetrics metrics;
 
     /**
      * The octant loading queue
      **/
     protected Queue<OctreeNode> toLoadQueue;
 
+    /**
+     * The octant prefetching queue. Octants in this queue are predicted to
+     * become visible soon, and are only loaded when the loading queue is empty.
+     * They keep the {@link LoadStatus#NOT_LOADED} status while here, so that
+     * they go to the loading queue as soon as they are actually observed.
+     **/
+    protected Queue<OctreeNode> toPrefetchQueue;
+
+    /**
+     * Predicts the octants to prefetch, null if prefetching is disabled
+     **/
+    protected OctantPrefetcher prefetcher;
+
+    /**
+     * Prefetch counters. Hits are prefetched octants which were observed
+     * afterwards, misses are observed octants which had to be queued because
+     * they were not loaded, and wasted are prefetched octants which were
+     * unloaded without having been observed
+     **/
+    protected final AtomicLong prefetchHits, prefetchMisses, prefetchWasted;
+
     /**
      * Whether loading is paused or not
      **/
@@ -85,10 +167,10 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
     protected String name, description;
 
     /**
-     * This queue is sorted ascending by access date, so that we know which
+     * This list is sorted ascending by access date, so that we know which
      * element to release if needed (oldest)
      **/
-    protected Queue<OctreeNode> toUnloadQueue;
+    protected final OctantLRU toUnloadQueue;
 
     /**
      * Loaded octant ids, for logging
@@ -104,6 +186,23 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
      **/
     protected DaemonLoader daemon;
 
+    /**
+     * Pool of threads which read and decode the octants in parallel
+     **/
+    protected ExecutorService loaderPool;
+
+    /**
+     * Octant load tasks currently submitted to the loader pool
+     **/
+    protected final List<OctantLoadTask> inFlight;
+
+    /**
+     * Decoded octants waiting to be integrated in the main thread, and whether
+     * the integration runnable is already posted
+     **/
+    protected final Queue<DecodedOctant> toIntegrateQueue;
+    private final AtomicBoolean integrationPosted;
+
     public StreamingOctreeLoader() {
         // TODO Use memory info to figure this out
         // We assume 1Gb of graphics memory
@@ -111,15 +210,31 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
         // CPU ~ 136 byte/star
         maxLoadedStars = GlobalConf.scene.MAX_LOADED_STARS;
         logger.info("Maximum loaded stars setting: " + maxLoadedStars);
+        if (GlobalConf.scene.MAX_LOADED_MEMORY_MB > 0) {
+            maxResidentBytes = GlobalConf.scene.MAX_LOADED_MEMORY_MB * 1024L * 1024L;
+        } else {
+            maxResidentBytes = maxLoadedStars * (HEAP_BYTES_PER_STAR + VBO_BYTES_PER_STAR);
+        }
+        logger.info("Maximum loaded memory setting: " + (maxResidentBytes / (1024L * 1024L)) + " MB");
 
         Comparator<OctreeNode> depthComparator = Comparator.comparingInt((OctreeNode o) -> o.depth);
         toLoadQueue = new PriorityBlockingQueue<>(LOAD_QUEUE_MAX_SIZE, depthComparator);
-        toUnloadQueue = new ArrayBlockingQueue<>(LOAD_QUEUE_MAX_SIZE);
+        toUnloadQueue = new OctantLRU();
+        toPrefetchQueue = new PriorityBlockingQueue<>(PREFETCH_QUEUE_MAX_SIZE, depthComparator);
+
+        prefetchHits = new AtomicLong(0);
+        prefetchMisses = new AtomicLong(0);
+        prefetchWasted = new AtomicLong(0);
 
         maxLoadedIds = 50;
         idxLoadedIds = 0;
         loadedIds = new long[maxLoadedIds];
 
+        inFlight = Collections.synchronizedList(new ArrayList<>());
+        toIntegrateQueue = new ConcurrentLinkedQueue<>();
+        integrationPosted = new AtomicBoolean(false);
+        metrics = new StreamingOctreeMetrics();
+
         EventManager.instance.subscribe(this, Events.DISPOSE, Events.PAUSE_BACKGROUND_LOADING, Events.RESUME_BACKGROUND_LOADING);
     }
 
@@ -141,10 +256,27 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
         AbstractOctreeWrapper octreeWrapper = loadOctreeData();
 
         if (octreeWrapper != null) {
+            // Object counts of the preloaded data, updated incrementally from now on
+            octreeWrapper.root.updateNumbers();
+
+            /*
+             * INITIALIZE LOADER POOL
+             */
+            int nThreads = GlobalConf.performance.NUMBER_LOADER_THREADS();
+            loaderPool = Executors.newFixedThreadPool(nThreads, new LoaderThreadFactory());
+            logger.info("Octant loader pool initialized with " + nThreads + " threads");
+
             /*
              * INITIALIZE DAEMON LOADER THREAD
              */
-            daemon = new DaemonLoader(octreeWrapper, this);
+            daemon = new DaemonLoader(octreeWrapper, this, MAX_LOAD_CHUNK * nThreads);
+
+            /*
+             * INITIALIZE PREFETCHER
+             */
+            if (GlobalConf.performance.OCTREE_PREFETCH_TIME > 0) {
+                prefetcher = new OctantPrefetcher(this, GlobalConf.performance.OCTREE_PREFETCH_TIME);
+            }
             daemon.setDaemon(true);
             daemon.setName("daemon-octree-loader");
             daemon.setPriority(Thread.MIN_PRIORITY);
@@ -158,6 +290,7 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
                 @Override
                 public void run() {
                     flushLoadQueue();
+                    metrics.sample(toLoadQueue.size(), toPrefetchQueue.size(), inFlight.size(), nLoadedStars.get(), residentBytes.get());
                 }
 
             }, 1000, 1000);
@@ -174,7 +307,7 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
         }
     }
 
-    protected void addLoadedInfo(long id, int nobjects) {
+    protected synchronized void addLoadedInfo(long id, int nobjects) {
         if (idxLoadedIds >= maxLoadedIds) {
             flushLoadedIds();
         }
@@ -182,13 +315,18 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
         loadedObjects += nobjects;
     }
 
-    protected void flushLoadedIds() {
+    protected synchronized void flushLoadedIds() {
         if (idxLoadedIds > 0) {
             String str = "[" + loadedIds[0] + ", ..., " + loadedIds[idxLoadedIds - 1] + "]";
             logger.info(I18n.bundle.format("notif.octantsloaded", loadedObjects, idxLoadedIds, str));
 
             idxLoadedIds = 0;
             loadedObjects = 0;
+
+            if (prefetcher != null) {
+                logger.debug("Prefetch hits: " + prefetchHits.get() + ", misses: " + prefetchMisses.get() + ", wasted: " + prefetchWasted.get());
+            }
+            logger.debug("Streaming: " + (long) metrics.getBytesRate() + " bytes/s, load latency p95: " + metrics.latency(StreamingOctreeMetrics.Phase.TOTAL).percentile(0.95) + " ms, evictions: " + metrics.getEvictions() + ", reloads: " + metrics.getReloads() + ", aborts: " + metrics.getAborts());
         }
 
     }
@@ -207,10 +345,62 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
      */
     public static void queue(OctreeNode octant) {
         if (instance != null && instance.daemon != null) {
+            if (instance.prefetcher != null) {
+                // Observed but not there
+                instance.prefetchMisses.incrementAndGet();
+            }
             instance.addToQueue(octant);
         }
     }
 
+    /**
+     * Adds the given octant to the prefetch queue, if there is room
+     *
+     * @param octant The octant which is predicted to become visible
+     */
+    public static void prefetch(OctreeNode octant) {
+        if (instance != null && instance.daemon != null) {
+            instance.addToPrefetchQueue(octant);
+        }
+    }
+
+    /**
+     * Predicts the octants which will be observed in the near future from the
+     * camera motion and puts them in the prefetch queue.
+     *
+     * @param root   The root of the octree
+     * @param camera The camera
+     */
+    public static void predict(OctreeNode root, ICamera camera) {
+        if (instance != null && instance.daemon != null && instance.prefetcher != null) {
+            instance.prefetcher.update(root, camera);
+        }
+    }
+
+    /**
+     * Records that a prefetched octant has been observed
+     *
+     * @param octant The octant
+     */
+    public static void prefetchHit(OctreeNode octant) {
+        octant.prefetched = false;
+        if (instance != null) {
+            instance.prefetchHits.incrementAndGet();
+        }
+    }
+
+    public static long getPrefetchHits() {
+        return instance != null ? instance.prefetchHits.get() : 0;
+    }
+
+    public static long getPrefetchMisses() {
+        return instance != null ? instance.prefetchMisses.get() : 0;
+    }
+
+    public static long getPrefetchWasted() {
+        return instance != null ? instance.prefetchWasted.get() : 0;
+    }
+
     /**
      * Clears the current load queue
      */
@@ -234,7 +424,7 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
 
     public static int getNLoadedStars() {
         if (instance != null && instance.daemon != null) {
-            return instance.nLoadedStars;
+            return instance.nLoadedStars.get();
         } else {
             return -1;
         }
@@ -266,6 +456,8 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
             toLoadQueue.clear();
             logger.info(I18n.bundle.format("notif.loadingoctants.emtpied", n));
         }
+        // Predictions are no longer valid
+        toPrefetchQueue.clear();
     }
 
     public void addToQueue(OctreeNode octant) {
@@ -275,11 +467,33 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
                 OctreeNode out = toLoadQueue.poll();
                 out.setStatus(LoadStatus.NOT_LOADED);
             }
+            octant.queueTime = System.nanoTime();
             toLoadQueue.add(octant);
             octant.setStatus(LoadStatus.QUEUED);
         }
     }
 
+    public void addToPrefetchQueue(OctreeNode octant) {
+        if (!loadingPaused && !isPrefetchQueueFull() && octant.getStatus() == LoadStatus.NOT_LOADED && !toPrefetchQueue.contains(octant)) {
+            octant.queueTime = System.nanoTime();
+            toPrefetchQueue.add(octant);
+        }
+    }
+
+    public boolean isPrefetchQueueFull() {
+        return toPrefetchQueue.size() >= PREFETCH_QUEUE_MAX_SIZE;
+    }
+
+    /**
+     * Whether there is room to prefetch octants without having to
+     * unload others
+     *
+     * @return True if prefetching is possible
+     */
+    public boolean canPrefetch() {
+        return !loadingPaused && !toPrefetchQueue.isEmpty() && nLoadedStars.get() < maxLoadedStars * PREFETCH_MAX_LOAD_FRACTION && residentBytes.get() < maxResidentBytes * PREFETCH_MAX_LOAD_FRACTION;
+    }
+
     /**
      * Puts it at the end of the toUnloadQueue
      **/
@@ -287,18 +501,110 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
         // Since higher levels are always observed, or 'touched',
         // it follows naturally that lower levels will always be kept
         // at the head of the queue, whereas higher level octants
-        // are always at the tail and are the last to be unloaded
-        toUnloadQueue.remove(octant);
+        // are always at the tail and are the last to be unloaded.
         // Only attempt to unload the octants with a depth larger than preload_depth
         if (octant.depth > PRELOAD_DEPTH)
-            toUnloadQueue.offer(octant);
+            toUnloadQueue.touch(octant);
+    }
+
+    /**
+     * Gets and removes the octant which has not been accessed for the longest time
+     *
+     * @return The least recently used octant, or null if there are none
+     */
+    public OctreeNode pollUnloadQueue() {
+        return toUnloadQueue.poll();
+    }
+
+    /**
+     * Adds the estimated memory footprint of the given object to the given octant
+     * and to the total
+     *
+     * @param octant The octant
+     * @param object The object which has been added to the octant
+     */
+    protected void addFootprint(OctreeNode octant, SceneGraphNode object) {
+        long bytes = estimateFootprint(object);
+        octant.footprint += bytes;
+        residentBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Estimates the memory footprint of the given object, depending on how its stars are
+     * stored. Columnar star groups keep their data in direct buffers, so only their
+     * metadata and indices are on the heap, while star bean lists use the full heap estimate
+     *
+     * @param object The object
+     * @return The estimated footprint, in bytes
+     */
+    protected long estimateFootprint(SceneGraphNode object) {
+        long n = object.getStarCount();
+        if (object instanceof StarGroup) {
+            StarColumns columns = ((StarGroup) object).columns();
+            if (columns != null)
+                return n * (COLUMNAR_HEAP_BYTES_PER_STAR + VBO_BYTES_PER_STAR) + columns.offHeapBytes();
+        }
+        return n * (HEAP_BYTES_PER_STAR + VBO_BYTES_PER_STAR);
+    }
+
+    /**
+     * Whether the loaded data surpasses the star count or memory budgets
+     *
+     * @return True if the budget is surpassed
+     */
+    public boolean isOverBudget() {
+        return nLoadedStars.get() >= maxLoadedStars || residentBytes.get() >= maxResidentBytes;
+    }
+
+    public static long getResidentBytes() {
+        return instance != null ? instance.residentBytes.get() : 0;
+    }
+
+    public static long getMaxResidentBytes() {
+        return instance != null ? instance.maxResidentBytes : 0;
+    }
+
+    public static long getEvictedOctants() {
+        return instance != null ? instance.metrics.getEvictions() : 0;
+    }
+
+    /**
+     * Gets the number of octants unloaded per second due to the budget, measured
+     * over the last second
+     *
+     * @return The eviction rate in octants per second
+     */
+    public static double getEvictionRate() {
+        return instance != null ? instance.metrics.getEvictionRate() : 0;
+    }
+
+    /**
+     * Gets the streaming telemetry of the current loader
+     *
+     * @return The metrics, or null if there is no streaming loader
+     */
+    public static StreamingOctreeMetrics getMetrics() {
+        return instance != null ? instance.metrics : null;
+    }
+
+    /**
+     * Reads one byte of every page of the given buffer, so that mapped data is read
+     * from disk right away and not during the decoding
+     *
+     * @param buffer The buffer
+     */
+    protected static void readAhead(ByteBuffer buffer) {
+        int end = buffer.limit();
+        for (int i = buffer.position(); i < end; i += 4096) {
+            buffer.get(i);
+        }
     }
 
     /**
      * Tells the loader to start loading the octants in the queue.
      */
     public void flushLoadQueue() {
-        if (!daemon.awake && !toLoadQueue.isEmpty() && !loadingPaused) {
+        if (!daemon.awake && (!toLoadQueue.isEmpty() || canPrefetch()) && !loadingPaused) {
             EventManager.instance.post(Events.BACKGROUND_LOADING_INFO);
             daemon.interrupt();
         }
@@ -310,6 +616,12 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
      */
     public void abortCurrentLoading() {
         daemon.abort();
+        // Cancel the octants in the loader pool individually
+        synchronized (inFlight) {
+            for (OctantLoadTask task : inFlight) {
+                task.cancel();
+            }
+        }
     }
 
     /**
@@ -345,9 +657,12 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
     }
 
     /**
-     * Loads the objects of the given octants
+     * Loads the objects of the given octants. The octants are read and decoded
+     * in parallel by the loader pool, and the resulting objects are handed to the
+     * main thread for integration in the order of the given list, which is sorted
+     * by depth.
      *
-     * @param octants       The list holding the octants to load.
+     * @param octants       The list holding the octants to load, sorted by depth.
      * @param octreeWrapper The octree wrapper.
      * @param abort         State variable that will be set to true if an abort is called.
      * @return The actual number of loaded octants
@@ -356,26 +671,104 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
     public int loadOctants(final Array<OctreeNode> octants, final AbstractOctreeWrapper octreeWrapper, final AtomicBoolean abort) throws IOException {
         int loaded = 0;
         if (octants.size > 0) {
-            int i = 0;
-            OctreeNode octant = octants.get(0);
-            while (i < octants.size && !abort.get()) {
-                if (loadOctant(octant, octreeWrapper, true))
-                    loaded++;
-                i += 1;
-                octant = octants.get(i);
+            // Submit all octants to the pool
+            Array<OctantLoadTask> tasks = new Array<>(octants.size);
+            for (OctreeNode octant : octants) {
+                octant.setStatus(LoadStatus.LOADING);
+                OctantLoadTask task = new OctantLoadTask(octant, octreeWrapper);
+                inFlight.add(task);
+                task.future = loaderPool.submit(task);
+                tasks.add(task);
             }
-            flushLoadedIds();
 
-            if (abort.get()) {
-                // We aborted, roll back status of rest of octants
-                for (int j = i; j < octants.size; j++) {
-                    octants.get(j).setStatus(LoadStatus.NOT_LOADED);
+            // Collect results in depth order
+            for (OctantLoadTask task : tasks) {
+                if (abort.get()) {
+                    task.cancel();
+                }
+                SceneGraphNode object = null;
+                try {
+                    object = task.future.get();
+                } catch (ExecutionException e) {
+                    logger.error("Error loading octant " + task.octant.pageId, e.getCause());
+                } catch (CancellationException | InterruptedException e) {
+                    task.cancel();
+                }
+                inFlight.remove(task);
+
+                if (object != null && task.isCancelled()) {
+                    // Decoded, but no longer wanted
+                    discardOctant(object);
+                    object = null;
+                }
+
+                if (object != null) {
+                    queueIntegration(new DecodedOctant(task.octant, object, octreeWrapper));
+                    loaded++;
+                } else {
+                    if (task.isCancelled())
+                        metrics.aborted();
+                    else
+                        metrics.failed();
+                    task.octant.prefetched = false;
+                    task.octant.setStatus(task.isCancelled() ? LoadStatus.NOT_LOADED : LoadStatus.LOADING_FAILED);
                 }
             }
+            flushLoadedIds();
         }
         return loaded;
     }
 
+    /**
+     * Adds a decoded octant to the integration queue, and makes sure the queue
+     * is processed in the main thread
+     *
+     * @param decoded The decoded octant
+     */
+    protected void queueIntegration(DecodedOctant decoded) {
+        toIntegrateQueue.add(decoded);
+        if (integrationPosted.compareAndSet(false, true)) {
+            GaiaSky.postRunnable(this::integrateQueued);
+        }
+    }
+
+    /**
+     * Integrates queued octants until the time budget of the frame is exhausted. If
+     * octants are left, it posts itself again to run in the next frame. The
+     * constellations are only refreshed if any of the integrated octants has HIP stars.
+     * Runs in the main thread.
+     */
+    private void integrateQueued() {
+        long start = System.nanoTime();
+        long budget = INTEGRATION_BUDGET_MS * 1000000L;
+        boolean hip = false;
+        DecodedOctant decoded;
+        do {
+            decoded = toIntegrateQueue.poll();
+            if (decoded != null) {
+                OctreeNode octant = decoded.octant;
+                long t0 = System.nanoTime();
+                hip |= integrateOctant(octant, decoded.object, decoded.octreeWrapper, true);
+                octant.updateNumbersToRoot();
+                long t1 = System.nanoTime();
+                metrics.record(StreamingOctreeMetrics.Phase.INTEGRATION, t1 - t0);
+                if (octant.queueTime > 0)
+                    metrics.record(StreamingOctreeMetrics.Phase.TOTAL, t1 - octant.queueTime);
+                metrics.loaded(octant.evictionTime);
+            }
+        } while (decoded != null && System.nanoTime() - start < budget);
+
+        if (hip) {
+            Constellation.updateConstellations();
+        }
+
+        integrationPosted.set(false);
+        if (!toIntegrateQueue.isEmpty() && integrationPosted.compareAndSet(false, true)) {
+            // Rest in the next frame
+            GaiaSky.postRunnable(this::integrateQueued);
+        }
+    }
+
     /**
      * Unloads the given octant
      *
@@ -390,17 +783,26 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
                     try {
                         for (SceneGraphNode object : objects) {
                             int count = object.getStarCount();
+                            // Aux info, before the data is gone
+                            if (GaiaSky.instance != null && GaiaSky.instance.sg != null)
+                                GaiaSky.instance.sg.removeNodeAuxiliaryInfo(object);
                             object.dispose();
                             object.octant = null;
                             octreeWrapper.removeParenthood(object);
-                            // Aux info
-                            if (GaiaSky.instance != null && GaiaSky.instance.sg != null)
-                                GaiaSky.instance.sg.removeNodeAuxiliaryInfo(object);
 
-                            nLoadedStars -= count;
+                            nLoadedStars.addAndGet(-count);
+                        }
+                        if (octant.prefetched) {
+                            // Never observed
+                            octant.prefetched = false;
+                            prefetchWasted.incrementAndGet();
                         }
                         objects.clear();
+                        toUnloadQueue.remove(octant);
+                        residentBytes.addAndGet(-octant.footprint);
+                        octant.footprint = 0;
                         octant.setStatus(LoadStatus.NOT_LOADED);
+                        octant.updateNumbersToRoot();
                     } catch (Exception e) {
                         logger.error("Error disposing octant's objects " + octant.pageId, e);
                         logger.info(GlobalConf.APPLICATION_NAME + " will attempt to continue");
@@ -411,7 +813,7 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
     }
 
     /**
-     * Loads the data of the given octant
+     * Loads the data of the given octant synchronously in the current thread
      *
      * @param octant        The octant to load.
      * @param octreeWrapper The octree wrapper.
@@ -420,7 +822,116 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
      * @return True if the octant was loaded, false otherwise
      * @throws IOException
      */
-    public abstract boolean loadOctant(final OctreeNode octant, final AbstractOctreeWrapper octreeWrapper, boolean fullinit) throws IOException;
+    public boolean loadOctant(final OctreeNode octant, final AbstractOctreeWrapper octreeWrapper, boolean fullinit) throws IOException {
+        SceneGraphNode object = decodeOctant(octant, octreeWrapper, fullinit);
+        if (object != null) {
+            integrateOctant(octant, object, octreeWrapper, fullinit);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads and decodes the data of the given octant into a new object. This is called
+     * concurrently from the threads of the loader pool, so implementations must not modify
+     * the octree or the scene graph here.
+     *
+     * @param octant        The octant to load.
+     * @param octreeWrapper The octree wrapper.
+     * @param fullinit      Whether to fully initialise the objects (on-demand load) or
+     *                      not (startup)
+     * @return The object with the data of the octant, or null if the octant has no data
+     * @throws IOException
+     */
+    public abstract SceneGraphNode decodeOctant(final OctreeNode octant, final AbstractOctreeWrapper octreeWrapper, boolean fullinit) throws IOException;
+
+    /**
+     * Adds a decoded object to its octant, the octree wrapper and the scene graph, and
+     * marks the octant as loaded. Streamed octants are integrated in the main thread, a few
+     * per frame. The object counts of the octree are updated by the caller.
+     *
+     * @param octant        The octant.
+     * @param object        The object produced by {@link #decodeOctant(OctreeNode, AbstractOctreeWrapper, boolean)}.
+     * @param octreeWrapper The octree wrapper.
+     * @param fullinit      Whether to fully initialise the object (on-demand load) or
+     *                      not (startup)
+     * @return Whether the object has HIP stars, in which case the constellations need to be refreshed
+     */
+    public abstract boolean integrateOctant(final OctreeNode octant, final SceneGraphNode object, final AbstractOctreeWrapper octreeWrapper, boolean fullinit);
+
+    /**
+     * Releases an object that was decoded but will not be integrated because its load was cancelled.
+     *
+     * @param object The decoded object.
+     */
+    protected void discardOctant(SceneGraphNode object) {
+        if (object instanceof IObserver) {
+            EventManager.instance.removeAllSubscriptions((IObserver) object);
+        }
+    }
+
+    /**
+     * A single octant load, which runs in the loader pool. Cancelled tasks
+     * which have not started yet return right away.
+     */
+    protected class OctantLoadTask implements Callable<SceneGraphNode> {
+        protected final OctreeNode octant;
+        protected final AbstractOctreeWrapper octreeWrapper;
+        protected final AtomicBoolean cancelled;
+        protected Future<SceneGraphNode> future;
+
+        public OctantLoadTask(OctreeNode octant, AbstractOctreeWrapper octreeWrapper) {
+            this.octant = octant;
+            this.octreeWrapper = octreeWrapper;
+            this.cancelled = new AtomicBoolean(false);
+        }
+
+        @Override
+        public SceneGraphNode call() throws Exception {
+            if (cancelled.get())
+                return null;
+            if (octant.queueTime > 0)
+                metrics.record(StreamingOctreeMetrics.Phase.QUEUE, System.nanoTime() - octant.queueTime);
+            return decodeOctant(octant, octreeWrapper, true);
+        }
+
+        public void cancel() {
+            cancelled.set(true);
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+    }
+
+    /**
+     * A decoded octant waiting to be integrated
+     */
+    protected static class DecodedOctant {
+        protected final OctreeNode octant;
+        protected final SceneGraphNode object;
+        protected final AbstractOctreeWrapper octreeWrapper;
+
+        public DecodedOctant(OctreeNode octant, SceneGraphNode object, AbstractOctreeWrapper octreeWrapper) {
+            this.octant = octant;
+            this.object = object;
+            this.octreeWrapper = octreeWrapper;
+        }
+    }
+
+    private static class LoaderThreadFactory implements ThreadFactory {
+        private int sequence = 0;
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "octree-loader-" + sequence);
+            sequence++;
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+
+    }
 
     /**
      * The daemon loader thread.
@@ -435,8 +946,10 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
         private final StreamingOctreeLoader loader;
         private final AbstractOctreeWrapper octreeWrapper;
         private final Array<OctreeNode> toLoad;
+        private final int maxLoadChunk;
 
-        public DaemonLoader(AbstractOctreeWrapper aow, StreamingOctreeLoader loader) {
+        public DaemonLoader(AbstractOctreeWrapper aow, StreamingOctreeLoader loader, int maxLoadChunk) {
+            this.maxLoadChunk = maxLoadChunk;
             this.awake = false;
             this.running = true;
             this.abort = new AtomicBoolean(false);
@@ -463,14 +976,23 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
         public void run() {
             while (running) {
                 /** ----------- PROCESS OCTANTS ----------- **/
-                while (!instance.toLoadQueue.isEmpty()) {
+                while (!loader.toLoadQueue.isEmpty() || loader.canPrefetch()) {
                     toLoad.clear();
                     int i = 0;
-                    while (instance.toLoadQueue.peek() != null && i <= MAX_LOAD_CHUNK) {
-                        OctreeNode octant = instance.toLoadQueue.poll();
+                    while (loader.toLoadQueue.peek() != null && i <= maxLoadChunk) {
+                        OctreeNode octant = loader.toLoadQueue.poll();
                         toLoad.add(octant);
                         i++;
                     }
+                    // Fill up with prefetch octants, which have lower priority
+                    while (i <= maxLoadChunk && loader.canPrefetch()) {
+                        OctreeNode octant = loader.toPrefetchQueue.poll();
+                        if (octant != null && octant.getStatus() == LoadStatus.NOT_LOADED) {
+                            octant.prefetched = true;
+                            toLoad.add(octant);
+                            i++;
+                        }
+                    }
 
                     // Load octants if any
                     if (toLoad.size > 0) {
@@ -485,32 +1007,32 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
                     }
 
                     // Release resources if needed
-                    int nUnloaded = 0;
-                    int nStars = loader.nLoadedStars;
-                    if (running && nStars >= loader.maxLoadedStars) //-V6007
+                    if (running && loader.isOverBudget()) { //-V6007
+                        long nStars = loader.nLoadedStars.get();
+                        long bytes = loader.residentBytes.get();
+                        long nUnloaded = 0, bytesUnloaded = 0;
                         while (true) {
-                            // Get first in queue (non-accessed for the longest time)
+                            // Get first in list (non-accessed for the longest time)
                             // and release it
-                            OctreeNode octant = loader.toUnloadQueue.poll();
-                            if (octant != null && octant.getStatus() == LoadStatus.LOADED) {
-                                loader.unloadOctant(octant, octreeWrapper);
+                            OctreeNode octant = loader.pollUnloadQueue();
+                            if (octant == null) {
+                                // Nothing left to unload
+                                break;
                             }
-                            if (octant != null && octant.objects != null && octant.objects.size() > 0) {
-                                SceneGraphNode sg = octant.objects.get(0);
-                                nUnloaded += sg.getStarCount();
-                                if (nStars - nUnloaded < loader.maxLoadedStars * 0.85) {
+                            if (octant.getStatus() == LoadStatus.LOADED && octant.objects != null && octant.objects.size() > 0) {
+                                for (SceneGraphNode object : octant.objects) {
+                                    nUnloaded += object.getStarCount();
+                                }
+                                bytesUnloaded += octant.footprint;
+                                loader.unloadOctant(octant, octreeWrapper);
+                                loader.metrics.evicted();
+                                octant.evictionTime = TimeUtils.millis();
+                                if (nStars - nUnloaded < loader.maxLoadedStars * UNLOAD_TARGET_FRACTION && bytes - bytesUnloaded < loader.maxResidentBytes * UNLOAD_TARGET_FRACTION) {
                                     break;
                                 }
                             }
                         }
-
-                    GaiaSky.postRunnable(() -> {
-                        // Update octree numbers
-                        if (octreeWrapper != null && octreeWrapper.root != null)
-                            octreeWrapper.root.updateNumbers();
-                        // Update constellations :S
-                        Constellation.updateConstellations();
-                    });
+                    }
 
                 }
 
@@ -545,6 +1067,9 @@ public abstract class StreamingOctreeLoader implements IObserver, ISceneGraphLoa
                 if (daemon != null) {
                     daemon.stopDaemon();
                 }
+                if (loaderPool != null) {
+                    loaderPool.shutdownNow();
+                }
                 break;
             default:
                 break;
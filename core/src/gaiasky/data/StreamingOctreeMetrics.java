@@ -0,0 +1,378 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.data;
+
+import com.badlogic.gdx.utils.TimeUtils;
+
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Telemetry of a {@link StreamingOctreeLoader}. It holds the latency histograms of the
+ * phases of the octant loads, the streaming counters and a time series of the queue depths
+ * and rates, sampled every second. Recording is lock-free, so that it can be done from the
+ * loader threads, the daemon and the main thread.
+ * <p>
+ * The load of an octant goes through the following phases:
+ * <ul>
+ * <li>{@link Phase#QUEUE}: waiting in the load (or prefetch) queue, until a loader thread picks it up</li>
+ * <li>{@link Phase#IO}: reading the bytes of the octant</li>
+ * <li>{@link Phase#DECODE}: decoding the bytes into an object</li>
+ * <li>{@link Phase#INTEGRATION}: adding the object to the scene graph, in the main thread</li>
+ * <li>{@link Phase#TOTAL}: from the queueing to the end of the integration</li>
+ * </ul>
+ *
+ * @author tsagrista
+ */
+public class StreamingOctreeMetrics {
+    /** Octants loaded again less than this time after having been evicted count as reloads, in ms **/
+    public static final long RELOAD_WINDOW_MS = 30000;
+    /** Number of samples in the time series **/
+    private static final int N_SAMPLES = 600;
+
+    public enum Phase {
+        QUEUE,
+        IO,
+        DECODE,
+        INTEGRATION,
+        TOTAL
+    }
+
+    private final Histogram[] latencies;
+
+    /** Counters **/
+    private final AtomicLong loads, bytesRead, evictions, aborts, failures, reloads;
+
+    /** Rates over the last sample interval, per second **/
+    private volatile double bytesRate, loadRate, evictionRate;
+    private long lastBytes, lastLoads, lastEvictions, lastSampleMs;
+
+    /** Time series, in a ring buffer **/
+    private final long[] sampleTimes;
+    private final int[] sampleLoadQueue, samplePrefetchQueue, sampleInFlight, sampleLoadedStars;
+    private final long[] sampleResidentBytes;
+    private final double[] sampleBytesRate, sampleLoadRate, sampleEvictionRate;
+    private int nSamples, sampleIdx;
+
+    public StreamingOctreeMetrics() {
+        latencies = new Histogram[Phase.values().length];
+        for (Phase phase : Phase.values())
+            latencies[phase.ordinal()] = new Histogram();
+        loads = new AtomicLong(0);
+        bytesRead = new AtomicLong(0);
+        evictions = new AtomicLong(0);
+        aborts = new AtomicLong(0);
+        failures = new AtomicLong(0);
+        reloads = new AtomicLong(0);
+
+        sampleTimes = new long[N_SAMPLES];
+        sampleLoadQueue = new int[N_SAMPLES];
+        samplePrefetchQueue = new int[N_SAMPLES];
+        sampleInFlight = new int[N_SAMPLES];
+        sampleLoadedStars = new int[N_SAMPLES];
+        sampleResidentBytes = new long[N_SAMPLES];
+        sampleBytesRate = new double[N_SAMPLES];
+        sampleLoadRate = new double[N_SAMPLES];
+        sampleEvictionRate = new double[N_SAMPLES];
+    }
+
+    /**
+     * Records the duration of a phase of an octant load
+     *
+     * @param phase The phase
+     * @param nanos The duration, in nanoseconds
+     */
+    public void record(Phase phase, long nanos) {
+        latencies[phase.ordinal()].record(nanos);
+    }
+
+    public Histogram latency(Phase phase) {
+        return latencies[phase.ordinal()];
+    }
+
+    /**
+     * Records the bytes read for an octant
+     *
+     * @param bytes The number of bytes
+     */
+    public void read(long bytes) {
+        bytesRead.addAndGet(bytes);
+    }
+
+    /**
+     * Records a finished load, in the main thread
+     *
+     * @param evictionTime The last time the octant was evicted, in ms, or 0
+     */
+    public void loaded(long evictionTime) {
+        loads.incrementAndGet();
+        if (evictionTime > 0 && TimeUtils.millis() - evictionTime < RELOAD_WINDOW_MS) {
+            reloads.incrementAndGet();
+        }
+    }
+
+    public void evicted() {
+        evictions.incrementAndGet();
+    }
+
+    public void aborted() {
+        aborts.incrementAndGet();
+    }
+
+    public void failed() {
+        failures.incrementAndGet();
+    }
+
+    public long getLoads() {
+        return loads.get();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getAborts() {
+        return aborts.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getReloads() {
+        return reloads.get();
+    }
+
+    /**
+     * Bytes read per second, over the last sample interval
+     *
+     * @return The read rate in bytes per second
+     */
+    public double getBytesRate() {
+        return bytesRate;
+    }
+
+    /**
+     * Octants loaded per second, over the last sample interval
+     *
+     * @return The load rate in octants per second
+     */
+    public double getLoadRate() {
+        return loadRate;
+    }
+
+    /**
+     * Octants evicted per second, over the last sample interval
+     *
+     * @return The eviction rate in octants per second
+     */
+    public double getEvictionRate() {
+        return evictionRate;
+    }
+
+    /**
+     * Updates the rates and adds a sample to the time series. Called periodically.
+     *
+     * @param loadQueue     The size of the load queue
+     * @param prefetchQueue The size of the prefetch queue
+     * @param inFlight      The number of octants being loaded
+     * @param loadedStars   The number of loaded stars
+     * @param residentBytes The estimated memory footprint of the loaded octants
+     */
+    public synchronized void sample(int loadQueue, int prefetchQueue, int inFlight, int loadedStars, long residentBytes) {
+        long now = TimeUtils.millis();
+        long bytes = bytesRead.get();
+        long nLoads = loads.get();
+        long nEvictions = evictions.get();
+        if (lastSampleMs > 0 && now > lastSampleMs) {
+            double dt = (now - lastSampleMs) / 1000d;
+            bytesRate = (bytes - lastBytes) / dt;
+            loadRate = (nLoads - lastLoads) / dt;
+            evictionRate = (nEvictions - lastEvictions) / dt;
+        }
+        lastBytes = bytes;
+        lastLoads = nLoads;
+        lastEvictions = nEvictions;
+        lastSampleMs = now;
+
+        sampleTimes[sampleIdx] = now;
+        sampleLoadQueue[sampleIdx] = loadQueue;
+        samplePrefetchQueue[sampleIdx] = prefetchQueue;
+        sampleInFlight[sampleIdx] = inFlight;
+        sampleLoadedStars[sampleIdx] = loadedStars;
+        sampleResidentBytes[sampleIdx] = residentBytes;
+        sampleBytesRate[sampleIdx] = bytesRate;
+        sampleLoadRate[sampleIdx] = loadRate;
+        sampleEvictionRate[sampleIdx] = evictionRate;
+        sampleIdx = (sampleIdx + 1) % N_SAMPLES;
+        nSamples = Math.min(nSamples + 1, N_SAMPLES);
+    }
+
+    /**
+     * Gets the counters, the rates and the latency summaries (in ms) by name
+     *
+     * @return Map with the values, in a fixed order
+     */
+    public Map<String, Double> values() {
+        Map<String, Double> values = new LinkedHashMap<>();
+        values.put("loads", (double) loads.get());
+        values.put("bytes_read", (double) bytesRead.get());
+        values.put("evictions", (double) evictions.get());
+        values.put("aborts", (double) aborts.get());
+        values.put("failures", (double) failures.get());
+        values.put("reloads", (double) reloads.get());
+        values.put("bytes_per_sec", bytesRate);
+        values.put("loads_per_sec", loadRate);
+        values.put("evictions_per_sec", evictionRate);
+        for (Phase phase : Phase.values()) {
+            Histogram h = latency(phase);
+            String prefix = phase.name().toLowerCase() + "_ms_";
+            values.put(prefix + "mean", h.mean());
+            values.put(prefix + "p50", h.percentile(0.5));
+            values.put(prefix + "p95", h.percentile(0.95));
+            values.put(prefix + "p99", h.percentile(0.99));
+            values.put(prefix + "max", h.max());
+        }
+        return values;
+    }
+
+    /**
+     * Writes the time series, oldest sample first, in CSV
+     *
+     * @param out The output
+     */
+    public synchronized void writeTimeSeries(Writer out) throws IOException {
+        PrintWriter pw = new PrintWriter(out);
+        pw.println("time_ms,load_queue,prefetch_queue,in_flight,loaded_stars,resident_bytes,bytes_per_sec,loads_per_sec,evictions_per_sec");
+        int first = nSamples < N_SAMPLES ? 0 : sampleIdx;
+        for (int j = 0; j < nSamples; j++) {
+            int i = (first + j) % N_SAMPLES;
+            pw.println(sampleTimes[i] + "," + sampleLoadQueue[i] + "," + samplePrefetchQueue[i] + "," + sampleInFlight[i] + "," + sampleLoadedStars[i] + "," + sampleResidentBytes[i] + "," + sampleBytesRate[i] + "," + sampleLoadRate[i] + "," + sampleEvictionRate[i]);
+        }
+        pw.flush();
+    }
+
+    /**
+     * Writes the latency histograms in CSV, one row per bucket and one column per phase
+     *
+     * @param out The output
+     */
+    public void writeHistograms(Writer out) throws IOException {
+        PrintWriter pw = new PrintWriter(out);
+        StringBuilder header = new StringBuilder("upper_ms");
+        for (Phase phase : Phase.values())
+            header.append(",").append(phase.name().toLowerCase());
+        pw.println(header);
+        for (int b = 0; b < Histogram.N_BUCKETS; b++) {
+            StringBuilder row = new StringBuilder(b < Histogram.BOUNDS_MS.length ? Double.toString(Histogram.BOUNDS_MS[b]) : "inf");
+            for (Phase phase : Phase.values())
+                row.append(",").append(latency(phase).count(b));
+            pw.println(row);
+        }
+        pw.flush();
+    }
+
+    /**
+     * Exports the time series and the latency histograms to CSV files. The histograms go
+     * to a file with the same name as the time series plus the suffix "-latency".
+     *
+     * @param file The time series file
+     * @return The histograms file
+     */
+    public File exportCsv(File file) throws IOException {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String histName = dot > 0 ? name.substring(0, dot) + "-latency" + name.substring(dot) : name + "-latency";
+        File histFile = new File(file.getAbsoluteFile().getParentFile(), histName);
+        try (Writer out = new BufferedWriter(new FileWriter(file))) {
+            writeTimeSeries(out);
+        }
+        try (Writer out = new BufferedWriter(new FileWriter(histFile))) {
+            writeHistograms(out);
+        }
+        return histFile;
+    }
+
+    /**
+     * Lock-free latency histogram with fixed, roughly logarithmic buckets
+     */
+    public static class Histogram {
+        /** Upper bounds of the buckets, in ms. The last bucket is unbounded **/
+        static final double[] BOUNDS_MS = { 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+        static final int N_BUCKETS = BOUNDS_MS.length + 1;
+
+        private final AtomicLongArray counts;
+        private final AtomicLong total, sumNanos, maxNanos;
+
+        public Histogram() {
+            counts = new AtomicLongArray(N_BUCKETS);
+            total = new AtomicLong(0);
+            sumNanos = new AtomicLong(0);
+            maxNanos = new AtomicLong(0);
+        }
+
+        public void record(long nanos) {
+            double ms = nanos * 1e-6;
+            int b = 0;
+            while (b < BOUNDS_MS.length && ms > BOUNDS_MS[b])
+                b++;
+            counts.incrementAndGet(b);
+            total.incrementAndGet();
+            sumNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        public long count() {
+            return total.get();
+        }
+
+        public long count(int bucket) {
+            return counts.get(bucket);
+        }
+
+        /**
+         * Mean, in ms
+         */
+        public double mean() {
+            long n = total.get();
+            return n > 0 ? sumNanos.get() * 1e-6 / n : 0;
+        }
+
+        /**
+         * Maximum, in ms
+         */
+        public double max() {
+            return maxNanos.get() * 1e-6;
+        }
+
+        /**
+         * Estimates the given percentile as the upper bound of the bucket where it falls
+         *
+         * @param p The percentile, in [0, 1]
+         * @return The percentile in ms, capped to the maximum
+         */
+        public double percentile(double p) {
+            long n = total.get();
+            if (n == 0)
+                return 0;
+            long rank = (long) Math.ceil(p * n);
+            long acc = 0;
+            for (int b = 0; b < N_BUCKETS; b++) {
+                acc += counts.get(b);
+                if (acc >= rank)
+                    return b < BOUNDS_MS.length ? Math.min(BOUNDS_MS[b], max()) : max();
+            }
+            return max();
+        }
+    }
+}
@@ -10,21 +10,25 @@ import com.badlogic.gdx.utils.LongMap;
 import gaiasky.scenegraph.ParticleGroup.ParticleBean;
 import gaiasky.scenegraph.StarGroup.StarBean;
 import gaiasky.util.Constants;
-import gaiasky.util.LargeLongMap;
 import gaiasky.util.Logger;
 import gaiasky.util.Logger.Log;
 import gaiasky.util.TextUtils;
 import gaiasky.util.coord.Coordinates;
+import gaiasky.util.ds.LongIntMap;
+import gaiasky.util.ds.SortedLongIntIndex;
 import gaiasky.util.math.Vector3d;
+import gaiasky.util.parse.CsvChunkReader;
 import gaiasky.util.parse.Parser;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.zip.GZIPInputStream;
 
 public abstract class AbstractStarGroupDataProvider implements IStarGroupDataProvider {
@@ -55,28 +59,106 @@ public abstract class AbstractStarGroupDataProvider implements IStarGroupDataPro
     protected LongMap<double[]> sphericalPositions;
     protected LongMap<float[]> colors;
     protected long[] countsPerMag;
-    protected Set<Long> mustLoadIds = null;
+    protected LongIntMap mustLoadIds = null;
+    /** If set, the loaded objects are passed on to this consumer instead of being kept in the list **/
+    protected Consumer<ParticleBean> streamConsumer = null;
+    /** Number of objects loaded since the lists were initialised, kept or streamed **/
+    protected long nLoaded = 0;
 
     public class AdditionalCols {
+        private static final int CHUNK_BITS = 20;
+        private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
         // Column name -> index
         Map<String, Integer> indices;
-        // Sourceid -> values
-        LargeLongMap<double[]> values;
+        // Sourceid -> row
+        LongIntMap rows;
+        // Number of values per row, set by the first file
+        int nCols = -1;
+        // Values of the rows, row after row, in chunks
+        double[][] values = new double[0][];
+        int nRows = 0;
+        // Memory-mapped store, replaces the rows and values if set
+        AdditionalColumnStore store;
+        ThreadLocal<AdditionalColumnStore.Cursor> cursors;
 
         public boolean hasCol(ColId col) {
             return indices != null && indices.containsKey(col.name());
         }
 
-        public Double get(ColId col, Long sourceid) {
-            try {
-                if (hasCol(col)) {
-                    return values.get(sourceid)[indices.get(col.name())];
-                } else {
-                    return null;
-                }
-            } catch (Exception e) {
+        public Double get(ColId col, long sourceid) {
+            if (!hasCol(col))
                 return null;
+            if (store != null) {
+                long row = cursors.get().row(sourceid);
+                return row < 0 ? null : store.get(indices.get(col.name()), row);
             }
+            int row = rows.get(sourceid, -1);
+            int index = indices.get(col.name());
+            if (row < 0 || index >= nCols)
+                return null;
+            long offset = (long) row * nCols + index;
+            return values[(int) (offset >>> CHUNK_BITS)][(int) (offset & (CHUNK_SIZE - 1))];
+        }
+
+        void add(long sourceid, double[] vals) {
+            int row = rows.get(sourceid, -1);
+            if (row < 0) {
+                row = nRows++;
+                rows.put(sourceid, row);
+            }
+            long offset = (long) row * nCols;
+            for (int j = 0; j < nCols; j++, offset++) {
+                int chunk = (int) (offset >>> CHUNK_BITS);
+                if (chunk >= values.length) {
+                    values = Arrays.copyOf(values, chunk + 1);
+                    values[chunk] = new double[CHUNK_SIZE];
+                }
+                values[chunk][(int) (offset & (CHUNK_SIZE - 1))] = vals[j];
+            }
+        }
+
+        void open(AdditionalColumnStore store) {
+            this.store = store;
+            this.cursors = ThreadLocal.withInitial(store::cursor);
+            String[] columns = store.columns();
+            for (int j = 0; j < columns.length; j++)
+                indices.putIfAbsent(columns[j], j);
+            nCols = columns.length;
+        }
+
+        long size() {
+            return store != null ? store.size() : rows.size();
+        }
+
+        /**
+         * Writes these columns to a memory-mapped store, sorted by source id
+         *
+         * @param file   The file
+         * @param floats Whether to store the values as floats instead of doubles
+         * @throws IOException If the file can't be written
+         */
+        void write(File file, boolean floats) throws IOException {
+            int n = (int) rows.size();
+            long[] ids = new long[n];
+            int[] sorted = new int[n];
+            int[] i = new int[1];
+            rows.forEach((sourceid, row) -> {
+                ids[i[0]] = sourceid;
+                sorted[i[0]++] = row;
+            });
+            SortedLongIntIndex.sort(ids, sorted, n);
+            String[] names = new String[Math.max(0, nCols)];
+            for (Map.Entry<String, Integer> entry : indices.entrySet())
+                names[entry.getValue()] = entry.getKey();
+            for (int j = 0; j < names.length; j++) {
+                if (names[j] == null)
+                    names[j] = "col" + j;
+            }
+            AdditionalColumnStore.write(file, ids, n, names, floats, (k, col) -> {
+                long offset = (long) sorted[k] * nCols + col;
+                return values[(int) (offset >>> CHUNK_BITS)][(int) (offset & (CHUNK_SIZE - 1))];
+            });
         }
     }
 
@@ -98,7 +180,7 @@ public abstract class AbstractStarGroupDataProvider implements IStarGroupDataPro
     }
 
     protected Double getAdditionalValue(ColId col, Long sourceId) {
-        if (additional == null)
+        if (additional == null || sourceId == null)
             return null;
         for (AdditionalCols add : additional) {
             if (add != null && add.hasCol(col)) {
@@ -186,7 +268,36 @@ public abstract class AbstractStarGroupDataProvider implements IStarGroupDataPro
      * Initialises the lists and structures given number of elements
      */
     protected void initLists(int elems) {
-        list = Collections.synchronizedList(new ArrayList<>(elems));
+        list = Collections.synchronizedList(new ArrayList<>(streamConsumer != null ? 0 : elems));
+        nLoaded = 0;
+    }
+
+    /**
+     * Adds a loaded object to the list, or passes it on to the stream consumer if there is one.
+     * Providers must add their objects through here, in the order in which they are read, so that
+     * a streamed catalog gets the same indices as a loaded one.
+     *
+     * @param pb The object
+     */
+    protected synchronized void addObject(ParticleBean pb) {
+        if (streamConsumer != null)
+            streamConsumer.accept(pb);
+        else
+            list.add(pb);
+        nLoaded++;
+    }
+
+    /**
+     * Adds the loaded objects in order, see {@link #addObject(ParticleBean)}
+     *
+     * @param pbs The objects
+     */
+    protected synchronized void addObjects(Collection<? extends ParticleBean> pbs) {
+        if (streamConsumer != null)
+            pbs.forEach(streamConsumer);
+        else
+            list.addAll(pbs);
+        nLoaded += pbs.size();
     }
 
     protected void initLists() {
@@ -215,6 +326,13 @@ public abstract class AbstractStarGroupDataProvider implements IStarGroupDataPro
         return loadDataMapped(file, factor, true);
     }
 
+    @Override
+    public List<ParticleBean> loadData(ByteBuffer buffer, double factor, boolean compatibility) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return loadData(new ByteArrayInputStream(bytes), factor, compatibility);
+    }
+
 
     /**
      * Returns whether the star must be loaded or not
@@ -223,7 +341,7 @@ public abstract class AbstractStarGroupDataProvider implements IStarGroupDataPro
      * @return Whether the star with the given ID must be loaded
      */
     protected boolean mustLoad(long id) {
-        return mustLoadIds != null && mustLoadIds.contains(id);
+        return mustLoadIds != null && mustLoadIds.containsKey(id);
     }
 
     /**
@@ -260,9 +378,9 @@ public abstract class AbstractStarGroupDataProvider implements IStarGroupDataPro
         }
     }
 
-    protected float getRuweValue(long sourceId, String[] tokens) {
+    protected float getRuweValue(long sourceId, CsvChunkReader.Row row) {
         if (hasCol(ColId.ruwe)) {
-            return Parser.parseFloat(tokens[idx(ColId.ruwe)]);
+            return row.getFloat(idx(ColId.ruwe));
         } else if (hasAdditional(ColId.ruwe, sourceId)) {
             return getAdditionalValue(ColId.ruwe, sourceId).floatValue();
         }
@@ -303,10 +421,15 @@ public abstract class AbstractStarGroupDataProvider implements IStarGroupDataPro
     }
 
     @Override
-    public void setMustLoadIds(Set<Long> ids) {
+    public void setMustLoadIds(LongIntMap ids) {
         this.mustLoadIds = ids;
     }
 
+    @Override
+    public void setStreamConsumer(Consumer<ParticleBean> consumer) {
+        this.streamConsumer = consumer;
+    }
+
     /**
      * Counts the lines on this input stream
      *
@@ -448,16 +571,52 @@ public abstract class AbstractStarGroupDataProvider implements IStarGroupDataPro
             additionalSplit = ",";
             AdditionalCols addit = new AdditionalCols();
             addit.indices = new HashMap<>();
-            addit.values = new LargeLongMap<>(10);
-
-            logger.info("Loading additional columns from " + additionalFile);
+            addit.rows = new LongIntMap();
 
             Path f = Paths.get(additionalFile);
-            loadAdditional(f, addit);
+            if (AdditionalColumnStore.isStore(f)) {
+                logger.info("Opening additional column store " + additionalFile);
+                try {
+                    addit.open(AdditionalColumnStore.open(f.toFile()));
+                } catch (IOException e) {
+                    logger.error(e);
+                }
+            } else {
+                logger.info("Loading additional columns from " + additionalFile);
+                loadAdditional(f, addit);
+            }
             additional.add(addit);
 
-            logger.info(addit.indices.size() + " additional columns loaded for " + addit.values.size() + " stars");
+            logger.info(addit.indices.size() + " additional columns loaded for " + addit.size() + " stars");
+        }
+    }
+
+    /**
+     * Converts the additional columns loaded with {@link #setAdditionalFiles(String)} to memory-mapped stores,
+     * one per file or folder, so that later runs can use the stores instead of parsing the files again.
+     *
+     * @param folder The folder to write the stores to
+     * @param floats Whether to store the values as floats instead of doubles
+     * @return The store files
+     * @throws IOException If a store can't be written
+     */
+    public List<File> writeAdditionalStores(File folder, boolean floats) throws IOException {
+        List<File> files = new ArrayList<>();
+        if (additional == null)
+            return files;
+        for (int i = 0; i < additional.size(); i++) {
+            AdditionalCols addit = additional.get(i);
+            if (addit.store != null) {
+                logger.info("Skipping " + additionalFiles[i] + ": it is already a store");
+                continue;
+            }
+            String name = Paths.get(additionalFiles[i]).getFileName().toString().replaceFirst("(\\.csv)?(\\.gz)?$", "");
+            File file = new File(folder, name + ".bin");
+            logger.info("Writing " + addit.size() + " rows of additional columns to " + file.getAbsolutePath());
+            addit.write(file, floats);
+            files.add(file);
         }
+        return files;
     }
 
     private void loadAdditional(Path f, AdditionalCols addit) {
@@ -515,12 +674,19 @@ public abstract class AbstractStarGroupDataProvider implements IStarGroupDataPro
             i++;
         }
         int n = header.length - 1;
+        if (addit.nCols < 0) {
+            addit.nCols = n;
+        } else if (addit.nCols != n) {
+            logger.error("Skipping " + f + ": it has " + n + " additional columns, but the first file has " + addit.nCols);
+            br.close();
+            return;
+        }
         String line;
         i = 0;
         try {
             while ((line = br.readLine()) != null) {
                 String[] tokens = line.split(additionalSplit);
-                Long sourceId = Parser.parseLong(tokens[0].trim());
+                long sourceId = Parser.parseLong(tokens[0].trim());
                 double[] vals = new double[n];
                 for (int j = 1; j <= n; j++) {
                     if (tokens[j] != null && !tokens[j].strip().isBlank()) {
@@ -531,7 +697,7 @@ public abstract class AbstractStarGroupDataProvider implements IStarGroupDataPro
                         vals[j - 1] = Double.NaN;
                     }
                 }
-                addit.values.put(sourceId, vals);
+                addit.add(sourceId, vals);
                 i++;
             }
             br.close();
@@ -540,5 +706,4 @@ public abstract class AbstractStarGroupDataProvider implements IStarGroupDataPro
             br.close();
         }
     }
-
 }
@@ -0,0 +1,336 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.data.group;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Columnar, memory-mapped store for the additional columns of a catalog (geometric distances, extinction,
+ * RUWE, etc.), so that the side files are parsed only once. The source ids are kept sorted in their own column,
+ * and they are probed in place with a mix of interpolation and binary search, so the store takes no heap space.
+ * The file format is:
+ * <ul>
+ *     <li>32 bits (int) - The magic number, "GSAC"</li>
+ *     <li>32 bits (int) - The version</li>
+ *     <li>64 bits (long) - The number of rows, n</li>
+ *     <li>32 bits (int) - The number of value columns, m</li>
+ *     <li>For each value column, the type (byte, {@link #TYPE_DOUBLE} or {@link #TYPE_FLOAT}) and the name (UTF)</li>
+ *     <li>Padding up to a multiple of 8 bytes</li>
+ *     <li>n * 64 bits (long) - The source ids, increasing</li>
+ *     <li>For each value column, its n values, in the order of the source ids</li>
+ * </ul>
+ * Lookups go through a {@link Cursor}, which remembers its last position. Runs of increasing source ids, such
+ * as the rows of a catalog file, or a batch of ids given to {@link Cursor#rows(long[], int, int, long[])}, only search
+ * the part of the store after the previous id.
+ *
+ * @author tsagrista
+ */
+public class AdditionalColumnStore {
+
+    /** Magic number, "GSAC" **/
+    public static final int MAGIC = 0x47534143;
+    public static final int VERSION = 1;
+
+    public static final byte TYPE_DOUBLE = 0;
+    public static final byte TYPE_FLOAT = 1;
+
+    /** Records per mapped segment of a column **/
+    private static final int SEGMENT_RECORDS = 1 << 27;
+
+    /**
+     * Gives the values of a column to write
+     */
+    public interface ValueSource {
+        /**
+         * @param i      The row, in source id order
+         * @param column The column index
+         * @return The value
+         */
+        double get(int i, int column);
+    }
+
+    private final long size;
+    private final String[] names;
+    private final byte[] types;
+    private final MappedByteBuffer[] ids;
+    private final MappedByteBuffer[][] values;
+
+    private AdditionalColumnStore(long size, String[] names, byte[] types, MappedByteBuffer[] ids, MappedByteBuffer[][] values) {
+        this.size = size;
+        this.names = names;
+        this.types = types;
+        this.ids = ids;
+        this.values = values;
+    }
+
+    /**
+     * Checks whether the given file is an additional column store
+     *
+     * @param file The file
+     * @return Whether it is a store
+     */
+    public static boolean isStore(Path file) {
+        if (!Files.isRegularFile(file))
+            return false;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file.toFile()))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Maps the given file
+     *
+     * @param file The file
+     * @return The store
+     * @throws IOException If the file can't be read or is not a store
+     */
+    public static AdditionalColumnStore open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel fc = raf.getChannel()) {
+            if (raf.readInt() != MAGIC)
+                throw new IOException("Not an additional column store: " + file);
+            int version = raf.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported additional column store version " + version + ": " + file);
+            long size = raf.readLong();
+            int nCols = raf.readInt();
+            String[] names = new String[nCols];
+            byte[] types = new byte[nCols];
+            for (int j = 0; j < nCols; j++) {
+                types[j] = raf.readByte();
+                names[j] = raf.readUTF();
+            }
+            long offset = align(raf.getFilePointer());
+            MappedByteBuffer[] ids = map(fc, offset, size, 8);
+            offset += size * 8;
+            MappedByteBuffer[][] values = new MappedByteBuffer[nCols][];
+            for (int j = 0; j < nCols; j++) {
+                int width = width(types[j]);
+                values[j] = map(fc, offset, size, width);
+                offset += size * width;
+            }
+            return new AdditionalColumnStore(size, names, types, ids, values);
+        }
+    }
+
+    private static MappedByteBuffer[] map(FileChannel fc, long offset, long size, int width) throws IOException {
+        int nSegments = (int) ((size + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS);
+        MappedByteBuffer[] segments = new MappedByteBuffer[nSegments];
+        for (int i = 0; i < nSegments; i++) {
+            long first = (long) i * SEGMENT_RECORDS;
+            long records = Math.min(SEGMENT_RECORDS, size - first);
+            segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, offset + first * width, records * width);
+        }
+        return segments;
+    }
+
+    /**
+     * Writes a store
+     *
+     * @param file   The file
+     * @param ids    The source ids, increasing and without duplicates
+     * @param n      The number of rows
+     * @param names  The names of the value columns
+     * @param floats Whether to store the values as floats instead of doubles
+     * @param values The values of each row and column
+     * @throws IOException If the file can't be written
+     */
+    public static void write(File file, long[] ids, int n, String[] names, boolean floats, ValueSource values) throws IOException {
+        for (int i = 1; i < n; i++) {
+            if (ids[i] <= ids[i - 1])
+                throw new IllegalArgumentException("Source ids must be increasing and unique: " + ids[i - 1] + ", " + ids[i]);
+        }
+        byte type = floats ? TYPE_FLOAT : TYPE_DOUBLE;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(n);
+            out.writeInt(names.length);
+            for (String name : names) {
+                out.writeByte(type);
+                out.writeUTF(name);
+            }
+            while (out.size() % 8 != 0)
+                out.writeByte(0);
+            for (int i = 0; i < n; i++)
+                out.writeLong(ids[i]);
+            for (int j = 0; j < names.length; j++) {
+                for (int i = 0; i < n; i++) {
+                    if (floats)
+                        out.writeFloat((float) values.get(i, j));
+                    else
+                        out.writeDouble(values.get(i, j));
+                }
+            }
+        }
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    private static int width(byte type) {
+        return type == TYPE_FLOAT ? 4 : 8;
+    }
+
+    /**
+     * @return The number of rows
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return The names of the value columns
+     */
+    public String[] columns() {
+        return names.clone();
+    }
+
+    /**
+     * Gets the index of the column with the given name
+     *
+     * @param name The name
+     * @return The index, or -1 if there is no such column
+     */
+    public int column(String name) {
+        for (int j = 0; j < names.length; j++) {
+            if (names[j].equals(name))
+                return j;
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the source id of the given row
+     *
+     * @param row The row
+     * @return The source id
+     */
+    public long id(long row) {
+        return ids[(int) (row / SEGMENT_RECORDS)].getLong((int) (row % SEGMENT_RECORDS) * 8);
+    }
+
+    /**
+     * Gets a value
+     *
+     * @param column The column index
+     * @param row    The row, as given by a {@link Cursor}
+     * @return The value
+     */
+    public double get(int column, long row) {
+        MappedByteBuffer segment = values[column][(int) (row / SEGMENT_RECORDS)];
+        int index = (int) (row % SEGMENT_RECORDS);
+        return types[column] == TYPE_FLOAT ? segment.getFloat(index * 4) : segment.getDouble(index * 8);
+    }
+
+    /**
+     * Creates a new cursor to look up source ids. Cursors are cheap, but not thread-safe
+     *
+     * @return The cursor
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Looks up source ids in the store, remembering the last position. Not thread-safe.
+     */
+    public class Cursor {
+        private long lastId = Long.MIN_VALUE;
+        private long lastRow = -1;
+        // Lower bound for ids greater than the last one
+        private long position = 0;
+
+        private Cursor() {
+        }
+
+        /**
+         * Gets the row of the given source id
+         *
+         * @param id The source id
+         * @return The row, or -1 if the id is not in the store
+         */
+        public long row(long id) {
+            if (id == lastId)
+                return lastRow;
+            long lo = id > lastId ? position : 0;
+            // Exponential search from the last position, then bounded search
+            long step = 1, hi = lo;
+            while (hi < size && id(hi) < id) {
+                lo = hi + 1;
+                hi += step;
+                step <<= 1;
+            }
+            long i = search(id, lo, Math.min(hi, size - 1));
+            lastId = id;
+            lastRow = i >= 0 ? i : -1;
+            position = i >= 0 ? i : -i - 1;
+            return lastRow;
+        }
+
+        /**
+         * Gets the rows of the given source ids. Runs of increasing ids only search the part of the store
+         * after the previous id, so sorting the ids first makes the lookup a single pass over the store.
+         *
+         * @param ids    The source ids
+         * @param offset Index of the first id in the arrays
+         * @param length Number of ids
+         * @param out    The array to put the rows in, at the same positions as the ids. Ids not in the store get -1
+         * @return The number of ids which are in the store
+         */
+        public int rows(long[] ids, int offset, int length, long[] out) {
+            int found = 0;
+            for (int j = offset; j < offset + length; j++) {
+                out[j] = row(ids[j]);
+                if (out[j] >= 0)
+                    found++;
+            }
+            return found;
+        }
+    }
+
+    /**
+     * Finds the given id between the given rows. Interpolation steps, which take a couple of probes on
+     * evenly spread ids, alternate with bisection steps, which bound the worst case.
+     *
+     * @return The row, or -(insertion point) - 1
+     */
+    private long search(long id, long lo, long hi) {
+        boolean interpolate = true;
+        while (lo <= hi) {
+            long mid;
+            if (interpolate) {
+                long idLo = id(lo), idHi = id(hi);
+                if (id < idLo)
+                    return -lo - 1;
+                if (id > idHi)
+                    return -(hi + 1) - 1;
+                if (idHi == idLo)
+                    mid = lo;
+                else
+                    mid = lo + (long) (((double) id - (double) idLo) / ((double) idHi - (double) idLo) * (hi - lo));
+                mid = Math.max(lo, Math.min(hi, mid));
+            } else {
+                mid = (lo + hi) >>> 1;
+            }
+            interpolate = !interpolate;
+            long midId = id(mid);
+            if (midId < id)
+                lo = mid + 1;
+            else if (midId > id)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -lo - 1;
+    }
+}
@@ -6,29 +6,81 @@
 package gaiasky.data.group;
 
 import gaiasky.scenegraph.ParticleGroup.ParticleBean;
+import gaiasky.scenegraph.StarColumns;
 import gaiasky.scenegraph.StarGroup.StarBean;
 import gaiasky.util.Constants;
 import gaiasky.util.GlobalConf;
 import gaiasky.util.I18n;
 
 import java.io.*;
-import java.nio.MappedByteBuffer;
+import java.nio.*;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Reads arrays of star beans from binary files, usually to go in an octree.
+ * <p>
+ * Versions 1 and 2 of the format have no header. They start with the number of stars,
+ * followed by a record per star with the names as UTF-16 characters. Version 1 (compatibility
+ * mode, DR1/DR2) has three unused tycho ids per star, version 2 has not. The compatibility flag
+ * tells them apart.
+ * <p>
+ * Version 3 is self-describing and is detected from its magic number, so the compatibility flag
+ * does not apply to it. Every attribute is stored as a fixed-width column, so that whole columns are read
+ * with bulk copies from buffer views, and the names are in a single UTF-8 table. All values but the
+ * magic number are little-endian, and the columns and the name table start at multiples of 8 bytes.
+ * <ul>
+ *     <li>4 bytes - The magic number, "GSB3"</li>
+ *     <li>32 bits (int) - The version, 3</li>
+ *     <li>32 bits (int) - The number of stars, n</li>
+ *     <li>32 bits (int) - The number of columns, m</li>
+ *     <li>64 bits (long) - The offset of the name table</li>
+ *     <li>m * 16 bytes - The column layout. For each column, the type (int, see {@link #TYPE_DOUBLE}
+ *     and the rest), the attribute index (int, as in {@link StarBean}, or {@link #ATTR_ID} for the source id)
+ *     and the offset of the column (long). Columns of unknown attributes are skipped</li>
+ *     <li>The columns, n values each</li>
+ *     <li>The name table: n + 1 offsets (int) of the names of each star in the decoded
+ *     name block, in UTF-16 units, then the length of the block in bytes (int) and the UTF-8 block</li>
+ * </ul>
+ * Use {@link #writeDataV3(List, OutputStream)} to write it.
  *
  * @author tsagrista
  */
 public class BinaryDataProvider extends AbstractStarGroupDataProvider {
 
+    /** Magic number of version 3, "GSB3" **/
+    public static final int MAGIC_V3 = 0x47534233;
+    public static final int VERSION_3 = 3;
+
+    /** Column types of version 3 **/
+    public static final int TYPE_DOUBLE = 0;
+    public static final int TYPE_FLOAT = 1;
+    public static final int TYPE_INT = 2;
+    public static final int TYPE_LONG = 3;
+    /** Attribute index of the source id column **/
+    public static final int ATTR_ID = -1;
+
+    private static final int HEADER_SIZE_V3 = 24;
+    private static final int COLUMN_SIZE_V3 = 16;
+
+    /**
+     * Checks whether the given buffer holds version 3 of the format. The position of the
+     * buffer is not changed.
+     *
+     * @param buffer The buffer, at the start of the data
+     * @return Whether it is in version 3
+     */
+    public static boolean isVersion3(ByteBuffer buffer) {
+        return buffer.remaining() >= HEADER_SIZE_V3 && buffer.duplicate().order(ByteOrder.BIG_ENDIAN).getInt(buffer.position()) == MAGIC_V3;
+    }
+
     @Override
     public List<ParticleBean> loadData(String file, double factor, boolean compatibility) {
         logger.info(I18n.bundle.format("notif.datafile", file));
         loadDataMapped(file, factor, compatibility);
-        logger.info(I18n.bundle.format("notif.nodeloader", list.size(), file));
+        logger.info(I18n.bundle.format("notif.nodeloader", nLoaded, file));
 
         return list;
     }
@@ -65,6 +117,87 @@ public class BinaryDataProvider extends AbstractStarGroupDataProvider {
 
     }
 
+    /**
+     * Writes the given stars in version 3 of the format. See the class description.
+     *
+     * @param data The stars
+     * @param out  The output stream. It is closed at the end
+     */
+    public void writeDataV3(List<? extends ParticleBean> data, OutputStream out) {
+        int n = data.size();
+        int nColumns = StarBean.SIZE + 1;
+        try (DataOutputStream data_out = new DataOutputStream(out)) {
+            // Column layout
+            int[] types = new int[nColumns];
+            int[] attributes = new int[nColumns];
+            long[] offsets = new long[nColumns];
+            long offset = align(HEADER_SIZE_V3 + (long) nColumns * COLUMN_SIZE_V3);
+            for (int c = 0; c < nColumns; c++) {
+                attributes[c] = c < StarBean.SIZE ? c : ATTR_ID;
+                types[c] = c < StarBean.I_APPMAG ? TYPE_DOUBLE : (c < StarBean.I_HIP ? TYPE_FLOAT : (c == StarBean.I_HIP ? TYPE_INT : TYPE_LONG));
+                offsets[c] = offset;
+                offset = align(offset + (long) n * width(types[c]));
+            }
+            long namesOffset = offset;
+
+            // Name table
+            int[] nameOffsets = new int[n + 1];
+            StringBuilder block = new StringBuilder();
+            for (int i = 0; i < n; i++) {
+                block.append(((StarBean) data.get(i)).namesConcat());
+                nameOffsets[i + 1] = block.length();
+            }
+            byte[] utf8 = block.toString().getBytes(StandardCharsets.UTF_8);
+
+            // Header
+            ByteBuffer header = ByteBuffer.allocate((int) offsets[0]).order(ByteOrder.LITTLE_ENDIAN);
+            header.order(ByteOrder.BIG_ENDIAN).putInt(MAGIC_V3).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(VERSION_3).putInt(n).putInt(nColumns).putLong(namesOffset);
+            for (int c = 0; c < nColumns; c++)
+                header.putInt(types[c]).putInt(attributes[c]).putLong(offsets[c]);
+            data_out.write(header.array());
+
+            // Columns
+            for (int c = 0; c < nColumns; c++) {
+                ByteBuffer column = ByteBuffer.allocate((int) (align(offsets[c] + (long) n * width(types[c])) - offsets[c])).order(ByteOrder.LITTLE_ENDIAN);
+                for (ParticleBean pb : data) {
+                    StarBean sb = (StarBean) pb;
+                    switch (types[c]) {
+                    case TYPE_DOUBLE:
+                        column.putDouble(sb.data[attributes[c]]);
+                        break;
+                    case TYPE_FLOAT:
+                        column.putFloat((float) sb.data[attributes[c]]);
+                        break;
+                    case TYPE_INT:
+                        column.putInt((int) sb.data[attributes[c]]);
+                        break;
+                    default:
+                        column.putLong(sb.id);
+                        break;
+                    }
+                }
+                data_out.write(column.array());
+            }
+
+            // Names
+            ByteBuffer names = ByteBuffer.allocate((n + 2) * 4).order(ByteOrder.LITTLE_ENDIAN);
+            names.asIntBuffer().put(nameOffsets).put(utf8.length);
+            data_out.write(names.array());
+            data_out.write(utf8);
+        } catch (IOException e) {
+            logger.error(e);
+        }
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    private static int width(int type) {
+        return type == TYPE_DOUBLE || type == TYPE_LONG ? 8 : 4;
+    }
+
     protected void writeStarBean(StarBean sb, DataOutputStream out) throws IOException {
         writeStarBean(sb, out, true);
     }
@@ -110,11 +243,18 @@ public class BinaryDataProvider extends AbstractStarGroupDataProvider {
 
     public List<ParticleBean> readData(InputStream in, boolean compat) {
         List<ParticleBean> data = null;
-        DataInputStream data_in = new DataInputStream(in);
+        DataInputStream data_in = new DataInputStream(in.markSupported() ? in : new BufferedInputStream(in));
 
         try {
+            data_in.mark(4);
+            int first = data_in.readInt();
+            if (first == MAGIC_V3) {
+                data_in.reset();
+                ByteBuffer buffer = ByteBuffer.wrap(data_in.readAllBytes());
+                return new ArrayList<>(loadColumnsV3(buffer, 1.0).asList());
+            }
             // Read size of stars
-            int size = data_in.readInt();
+            int size = first;
             data = new ArrayList<>(size);
             for (int i = 0; i < size; i++) {
                 data.add(readStarBean(data_in, compat));
@@ -184,12 +324,7 @@ public class BinaryDataProvider extends AbstractStarGroupDataProvider {
             FileChannel fc = new RandomAccessFile(GlobalConf.data.dataFile(file), "r").getChannel();
 
             MappedByteBuffer mem = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
-            // Read size of stars
-            int size = mem.getInt();
-            list = new ArrayList<>(size);
-            for (int i = 0; i < size; i++) {
-                list.add(readStarBean(mem, factor, compat));
-            }
+            loadData(mem, factor, compat);
 
             fc.close();
 
@@ -201,7 +336,126 @@ public class BinaryDataProvider extends AbstractStarGroupDataProvider {
         return null;
     }
 
-    public StarBean readStarBean(MappedByteBuffer mem, double factor, boolean compat) {
+    @Override
+    public List<ParticleBean> loadData(ByteBuffer mem, double factor, boolean compat) {
+        if (isVersion3(mem)) {
+            StarColumns columns = loadColumnsV3(mem, factor);
+            initLists(columns.size());
+            addObjects(columns.asList());
+            return list;
+        }
+        // Read size of stars
+        int size = mem.getInt();
+        initLists(size);
+        for (int i = 0; i < size; i++) {
+            addObject(readStarBean(mem, factor, compat));
+        }
+        return list;
+    }
+
+    /**
+     * Loads the stars in the given buffer directly into columnar storage, without
+     * creating any star bean. The values are scaled exactly as in {@link #readStarBean(ByteBuffer, double, boolean)}.
+     *
+     * @param mem    The buffer, positioned at the start of the data
+     * @param factor Factor to apply to the positions
+     * @param compat Use compatibility with DR1/DR2 model (with tycho ids)
+     * @return The star columns
+     */
+    public StarColumns loadColumns(ByteBuffer mem, double factor, boolean compat) {
+        if (isVersion3(mem))
+            return loadColumnsV3(mem, factor);
+        int size = mem.getInt();
+        StarColumns columns = new StarColumns(size);
+        for (int i = 0; i < size; i++) {
+            // Double
+            for (int j = 0; j < StarBean.I_APPMAG; j++) {
+                double value = mem.getDouble();
+                if (j < 3)
+                    value *= factor;
+                if (j < 6)
+                    value *= Constants.DISTANCE_SCALE_FACTOR;
+                columns.set(i, j, value);
+            }
+            // Float
+            for (int j = StarBean.I_APPMAG; j < StarBean.I_HIP; j++) {
+                double value = mem.getFloat();
+                if (j == StarBean.I_SIZE)
+                    value *= Constants.DISTANCE_SCALE_FACTOR;
+                columns.set(i, j, value);
+            }
+            // Int
+            columns.set(i, StarBean.I_HIP, mem.getInt());
+
+            if (compat) {
+                // Skip unused tycho numbers, 3 Integers
+                mem.position(mem.position() + 12);
+            }
+
+            columns.setId(i, mem.getLong());
+            int nameLength = mem.getInt();
+            columns.addNames(i, mem, nameLength);
+        }
+        return columns.finish();
+    }
+
+    /**
+     * Loads version 3 of the format. Each column is copied in bulk from a view of the buffer, and
+     * the whole name table is decoded at once. The values are scaled as in the other versions.
+     *
+     * @param mem    The buffer, positioned at the start of the data
+     * @param factor Factor to apply to the positions
+     * @return The star columns
+     */
+    private StarColumns loadColumnsV3(ByteBuffer mem, double factor) {
+        ByteBuffer buffer = mem.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int version = buffer.getInt(4);
+        if (version != VERSION_3)
+            throw new IllegalArgumentException("Unsupported version of the binary star format: " + version);
+        int n = buffer.getInt(8);
+        int nColumns = buffer.getInt(12);
+        long namesOffset = buffer.getLong(16);
+
+        StarColumns columns = new StarColumns(n);
+        for (int c = 0; c < nColumns; c++) {
+            int pos = HEADER_SIZE_V3 + c * COLUMN_SIZE_V3;
+            int type = buffer.getInt(pos);
+            int attribute = buffer.getInt(pos + 4);
+            ByteBuffer column = view(buffer, buffer.getLong(pos + 8), (long) n * width(type));
+            if (type == TYPE_DOUBLE && attribute >= 0 && attribute < StarBean.I_APPMAG) {
+                columns.putColumn(attribute, column.asDoubleBuffer());
+            } else if (type == TYPE_FLOAT && attribute >= StarBean.I_APPMAG && attribute < StarBean.I_HIP) {
+                columns.putColumn(attribute, column.asFloatBuffer());
+            } else if (type == TYPE_INT && attribute == StarBean.I_HIP) {
+                columns.putHips(column.asIntBuffer());
+            } else if (type == TYPE_LONG && attribute == ATTR_ID) {
+                columns.putIds(column.asLongBuffer());
+            }
+        }
+        for (int j = 0; j < 3; j++)
+            columns.scale(j, factor);
+        for (int j = 0; j < 6; j++)
+            columns.scale(j, Constants.DISTANCE_SCALE_FACTOR);
+        columns.scale(StarBean.I_SIZE, Constants.DISTANCE_SCALE_FACTOR);
+
+        // Name table
+        IntBuffer nameOffsets = view(buffer, namesOffset, (n + 1) * 4L).asIntBuffer();
+        long blockOffset = namesOffset + (n + 1) * 4L;
+        int blockLength = buffer.getInt((int) blockOffset);
+        CharBuffer block = StandardCharsets.UTF_8.decode(view(buffer, blockOffset + 4, blockLength));
+        return columns.setNames(nameOffsets, block);
+    }
+
+    /**
+     * Gets a little-endian view of the given range of the buffer
+     */
+    private static ByteBuffer view(ByteBuffer buffer, long offset, long length) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit((int) (offset + length)).position((int) offset);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public StarBean readStarBean(ByteBuffer mem, double factor, boolean compat) {
         double[] data = new double[StarBean.SIZE];
         // Double
         for (int i = 0; i < StarBean.I_APPMAG; i++) {
@@ -19,7 +19,7 @@ import gaiasky.util.format.NumberFormatFactory;
 import gaiasky.util.io.ByteBufferInputStream;
 import gaiasky.util.math.MathUtilsd;
 import gaiasky.util.math.Vector3d;
-import gaiasky.util.parse.Parser;
+import gaiasky.util.parse.CsvChunkReader;
 import gaiasky.util.ucd.UCD;
 
 import java.io.*;
@@ -28,7 +28,6 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.Consumer;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -43,7 +42,11 @@ public class CsvCatalogDataProvider extends AbstractStarGroupDataProvider {
     private static final Log logger = Logger.getLogger(CsvCatalogDataProvider.class);
     private static final String comma = ",";
 
-    private static final String separator = comma;
+    private static final char separator = ',';
+
+    /** Keys of the extra attributes, shared by all stars **/
+    private static final UCD UCD_PLLX_ERR = new UCD("pllx_err", ColId.pllx_err.toString(), "", 0);
+    private static final UCD UCD_RUWE = new UCD("ruwe", ColId.ruwe.toString(), "", 0);
 
     /**
      * Maximum file count to load. 0 or negative for unlimited
@@ -60,8 +63,8 @@ public class CsvCatalogDataProvider extends AbstractStarGroupDataProvider {
      */
     private boolean parallel = true;
 
-    // Buffer in number of lines
-    private int parallelBufferSize = 750000;
+    // Size of the chunks processed in parallel, in bytes
+    private int chunkSize = CsvChunkReader.DEFAULT_CHUNK_SIZE;
 
     public CsvCatalogDataProvider() {
         super();
@@ -147,7 +150,7 @@ public class CsvCatalogDataProvider extends AbstractStarGroupDataProvider {
         } else {
             logger.warn("File skipped: " + f.path());
         }
-        logger.info(I18n.bundle.format("notif.nodeloader", list.size(), f.path()));
+        logger.info(I18n.bundle.format("notif.nodeloader", nLoaded, f.path()));
         return list;
     }
 
@@ -160,45 +163,40 @@ public class CsvCatalogDataProvider extends AbstractStarGroupDataProvider {
     }
 
     public void loadFileIs(InputStream is, double factor, AtomicLong addedStars, AtomicLong discardedStars) {
-        // Simple case
-        InputStream data = is;
-        BufferedReader br = new BufferedReader(new InputStreamReader(data));
-        Consumer<String> c = (l) -> {
-            if (addStar(l))
-                addedStars.incrementAndGet();
-            else
-                discardedStars.incrementAndGet();
-        };
+        // Lines are split in chunks, which are tokenized and parsed in parallel
+        CsvChunkReader reader = new CsvChunkReader(separator, parallel ? Runtime.getRuntime().availableProcessors() : 1);
+        reader.setChunkSize(chunkSize);
         try {
-            List<String> lineBuffer = new ArrayList<>(parallelBufferSize);
-            int i = 0;
-            String line;
-            while ((line = br.readLine()) != null) {
-                // Add to buffer
-                if (i > 0)
-                    lineBuffer.add(line);
-                if (lineBuffer.size() >= parallelBufferSize) {
-                    if (parallel)
-                        lineBuffer.parallelStream().forEach(c);
-                    else
-                        lineBuffer.stream().forEach(c);
-                    lineBuffer.clear();
+            reader.read(is, true, () -> new CsvChunkReader.ChunkHandler() {
+                private final List<ParticleBean> stars = new ArrayList<>();
+                private final long[] counts = new long[countsPerMag.length];
+                private long discarded = 0;
+
+                @Override
+                public void row(CsvChunkReader.Row row) {
+                    StarBean star = addStar(row);
+                    if (star != null) {
+                        stars.add(star);
+                        counts[(int) MathUtilsd.clamp(star.appmag(), 0, 21)]++;
+                    } else {
+                        discarded++;
+                    }
                 }
-                i++;
-            }
-            // Flush resting
-            if (lineBuffer.size() > 0) {
-                if (parallel)
-                    lineBuffer.parallelStream().forEach(c);
-                else
-                    lineBuffer.stream().forEach(c);
-                lineBuffer.clear();
-            }
+
+                @Override
+                public void done() {
+                    addObjects(stars);
+                    for (int i = 0; i < counts.length; i++)
+                        countsPerMag[i] += counts[i];
+                    addedStars.addAndGet(stars.size());
+                    discardedStars.addAndGet(discarded);
+                }
+            });
         } catch (IOException e) {
             logger.error(e);
         } finally {
             try {
-                br.close();
+                is.close();
             } catch (IOException e) {
                 logger.error(e);
             }
@@ -206,30 +204,29 @@ public class CsvCatalogDataProvider extends AbstractStarGroupDataProvider {
     }
 
     /**
-     * Adds the star if it meets the criteria.
+     * Creates the star of the given row if it meets the criteria. This runs concurrently for
+     * different chunks, so it must not modify the state of the provider.
      *
-     * @param line The string line
-     * @return True if star was added, false otherwise
+     * @param row The row
+     * @return The star, or null if it was discarded
      */
-    private boolean addStar(String line) {
-        String[] tokens = line.split(separator);
-        double[] point = new double[StarBean.SIZE + 3];
-
+    private StarBean addStar(CsvChunkReader.Row row) {
         // Check that parallax exists (5-param solution), otherwise we have no distance
-        if (!tokens[idx(ColId.pllx)].isEmpty()) {
+        if (!row.isEmpty(idx(ColId.pllx))) {
+            double[] point = new double[StarBean.SIZE + 3];
             /** Extra attributes **/
-            Map<UCD, Double> extra = new HashMap<>();
+            Map<UCD, Double> extra = new HashMap<>(4);
 
             /** ID **/
-            long sourceid = Parser.parseLong(tokens[idx(ColId.sourceid)]);
+            long sourceid = row.getLong(idx(ColId.sourceid));
             boolean mustLoad = mustLoad(sourceid);
 
             /** PARALLAX **/
             // Add the zero point to the parallax
-            double pllx = Parser.parseDouble(tokens[idx(ColId.pllx)]) + parallaxZeroPoint;
-            double pllxerr = Parser.parseDouble(tokens[idx(ColId.pllx_err)]);
-            double appmag = Parser.parseDouble(tokens[idx(ColId.gmag)]);
-            extra.put(new UCD("pllx_err", ColId.pllx_err.toString(), "", 0), pllxerr);
+            double pllx = row.getDouble(idx(ColId.pllx)) + parallaxZeroPoint;
+            double pllxerr = row.getDouble(idx(ColId.pllx_err));
+            double appmag = row.getDouble(idx(ColId.gmag));
+            extra.put(UCD_PLLX_ERR, pllxerr);
 
             // Keep only stars with relevant parallaxes
             if (mustLoad || acceptParallax(appmag, pllx, pllxerr)) {
@@ -238,17 +235,17 @@ public class CsvCatalogDataProvider extends AbstractStarGroupDataProvider {
                 double distpc = (1000d / pllx);
                 double geodistpc = getGeoDistance(sourceid);
 
-                float ruweVal = getRuweValue(sourceid, tokens);
+                float ruweVal = getRuweValue(sourceid, row);
                 if (!mustLoad && !ruwe.isNaN()) {
                     // RUWE test!
                     if (ruweVal > ruwe) {
                         // Do not accept
-                        return false;
+                        return null;
                     }
                 }
                 // Add ruwe to extra
                 if (!Float.isNaN(ruweVal)) {
-                    extra.put(new UCD("ruwe", ColId.ruwe.toString(), "", 0), (double) ruweVal);
+                    extra.put(UCD_RUWE, (double) ruweVal);
                 }
 
                 // If we have geometric distances, we only accept those, otherwise, accept all
@@ -264,19 +261,19 @@ public class CsvCatalogDataProvider extends AbstractStarGroupDataProvider {
                         String name = String.valueOf(sourceid);
 
                         /** RA and DEC **/
-                        double ra = Parser.parseDouble(tokens[idx(ColId.ra)]);
-                        double dec = Parser.parseDouble(tokens[idx(ColId.dec)]);
+                        double ra = row.getDouble(idx(ColId.ra));
+                        double dec = row.getDouble(idx(ColId.dec));
                         double rarad = Math.toRadians(ra);
                         double decrad = Math.toRadians(dec);
                         // If distance is negative due to mustLoad, we need to be able to retrieve sph pos later on, so we use 1 m to mark it
                         Vector3d pos = Coordinates.sphericalToCartesian(rarad, decrad, Math.max(dist, NEGATIVE_DIST), new Vector3d());
 
                         /** PROPER MOTIONS in mas/yr **/
-                        double mualphastar = Parser.parseDouble(tokens[idx(ColId.pmra)]);
-                        double mudelta = Parser.parseDouble(tokens[idx(ColId.pmdec)]);
+                        double mualphastar = row.getDouble(idx(ColId.pmra));
+                        double mudelta = row.getDouble(idx(ColId.pmdec));
 
                         /** RADIAL VELOCITY in km/s **/
-                        double radvel = Parser.parseDouble(tokens[idx(ColId.radvel)]);
+                        double radvel = row.getDouble(idx(ColId.radvel));
                         if (Double.isNaN(radvel)) {
                             radvel = 0;
                         }
@@ -294,9 +291,9 @@ public class CsvCatalogDataProvider extends AbstractStarGroupDataProvider {
                         double magcorraux = Math.min(distpc, 150d / Math.abs(Math.sin(b)));
 
                         if (magCorrections) {
-                            if (hasCol(ColId.ag) && !tokens[idx(ColId.ag)].isEmpty()) {
+                            if (hasCol(ColId.ag) && !row.isEmpty(idx(ColId.ag))) {
                                 // Take extinction from database
-                                ag = Parser.parseDouble(tokens[idx(ColId.ag)]);
+                                ag = row.getDouble(idx(ColId.ag));
                             } else if (hasAdditional(ColId.ag, sourceid)) {
                                 // Take extinction from additional file
                                 ag = getAdditionalValue(ColId.ag, sourceid);
@@ -322,9 +319,9 @@ public class CsvCatalogDataProvider extends AbstractStarGroupDataProvider {
                         // Reddening
                         double ebr = 0;
                         if (magCorrections) {
-                            if (hasCol(ColId.ebp_min_rp) && !tokens[idx(ColId.ebp_min_rp)].isEmpty()) {
+                            if (hasCol(ColId.ebp_min_rp) && !row.isEmpty(idx(ColId.ebp_min_rp))) {
                                 // Take reddening from table
-                                ebr = Parser.parseDouble(tokens[idx(ColId.ebp_min_rp)]);
+                                ebr = row.getDouble(idx(ColId.ebp_min_rp));
                             } else if (hasAdditional(ColId.ebp_min_rp, sourceid)) {
                                 // From additional
                                 ebr = getAdditionalValue(ColId.ebp_min_rp, sourceid);
@@ -337,15 +334,15 @@ public class CsvCatalogDataProvider extends AbstractStarGroupDataProvider {
                         }
 
                         // XP = BP - RP - Reddening
-                        float bp = (float) Parser.parseDouble(tokens[idx(ColId.bpmag)].trim());
-                        float rp = (float) Parser.parseDouble(tokens[idx(ColId.rpmag)].trim());
+                        float bp = row.getFloat(idx(ColId.bpmag));
+                        float rp = row.getFloat(idx(ColId.rpmag));
                         double xp = bp - rp - ebr;
 
                         // See Gaia broad band photometry (https://doi.org/10.1051/0004-6361/201015441)
                         double teff;
-                        if (tokens.length > 18 && !tokens[idx(ColId.teff)].isEmpty()) {
+                        if (hasCol(ColId.teff) && !row.isEmpty(idx(ColId.teff))) {
                             // Use database Teff
-                            teff = Parser.parseDouble(tokens[idx(ColId.teff)]);
+                            teff = row.getDouble(idx(ColId.teff));
                         } else {
                             // Compute Teff from XP color
                             if (xp <= 1.5) {
@@ -375,16 +372,12 @@ public class CsvCatalogDataProvider extends AbstractStarGroupDataProvider {
                         point[StarBean.I_APPMAG] = appmag;
                         point[StarBean.I_ABSMAG] = absmag;
 
-                        list.add(new StarBean(point, sourceid, name, extra));
-
-                        int appClamp = (int) MathUtilsd.clamp(appmag, 0, 21);
-                        countsPerMag[appClamp] += 1;
-                        return true;
+                        return new StarBean(point, sourceid, name, extra);
                     }
                 }
             }
         }
-        return false;
+        return null;
     }
 
     @Override
@@ -444,7 +437,12 @@ public class CsvCatalogDataProvider extends AbstractStarGroupDataProvider {
         this.parallel = parallel;
     }
 
-    public void setParallelBufferSize(int size) {
-        this.parallelBufferSize = size;
+    /**
+     * Sets the size of the chunks of the input which are processed in parallel
+     *
+     * @param size The size in bytes
+     */
+    public void setChunkSize(int size) {
+        this.chunkSize = size;
     }
 }
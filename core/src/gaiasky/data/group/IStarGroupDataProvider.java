@@ -7,10 +7,12 @@ package gaiasky.data.group;
 
 import com.badlogic.gdx.utils.LongMap;
 import gaiasky.scenegraph.ParticleGroup.ParticleBean;
+import gaiasky.util.ds.LongIntMap;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * Data provider for a star group, which contains an index map with the names
@@ -32,6 +34,18 @@ public interface IStarGroupDataProvider extends IParticleGroupDataProvider {
      */
     List<ParticleBean> loadDataMapped(String file, double factor, boolean compatibility);
 
+    /**
+     * Loads the data applying a factor from the given buffer, which contains the
+     * particle data in the same format as a file. Used to read slices of
+     * memory mapped archives.
+     *
+     * @param buffer The buffer to load the data from
+     * @param factor Factor to apply to the positions
+     * @param compatibility Use compatibility mode (DR1/DR2)
+     * @return Array of particle beans
+     */
+    List<ParticleBean> loadData(ByteBuffer buffer, double factor, boolean compatibility);
+
     /**
      * Loads the data applying a factor.
      *
@@ -129,9 +143,9 @@ public interface IStarGroupDataProvider extends IParticleGroupDataProvider {
     /**
      * Adds a set with all the ids which will be loaded regardless of any other
      * conditions (i.e. parallax error thresholds)
-     * @param ids The ids that must be loaded
+     * @param ids The ids that must be loaded, as the keys of the map. The values are ignored
      */
-    void setMustLoadIds(Set<Long>ids);
+    void setMustLoadIds(LongIntMap ids);
 
     /**
      * List of column names, separated by commas, indicating the position of each
@@ -139,4 +153,13 @@ public interface IStarGroupDataProvider extends IParticleGroupDataProvider {
      * @param columns The column name list
      */
     void setColumns(String columns);
-}
\ No newline at end of file
+
+    /**
+     * Sets a consumer which gets the loaded objects as they are read, in which case they
+     * are not kept in the list returned by the loading methods. This enables streaming
+     * catalogs which do not fit in memory. The objects are passed on in the same order in which they
+     * would be in the list. Set to null to go back to loading into the list
+     * @param consumer The consumer, or null
+     */
+    void setStreamConsumer(Consumer<ParticleBean> consumer);
+}
@@ -0,0 +1,48 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.data.group;
+
+import gaiasky.scenegraph.ParticleGroup.ParticleBean;
+import uk.ac.starlink.util.DataSource;
+
+import java.util.List;
+
+/**
+ * Data provider which hands out the objects in fixed-size batches as they are read, instead
+ * of returning the whole list at the end. This way, a particle or star group can be created with the
+ * first batch and grow as the rest of the data arrives.
+ *
+ * @author tsagrista
+ */
+public interface IStreamingDataProvider {
+
+    /**
+     * Receives the batches of a streamed data source
+     */
+    interface BatchConsumer {
+        /**
+         * Gets a batch of objects. Batches come in the order of the data source, from the loading thread
+         *
+         * @param batch   The objects of the batch. The consumer may keep the list
+         * @param current The number of rows processed so far
+         * @param count   The total number of rows, or a non-positive number if unknown
+         * @return Whether to go on loading. Returning false cancels the load
+         */
+        boolean accept(List<ParticleBean> batch, long current, long count);
+    }
+
+    /**
+     * Streams the given data source in batches. This blocks until all the data has been
+     * read or the consumer cancels the load.
+     *
+     * @param ds        The data source
+     * @param factor    Factor to apply to the positions
+     * @param batchSize The number of objects per batch. Only the last batch may be smaller
+     * @param consumer  The consumer of the batches
+     * @return The number of objects handed to the consumer
+     */
+    long streamData(DataSource ds, double factor, int batchSize, BatchConsumer consumer);
+}
@@ -8,10 +8,15 @@ package gaiasky.data.group;
 import com.badlogic.gdx.files.FileHandle;
 import gaiasky.GaiaSky;
 import gaiasky.data.StreamingOctreeLoader;
+import gaiasky.data.StreamingOctreeMetrics.Phase;
 import gaiasky.data.octreegen.MetadataBinaryIO;
+import gaiasky.data.octreegen.ParticleArchive;
+import gaiasky.data.octreegen.StarGroupQuantizedIO;
 import gaiasky.event.EventManager;
 import gaiasky.event.Events;
 import gaiasky.scenegraph.ParticleGroup.ParticleBean;
+import gaiasky.scenegraph.SceneGraphNode;
+import gaiasky.scenegraph.StarColumns;
 import gaiasky.scenegraph.StarGroup;
 import gaiasky.scenegraph.octreewrapper.AbstractOctreeWrapper;
 import gaiasky.scenegraph.octreewrapper.OctreeWrapper;
@@ -25,7 +30,11 @@ import gaiasky.util.coord.AstroUtils;
 import gaiasky.util.tree.LoadStatus;
 import gaiasky.util.tree.OctreeNode;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
 
 /**
@@ -50,9 +59,20 @@ public class OctreeGroupLoader extends StreamingOctreeLoader {
     private Boolean compatibilityMode = true;
 
     /**
-     * Binary particle reader
+     * Binary particle reader, one per loader thread
      **/
-    private final IStarGroupDataProvider particleReader;
+    private final ThreadLocal<IStarGroupDataProvider> particleReader;
+
+    /**
+     * Reader of octants in the quantized format, detected by their header
+     **/
+    private final StarGroupQuantizedIO quantizedReader;
+
+    /**
+     * The particle archive, if the particles are packed in a single file.
+     * Null if the particles are in a directory with one file per octant
+     **/
+    private ParticleArchive particleArchive;
 
     /**
      * Epoch of stars loaded through this
@@ -62,7 +82,8 @@ public class OctreeGroupLoader extends StreamingOctreeLoader {
     public OctreeGroupLoader() {
         instance = this;
 
-        particleReader = binary ? new BinaryDataProvider() : new SerializedDataProvider();
+        particleReader = ThreadLocal.withInitial(() -> binary ? new BinaryDataProvider() : new SerializedDataProvider());
+        quantizedReader = new StarGroupQuantizedIO();
 
     }
 
@@ -74,7 +95,8 @@ public class OctreeGroupLoader extends StreamingOctreeLoader {
         logger.info(I18n.bundle.format("notif.loading", metadata));
 
         MetadataBinaryIO metadataReader = new MetadataBinaryIO();
-        OctreeNode root = metadataReader.readMetadataMapped(metadata);
+        int pagedDepth = GlobalConf.performance.OCTREE_PAGED_DEPTH;
+        OctreeNode root = pagedDepth >= 0 ? metadataReader.readMetadataPaged(metadata, pagedDepth) : metadataReader.readMetadataMapped(metadata);
 
         if (root != null) {
             logger.info(I18n.bundle.format("notif.nodeloader", root.numNodes(), metadata));
@@ -91,6 +113,20 @@ public class OctreeGroupLoader extends StreamingOctreeLoader {
             CatalogInfo ci = new CatalogInfo(name, description, null, CatalogInfoType.LOD, 1.5f, octreeWrapper);
             EventManager.instance.post(Events.CATALOG_ADD, ci, false);
 
+            /*
+             * OPEN PARTICLE ARCHIVE, IF ANY
+             */
+            File particlesFile = new File(GlobalConf.data.dataFile(particles));
+            if (ParticleArchive.isArchive(particlesFile)) {
+                try {
+                    particleArchive = ParticleArchive.open(particlesFile.getPath());
+                    logger.info("Particle archive mapped with " + particleArchive.size() + " octants: " + particlesFile.getPath());
+                } catch (IOException e) {
+                    logger.error(e);
+                    return null;
+                }
+            }
+
             compatibilityMode = name.contains("DR2") || name.contains("dr2") || description.contains("DR2") || description.contains("dr2");
 
             /**
@@ -111,16 +147,65 @@ public class OctreeGroupLoader extends StreamingOctreeLoader {
         }
     }
 
-    public boolean loadOctant(final OctreeNode octant, final AbstractOctreeWrapper octreeWrapper, boolean fullInit) {
-        FileHandle octantFile = GlobalConf.data.dataFileHandle(particles + "particles_" + String.format("%06d", octant.pageId) + ".bin");
-        if (!octantFile.exists() || octantFile.isDirectory()) {
-            return false;
+    @Override
+    public SceneGraphNode decodeOctant(final OctreeNode octant, final AbstractOctreeWrapper octreeWrapper, boolean fullInit) throws IOException {
+        long start = System.nanoTime();
+        IStarGroupDataProvider reader = particleReader.get();
+        ByteBuffer buffer = null;
+        FileHandle octantFile = null;
+        if (particleArchive != null) {
+            // Slice of the archive
+            buffer = particleArchive.slice(octant.pageId);
+            if (buffer == null) {
+                return null;
+            }
+        } else {
+            // One file per octant
+            octantFile = GlobalConf.data.dataFileHandle(particles + "particles_" + String.format("%06d", octant.pageId) + ".bin");
+            if (!octantFile.exists() || octantFile.isDirectory()) {
+                return null;
+            }
+        }
+
+        StarGroup sg;
+        if (reader instanceof BinaryDataProvider) {
+            // Straight to columnar storage, no star beans
+            if (buffer == null) {
+                try (FileChannel fc = new RandomAccessFile(octantFile.file(), "r").getChannel()) {
+                    buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+                }
+            }
+            readAhead(buffer);
+            metrics.read(buffer.remaining());
+            long read = System.nanoTime();
+            metrics.record(Phase.IO, read - start);
+            start = read;
+
+            StarColumns columns;
+            if (StarGroupQuantizedIO.isQuantized(buffer)) {
+                columns = quantizedReader.readColumns(buffer, octant);
+            } else {
+                columns = ((BinaryDataProvider) reader).loadColumns(buffer, 1.0, compatibilityMode);
+            }
+            sg = StarGroup.getDefaultStarGroup("stargroup-%%SGID%%", columns, fullInit);
+        } else {
+            // Reading and decoding are not separable here, all goes to decoding
+            metrics.read(buffer != null ? buffer.remaining() : octantFile.length());
+            List<ParticleBean> data = buffer != null ? reader.loadData(buffer, 1.0, compatibilityMode) : reader.loadDataMapped(octantFile.path(), 1.0, compatibilityMode);
+            sg = StarGroup.getDefaultStarGroup("stargroup-%%SGID%%", data, fullInit);
         }
-        @SuppressWarnings("unchecked")
-        List<ParticleBean> data = particleReader.loadDataMapped(octantFile.path(), 1.0, compatibilityMode);
-        StarGroup sg = StarGroup.getDefaultStarGroup("stargroup-%%SGID%%", data, fullInit);
         sg.setEpoch(epoch);
         sg.setCatalogInfoBare(octreeWrapper.getCatalogInfo());
+        // Off the main thread
+        sg.hasHipStars();
+        metrics.record(Phase.DECODE, System.nanoTime() - start);
+        return sg;
+    }
+
+    @Override
+    public boolean integrateOctant(final OctreeNode octant, final SceneGraphNode object, final AbstractOctreeWrapper octreeWrapper, boolean fullInit) {
+        StarGroup sg = (StarGroup) object;
+        boolean hip = sg.hasHipStars();
 
         synchronized (octant) {
             sg.octant = octant;
@@ -131,8 +216,9 @@ public class OctreeGroupLoader extends StreamingOctreeLoader {
             if (GaiaSky.instance != null && GaiaSky.instance.sg != null)
                 GaiaSky.instance.sg.addNodeAuxiliaryInfo(sg);
 
-            nLoadedStars += sg.size();
+            nLoadedStars.addAndGet(sg.size());
             octant.add(sg);
+            addFootprint(octant, sg);
 
             // Put it at the end of the queue
             touch(octant);
@@ -141,8 +227,7 @@ public class OctreeGroupLoader extends StreamingOctreeLoader {
 
             addLoadedInfo(octant.pageId, octant.countObjects());
         }
-        return true;
-
+        return hip;
     }
 
     public void setEpoch(Double epoch) {
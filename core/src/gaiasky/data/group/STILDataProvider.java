@@ -21,8 +21,6 @@ import gaiasky.util.ucd.UCD;
 import gaiasky.util.ucd.UCDParser;
 import gaiasky.util.units.Position;
 import gaiasky.util.units.Position.PositionType;
-import gaiasky.util.units.Quantity.Angle;
-import gaiasky.util.units.Quantity.Angle.AngleUnit;
 import uk.ac.starlink.table.RowSequence;
 import uk.ac.starlink.table.StarTable;
 import uk.ac.starlink.table.StarTableFactory;
@@ -32,9 +30,11 @@ import uk.ac.starlink.util.DataSource;
 import uk.ac.starlink.util.FileDataSource;
 
 import java.io.InputStream;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 
 /**
@@ -45,16 +45,25 @@ import java.util.logging.Level;
  *
  * @author tsagrista
  */
-public class STILDataProvider extends AbstractStarGroupDataProvider {
+public class STILDataProvider extends AbstractStarGroupDataProvider implements IStreamingDataProvider {
     private static final Log logger = Logger.getLogger(STILDataProvider.class);
     private final StarTableFactory factory;
     private long starid = 10000000;
     // Dataset options, may be null
     private DatasetOptions dops;
 
+    // Load rows in parallel
+    private boolean parallel = true;
+
     // These names are not allowed
     private static final String[] forbiddenNameValues = { "-", "...", "nop", "nan", "?", "_", "x", "n/a" };
 
+    // Number of rows per batch processed in parallel
+    private static final int BATCH_SIZE = 10000;
+
+    // Color of the objects without color
+    private static final float[] defaultColor = ColorUtils.BVtoRGB(0.656f);
+
     public STILDataProvider() {
         super();
         // Disable logging
@@ -82,68 +91,17 @@ public class STILDataProvider extends AbstractStarGroupDataProvider {
                 logger.error(e2);
             }
         }
-        logger.info(I18n.bundle.format("notif.nodeloader", list.size(), file));
+        logger.info(I18n.bundle.format("notif.nodeloader", nLoaded, file));
         return list;
     }
 
     /**
-     * Gets the first ucd that can be translated to a double from the set.
+     * Sets whether the rows are processed in parallel
      *
-     * @param ucds The array of UCDs. The UCDs which coincide with the names should be first.
-     * @param row  The row objects
-     * @return Pair of <UCD,Double>
+     * @param parallel Whether to use all the available processors
      */
-    private Pair<UCD, Double> getDoubleUcd(Array<UCD> ucds, Object[] row) {
-        for (UCD ucd : ucds) {
-            try {
-                double num = ((Number) row[ucd.index]).doubleValue();
-                if (Double.isNaN(num)) {
-                    throw new Exception();
-                }
-                return new Pair<>(ucd, num);
-            } catch (Exception e) {
-                // not working, try next
-            }
-        }
-        return null;
-    }
-
-    /**
-     * Gets the first ucd as a string from the set.
-     *
-     * @param ucds The set of UCD objects
-     * @param row  The row
-     * @return
-     */
-    private Pair<UCD, String> getStringUcd(Array<UCD> ucds, Object[] row) {
-        for (UCD ucd : ucds) {
-            try {
-                String str = row[ucd.index].toString().strip();
-                return new Pair<>(ucd, str);
-            } catch (Exception e) {
-                // not working, try next
-            }
-        }
-        return null;
-    }
-
-    private Pair<UCD, String>[] getAllStringsUcd(Array<UCD> ucds, Object[] row) {
-        Array<Pair<UCD, String>> strs = new Array<>(2);
-        for (UCD ucd : ucds) {
-            try {
-                String str = row[ucd.index].toString().strip();
-                strs.add(new Pair<>(ucd, str));
-            } catch (Exception e) {
-                // not working, try next
-            }
-        }
-        Pair<UCD, String>[] result = new Pair[strs.size];
-        int i = 0;
-        for (Pair<UCD, String> value : strs) {
-            result[i++] = value;
-        }
-        return result;
-
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
     }
 
     public List<? extends ParticleBean> loadData(DataSource ds, double factor) {
@@ -159,16 +117,45 @@ public class STILDataProvider extends AbstractStarGroupDataProvider {
     }
 
     /**
+     * Loads the given table. The columns are matched to the attributes once, and then the rows are read in batches, which
+     * are processed in parallel and added to the list in the order of the table.
+     *
      * @param ds
      * @param factor
      * @param compat
      * @param preCallback    A function that runs before.
-     * @param updateCallback A function that runs after each object has loaded. Gets two longs, the first holds the current number of loaded objects and the
-     *                       second holds the total number of objects to load.
+     * @param updateCallback A function that runs periodically as the objects are loaded. Gets two longs, the first holds the current number of
+     *                       processed rows and the second holds the total number of rows to load.
      * @param postCallback   A function that runs after the data has been loaded.
      * @return
      */
     public List<? extends ParticleBean> loadData(DataSource ds, double factor, boolean compat, Runnable preCallback, RunnableLongLong updateCallback, Runnable postCallback) {
+        readTable(ds, compat, null, preCallback, updateCallback, postCallback);
+        return list;
+    }
+
+    /**
+     * Streams the given table in batches of the given size. The objects are not kept in the
+     * provider list, and the colors and spherical positions maps are not populated.
+     *
+     * @param ds        The data source
+     * @param factor    Factor to apply to the positions
+     * @param batchSize The number of objects per batch
+     * @param consumer  The consumer of the batches, which can cancel the load
+     * @return The number of objects handed to the consumer
+     */
+    @Override
+    public long streamData(DataSource ds, double factor, int batchSize, BatchConsumer consumer) {
+        Stream stream = new Stream(batchSize, consumer);
+        readTable(ds, true, stream, null, null, null);
+        return stream.total;
+    }
+
+    /**
+     * Reads the table. If a stream is given, the objects go to it instead of the provider list
+     */
+    private void readTable(DataSource ds, boolean compat, Stream stream, Runnable preCallback, RunnableLongLong updateCallback, Runnable postCallback) {
+        ExecutorService pool = null;
         try {
             // Add extra builders
             List builders = factory.getDefaultBuilders();
@@ -182,234 +169,56 @@ public class STILDataProvider extends AbstractStarGroupDataProvider {
             StarTable table = factory.makeStarTable(ds);
 
             long count = table.getRowCount();
-            initLists((int) count);
+            initLists(stream == null ? (int) Math.max(count, 0) : 0);
 
             UCDParser ucdp = new UCDParser();
             ucdp.parse(table);
 
             if (ucdp.haspos) {
-                int nInvalidPllx = 0;
+                Columns cols = new Columns(ucdp, table);
+                int nThreads = parallel ? Runtime.getRuntime().availableProcessors() : 1;
+                pool = nThreads > 1 ? Executors.newFixedThreadPool(nThreads) : null;
+                Deque<Future<Batch>> pending = new ArrayDeque<>();
+
                 long i = 0l;
+                int nInvalidPllx = 0;
                 long step = Math.max(1l, Math.round(count / 100d));
 
                 RowSequence rs = table.getRowSequence();
-                while (rs.next()) {
-                    Object[] row = rs.getRow();
-                    boolean skip = false;
-                    try {
-                        /* POSITION */
-                        Pair<UCD, Double> a = getDoubleUcd(ucdp.POS1, row);
-                        Pair<UCD, Double> b = getDoubleUcd(ucdp.POS2, row);
-                        Pair<UCD, Double> c;
-                        String unitc;
-
-                        Pair<UCD, Double> pos3 = getDoubleUcd(ucdp.POS3, row);
-                        // Check missing pos3 -> Use default parallax
-                        if (ucdp.POS3.isEmpty() || pos3 == null || pos3.getSecond() == null || !Double.isFinite(pos3.getSecond())) {
-                            c = new Pair<>(null, 0.04);
-                            unitc = "mas";
-                            nInvalidPllx++;
-                        } else {
-                            c = getDoubleUcd(ucdp.POS3, row);
-                            unitc = c.getFirst().unit;
-                        }
-
-                        PositionType pt = ucdp.getPositionType(a.getFirst(), b.getFirst(), c.getFirst());
-                        // Check negative parallaxes -> Use default for consistency
-                        if (pt.isParallax() && (c.getSecond() == null || c.getSecond().isNaN() || c.getSecond() <= 0)) {
-                            c.setSecond(0.04);
-                            unitc = "mas";
-                            nInvalidPllx++;
-                        }
-
-                        Position p = new Position(a.getSecond(), a.getFirst().unit, b.getSecond(), b.getFirst().unit, c.getSecond(), unitc, pt);
-
-                        double distpc = p.gsposition.len();
-                        if ((pt.isParallax() && c.getSecond() <= 0) || !Double.isFinite(distpc) || distpc < 0) {
-                            // Next
-                            break;
-                        }
-
-                        p.gsposition.scl(Constants.PC_TO_U);
-                        // Find out RA/DEC/Dist
-                        Vector3d sph = new Vector3d();
-                        Coordinates.cartesianToSpherical(p.gsposition, sph);
-
-                        /* PROPER MOTION */
-                        Vector3d pm;
-                        double mualphastar = 0, mudelta = 0, radvel = 0;
-                        // Only supported if position is equatorial spherical coordinates (ra/dec)
-                        if (pt == PositionType.EQ_SPH_DIST || pt == PositionType.EQ_SPH_PLX) {
-                            Pair<UCD, Double> pma = getDoubleUcd(ucdp.PMRA, row);
-                            Pair<UCD, Double> pmb = getDoubleUcd(ucdp.PMDEC, row);
-                            Pair<UCD, Double> pmc = getDoubleUcd(ucdp.RADVEL, row);
-
-                            mualphastar = pma != null ? pma.getSecond() : 0;
-                            mudelta = pmb != null ? pmb.getSecond() : 0;
-                            radvel = pmc != null ? pmc.getSecond() : 0;
-
-                            double rarad = new Angle(a.getSecond(), a.getFirst().unit).get(AngleUnit.RAD);
-                            double decrad = new Angle(b.getSecond(), b.getFirst().unit).get(AngleUnit.RAD);
-                            pm = AstroUtils.properMotionsToCartesian(mualphastar, mudelta, radvel, rarad, decrad, distpc);
-                        } else {
-                            pm = new Vector3d(Vector3d.Zero);
-                        }
-
-                        /* MAGNITUDE */
-                        double appmag;
-                        if (!ucdp.MAG.isEmpty()) {
-                            Pair<UCD, Double> appmagPair = getDoubleUcd(ucdp.MAG, row);
-                            appmag = appmagPair.getSecond();
-                        } else {
-                            // Default magnitude
-                            appmag = 15;
-                        }
-                        // Scale magnitude if needed
-                        double magscl = (dops != null && dops.type == DatasetOptions.DatasetLoadType.STARS) ? dops.magnitudeScale : 0f;
-                        appmag -= magscl;
-
-                        double absmag = appmag - 5 * Math.log10((distpc <= 0 ? 10 : distpc)) + 5;
-                        // Pseudo-luminosity. Usually L = L0 * 10^(-0.4*Mbol). We omit M0 and approximate Mbol = M
-                        double pseudoL = Math.pow(10, -0.4 * absmag);
-                        double sizeFactor = Nature.PC_TO_M * Constants.ORIGINAL_M_TO_U * 0.15;
-                        double size = Math.min((Math.pow(pseudoL, 0.45) * sizeFactor), 1e10);
-                        size *= Constants.DISTANCE_SCALE_FACTOR;
-
-                        /* COLOR */
-                        float color;
-                        if (!ucdp.COL.isEmpty()) {
-                            Pair<UCD, Double> colPair = getDoubleUcd(ucdp.COL, row);
-                            if (colPair == null) {
-                                color = 0.656f;
-                            } else {
-                                color = colPair.getSecond().floatValue();
-                            }
-                        } else {
-                            // Default color
-                            color = 0.656f;
-                        }
-                        float[] rgb = ColorUtils.BVtoRGB(color);
-                        double col = Color.toFloatBits(rgb[0], rgb[1], rgb[2], 1.0f);
-
-                        /* IDENTIFIER AND NAME */
-                        String[] names;
-                        Long id = -1l;
-                        int hip = -1;
-                        if (ucdp.NAME.isEmpty()) {
-                            // Empty name
-                            if (!ucdp.ID.isEmpty()) {
-                                // We have ID
-                                Pair<UCD, String> namePair = getStringUcd(ucdp.ID, row);
-                                names = new String[] { namePair.getSecond() };
-                                if (namePair.getFirst().colname.equalsIgnoreCase("hip")) {
-                                    hip = Integer.valueOf(namePair.getSecond());
-                                    id = (long) hip;
-                                } else {
-                                    id = ++starid;
-                                }
-                            } else {
-                                // Emtpy ID
-                                id = ++starid;
-                                names = new String[] { id.toString() };
-                            }
-                        } else {
-                            // We have name
-                            Pair<UCD, String>[] namePairs = getAllStringsUcd(ucdp.NAME, row);
-                            Array<String> namesArray = new Array<>(namePairs.length);
-                            for (Pair<UCD, String> pair : namePairs) {
-                                String[] currNames = pair.getSecond().split(Constants.nameSeparatorRegex);
-                                for (String actualName : currNames) {
-                                    if (actualName != null && !actualName.isEmpty() && !TextUtils.contains(forbiddenNameValues, actualName, true)) {
-                                        namesArray.add(actualName);
-                                    }
-                                }
-                            }
-                            names = new String[namesArray.size];
-                            int k = 0;
-                            for (String n : namesArray) {
-                                names[k++] = n;
-                            }
-                            if (names.length == 0) {
-                                names = new String[] { id.toString() };
-                            }
-
-                            // Take care of HIP stars
-                            if (!ucdp.ID.isEmpty()) {
-                                Pair<UCD, String> idpair = getStringUcd(ucdp.ID, row);
-                                if (idpair.getFirst().colname.equalsIgnoreCase("hip")) {
-                                    hip = Integer.valueOf(idpair.getSecond());
-                                    id = (long) hip;
-                                } else {
-                                    id = ++starid;
-                                }
-                            } else {
-                                id = ++starid;
-                            }
-                        }
-
-                        if (mustLoad(id)) {
-                            // Check must load
-                            skip = false;
-                        }
-
-                        if (skip) {
-                            // Next
-                            continue;
-                        }
-
-                        // Populate provider lists
-                        colors.put(id, rgb);
-                        sphericalPositions.put(id, new double[] { sph.x, sph.y, sph.z });
-
-                        if (dops == null || dops.type == DatasetOptions.DatasetLoadType.STARS) {
-                            double[] point = new double[StarBean.SIZE + 3];
-                            point[StarBean.I_HIP] = hip;
-                            point[StarBean.I_X] = p.gsposition.x;
-                            point[StarBean.I_Y] = p.gsposition.y;
-                            point[StarBean.I_Z] = p.gsposition.z;
-                            point[StarBean.I_PMX] = pm.x;
-                            point[StarBean.I_PMY] = pm.y;
-                            point[StarBean.I_PMZ] = pm.z;
-                            point[StarBean.I_MUALPHA] = mualphastar;
-                            point[StarBean.I_MUDELTA] = mudelta;
-                            point[StarBean.I_RADVEL] = radvel;
-                            point[StarBean.I_COL] = col;
-                            point[StarBean.I_SIZE] = size;
-                            point[StarBean.I_APPMAG] = appmag;
-                            point[StarBean.I_ABSMAG] = absmag;
-
-                            // Extra
-                            Map<UCD, Double> extraAttributes = addExtraAttributes(ucdp, row);
-
-                            StarBean sb = new StarBean(point, id, names, extraAttributes);
-                            list.add(sb);
-
-                            int appclmp = (int) MathUtilsd.clamp(appmag, 0, 21);
-                            countsPerMag[appclmp] += 1;
-                        } else if (dops.type == DatasetOptions.DatasetLoadType.PARTICLES) {
-                            double[] point = new double[3];
-                            point[ParticleBean.I_X] = p.gsposition.x;
-                            point[ParticleBean.I_Y] = p.gsposition.y;
-                            point[ParticleBean.I_Z] = p.gsposition.z;
-
-                            // TODO reorganise existing star properties into extra attributes
-
-                            // Extra
-                            Map<UCD, Double> extraAttributes = addExtraAttributes(ucdp, row);
-
-                            ParticleBean pb = new ParticleBean(point, names, extraAttributes);
-                            list.add(pb);
-                        }
-
-                    } catch (Exception e) {
-                        logger.debug(e);
-                        logger.debug("Exception parsing row " + i + ": skipping");
+                boolean more = true;
+                while (more && (stream == null || !stream.cancelled)) {
+                    // Read a batch of rows. The row arrays may be reused by the sequence, so they are copied
+                    Object[][] rows = new Object[BATCH_SIZE][];
+                    int n = 0;
+                    while (n < BATCH_SIZE && (more = rs.next())) {
+                        rows[n++] = rs.getRow().clone();
                     }
-                    i++;
-                    if (updateCallback != null && i % step == 0) {
-                        updateCallback.run(i, count);
+                    if (n == 0)
+                        break;
+
+                    final int nRows = n;
+                    final long firstRow = i;
+                    if (pool == null) {
+                        pending.add(CompletableFuture.completedFuture(load(cols, rows, nRows, firstRow)));
+                    } else {
+                        pending.add(pool.submit(() -> load(cols, rows, nRows, firstRow)));
+                    }
+                    i += n;
+
+                    // Add the finished batches in order, and wait if too many are in flight
+                    while (!pending.isEmpty() && (pending.size() >= 2 * nThreads || pending.peek().isDone())) {
+                        nInvalidPllx += add(pending.poll().get(), step, count, stream, updateCallback);
                     }
                 }
+                while (!pending.isEmpty() && (stream == null || !stream.cancelled)) {
+                    nInvalidPllx += add(pending.poll().get(), step, count, stream, updateCallback);
+                }
+                if (stream != null) {
+                    if (stream.cancelled)
+                        logger.info("Loading cancelled after " + stream.total + " objects");
+                    else
+                        stream.flush(i, count);
+                }
                 if (nInvalidPllx > 0) {
                     logger.warn("Found " + nInvalidPllx + " rows with nonexistent or negative parallax. Using the default 0.04 mas for them.");
                 }
@@ -420,34 +229,433 @@ public class STILDataProvider extends AbstractStarGroupDataProvider {
         } catch (Exception e) {
             logger.error(e);
         } finally {
+            if (pool != null)
+                pool.shutdownNow();
             if (postCallback != null)
                 postCallback.run();
         }
+    }
 
-        return list;
+    /**
+     * Adds the objects of a processed batch to the provider lists. Runs in the loading thread, in the order of the batches,
+     * which is where the generated identifiers are assigned. If a stream is given, the objects go to it instead.
+     *
+     * @return The number of rows with an invalid parallax
+     */
+    private int add(Batch batch, long step, long count, Stream stream, RunnableLongLong updateCallback) {
+        for (int j = 0; j < batch.objects.size(); j++) {
+            ParticleBean pb = batch.objects.get(j);
+            long id = batch.generatedId[j] ? ++starid : batch.ids[j];
+            if (batch.nameFromId[j]) {
+                pb.names[0] = Long.toString(id);
+            }
+
+            // Populate provider lists
+            if (stream == null) {
+                colors.put(id, batch.colors[j]);
+                sphericalPositions.put(id, batch.sphericalPositions[j]);
+            }
+
+            if (pb instanceof StarBean) {
+                StarBean sb = (StarBean) pb;
+                sb.id = id;
+                int appclmp = (int) MathUtilsd.clamp(sb.appmag(), 0, 21);
+                countsPerMag[appclmp] += 1;
+            }
+            if (stream == null) {
+                addObject(pb);
+            } else if (!stream.add(pb, batch.firstRow + j + 1, count)) {
+                break;
+            }
+        }
+        if (updateCallback != null && (batch.firstRow + batch.rows) / step > batch.firstRow / step) {
+            updateCallback.run(batch.firstRow + batch.rows, count);
+        }
+        return batch.invalidParallaxes;
     }
 
-    private Map<UCD, Double> addExtraAttributes(UCDParser ucdp, Object[] row) {
-        // Extra
-        Map<UCD, Double> extraAttributes = null;
-        for (UCD extra : ucdp.extra) {
-            Double val = Double.NaN;
+    /**
+     * Processes a batch of rows. This runs concurrently with other batches, so it only writes to the batch.
+     */
+    private Batch load(Columns cols, Object[][] rows, int nRows, long firstRow) {
+        Batch batch = new Batch(firstRow, nRows);
+        boolean stars = dops == null || dops.type == DatasetOptions.DatasetLoadType.STARS;
+        // Scale magnitude if needed
+        double magscl = (dops != null && dops.type == DatasetOptions.DatasetLoadType.STARS) ? dops.magnitudeScale : 0f;
+        double sizeFactor = Nature.PC_TO_M * Constants.ORIGINAL_M_TO_U * 0.15;
+
+        for (int r = 0; r < nRows; r++) {
+            Object[] row = rows[r];
             try {
-                val = ((Number) row[extra.index]).doubleValue();
-            } catch (Exception e) {
-                Object o = row[extra.index];
-                if (o instanceof Character) {
-                    Character c = (Character) o;
-                    val = (double) c.charValue();
+                /* POSITION */
+                int ia = firstNumber(cols.pos1, row);
+                int ib = firstNumber(cols.pos2, row);
+                int ic = firstNumber(cols.pos3, row);
+                double a = number(cols.pos1[ia], row);
+                double b = number(cols.pos2[ib], row);
+                double c;
+                // Check missing pos3 -> Use default parallax
+                if (ic < 0 || !Double.isFinite(c = number(cols.pos3[ic], row))) {
+                    ic = -1;
+                    c = 0.04;
+                    batch.invalidParallaxes++;
                 }
+
+                PositionType pt = cols.types[ia][ib][ic + 1];
+                // Check negative parallaxes -> Use default for consistency
+                if (pt.isParallax() && c <= 0) {
+                    ic = -1;
+                    c = 0.04;
+                    batch.invalidParallaxes++;
+                }
+
+                Position.Converter converter = cols.converters[ia][ib][ic + 1];
+                Vector3d pos = converter.toCartesian(a, b, c, new Vector3d());
+
+                double distpc = pos.len();
+                if (!Double.isFinite(distpc) || distpc < 0) {
+                    // Next
+                    continue;
+                }
+
+                pos.scl(Constants.PC_TO_U);
+                // Find out RA/DEC/Dist
+                Vector3d sph = new Vector3d();
+                Coordinates.cartesianToSpherical(pos, sph);
+
+                /* PROPER MOTION */
+                Vector3d pm;
+                double mualphastar = 0, mudelta = 0, radvel = 0;
+                // Only supported if position is equatorial spherical coordinates (ra/dec)
+                if (pt == PositionType.EQ_SPH_DIST || pt == PositionType.EQ_SPH_PLX) {
+                    int ipma = firstNumber(cols.pmra, row);
+                    int ipmb = firstNumber(cols.pmdec, row);
+                    int ipmc = firstNumber(cols.radvel, row);
+
+                    mualphastar = ipma >= 0 ? number(cols.pmra[ipma], row) : 0;
+                    mudelta = ipmb >= 0 ? number(cols.pmdec[ipmb], row) : 0;
+                    radvel = ipmc >= 0 ? number(cols.radvel[ipmc], row) : 0;
+
+                    pm = AstroUtils.properMotionsToCartesian(mualphastar, mudelta, radvel, converter.longitude(a), converter.latitude(b), distpc);
+                } else {
+                    pm = new Vector3d(Vector3d.Zero);
+                }
+
+                /* MAGNITUDE */
+                double appmag;
+                if (cols.hasMag) {
+                    appmag = number(cols.mag[firstNumber(cols.mag, row)], row);
+                } else {
+                    // Default magnitude
+                    appmag = 15;
+                }
+                appmag -= magscl;
+
+                double absmag = appmag - 5 * Math.log10((distpc <= 0 ? 10 : distpc)) + 5;
+                // Pseudo-luminosity. Usually L = L0 * 10^(-0.4*Mbol). We omit M0 and approximate Mbol = M
+                double pseudoL = Math.pow(10, -0.4 * absmag);
+                double size = Math.min((Math.pow(pseudoL, 0.45) * sizeFactor), 1e10);
+                size *= Constants.DISTANCE_SCALE_FACTOR;
+
+                /* COLOR */
+                float[] rgb;
+                int icol = firstNumber(cols.col, row);
+                if (icol >= 0) {
+                    rgb = ColorUtils.BVtoRGB((float) number(cols.col[icol], row));
+                } else {
+                    // Default color
+                    rgb = defaultColor.clone();
+                }
+                double col = Color.toFloatBits(rgb[0], rgb[1], rgb[2], 1.0f);
+
+                /* IDENTIFIER AND NAME */
+                String[] names;
+                long id = -1l;
+                boolean generatedId = true, nameFromId = false;
+                int hip = -1;
+                if (!cols.hasName) {
+                    // Empty name
+                    if (cols.hasId) {
+                        // We have ID
+                        int iid = firstString(cols.id, row);
+                        names = new String[] { string(cols.id[iid], row) };
+                        if (cols.hipId[iid]) {
+                            hip = Integer.parseInt(names[0]);
+                            id = hip;
+                            generatedId = false;
+                        }
+                    } else {
+                        // Emtpy ID, the name is set when the ID is generated
+                        names = new String[1];
+                        nameFromId = true;
+                    }
+                } else {
+                    // We have name
+                    Array<String> namesArray = new Array<>(false, 2, String.class);
+                    for (UCD ucd : cols.name) {
+                        Object value = row[ucd.index];
+                        if (value == null)
+                            continue;
+                        String[] currNames = value.toString().strip().split(Constants.nameSeparatorRegex);
+                        for (String actualName : currNames) {
+                            if (actualName != null && !actualName.isEmpty() && !TextUtils.contains(forbiddenNameValues, actualName, true)) {
+                                namesArray.add(actualName);
+                            }
+                        }
+                    }
+                    names = namesArray.size == 0 ? new String[] { Long.toString(id) } : namesArray.toArray();
+
+                    // Take care of HIP stars
+                    if (cols.hasId) {
+                        int iid = firstString(cols.id, row);
+                        if (cols.hipId[iid]) {
+                            hip = Integer.parseInt(string(cols.id[iid], row));
+                            id = hip;
+                            generatedId = false;
+                        }
+                    }
+                }
+
+                ParticleBean pb;
+                if (stars) {
+                    double[] point = new double[StarBean.SIZE + 3];
+                    point[StarBean.I_HIP] = hip;
+                    point[StarBean.I_X] = pos.x;
+                    point[StarBean.I_Y] = pos.y;
+                    point[StarBean.I_Z] = pos.z;
+                    point[StarBean.I_PMX] = pm.x;
+                    point[StarBean.I_PMY] = pm.y;
+                    point[StarBean.I_PMZ] = pm.z;
+                    point[StarBean.I_MUALPHA] = mualphastar;
+                    point[StarBean.I_MUDELTA] = mudelta;
+                    point[StarBean.I_RADVEL] = radvel;
+                    point[StarBean.I_COL] = col;
+                    point[StarBean.I_SIZE] = size;
+                    point[StarBean.I_APPMAG] = appmag;
+                    point[StarBean.I_ABSMAG] = absmag;
+
+                    pb = new StarBean(point, id, names, extraAttributes(cols, row));
+                } else if (dops.type == DatasetOptions.DatasetLoadType.PARTICLES) {
+                    double[] point = new double[3];
+                    point[ParticleBean.I_X] = pos.x;
+                    point[ParticleBean.I_Y] = pos.y;
+                    point[ParticleBean.I_Z] = pos.z;
+
+                    // TODO reorganise existing star properties into extra attributes
+
+                    pb = new ParticleBean(point, names, extraAttributes(cols, row));
+                } else {
+                    // Nothing to load for other types
+                    continue;
+                }
+                batch.add(pb, id, generatedId, nameFromId, rgb, new double[] { sph.x, sph.y, sph.z });
+            } catch (Exception e) {
+                logger.debug(e);
+                logger.debug("Exception parsing row " + (firstRow + r) + ": skipping");
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Gets the index of the first candidate column with a number which is not NaN in the given row
+     *
+     * @param ucds The candidate columns, in order of preference
+     * @param row  The row
+     * @return The index of the candidate, or -1 if there is none
+     */
+    private static int firstNumber(UCD[] ucds, Object[] row) {
+        for (int k = 0; k < ucds.length; k++) {
+            Object value = row[ucds[k].index];
+            if (value instanceof Number && !Double.isNaN(((Number) value).doubleValue()))
+                return k;
+        }
+        return -1;
+    }
+
+    private static double number(UCD ucd, Object[] row) {
+        return ((Number) row[ucd.index]).doubleValue();
+    }
+
+    /**
+     * Gets the index of the first candidate column with a value in the given row
+     *
+     * @param ucds The candidate columns, in order of preference
+     * @param row  The row
+     * @return The index of the candidate, or -1 if there is none
+     */
+    private static int firstString(UCD[] ucds, Object[] row) {
+        for (int k = 0; k < ucds.length; k++) {
+            if (row[ucds[k].index] != null)
+                return k;
+        }
+        return -1;
+    }
+
+    private static String string(UCD ucd, Object[] row) {
+        return row[ucd.index].toString().strip();
+    }
+
+    private static Map<UCD, Double> extraAttributes(Columns cols, Object[] row) {
+        if (cols.extra.length == 0)
+            return null;
+        Map<UCD, Double> extraAttributes = new HashMap<>((int) (cols.extra.length / 0.75f) + 1);
+        for (UCD extra : cols.extra) {
+            Object value = row[extra.index];
+            double val = Double.NaN;
+            if (value instanceof Number) {
+                val = ((Number) value).doubleValue();
+            } else if (value instanceof Character) {
+                val = ((Character) value).charValue();
             }
-            if (extraAttributes == null)
-                extraAttributes = new HashMap<>();
             extraAttributes.put(extra, val);
         }
         return extraAttributes;
     }
 
+    /**
+     * The columns of a table matched to the attributes, resolved once from the {@link UCDParser}. Each attribute has
+     * an array of candidate columns in order of preference, and its value in a row is taken from the first candidate
+     * with a valid value. Numeric attributes only keep the candidate columns which can hold numbers. The position
+     * conversions of each combination of candidates are also worked out here, so that the units are parsed once.
+     */
+    private static class Columns {
+        final UCD[] pos1, pos2, pos3, pmra, pmdec, radvel, mag, col, id, name, extra;
+        final boolean hasMag, hasId, hasName;
+        /** Whether each candidate of the identifier is a HIP number **/
+        final boolean[] hipId;
+        /**
+         * The position converters of each combination of position candidates. The last index is the candidate
+         * of the third coordinate plus one, where 0 stands for the default parallax. Invalid combinations are null
+         */
+        final Position.Converter[][][] converters;
+        /** The position types of each combination of position candidates, indexed like the converters **/
+        final PositionType[][][] types;
+
+        Columns(UCDParser ucdp, StarTable table) {
+            pos1 = numeric(ucdp.POS1, table);
+            pos2 = numeric(ucdp.POS2, table);
+            pos3 = numeric(ucdp.POS3, table);
+            pmra = numeric(ucdp.PMRA, table);
+            pmdec = numeric(ucdp.PMDEC, table);
+            radvel = numeric(ucdp.RADVEL, table);
+            mag = numeric(ucdp.MAG, table);
+            col = numeric(ucdp.COL, table);
+            id = ucdp.ID.toArray(UCD.class);
+            name = ucdp.NAME.toArray(UCD.class);
+            extra = ucdp.extra.toArray(UCD.class);
+            hasMag = !ucdp.MAG.isEmpty();
+            hasId = !ucdp.ID.isEmpty();
+            hasName = !ucdp.NAME.isEmpty();
+            hipId = new boolean[id.length];
+            for (int k = 0; k < id.length; k++) {
+                hipId[k] = id[k].colname.equalsIgnoreCase("hip");
+            }
+
+            converters = new Position.Converter[pos1.length][pos2.length][pos3.length + 1];
+            types = new PositionType[pos1.length][pos2.length][pos3.length + 1];
+            for (int i1 = 0; i1 < pos1.length; i1++) {
+                for (int i2 = 0; i2 < pos2.length; i2++) {
+                    for (int i3 = -1; i3 < pos3.length; i3++) {
+                        UCD c = i3 >= 0 ? pos3[i3] : null;
+                        String unitc = c != null ? c.unit : "mas";
+                        try {
+                            PositionType pt = ucdp.getPositionType(pos1[i1], pos2[i2], c);
+                            types[i1][i2][i3 + 1] = pt;
+                            converters[i1][i2][i3 + 1] = new Position.Converter(pos1[i1].unit, pos2[i2].unit, unitc, pt);
+                        } catch (Exception e) {
+                            // Invalid units or position type, the rows with these candidates are skipped
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Gets the candidates whose columns can hold numbers
+         */
+        private static UCD[] numeric(Array<UCD> ucds, StarTable table) {
+            Array<UCD> result = new Array<>(false, ucds.size, UCD.class);
+            for (UCD ucd : ucds) {
+                Class<?> clazz = table.getColumnInfo(ucd.index).getContentClass();
+                if (clazz == null || clazz == Object.class || Number.class.isAssignableFrom(clazz))
+                    result.add(ucd);
+            }
+            return result.toArray();
+        }
+    }
+
+    /**
+     * Groups the loaded objects in batches of a fixed size and hands them to a consumer
+     */
+    private static class Stream {
+        final int batchSize;
+        final BatchConsumer consumer;
+        List<ParticleBean> current;
+        long total = 0;
+        boolean cancelled = false;
+
+        Stream(int batchSize, BatchConsumer consumer) {
+            this.batchSize = Math.max(1, batchSize);
+            this.consumer = consumer;
+            this.current = new ArrayList<>(this.batchSize);
+        }
+
+        /**
+         * @return Whether to go on loading
+         */
+        boolean add(ParticleBean pb, long row, long count) {
+            current.add(pb);
+            if (current.size() >= batchSize)
+                flush(row, count);
+            return !cancelled;
+        }
+
+        void flush(long row, long count) {
+            if (current.isEmpty() || cancelled)
+                return;
+            List<ParticleBean> batch = current;
+            current = new ArrayList<>(batchSize);
+            total += batch.size();
+            cancelled = !consumer.accept(batch, row, count);
+        }
+    }
+
+    /**
+     * The objects of a batch of rows, waiting to be added to the provider lists
+     */
+    private static class Batch {
+        final long firstRow;
+        final int rows;
+        final List<ParticleBean> objects;
+        final long[] ids;
+        final boolean[] generatedId, nameFromId;
+        final float[][] colors;
+        final double[][] sphericalPositions;
+        int invalidParallaxes = 0;
+
+        Batch(long firstRow, int rows) {
+            this.firstRow = firstRow;
+            this.rows = rows;
+            this.objects = new ArrayList<>(rows);
+            this.ids = new long[rows];
+            this.generatedId = new boolean[rows];
+            this.nameFromId = new boolean[rows];
+            this.colors = new float[rows][];
+            this.sphericalPositions = new double[rows][];
+        }
+
+        void add(ParticleBean pb, long id, boolean generatedId, boolean nameFromId, float[] color, double[] sph) {
+            int j = objects.size();
+            objects.add(pb);
+            this.ids[j] = id;
+            this.generatedId[j] = generatedId;
+            this.nameFromId[j] = nameFromId;
+            this.colors[j] = color;
+            this.sphericalPositions[j] = sph;
+        }
+    }
+
     @Override
     public List<ParticleBean> loadData(InputStream is, double factor, boolean compat) {
         // TODO Auto-generated method stub
@@ -25,7 +25,7 @@ public class SerializedDataProvider extends AbstractStarGroupDataProvider {
 
         FileHandle f = GlobalConf.data.dataFileHandle(file);
         loadData(f.read(), factor, compat);
-        logger.info(I18n.bundle.format("notif.nodeloader", list.size(), file));
+        logger.info(I18n.bundle.format("notif.nodeloader", nLoaded, file));
 
         return list;
     }
@@ -43,7 +43,7 @@ public class SerializedDataProvider extends AbstractStarGroupDataProvider {
 
             for (int i = 0; i < n; i++) {
                 StarBean point = l.get(i);
-                list.add(point);
+                addObject(point);
             }
 
             return list;
@@ -15,6 +15,7 @@ import gaiasky.util.tree.OctreeNode;
 
 import java.io.*;
 import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
@@ -201,6 +202,41 @@ public class MetadataBinaryIO {
 
     }
 
+    public OctreeNode readMetadataPaged(String file, int pagedDepth) {
+        return readMetadataPaged(file, pagedDepth, null);
+    }
+
+    /**
+     * Reads the metadata into an octree node, creating only the octants down to the given
+     * depth. Deeper octants are created on demand by a {@link MetadataPager}, which keeps
+     * the file mapped.
+     *
+     * @param file       The metadata file
+     * @param pagedDepth The depth down to which the octants are created
+     * @param status     The initial status of the octants, or null
+     * @return The root node
+     */
+    public OctreeNode readMetadataPaged(String file, int pagedDepth, LoadStatus status) {
+        nodesMap = null;
+
+        try (FileChannel fc = new RandomAccessFile(GlobalConf.data.dataFile(file), "r").getChannel()) {
+            MappedByteBuffer mem = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+
+            MetadataPager pager = new MetadataPager(mem, pagedDepth, status);
+            OctreeNode root = pager.root();
+            OctreeNode.maxDepth = pager.getMaxDepth();
+            if (root == null) {
+                logger.error(new RuntimeException("No root node in visualization-metadata"));
+            } else {
+                logger.info("Octree metadata paged below depth " + pagedDepth + ": " + root.numNodes() + " of " + pager.size() + " nodes created");
+            }
+            return root;
+        } catch (Exception e) {
+            logger.error(e);
+        }
+        return null;
+    }
+
     /**
      * Writes the metadata of the given octree node and its descendants to the
      * given output stream in binary.
@@ -245,6 +281,60 @@ public class MetadataBinaryIO {
 
     }
 
+    /**
+     * Writes the page index of a particle archive. The format is as follows:
+     *
+     * - 32 bits (int) with the number of pages, nPages repeat the following nPages times (for each page)
+     * - 32 bits (int) - pageId - The page id of the octant
+     * - 64 bits (long) - offset - The offset of the particle data of the octant in the archive, in bytes
+     * - 32 bits (int) - length - The length of the particle data of the octant, in bytes
+     *
+     * The entries must be sorted by page id.
+     *
+     * @param pageIds The page ids
+     * @param offsets The offsets of each page
+     * @param lengths The lengths of each page
+     * @param out     The output
+     * @throws IOException
+     */
+    public void writeArchiveIndex(long[] pageIds, long[] offsets, int[] lengths, DataOutput out) throws IOException {
+        out.writeInt(pageIds.length);
+        for (int i = 0; i < pageIds.length; i++) {
+            out.writeInt((int) pageIds[i]);
+            out.writeLong(offsets[i]);
+            out.writeInt(lengths[i]);
+        }
+    }
+
+    /**
+     * Size in bytes of the page index of an archive with the given number of pages
+     *
+     * @param nPages The number of pages
+     * @return The size in bytes
+     */
+    public static long archiveIndexSize(int nPages) {
+        return 4L + 16L * nPages;
+    }
+
+    /**
+     * Reads the page index of a particle archive, written with {@link #writeArchiveIndex(long[], long[], int[], DataOutput)}.
+     *
+     * @param mem The buffer, positioned at the start of the index
+     * @return Array with the page ids, offsets and lengths, in this order
+     */
+    public long[][] readArchiveIndex(ByteBuffer mem) {
+        int nPages = mem.getInt();
+        long[] pageIds = new long[nPages];
+        long[] offsets = new long[nPages];
+        long[] lengths = new long[nPages];
+        for (int i = 0; i < nPages; i++) {
+            pageIds[i] = mem.getInt();
+            offsets[i] = mem.getLong();
+            lengths[i] = mem.getInt();
+        }
+        return new long[][] { pageIds, offsets, lengths };
+    }
+
     public void toList(OctreeNode node, List<OctreeNode> nodes) {
         nodes.add(node);
         for (OctreeNode child : node.children) {
@@ -0,0 +1,250 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.data.octreegen;
+
+import com.badlogic.gdx.utils.TimeUtils;
+import gaiasky.util.Constants;
+import gaiasky.util.tree.LoadStatus;
+import gaiasky.util.tree.OctreeNode;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Materialises the octants of an octree on demand from its metadata file (see {@link MetadataBinaryIO}),
+ * which is used as a node table. The octants down to the paged depth are created at startup. The children of
+ * deeper octants are only created when the octant is first observed (see {@link #resolveChildren(OctreeNode)}),
+ * and are released again when the octant has not been observed for a while and no descendant has data
+ * loaded (see {@link #release()}).
+ * <p>
+ * Only the page ids of the table are kept in memory, sorted, along with their record numbers.
+ *
+ * @author tsagrista
+ */
+public class MetadataPager {
+    /** Size of the header of the metadata file, with the number of nodes **/
+    private static final int HEADER_SIZE = 4;
+    /** Size of a node record in the metadata file **/
+    private static final int RECORD_SIZE = 4 + 6 * 4 + 8 * 4 + 4 * 4;
+    /** Offset of the children ids in a record **/
+    private static final int CHILDREN_OFFSET = 4 + 6 * 4;
+    /** Offset of the depth in a record **/
+    private static final int DEPTH_OFFSET = CHILDREN_OFFSET + 8 * 4;
+
+    /** Minimum time between two release passes, in ms **/
+    private static final long RELEASE_INTERVAL_MS = 2000;
+    /** Time an octant must go unobserved before its children are released, in ms **/
+    private static final long RELEASE_TIME_MS = 10000;
+
+    /** The metadata file **/
+    private final ByteBuffer mem;
+    /** Page ids of the records, sorted **/
+    private final long[] pageIds;
+    /** Record number of each page id **/
+    private final int[] records;
+    /** Octants down to this depth are created at startup **/
+    private final int pagedDepth;
+    /** Initial status of the created octants **/
+    private final LoadStatus status;
+    /** Number of records **/
+    private final int size;
+    /** Record number of the root **/
+    private int rootRecord = -1;
+    /** Max depth of the octree **/
+    private int maxDepth;
+
+    /** Octants whose children have been created on demand **/
+    private List<OctreeNode> resolved;
+    private long lastReleaseMs;
+
+    /**
+     * Creates a pager for the given metadata file.
+     *
+     * @param mem        The contents of the metadata file
+     * @param pagedDepth The depth down to which the octants are created at startup
+     * @param status     The initial status of the octants, or null
+     */
+    public MetadataPager(ByteBuffer mem, int pagedDepth, LoadStatus status) {
+        this.mem = mem;
+        this.pagedDepth = Math.max(0, pagedDepth);
+        this.status = status;
+        this.size = mem.getInt(0);
+        this.resolved = new ArrayList<>();
+
+        // Index page ids
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            int offset = offset(i);
+            int depth = mem.getInt(offset + DEPTH_OFFSET);
+            keys[i] = ((long) mem.getInt(offset) << 32) | i;
+            if (depth == 0)
+                rootRecord = i;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+        Arrays.sort(keys);
+        this.pageIds = new long[size];
+        this.records = new int[size];
+        for (int i = 0; i < size; i++) {
+            pageIds[i] = keys[i] >> 32;
+            records[i] = (int) keys[i];
+        }
+    }
+
+    private static int offset(int record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    /**
+     * Number of octants in the metadata
+     *
+     * @return The number of octants
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Creates the root octant and its descendants down to the paged depth
+     *
+     * @return The root, or null if there is no root in the metadata
+     */
+    public OctreeNode root() {
+        return rootRecord >= 0 ? node(rootRecord) : null;
+    }
+
+    /**
+     * Creates the children of the given octant, if they are not there yet. This is called
+     * from the octree traversal, possibly concurrently for different octants.
+     *
+     * @param octant The octant
+     */
+    public void resolveChildren(OctreeNode octant) {
+        if (octant.childrenPaged) {
+            createChildren(octant, record(octant.pageId));
+            for (int i = 0; i < 8; i++) {
+                OctreeNode child = octant.children[i];
+                if (child != null) {
+                    // At runtime, the counts are of loaded objects
+                    child.nObjects = 0;
+                    child.ownObjects = 0;
+                }
+            }
+            octant.childrenPaged = false;
+            synchronized (this) {
+                resolved.add(octant);
+            }
+        }
+    }
+
+    /**
+     * Releases the children of the octants created on demand which have not been
+     * observed for a while and have no data loaded in their subtree. Must be called
+     * from the main thread, after the traversal.
+     */
+    public synchronized void release() {
+        long now = TimeUtils.millis();
+        if (now - lastReleaseMs < RELEASE_INTERVAL_MS || resolved.isEmpty())
+            return;
+        lastReleaseMs = now;
+
+        // Deepest first, so that subtrees are released bottom-up
+        resolved.sort((a, b) -> Integer.compare(b.depth, a.depth));
+        List<OctreeNode> kept = new ArrayList<>(resolved.size());
+        for (OctreeNode octant : resolved) {
+            if (now - octant.observedTime > RELEASE_TIME_MS && !isLoaded(octant)) {
+                for (int i = 0; i < 8; i++) {
+                    OctreeNode child = octant.children[i];
+                    if (child != null) {
+                        child.parent = null;
+                        octant.children[i] = null;
+                    }
+                }
+                octant.childrenPaged = true;
+            } else {
+                kept.add(octant);
+            }
+        }
+        resolved = kept;
+    }
+
+    /**
+     * Whether any descendant of the given octant is not in the {@link LoadStatus#NOT_LOADED} status, or still
+     * holds objects. Unloaded octants keep an empty object list, which does not count
+     */
+    private boolean isLoaded(OctreeNode octant) {
+        for (int i = 0; i < 8; i++) {
+            OctreeNode child = octant.children[i];
+            if (child != null && (child.getStatus() != LoadStatus.NOT_LOADED || (child.objects != null && !child.objects.isEmpty()) || isLoaded(child)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the record number of the given page id
+     */
+    private int record(long pageId) {
+        int idx = Arrays.binarySearch(pageIds, pageId);
+        if (idx < 0) {
+            throw new RuntimeException("OctreeNode with page ID " + pageId + " not found in metadata");
+        }
+        return records[idx];
+    }
+
+    /**
+     * Creates the octant in the given record and, if it is above the paged depth, its children
+     */
+    private OctreeNode node(int record) {
+        int offset = offset(record);
+        long pageId = mem.getInt(offset);
+        float x = (float) (mem.getFloat(offset + 4) * Constants.DISTANCE_SCALE_FACTOR);
+        float y = (float) (mem.getFloat(offset + 8) * Constants.DISTANCE_SCALE_FACTOR);
+        float z = (float) (mem.getFloat(offset + 12) * Constants.DISTANCE_SCALE_FACTOR);
+        float hs = (float) ((mem.getFloat(offset + 16) / 2f) * Constants.DISTANCE_SCALE_FACTOR);
+        int depth = mem.getInt(offset + DEPTH_OFFSET);
+        int nObjects = mem.getInt(offset + DEPTH_OFFSET + 4);
+        int ownObjects = mem.getInt(offset + DEPTH_OFFSET + 8);
+        int childrenCount = mem.getInt(offset + DEPTH_OFFSET + 12);
+
+        OctreeNode node = new OctreeNode(pageId, x, y, z, hs, hs, hs, childrenCount, nObjects, ownObjects, depth);
+        node.pager = this;
+        if (status != null)
+            node.setStatus(status);
+
+        if (depth < pagedDepth) {
+            createChildren(node, record);
+        } else {
+            node.childrenPaged = hasChildren(offset);
+        }
+        return node;
+    }
+
+    private boolean hasChildren(int offset) {
+        for (int i = 0; i < 8; i++) {
+            if (mem.getInt(offset + CHILDREN_OFFSET + i * 4) != -1)
+                return true;
+        }
+        return false;
+    }
+
+    private void createChildren(OctreeNode octant, int record) {
+        int offset = offset(record);
+        for (int i = 0; i < 8; i++) {
+            long childId = mem.getInt(offset + CHILDREN_OFFSET + i * 4);
+            if (childId != -1) {
+                OctreeNode child = node(record(childId));
+                child.parent = octant;
+                octant.children[i] = child;
+            }
+        }
+    }
+}
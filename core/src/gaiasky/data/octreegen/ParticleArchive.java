@@ -0,0 +1,300 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.data.octreegen;
+
+import com.badlogic.gdx.utils.LongMap;
+import gaiasky.scenegraph.SceneGraphNode;
+import gaiasky.util.tree.OctreeNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Packs the particle files of all the octants of an octree into a single file.
+ * The archive starts with a page index (see {@link MetadataBinaryIO#writeArchiveIndex(long[], long[], int[], java.io.DataOutput)})
+ * which maps each page id to the offset and length of its particle data. The particle data
+ * of each octant is exactly the content of its particles_NNNNNN.bin file in the multi-file layout.
+ * <p>
+ * The archive is memory mapped once, and the data of each octant is returned as a slice of the mapping.
+ * Since a single mapping can't go over 2 GB, the archive is mapped in segments, and
+ * octants never span two segments.
+ *
+ * @author tsagrista
+ */
+public class ParticleArchive {
+    /** Maximum size of a mapped segment **/
+    private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    /** Page ids, sorted **/
+    private long[] pageIds;
+    /** Segment of each page **/
+    private int[] segments;
+    /** Offset of each page within its segment **/
+    private int[] offsets;
+    /** Length of each page **/
+    private int[] lengths;
+    /** The mapped segments **/
+    private MappedByteBuffer[] mapped;
+
+    private ParticleArchive() {
+    }
+
+    /**
+     * Opens and maps the given archive file.
+     *
+     * @param file The archive file
+     * @return The archive
+     * @throws IOException
+     */
+    public static ParticleArchive open(String file) throws IOException {
+        ParticleArchive archive = new ParticleArchive();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel fc = raf.getChannel()) {
+            // Index
+            int nPages = fc.map(FileChannel.MapMode.READ_ONLY, 0, 4).getInt();
+            long[][] index = new MetadataBinaryIO().readArchiveIndex(fc.map(FileChannel.MapMode.READ_ONLY, 0, MetadataBinaryIO.archiveIndexSize(nPages)));
+            long[] pageIds = index[0];
+            long[] offsets = index[1];
+            long[] lengths = index[2];
+
+            // Pages in file order, to compute the segments
+            Integer[] order = new Integer[nPages];
+            for (int i = 0; i < nPages; i++)
+                order[i] = i;
+            Arrays.sort(order, Comparator.comparingLong(i -> offsets[i]));
+
+            archive.pageIds = pageIds;
+            archive.segments = new int[nPages];
+            archive.offsets = new int[nPages];
+            archive.lengths = new int[nPages];
+            List<MappedByteBuffer> mapped = new ArrayList<>();
+            long segmentStart = -1, segmentEnd = -1;
+            for (int i : order) {
+                if (segmentStart < 0 || offsets[i] + lengths[i] - segmentStart > MAX_SEGMENT_SIZE) {
+                    // Close current segment and start a new one
+                    if (segmentStart >= 0)
+                        mapped.add(fc.map(FileChannel.MapMode.READ_ONLY, segmentStart, segmentEnd - segmentStart));
+                    segmentStart = offsets[i];
+                }
+                segmentEnd = Math.max(segmentEnd, offsets[i] + lengths[i]);
+                archive.segments[i] = mapped.size();
+                archive.offsets[i] = (int) (offsets[i] - segmentStart);
+                archive.lengths[i] = (int) lengths[i];
+            }
+            if (segmentStart >= 0)
+                mapped.add(fc.map(FileChannel.MapMode.READ_ONLY, segmentStart, segmentEnd - segmentStart));
+            archive.mapped = mapped.toArray(new MappedByteBuffer[0]);
+        }
+        return archive;
+    }
+
+    /**
+     * Checks whether the given file is an archive. Archives are regular files, while
+     * the multi-file layout uses a directory.
+     *
+     * @param file The file
+     * @return Whether the file is an archive
+     */
+    public static boolean isArchive(File file) {
+        return file.exists() && file.isFile();
+    }
+
+    /**
+     * Gets the particle data of the given page. This is thread safe, every call
+     * returns a new buffer.
+     *
+     * @param pageId The page id
+     * @return A buffer with the particle data of the page, or null if the page is not in the archive
+     */
+    public ByteBuffer slice(long pageId) {
+        int i = Arrays.binarySearch(pageIds, pageId);
+        if (i < 0)
+            return null;
+        ByteBuffer buffer = mapped[segments[i]].duplicate();
+        buffer.position(offsets[i]);
+        buffer.limit(offsets[i] + lengths[i]);
+        return buffer.slice();
+    }
+
+    /**
+     * Checks whether the archive contains the given page
+     *
+     * @param pageId The page id
+     * @return Whether the page is in the archive
+     */
+    public boolean contains(long pageId) {
+        return Arrays.binarySearch(pageIds, pageId) >= 0;
+    }
+
+    public int size() {
+        return pageIds.length;
+    }
+
+    /**
+     * Provides the objects of an octant to write to an archive
+     */
+    public interface OctantSource {
+        /**
+         * Gets the objects of the given octant
+         *
+         * @param octant The octant
+         * @return The objects of the octant
+         * @throws IOException If the objects can't be read
+         */
+        List<SceneGraphNode> objects(OctreeNode octant) throws IOException;
+    }
+
+    /**
+     * Writes the particles of all the octants with objects of the given octree to
+     * a single archive file.
+     *
+     * @param root           The root of the octree
+     * @param particleWriter The particle writer
+     * @param file           The output archive file
+     * @param compat         Use compatibility mode (DR1/DR2)
+     * @return The number of octants written
+     * @throws IOException
+     */
+    public static int write(OctreeNode root, IStarGroupIO particleWriter, File file, boolean compat) throws IOException {
+        return write(root, octant -> octant.objects, particleWriter, file, compat);
+    }
+
+    /**
+     * Writes the particles of all the octants with objects of the given octree to
+     * a single archive file, getting the objects of each octant from the given source. This
+     * way the objects of only one octant need to be in memory at a time.
+     *
+     * @param root           The root of the octree
+     * @param source         The source of the objects of each octant
+     * @param particleWriter The particle writer
+     * @param file           The output archive file
+     * @param compat         Use compatibility mode (DR1/DR2)
+     * @return The number of octants written
+     * @throws IOException
+     */
+    public static int write(OctreeNode root, OctantSource source, IStarGroupIO particleWriter, File file, boolean compat) throws IOException {
+        return write(root, source, particleWriter, file, compat, 1);
+    }
+
+    /**
+     * Writes the particles of all the octants with objects of the given octree to
+     * a single archive file, encoding the particles of the octants with the given number
+     * of threads (see {@link ParticleEncoder}). The output does not depend on the number
+     * of threads.
+     *
+     * @param root           The root of the octree
+     * @param source         The source of the objects of each octant
+     * @param particleWriter The particle writer
+     * @param file           The output archive file
+     * @param compat         Use compatibility mode (DR1/DR2)
+     * @param nThreads       The number of encoding threads
+     * @return The number of octants written
+     * @throws IOException
+     */
+    public static int write(OctreeNode root, OctantSource source, IStarGroupIO particleWriter, File file, boolean compat, int nThreads) throws IOException {
+        MetadataBinaryIO metadataIO = new MetadataBinaryIO();
+        List<OctreeNode> nodes = new ArrayList<>();
+        metadataIO.toList(root, nodes);
+        nodes.removeIf(node -> node.ownObjects <= 0);
+        nodes.sort(Comparator.comparingLong(node -> node.pageId));
+
+        int nPages = nodes.size();
+        long[] pageIds = new long[nPages];
+        long[] offsets = new long[nPages];
+        int[] lengths = new int[nPages];
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            // Leave room for the index
+            raf.seek(MetadataBinaryIO.archiveIndexSize(nPages));
+
+            int[] i = new int[1];
+            new ParticleEncoder(particleWriter, compat, nThreads).encode(nodes, source, (node, bytes) -> {
+                pageIds[i[0]] = node.pageId;
+                offsets[i[0]] = raf.getFilePointer();
+                lengths[i[0]] = bytes.length;
+                raf.write(bytes);
+                i[0]++;
+            });
+
+            // Write index
+            raf.seek(0);
+            metadataIO.writeArchiveIndex(pageIds, offsets, lengths, raf);
+        }
+        return nPages;
+    }
+
+    /**
+     * Updates some pages of an existing archive in place. The particle data of the new and changed
+     * pages is appended at the end of the archive, and the index is rewritten. If the index grows, the pages
+     * in its way are moved to the end as well. The space taken by the replaced data is not reclaimed.
+     *
+     * @param file    The archive file
+     * @param pages   The particle data of the new and changed pages, by page id
+     * @param removed The page ids of the pages to remove
+     * @throws IOException
+     */
+    public static void update(File file, LongMap<byte[]> pages, Collection<Long> removed) throws IOException {
+        MetadataBinaryIO metadataIO = new MetadataBinaryIO();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            byte[] indexBytes = new byte[(int) MetadataBinaryIO.archiveIndexSize(raf.readInt())];
+            raf.seek(0);
+            raf.readFully(indexBytes);
+            long[][] index = metadataIO.readArchiveIndex(ByteBuffer.wrap(indexBytes));
+            int nPages = index[0].length;
+
+            // Pages which stay where they are, by page id
+            LongMap<long[]> entries = new LongMap<>();
+            Set<Long> removedSet = new HashSet<>(removed);
+            for (int i = 0; i < nPages; i++) {
+                long pageId = index[0][i];
+                if (!pages.containsKey(pageId) && !removedSet.contains(pageId))
+                    entries.put(pageId, new long[] { index[1][i], index[2][i] });
+            }
+            long[] pageIds = new long[entries.size + pages.size];
+            int n = 0;
+            for (LongMap.Entry<long[]> entry : entries.entries())
+                pageIds[n++] = entry.key;
+            for (LongMap.Entry<byte[]> entry : pages.entries())
+                pageIds[n++] = entry.key;
+            Arrays.sort(pageIds);
+
+            long indexSize = MetadataBinaryIO.archiveIndexSize(pageIds.length);
+            long end = Math.max(raf.length(), indexSize);
+            long[] offsets = new long[pageIds.length];
+            int[] lengths = new int[pageIds.length];
+            for (int i = 0; i < pageIds.length; i++) {
+                long[] entry = entries.get(pageIds[i]);
+                byte[] bytes;
+                if (entry == null) {
+                    bytes = pages.get(pageIds[i]);
+                } else if (entry[0] < indexSize) {
+                    // In the way of the new index
+                    bytes = new byte[(int) entry[1]];
+                    raf.seek(entry[0]);
+                    raf.readFully(bytes);
+                } else {
+                    offsets[i] = entry[0];
+                    lengths[i] = (int) entry[1];
+                    continue;
+                }
+                raf.seek(end);
+                raf.write(bytes);
+                offsets[i] = end;
+                lengths[i] = bytes.length;
+                end += bytes.length;
+            }
+
+            // Write index
+            raf.seek(0);
+            metadataIO.writeArchiveIndex(pageIds, offsets, lengths, raf);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.data.octreegen;
+
+import gaiasky.data.octreegen.ParticleArchive.OctantSource;
+import gaiasky.scenegraph.SceneGraphNode;
+import gaiasky.util.tree.OctreeNode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Encodes the particles of a list of octants with a bounded pool of threads. The objects of the
+ * octants are fetched from the source and the encoded particles are handed to the sink in the calling
+ * thread, in the order of the list, so that neither the source nor the sink need to be thread-safe.
+ * At most two octants per thread are in flight at a time, which bounds the memory used.
+ *
+ * @author tsagrista
+ */
+public class ParticleEncoder {
+
+    /**
+     * Receives the encoded particles of an octant
+     */
+    public interface OctantSink {
+        /**
+         * Called with the encoded particles of each octant, in order
+         *
+         * @param octant The octant
+         * @param bytes  The encoded particles
+         * @throws IOException
+         */
+        void write(OctreeNode octant, byte[] bytes) throws IOException;
+    }
+
+    private final IStarGroupIO particleWriter;
+    private final boolean compat;
+    private final int nThreads;
+
+    /**
+     * Creates a new encoder
+     *
+     * @param particleWriter The particle writer. Must be thread-safe if more than one thread is used
+     * @param compat         Use compatibility mode (DR1/DR2)
+     * @param nThreads       The number of threads. With one thread, octants are encoded in the calling thread
+     */
+    public ParticleEncoder(IStarGroupIO particleWriter, boolean compat, int nThreads) {
+        this.particleWriter = particleWriter;
+        this.compat = compat;
+        this.nThreads = Math.max(1, nThreads);
+    }
+
+    /**
+     * Encodes the particles of the given octants
+     *
+     * @param octants The octants
+     * @param source  The source of the objects of each octant
+     * @param sink    The sink of the encoded particles
+     * @throws IOException
+     */
+    public void encode(List<OctreeNode> octants, OctantSource source, OctantSink sink) throws IOException {
+        if (nThreads == 1) {
+            for (OctreeNode octant : octants) {
+                sink.write(octant, encode(source.objects(octant)));
+            }
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        try {
+            Deque<Future<byte[]>> pending = new ArrayDeque<>();
+            int next = 0;
+            for (OctreeNode octant : octants) {
+                List<SceneGraphNode> objects = source.objects(octant);
+                pending.add(pool.submit(() -> encode(objects)));
+                // Hand over finished octants, and wait if too many are in flight
+                while (!pending.isEmpty() && (pending.size() >= 2 * nThreads || pending.peek().isDone())) {
+                    sink.write(octants.get(next++), get(pending.poll()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                sink.write(octants.get(next++), get(pending.poll()));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private byte[] encode(List<SceneGraphNode> objects) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        particleWriter.writeParticles(objects, bytes, compat);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] get(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+}
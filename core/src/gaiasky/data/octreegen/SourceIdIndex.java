@@ -0,0 +1,227 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.data.octreegen;
+
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.LongArray;
+import gaiasky.scenegraph.ParticleGroup.ParticleBean;
+import gaiasky.scenegraph.StarGroup.StarBean;
+import gaiasky.util.Logger;
+import gaiasky.util.Logger.Log;
+import gaiasky.util.ds.LongIntMap;
+import gaiasky.util.ds.SortedLongIntIndex;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Maps the source ids of the stars of an octree to the page ids of their octants, so that
+ * single stars can be found without reading the particles of all octants. The index is made up of a base
+ * file ({@link #FILE}), with the records sorted by source id, and a small overlay file ({@link #OVERLAY_FILE})
+ * with the changes since the base file was written. Lookups go to the overlay first. When the overlay grows
+ * too large, it is merged into the base file (see {@link #write()}).
+ * <p>
+ * Both files are {@link SortedLongIntIndex} files, with this format:
+ * <ul>
+ *     <li>64 bits (long) - The number of records, and for each record:</li>
+ *     <li>64 bits (long) - The source id</li>
+ *     <li>32 bits (int) - The page id of the octant, or {@link #NONE} if the star was removed (overlay only)</li>
+ * </ul>
+ *
+ * @author tsagrista
+ */
+public class SourceIdIndex {
+    private static final Log logger = Logger.getLogger(SourceIdIndex.class);
+
+    /** Name of the base file **/
+    public static final String FILE = "sourceids.bin";
+    /** Name of the overlay file **/
+    public static final String OVERLAY_FILE = "sourceids.delta.bin";
+    /** Page id of removed stars and of stars which are not in the index **/
+    public static final long NONE = -1;
+
+    /** The overlay is merged into the base file when it has more than this fraction of its records **/
+    private static final double COMPACT_FRACTION = 0.1;
+    /** Value of the ids which are not in the overlay **/
+    private static final int MISSING = Integer.MIN_VALUE;
+
+    private final File folder;
+    /** The base file **/
+    private SortedLongIntIndex base;
+    /** Changes since the base file was written **/
+    private final LongIntMap overlay;
+
+    private SourceIdIndex(File folder) {
+        this.folder = folder;
+        this.overlay = new LongIntMap();
+    }
+
+    /**
+     * Checks whether there is an index in the given folder
+     *
+     * @param folder The dataset folder
+     * @return Whether the base file exists
+     */
+    public static boolean exists(File folder) {
+        return new File(folder, FILE).isFile();
+    }
+
+    /**
+     * Opens the index in the given folder
+     *
+     * @param folder The dataset folder, with the base file and, optionally, the overlay file
+     * @return The index
+     * @throws IOException If the files can't be read
+     */
+    public static SourceIdIndex open(File folder) throws IOException {
+        SourceIdIndex index = new SourceIdIndex(folder);
+        index.base = SortedLongIntIndex.open(new File(folder, FILE));
+        File overlayFile = new File(folder, OVERLAY_FILE);
+        if (overlayFile.isFile()) {
+            SortedLongIntIndex.open(overlayFile).load().forEach(index.overlay::put);
+        }
+        return index;
+    }
+
+    /**
+     * Gets the page id of the octant of the star with the given source id
+     *
+     * @param id The source id
+     * @return The page id, or {@link #NONE} if the star is not in the index
+     */
+    public long get(long id) {
+        int pageId = overlay.get(id, MISSING);
+        if (pageId != MISSING)
+            return pageId;
+        return base.get(id, (int) NONE);
+    }
+
+    /**
+     * Sets the octant of the star with the given source id
+     *
+     * @param id     The source id
+     * @param pageId The page id of the octant
+     */
+    public void put(long id, long pageId) {
+        overlay.put(id, (int) pageId);
+    }
+
+    /**
+     * Removes the star with the given source id
+     *
+     * @param id The source id
+     */
+    public void remove(long id) {
+        overlay.put(id, (int) NONE);
+    }
+
+    /**
+     * Writes the changes to the overlay file or, if there are many, merges them into
+     * the base file
+     *
+     * @throws IOException If the files can't be written
+     */
+    public void write() throws IOException {
+        File overlayFile = new File(folder, OVERLAY_FILE);
+        int n = (int) overlay.size();
+        long[] ids = new long[n];
+        int[] pageIds = new int[n];
+        int[] k = new int[1];
+        overlay.forEach((id, pageId) -> {
+            ids[k[0]] = id;
+            pageIds[k[0]++] = pageId;
+        });
+        long size = base.size();
+
+        if (n > size * COMPACT_FRACTION) {
+            logger.info("Merging " + n + " changes into source id index with " + size + " records");
+            SortedLongIntIndex.sort(ids, pageIds, n);
+            // Merge the sorted changes with the base records
+            File tmp = new File(folder, FILE + ".tmp");
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                raf.setLength(0);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(raf.getFD())));
+                out.writeLong(0);
+                long records = 0;
+                int j = 0;
+                for (long i = 0; i < size; i++) {
+                    long id = base.key(i);
+                    // Changes before this record
+                    while (j < n && ids[j] < id) {
+                        records += writeRecord(out, ids[j], pageIds[j]);
+                        j++;
+                    }
+                    if (j < n && ids[j] == id) {
+                        // Changed, skip all base records with this id
+                        continue;
+                    }
+                    out.writeLong(id);
+                    out.writeInt(base.value(i));
+                    records++;
+                }
+                while (j < n) {
+                    records += writeRecord(out, ids[j], pageIds[j]);
+                    j++;
+                }
+                out.flush();
+                raf.seek(0);
+                raf.writeLong(records);
+            }
+            Files.move(tmp.toPath(), new File(folder, FILE).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(overlayFile.toPath());
+            overlay.clear();
+            base = SortedLongIntIndex.open(new File(folder, FILE));
+        } else {
+            SortedLongIntIndex.write(overlayFile, ids, pageIds, n);
+        }
+    }
+
+    private static int writeRecord(DataOutputStream out, long id, long pageId) throws IOException {
+        if (pageId == NONE)
+            return 0;
+        out.writeLong(id);
+        out.writeInt((int) pageId);
+        return 1;
+    }
+
+    /**
+     * Builds the base file of an index from the stars of the octants of an octree
+     */
+    public static class Builder {
+        private final LongArray ids = new LongArray();
+        private final IntArray pageIds = new IntArray();
+
+        /**
+         * Adds the stars of the given octant
+         *
+         * @param pageId The page id of the octant
+         * @param stars  The stars of the octant
+         */
+        public void add(long pageId, List<? extends ParticleBean> stars) {
+            for (ParticleBean pb : stars) {
+                Long id = ((StarBean) pb).id;
+                if (id != null) {
+                    ids.add(id);
+                    pageIds.add((int) pageId);
+                }
+            }
+        }
+
+        /**
+         * Writes the base file to the given folder, and removes the overlay file, if any
+         *
+         * @param folder The dataset folder
+         * @throws IOException If the file can't be written
+         */
+        public void write(File folder) throws IOException {
+            SortedLongIntIndex.write(new File(folder, FILE), ids.items, pageIds.items, ids.size);
+            Files.deleteIfExists(new File(folder, OVERLAY_FILE).toPath());
+            logger.info("Source id index written with " + ids.size + " records: " + new File(folder, FILE).getAbsolutePath());
+        }
+    }
+}
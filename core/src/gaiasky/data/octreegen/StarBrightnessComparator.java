@@ -10,14 +10,13 @@ import gaiasky.scenegraph.StarGroup.StarBean;
 
 import java.util.Comparator;
 
+/**
+ * Compares stars by absolute magnitude. It is stateless, so it can be used in parallel sorts.
+ */
 public class StarBrightnessComparator implements Comparator<ParticleBean> {
-    private ParticleBean o1;
-    private ParticleBean o2;
 
     @Override
     public int compare(ParticleBean o1, ParticleBean o2) {
-        this.o1 = o1;
-        this.o2 = o2;
         return Double.compare(((StarBean) o1).absmag(), ((StarBean) o2).absmag());
     }
 
@@ -23,9 +23,22 @@ import java.util.List;
 public class StarGroupBinaryIO implements IStarGroupIO {
 
     BinaryDataProvider provider;
+    /** Write version 3 of the binary format **/
+    private final boolean version3;
 
     public StarGroupBinaryIO() {
+        this(false);
+    }
+
+    /**
+     * Creates a new binary star group IO
+     *
+     * @param version3 Whether to write version 3 of the format, with columns and a name table. The
+     *                 compatibility flag is ignored when writing it. All versions are read
+     */
+    public StarGroupBinaryIO(boolean version3) {
         provider = new BinaryDataProvider();
+        this.version3 = version3;
     }
 
     /**
@@ -42,7 +55,10 @@ public class StarGroupBinaryIO implements IStarGroupIO {
     public void writeParticles(List<SceneGraphNode> list, OutputStream out, boolean compat) {
         if (list.size() > 0) {
             StarGroup sg = (StarGroup) list.get(0);
-            provider.writeData(sg.data(), out, compat);
+            if (version3)
+                provider.writeDataV3(sg.data(), out);
+            else
+                provider.writeData(sg.data(), out, compat);
         }
     }
 
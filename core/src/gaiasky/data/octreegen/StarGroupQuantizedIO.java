@@ -0,0 +1,492 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.data.octreegen;
+
+import com.badlogic.gdx.utils.NumberUtils;
+import gaiasky.scenegraph.ParticleGroup.ParticleBean;
+import gaiasky.scenegraph.SceneGraphNode;
+import gaiasky.scenegraph.StarColumns;
+import gaiasky.scenegraph.StarGroup;
+import gaiasky.scenegraph.StarGroup.StarBean;
+import gaiasky.util.Constants;
+import gaiasky.util.Logger;
+import gaiasky.util.Logger.Log;
+import gaiasky.util.tree.OctreeNode;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Loads and writes star groups in a compact, quantized format. Compared to the
+ * binary format of {@link StarGroupBinaryIO}:
+ * <ul>
+ *     <li>Positions are stored as 32-bit integers relative to the centre and half-size
+ *     of the octant, which are already in the metadata.</li>
+ *     <li>Proper motions, the astrometric values and sizes are stored as floats.</li>
+ *     <li>Magnitudes are stored as 16-bit fixed point values (1 mmag resolution), and colours
+ *     as 16-bit RGB565.</li>
+ *     <li>Stars are kept in the given order, which for octrees is the Morton order of the generators. Ids are
+ *     delta-encoded as zig-zag variable-length integers (version 1 sorted the stars by id).</li>
+ *     <li>Names go in a string block without duplicates. Names equal to the id are not stored.</li>
+ * </ul>
+ * The stars are grouped in blocks of up to {@link #BLOCK_SIZE} stars. Each block is
+ * compressed separately and is self-contained, so that blocks can be decompressed independently.
+ * Inside a block the data is laid out in columns, which compresses better and
+ * can be decoded straight into {@link StarColumns}.
+ * <p>
+ * Files start with {@link #MAGIC}, so they can be told apart from binary files, which start with the
+ * number of stars. If the star group being written has no octant, the bounding box of the stars is
+ * stored in the header instead.
+ *
+ * @author tsagrista
+ */
+public class StarGroupQuantizedIO implements IStarGroupIO {
+    private static final Log logger = Logger.getLogger(StarGroupQuantizedIO.class);
+
+    /** Magic number at the start of quantized files, 'GSQP' **/
+    public static final int MAGIC = 0x47535150;
+    /** Version of the format **/
+    public static final int VERSION = 2;
+    /** Maximum number of stars per block **/
+    public static final int BLOCK_SIZE = 8192;
+
+    /** The quantization box is in the header, not in the metadata **/
+    private static final byte FLAG_BOX = 1;
+    /** Positions are in [-2, 2] half-sizes, with 30 bits of fraction **/
+    private static final double POSITION_SCALE = 1 << 30;
+    private static final double MAX_POSITION = 1.99;
+    /** Magnitudes in units of 1 mmag **/
+    private static final double MAG_SCALE = 1000d;
+    private static final short MAG_NAN = Short.MIN_VALUE;
+    /** Name references: no name, name equal to the id, and first entry of the string block **/
+    private static final int NAME_NONE = 0;
+    private static final int NAME_ID = 1;
+    private static final int NAME_BLOCK = 2;
+
+    /**
+     * Checks whether the given buffer contains quantized particles.
+     * This does not change the position of the buffer.
+     *
+     * @param buffer The buffer
+     * @return Whether the buffer starts with the quantized format header
+     */
+    public static boolean isQuantized(ByteBuffer buffer) {
+        return buffer.remaining() >= 4 && buffer.getInt(buffer.position()) == MAGIC;
+    }
+
+    /**
+     * Writes the list to the output stream. The list must contain a single star
+     * group.
+     *
+     * @param list The list with the star group to write
+     * @param out  The output stream to write to
+     */
+    public void writeParticles(List<SceneGraphNode> list, OutputStream out) {
+        writeParticles(list, out, true);
+    }
+
+    /**
+     * Writes the list to the output stream. The list must contain a single star
+     * group. The compatibility flag is ignored, as this format does not store tycho ids.
+     */
+    public void writeParticles(List<SceneGraphNode> list, OutputStream out, boolean compat) {
+        if (list.size() > 0) {
+            StarGroup sg = (StarGroup) list.get(0);
+            try (DataOutputStream dos = new DataOutputStream(out)) {
+                writeData(sg.data(), sg.octant, dos);
+            } catch (IOException e) {
+                logger.error(e);
+            }
+        }
+    }
+
+    /**
+     * Writes the given stars.
+     *
+     * @param stars  The stars
+     * @param octant The octant the stars belong to, whose centre and half-size are used to quantize
+     *               the positions. If null, or if some star is too far out of the octant, the bounding box
+     *               of the stars is used and written to the header
+     * @param out    The output
+     * @throws IOException If the output fails
+     */
+    public void writeData(List<? extends ParticleBean> stars, OctreeNode octant, DataOutputStream out) throws IOException {
+        // Copy views which create the beans on demand
+        final List<? extends ParticleBean> data = stars instanceof RandomAccess ? stars : new ArrayList<>(stars);
+        int n = data.size();
+        double[] box = octant != null ? octantBox(octant) : null;
+        // The root box of a generated octree does not always contain all stars
+        boolean headerBox = box == null || !fits(data, box);
+        if (headerBox)
+            box = boundingBox(data);
+
+        // Encode and compress blocks
+        int nBlocks = (n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        List<byte[]> blocks = new ArrayList<>(nBlocks);
+        int[] rawLengths = new int[nBlocks];
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            for (int block = 0; block < nBlocks; block++) {
+                int from = block * BLOCK_SIZE;
+                int to = Math.min(n, from + BLOCK_SIZE);
+                raw.reset();
+                encodeBlock(data, from, to, box, new DataOutputStream(raw));
+                rawLengths[block] = raw.size();
+                blocks.add(compress(raw.toByteArray(), deflater));
+            }
+        } finally {
+            deflater.end();
+        }
+
+        // Header
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(n);
+        out.writeByte(headerBox ? FLAG_BOX : 0);
+        if (headerBox) {
+            for (double value : box)
+                out.writeFloat((float) value);
+        }
+        out.writeInt(nBlocks);
+        for (int block = 0; block < nBlocks; block++) {
+            out.writeInt(Math.min(BLOCK_SIZE, n - block * BLOCK_SIZE));
+            out.writeInt(rawLengths[block]);
+            out.writeInt(blocks.get(block).length);
+        }
+        // Blocks
+        for (byte[] block : blocks)
+            out.write(block);
+    }
+
+    private void encodeBlock(List<? extends ParticleBean> data, int from, int to, double[] box, DataOutputStream out) throws IOException {
+        // Positions
+        for (int coord = 0; coord < 3; coord++) {
+            for (int i = from; i < to; i++) {
+                double t = (data.get(i).data[coord] - box[coord]) / box[coord + 3];
+                out.writeInt((int) Math.round(Math.max(-MAX_POSITION, Math.min(MAX_POSITION, t)) * POSITION_SCALE));
+            }
+        }
+        // Proper motions and astrometric values
+        for (int field = StarBean.I_PMX; field <= StarBean.I_RADVEL; field++) {
+            for (int i = from; i < to; i++)
+                out.writeFloat((float) data.get(i).data[field]);
+        }
+        // Magnitudes
+        for (int field = StarBean.I_APPMAG; field <= StarBean.I_ABSMAG; field++) {
+            for (int i = from; i < to; i++)
+                out.writeShort(encodeMag(data.get(i).data[field]));
+        }
+        // Colours
+        for (int i = from; i < to; i++)
+            out.writeShort(encodeColor(data.get(i).data[StarBean.I_COL]));
+        // Sizes
+        for (int i = from; i < to; i++)
+            out.writeFloat((float) data.get(i).data[StarBean.I_SIZE]);
+        // Hip numbers, zig-zag encoded
+        for (int i = from; i < to; i++) {
+            long hip = (long) data.get(i).data[StarBean.I_HIP];
+            writeVarLong(out, (hip << 1) ^ (hip >> 63));
+        }
+        // Ids, delta-encoded and zig-zag encoded
+        long previous = id(data.get(from));
+        out.writeLong(previous);
+        for (int i = from + 1; i < to; i++) {
+            long id = id(data.get(i));
+            long delta = id - previous;
+            writeVarLong(out, (delta << 1) ^ (delta >> 63));
+            previous = id;
+        }
+        // Names
+        Map<String, Integer> block = new LinkedHashMap<>();
+        int[] refs = new int[to - from];
+        for (int i = from; i < to; i++) {
+            ParticleBean pb = data.get(i);
+            String names = pb.names != null ? String.join(Constants.nameSeparator, pb.names) : "";
+            if (names.isEmpty())
+                refs[i - from] = NAME_NONE;
+            else if (names.equals(Long.toString(id(pb))))
+                refs[i - from] = NAME_ID;
+            else
+                refs[i - from] = NAME_BLOCK + block.computeIfAbsent(names, k -> block.size());
+        }
+        writeVarLong(out, block.size());
+        for (String names : block.keySet()) {
+            byte[] bytes = names.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(out, bytes.length);
+            out.write(bytes);
+        }
+        for (int ref : refs)
+            writeVarLong(out, ref);
+    }
+
+    /**
+     * Reads a single star group from the given input stream. Only works if the quantization box
+     * is in the header, since the octant is not known.
+     *
+     * @param in The input stream to read the star group from
+     * @return A list with a single star group object
+     */
+    public List<SceneGraphNode> readParticles(InputStream in) {
+        return readParticles(in, true);
+    }
+
+    public List<SceneGraphNode> readParticles(InputStream in, boolean compat) {
+        try {
+            StarColumns columns = readColumns(ByteBuffer.wrap(in.readAllBytes()), null);
+            StarGroup sg = new StarGroup();
+            sg.setColumns(columns, true);
+
+            List<SceneGraphNode> l = new ArrayList<>(1);
+            l.add(sg);
+            return l;
+        } catch (IOException e) {
+            logger.error(e);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the stars in the given buffer into columnar storage.
+     *
+     * @param buffer The buffer, positioned at the start of the header
+     * @param octant The octant of the stars, as read from the metadata. May be null only if the
+     *               quantization box is in the header
+     * @return The star columns, in internal units
+     * @throws IOException If the data is corrupt, or the octant is needed but is null
+     */
+    public StarColumns readColumns(ByteBuffer buffer, OctreeNode octant) throws IOException {
+        if (buffer.getInt() != MAGIC)
+            throw new IOException("Not a quantized particle buffer");
+        int version = buffer.getInt();
+        if (version > VERSION)
+            throw new IOException("Unsupported quantized particle format version: " + version);
+        int n = buffer.getInt();
+        byte flags = buffer.get();
+        double[] box = new double[6];
+        if ((flags & FLAG_BOX) != 0) {
+            for (int i = 0; i < 6; i++)
+                box[i] = buffer.getFloat() * Constants.DISTANCE_SCALE_FACTOR;
+        } else if (octant != null) {
+            box[0] = octant.centre.x;
+            box[1] = octant.centre.y;
+            box[2] = octant.centre.z;
+            box[3] = octant.size.x / 2d;
+            box[4] = octant.size.y / 2d;
+            box[5] = octant.size.z / 2d;
+        } else {
+            throw new IOException("The octant is needed to read quantized particles");
+        }
+
+        int nBlocks = buffer.getInt();
+        int[][] directory = new int[nBlocks][3];
+        for (int block = 0; block < nBlocks; block++) {
+            directory[block][0] = buffer.getInt();
+            directory[block][1] = buffer.getInt();
+            directory[block][2] = buffer.getInt();
+        }
+
+        StarColumns columns = new StarColumns(n);
+        Inflater inflater = new Inflater();
+        try {
+            int offset = 0;
+            for (int[] entry : directory) {
+                byte[] compressed = new byte[entry[2]];
+                buffer.get(compressed);
+                ByteBuffer raw = ByteBuffer.wrap(decompress(compressed, entry[1], inflater));
+                decodeBlock(raw, version, entry[0], offset, box, columns);
+                offset += entry[0];
+            }
+        } finally {
+            inflater.end();
+        }
+        return columns.finish();
+    }
+
+    private void decodeBlock(ByteBuffer in, int version, int n, int offset, double[] box, StarColumns columns) {
+        // Positions
+        for (int coord = 0; coord < 3; coord++) {
+            for (int i = 0; i < n; i++)
+                columns.set(offset + i, coord, box[coord] + (in.getInt() / POSITION_SCALE) * box[coord + 3]);
+        }
+        // Proper motions and astrometric values
+        for (int field = StarBean.I_PMX; field <= StarBean.I_RADVEL; field++) {
+            for (int i = 0; i < n; i++) {
+                double value = in.getFloat();
+                if (field <= StarBean.I_PMZ)
+                    value *= Constants.DISTANCE_SCALE_FACTOR;
+                columns.set(offset + i, field, value);
+            }
+        }
+        // Magnitudes
+        for (int field = StarBean.I_APPMAG; field <= StarBean.I_ABSMAG; field++) {
+            for (int i = 0; i < n; i++)
+                columns.set(offset + i, field, decodeMag(in.getShort()));
+        }
+        // Colours
+        for (int i = 0; i < n; i++)
+            columns.set(offset + i, StarBean.I_COL, decodeColor(in.getShort()));
+        // Sizes
+        for (int i = 0; i < n; i++)
+            columns.set(offset + i, StarBean.I_SIZE, in.getFloat() * Constants.DISTANCE_SCALE_FACTOR);
+        // Hip numbers, zig-zag encoded
+        for (int i = 0; i < n; i++) {
+            long hip = readVarLong(in);
+            columns.set(offset + i, StarBean.I_HIP, (hip >>> 1) ^ -(hip & 1));
+        }
+        // Ids
+        long id = in.getLong();
+        columns.setId(offset, id);
+        for (int i = 1; i < n; i++) {
+            long delta = readVarLong(in);
+            // Version 1 has the stars sorted by id, with positive deltas
+            id += version > 1 ? (delta >>> 1) ^ -(delta & 1) : delta;
+            columns.setId(offset + i, id);
+        }
+        // Names
+        String[] block = new String[(int) readVarLong(in)];
+        for (int j = 0; j < block.length; j++) {
+            int length = (int) readVarLong(in);
+            block[j] = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        }
+        for (int i = 0; i < n; i++) {
+            int ref = (int) readVarLong(in);
+            String names = ref == NAME_NONE ? "" : (ref == NAME_ID ? Long.toString(columns.id(offset + i)) : block[ref - NAME_BLOCK]);
+            columns.addNames(offset + i, names);
+        }
+    }
+
+    /**
+     * Centre and half-size of the octant, rounded exactly as in the metadata file
+     */
+    private static double[] octantBox(OctreeNode octant) {
+        return new double[] { (float) octant.centre.x, (float) octant.centre.y, (float) octant.centre.z, (float) octant.size.x / 2f, (float) octant.size.y / 2f, (float) octant.size.z / 2f };
+    }
+
+    /**
+     * Whether the positions of all the stars can be quantized relative to the given box
+     */
+    private static boolean fits(List<? extends ParticleBean> data, double[] box) {
+        for (ParticleBean pb : data) {
+            for (int coord = 0; coord < 3; coord++) {
+                if (Math.abs((pb.data[coord] - box[coord]) / box[coord + 3]) > MAX_POSITION)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static double[] boundingBox(List<? extends ParticleBean> data) {
+        double[] min = new double[] { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+        double[] max = new double[] { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+        for (ParticleBean pb : data) {
+            for (int coord = 0; coord < 3; coord++) {
+                min[coord] = Math.min(min[coord], pb.data[coord]);
+                max[coord] = Math.max(max[coord], pb.data[coord]);
+            }
+        }
+        double[] box = new double[6];
+        for (int coord = 0; coord < 3; coord++) {
+            box[coord] = (float) ((min[coord] + max[coord]) / 2d);
+            // Must contain the float-rounded centre
+            float hs = (float) ((max[coord] - min[coord]) / 2d);
+            box[coord + 3] = hs > 0 ? hs * 1.001f : 1f;
+        }
+        return box;
+    }
+
+    private static long id(ParticleBean pb) {
+        Long id = ((StarBean) pb).id;
+        return id != null ? id : -1L;
+    }
+
+    private static short encodeMag(double mag) {
+        if (Double.isNaN(mag))
+            return MAG_NAN;
+        return (short) Math.max(MAG_NAN + 1, Math.min(Short.MAX_VALUE, Math.round(mag * MAG_SCALE)));
+    }
+
+    private static double decodeMag(short mag) {
+        return mag == MAG_NAN ? Double.NaN : mag / MAG_SCALE;
+    }
+
+    private static short encodeColor(double col) {
+        int abgr = NumberUtils.floatToIntColor((float) col);
+        int r = abgr & 0xff;
+        int g = (abgr >>> 8) & 0xff;
+        int b = (abgr >>> 16) & 0xff;
+        return (short) ((r >>> 3) << 11 | (g >>> 2) << 5 | (b >>> 3));
+    }
+
+    private static float decodeColor(short col) {
+        int r = (col >>> 11) & 0x1f;
+        int g = (col >>> 5) & 0x3f;
+        int b = col & 0x1f;
+        r = (r << 3) | (r >>> 2);
+        g = (g << 2) | (g >>> 4);
+        b = (b << 3) | (b >>> 2);
+        return NumberUtils.intToFloatColor(0xff000000 | b << 16 | g << 8 | r);
+    }
+
+    private static byte[] compress(byte[] raw, Deflater deflater) {
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            int len = deflater.deflate(chunk);
+            out.write(chunk, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] compressed, int rawLength, Inflater inflater) throws IOException {
+        inflater.reset();
+        inflater.setInput(compressed);
+        byte[] raw = new byte[rawLength];
+        try {
+            int len = 0;
+            while (len < rawLength && !inflater.finished()) {
+                int read = inflater.inflate(raw, len, rawLength - len);
+                if (read == 0 && inflater.needsInput())
+                    break;
+                len += read;
+            }
+            if (len != rawLength)
+                throw new IOException("Corrupt quantized particle block");
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        return raw;
+    }
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -80,6 +80,25 @@ public interface IOctreeGenerator {
         return root;
     }
 
+    /**
+     * Updates the number of objects and children of the given octant and its descendants
+     * from their own objects counts
+     *
+     * @param node The octant
+     */
+    static void updateNumbers(OctreeNode node) {
+        node.nObjects = node.ownObjects;
+        node.childrenCount = 0;
+        for (int i = 0; i < 8; i++) {
+            OctreeNode child = node.children[i];
+            if (child != null) {
+                node.childrenCount++;
+                updateNumbers(child);
+                node.nObjects += child.nObjects;
+            }
+        }
+    }
+
     static Vector3d pos(double[] s, Vector3d p) {
         return p.set(s[StarBean.I_X], s[StarBean.I_Y], s[StarBean.I_Z]);
     }
@@ -0,0 +1,554 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.data.octreegen.generator;
+
+import com.badlogic.gdx.utils.LongMap;
+import gaiasky.data.octreegen.MetadataBinaryIO;
+import gaiasky.data.octreegen.ParticleArchive;
+import gaiasky.scenegraph.ParticleGroup.ParticleBean;
+import gaiasky.scenegraph.SceneGraphNode;
+import gaiasky.scenegraph.StarGroup;
+import gaiasky.scenegraph.StarGroup.StarBean;
+import gaiasky.util.Constants;
+import gaiasky.util.math.BoundingBoxd;
+import gaiasky.util.math.Vector3d;
+import gaiasky.util.tree.MortonIndex;
+import gaiasky.util.tree.OctreeNode;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Out-of-core version of {@link OctreeGeneratorMag}, for catalogs which do not fit in memory.
+ * The stars are added one at a time with {@link #add(StarBean, long)}, and spilled to temporary
+ * files in runs sorted by magnitude. {@link #generateOctree()} merges the runs and assigns the stars
+ * to octants level by level, exactly like {@link OctreeGeneratorMag}, but only the octree structure and
+ * the star counts are kept in memory. The stars of each octant are then provided by {@link #objects(OctreeNode)},
+ * which loads them in batches of octants in page id order.
+ * <p>
+ * At most run size stars are held in memory at any time. The resulting octree and particles are the same
+ * as those of {@link OctreeGeneratorMag} when given the stars in catalog order, where the catalog index of each
+ * star is given when it is added. Additional attributes of the stars ({@link ParticleBean#extra}) are not kept.
+ *
+ * @author tsagrista
+ */
+public class OctreeGeneratorExternal extends OctreeGeneratorMag implements ParticleArchive.OctantSource, Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Temporary directory for the run and batch files **/
+    private final Path dir;
+    /** Maximum number of stars in memory **/
+    private final int runSize;
+    /** Order of the stars, by magnitude and then catalog index **/
+    private final Comparator<Record> order;
+
+    /** Stars of the current run **/
+    private final List<Record> run;
+    /** Run files, each sorted by magnitude and catalog index **/
+    private final List<File> runs;
+    /** Stars assigned to octants, in assignment order **/
+    private File assigned;
+    /** Batch files, with the stars of consecutive octants in page id order **/
+    private File[] batches;
+
+    /** Number of stars added and discarded **/
+    private long nStars, nDiscarded;
+    /** Furthest star from the origin **/
+    private double maxDist = Double.MIN_VALUE;
+    private double[] furthest;
+    private long furthestIndex = -1;
+    private final Vector3d aux;
+
+    /** Batch of each octant with stars, by page id **/
+    private LongMap<Integer> batchOf;
+    /**
+     * Page ids of the octants whose stars make up the stars of each octant, in order. Only
+     * present for octants which took in the stars of their children in the post-processing
+     **/
+    private LongMap<List<Long>> sources;
+    /** Stars of the loaded batch, by page id **/
+    private LongMap<List<ParticleBean>> loaded;
+    private int loadedBatch = -1;
+
+    /**
+     * Creates a new out-of-core generator
+     *
+     * @param params  The generation parameters
+     * @param tmpDir  The directory to create the temporary files in
+     * @param runSize The maximum number of stars to hold in memory
+     * @throws IOException If the temporary directory can't be created
+     */
+    public OctreeGeneratorExternal(OctreeGeneratorParams params, Path tmpDir, int runSize) throws IOException {
+        super(params);
+        Files.createDirectories(tmpDir);
+        this.dir = Files.createTempDirectory(tmpDir, "octreegen");
+        this.runSize = Math.max(1, runSize);
+        this.order = (r1, r2) -> {
+            int c = comp.compare(r1.star, r2.star);
+            return c != 0 ? c : Long.compare(r1.key, r2.key);
+        };
+        this.run = new ArrayList<>(Math.min(this.runSize, 1 << 20));
+        this.runs = new ArrayList<>();
+        this.sources = new LongMap<>();
+        this.aux = new Vector3d();
+    }
+
+    /**
+     * Adds a star. Stars can be added in any order, the result only depends on their catalog indices.
+     *
+     * @param star  The star
+     * @param index The index of the star in the catalog, which breaks ties in magnitude
+     * @throws IOException If the run can't be written
+     */
+    public void add(StarBean star, long index) throws IOException {
+        double dist = IOctreeGenerator.pos(star.data, aux).len();
+        if (dist * Constants.U_TO_PC > params.maxDistanceCap) {
+            nDiscarded++;
+            return;
+        }
+        if (dist > maxDist || (furthest != null && dist == maxDist && index < furthestIndex)) {
+            furthest = new double[] { aux.x, aux.y, aux.z };
+            furthestIndex = index;
+            maxDist = dist;
+        }
+        run.add(new Record(index, star));
+        nStars++;
+        if (run.size() >= runSize) {
+            spill();
+        }
+    }
+
+    /**
+     * Number of stars added, not counting the ones beyond the distance cap
+     *
+     * @return The number of stars
+     */
+    public long getStarCount() {
+        return nStars;
+    }
+
+    private void spill() throws IOException {
+        if (run.isEmpty())
+            return;
+        run.sort(order);
+        File file = dir.resolve("run_" + runs.size() + ".bin").toFile();
+        try (DataOutputStream out = output(file)) {
+            for (Record record : run) {
+                record.write(out);
+            }
+        }
+        logger.info("Run " + runs.size() + " with " + run.size() + " stars written to " + file.getAbsolutePath());
+        runs.add(file);
+        run.clear();
+    }
+
+    @Override
+    public OctreeNode generateOctree(List<ParticleBean> catalog) {
+        try {
+            long index = 0;
+            for (ParticleBean pb : catalog) {
+                add((StarBean) pb, index++);
+            }
+            OctreeNode octree = generateOctree();
+            if (octree != null) {
+                // Attach the stars to the octants
+                List<OctreeNode> nodes = new ArrayList<>();
+                new MetadataBinaryIO().toList(octree, nodes);
+                nodes.sort(Comparator.comparingLong(node -> node.pageId));
+                for (OctreeNode node : nodes) {
+                    if (node.ownObjects > 0) {
+                        StarGroup sg = (StarGroup) objects(node).get(0);
+                        node.add(sg);
+                    }
+                }
+                octree.updateNumbers();
+            }
+            return octree;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Generates the octree with the stars added so far. The octants do not hold the
+     * stars, which are provided by {@link #objects(OctreeNode)}.
+     *
+     * @return The root of the octree, or null if no stars were added
+     * @throws IOException If the temporary files can't be read or written
+     */
+    public OctreeNode generateOctree() throws IOException {
+        if (furthest == null)
+            return null;
+        spill();
+
+        logger.info("Starting generation of octree with " + nStars + " stars in " + runs.size() + " runs (" + nDiscarded + " stars discarded by distance)");
+        root = createRoot();
+
+        // Holds all octree nodes indexed by id
+        LongMap<OctreeNode> idMap = new LongMap<>();
+        idMap.put(root.pageId, root);
+
+        assignOctants(idMap);
+
+        if (params.postprocess) {
+            postprocess(idMap);
+        }
+
+        IOctreeGenerator.updateNumbers(root);
+        partition();
+        return root;
+    }
+
+    /**
+     * Creates the root octant in the same way as {@link IOctreeGenerator#startGeneration(List, OctreeGeneratorParams)}
+     */
+    private OctreeNode createRoot() throws IOException {
+        if (params.sunCentre) {
+            /** THE CENTRE OF THE OCTREE IS THE SUN **/
+            double halfSize = Math.max(Math.max(furthest[0], furthest[1]), furthest[2]);
+            return new OctreeNode(0, 0, 0, halfSize, halfSize, halfSize, 0);
+        } else {
+            /** THE CENTRE OF THE OCTREE MAY BE ANYWHERE **/
+            double volume = Double.MIN_VALUE;
+            long boxIndex = -1;
+            BoundingBoxd box = new BoundingBoxd();
+            BoundingBoxd auxBox = new BoundingBoxd();
+            Vector3d pos0 = new Vector3d();
+            Vector3d pos1 = new Vector3d(furthest[0], furthest[1], furthest[2]);
+            for (File file : runs) {
+                try (RunReader reader = new RunReader(file)) {
+                    while (reader.next()) {
+                        Record record = reader.current;
+                        IOctreeGenerator.pos(record.star.data, pos0);
+                        auxBox.set(pos1, pos0);
+                        double vol = auxBox.getVolume();
+                        // Ties go to the first star in catalog order
+                        if (vol > volume || (boxIndex >= 0 && vol == volume && record.key < boxIndex)) {
+                            volume = vol;
+                            boxIndex = record.key;
+                            box.set(auxBox);
+                        }
+                    }
+                }
+            }
+            double halfSize = Math.max(Math.max(box.getDepth(), box.getHeight()), box.getWidth()) / 2d;
+            return new OctreeNode(box.getCenterX(), box.getCenterY(), box.getCenterZ(), halfSize, halfSize, halfSize, 0);
+        }
+    }
+
+    /**
+     * Merges the runs and assigns the stars to octants, in magnitude order. The stars are written to the
+     * assigned file with the page id of their octant, and the number of stars of each octant is
+     * kept in its own objects count.
+     */
+    private void assignOctants(LongMap<OctreeNode> idMap) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, runs.size()), (r1, r2) -> order.compare(r1.current, r2.current));
+        assigned = dir.resolve("assigned.bin").toFile();
+        try (DataOutputStream out = output(assigned)) {
+            for (File file : runs) {
+                RunReader reader = new RunReader(file);
+                if (reader.next())
+                    queue.add(reader);
+                else
+                    reader.close();
+            }
+
+            long left = nStars;
+            int level = 0;
+            logger.info("Generating level " + level + " (" + left + " stars left)");
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                Record record = reader.current;
+                if (reader.next())
+                    queue.add(reader);
+                else
+                    reader.close();
+                left--;
+
+                double x = record.star.data[StarBean.I_X];
+                double y = record.star.data[StarBean.I_Y];
+                double z = record.star.data[StarBean.I_Z];
+                Long nodeId = getPositionOctantId(x, y, z, level);
+                OctreeNode octant = idMap.get(nodeId);
+                if (octant == null) {
+                    // Create octant and parents if necessary
+                    octant = createOctant(nodeId, x, y, z, level);
+                    idMap.put(octant.pageId, octant);
+                }
+                octant.ownObjects++;
+                record.key = octant.pageId;
+                record.write(out);
+
+                if (octant.ownObjects >= params.maxPart) {
+                    // On to next level!
+                    level++;
+                    if (level >= 25)
+                        break;
+                    if (left > 0)
+                        logger.info("Generating level " + level + " (" + left + " stars left)");
+                }
+            }
+        } finally {
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+        }
+        for (File file : runs) {
+            Files.delete(file.toPath());
+        }
+        runs.clear();
+    }
+
+    /**
+     * Merges low-count octants with their parents, like {@link OctreeGeneratorMag}, but only
+     * working on the counts. The order of the stars of the merged octants is recorded in {@link #sources}.
+     */
+    private void postprocess(LongMap<OctreeNode> idMap) {
+        logger.info("Post-processing octree: childcount=" + params.childCount + ", parentcount=" + params.parentCount);
+        long mergedNodes = 0;
+        long mergedObjects = 0;
+        List<OctreeNode> nodes = new ArrayList<>();
+        for (OctreeNode node : idMap.values()) {
+            if (node.ownObjects > 0)
+                nodes.add(node);
+        }
+        nodes.sort(POSTPROCESS_ORDER);
+
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            OctreeNode current = nodes.get(i);
+            if (current.parent != null && current.ownObjects > 0 && current.parent.ownObjects > 0) {
+                if (current.ownObjects <= params.childCount && current.parent.ownObjects <= params.parentCount) {
+                    // Merge children nodes with parent nodes, remove children
+                    List<Long> parentSources = sources.get(current.parent.pageId);
+                    if (parentSources == null) {
+                        parentSources = new ArrayList<>();
+                        parentSources.add(current.parent.pageId);
+                        sources.put(current.parent.pageId, parentSources);
+                    }
+                    parentSources.addAll(sources(current.pageId));
+                    sources.remove(current.pageId);
+
+                    current.parent.ownObjects += current.ownObjects;
+                    mergedNodes++;
+                    mergedObjects += current.ownObjects;
+                    current.ownObjects = 0;
+                    current.remove();
+                }
+            }
+        }
+
+        logger.info("POSTPROCESS STATS:");
+        logger.info("    Merged nodes:    " + mergedNodes);
+        logger.info("    Merged objects:  " + mergedObjects);
+    }
+
+    private List<Long> sources(long pageId) {
+        List<Long> list = sources.get(pageId);
+        return list != null ? list : Collections.singletonList(pageId);
+    }
+
+    /**
+     * Splits the octants with stars, in page id order, into batches of at most run size
+     * stars, and distributes the assigned stars into one file per batch
+     */
+    private void partition() throws IOException {
+        List<OctreeNode> nodes = new ArrayList<>();
+        new MetadataBinaryIO().toList(root, nodes);
+        nodes.removeIf(node -> node.ownObjects <= 0);
+        nodes.sort(Comparator.comparingLong(node -> node.pageId));
+
+        batchOf = new LongMap<>();
+        int batch = 0;
+        long batchStars = 0;
+        for (OctreeNode node : nodes) {
+            if (batchStars > 0 && batchStars + node.ownObjects > runSize) {
+                batch++;
+                batchStars = 0;
+            }
+            for (long source : sources(node.pageId)) {
+                batchOf.put(source, batch);
+            }
+            batchStars += node.ownObjects;
+        }
+
+        batches = new File[nodes.isEmpty() ? 0 : batch + 1];
+        DataOutputStream[] outs = new DataOutputStream[batches.length];
+        try (RunReader reader = new RunReader(assigned)) {
+            for (int i = 0; i < batches.length; i++) {
+                batches[i] = dir.resolve("batch_" + i + ".bin").toFile();
+                outs[i] = output(batches[i]);
+            }
+            while (reader.next()) {
+                // Stars of octants removed from the octree are dropped
+                Integer b = batchOf.get(reader.current.key);
+                if (b != null)
+                    reader.current.write(outs[b]);
+            }
+        } finally {
+            for (DataOutputStream out : outs) {
+                if (out != null)
+                    out.close();
+            }
+        }
+        Files.delete(assigned.toPath());
+        logger.info(nodes.size() + " octants with stars split into " + batches.length + " batches");
+    }
+
+    /**
+     * Gets the stars of the given octant in a star group. This is fastest when the octants are
+     * requested in page id order.
+     *
+     * @param octant The octant
+     * @return A list with the star group of the octant, which is empty if the octant has no stars
+     * @throws IOException If the batch file of the octant can't be read
+     */
+    @Override
+    public List<SceneGraphNode> objects(OctreeNode octant) throws IOException {
+        Integer batch = batchOf != null ? batchOf.get(octant.pageId) : null;
+        List<SceneGraphNode> objects = new ArrayList<>(1);
+        if (batch == null)
+            return objects;
+        if (batch != loadedBatch) {
+            loaded = new LongMap<>();
+            try (RunReader reader = new RunReader(batches[batch])) {
+                while (reader.next()) {
+                    List<ParticleBean> stars = loaded.get(reader.current.key);
+                    if (stars == null) {
+                        stars = new ArrayList<>();
+                        loaded.put(reader.current.key, stars);
+                    }
+                    stars.add(reader.current.star);
+                }
+            }
+            loadedBatch = batch;
+        }
+
+        List<ParticleBean> stars = new ArrayList<>(octant.ownObjects);
+        for (long source : sources(octant.pageId)) {
+            List<ParticleBean> sourceStars = loaded.get(source);
+            if (sourceStars != null)
+                stars.addAll(sourceStars);
+        }
+        MortonIndex.sort(stars, octant);
+        StarGroup sg = new StarGroup();
+        sg.setData(stars, false);
+        sg.octant = octant;
+        sg.octantId = octant.pageId;
+        objects.add(sg);
+        return objects;
+    }
+
+    /**
+     * Deletes the temporary files
+     */
+    @Override
+    public void close() throws IOException {
+        loaded = null;
+        loadedBatch = -1;
+        run.clear();
+        if (Files.exists(dir)) {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static DataOutputStream output(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    }
+
+    /**
+     * A star with a key, which is the catalog index in the runs and the page id of
+     * the octant in the assigned and batch files
+     */
+    private static class Record {
+        long key;
+        final StarBean star;
+
+        Record(long key, StarBean star) {
+            this.key = key;
+            this.star = star;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(key);
+            out.writeInt(star.data.length);
+            for (double d : star.data) {
+                out.writeDouble(d);
+            }
+            out.writeBoolean(star.id != null);
+            out.writeLong(star.id != null ? star.id : 0);
+            out.writeInt(star.names != null ? star.names.length : -1);
+            if (star.names != null) {
+                for (String name : star.names) {
+                    out.writeUTF(name);
+                }
+            }
+        }
+
+        /**
+         * Reads a record
+         *
+         * @return The record, or null if the end of the input was reached
+         */
+        static Record read(DataInputStream in) throws IOException {
+            long key;
+            try {
+                key = in.readLong();
+            } catch (EOFException e) {
+                return null;
+            }
+            double[] data = new double[in.readInt()];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = in.readDouble();
+            }
+            boolean hasId = in.readBoolean();
+            long id = in.readLong();
+            int nNames = in.readInt();
+            String[] names = null;
+            if (nNames >= 0) {
+                names = new String[nNames];
+                for (int i = 0; i < nNames; i++) {
+                    names[i] = in.readUTF();
+                }
+            }
+            return new Record(key, new StarBean(data, hasId ? id : null, names));
+        }
+    }
+
+    /**
+     * Reads the records of a file sequentially
+     */
+    private static class RunReader implements Closeable {
+        private final DataInputStream in;
+        Record current;
+
+        RunReader(File file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        }
+
+        /**
+         * Reads the next record into {@link #current}
+         *
+         * @return Whether there was a next record
+         */
+        boolean next() throws IOException {
+            current = Record.read(in);
+            return current != null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
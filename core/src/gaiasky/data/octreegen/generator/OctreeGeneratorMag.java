@@ -12,6 +12,7 @@ import gaiasky.scenegraph.StarGroup;
 import gaiasky.scenegraph.StarGroup.StarBean;
 import gaiasky.util.math.BoundingBoxd;
 import gaiasky.util.math.Vector3d;
+import gaiasky.util.tree.MortonIndex;
 import gaiasky.util.tree.OctreeNode;
 
 import java.util.*;
@@ -27,9 +28,12 @@ import java.util.*;
  */
 public class OctreeGeneratorMag implements IOctreeGenerator {
 
-    private final OctreeGeneratorParams params;
-    private final Comparator<ParticleBean> comp;
-    private OctreeNode root;
+    /** Order of the octants in the post-processing, by depth and then page id **/
+    protected static final Comparator<OctreeNode> POSTPROCESS_ORDER = Comparator.comparingInt((OctreeNode node) -> node.depth).thenComparingLong(node -> node.pageId);
+
+    protected final OctreeGeneratorParams params;
+    protected final Comparator<ParticleBean> comp;
+    protected OctreeNode root;
 
     public OctreeGeneratorMag(OctreeGeneratorParams params) {
         this.params = params;
@@ -86,58 +90,95 @@ public class OctreeGeneratorMag implements IOctreeGenerator {
 
         if (params.postprocess) {
             logger.info("Post-processing octree: childcount=" + params.childCount + ", parentcount=" + params.parentCount);
-            long mergedNodes = 0;
-            long mergedObjects = 0;
-            // We merge low-count nodes (<= childcount) with parents, if parents' count is <= parentcount
-            Object[] nodes = sbMap.keySet().toArray();
-            // Sort by descending depth
-            Arrays.sort(nodes, (node1, node2) -> {
-                OctreeNode n1 = (OctreeNode) node1;
-                OctreeNode n2 = (OctreeNode) node2;
-                return Integer.compare(n1.depth, n2.depth);
-            });
-
-            int n = sbMap.size();
-            for (int i = n - 1; i >= 0; i--) {
-                OctreeNode current = (OctreeNode) nodes[i];
-                if (current.parent != null && sbMap.containsKey(current) && sbMap.containsKey(current.parent)) {
-                    List<ParticleBean> childrenArr = sbMap.get(current);
-                    List<ParticleBean> parentArr = sbMap.get(current.parent);
-                    if (childrenArr.size() <= params.childCount && parentArr.size() <= params.parentCount) {
-                        // Merge children nodes with parent nodes, remove children
-                        parentArr.addAll(childrenArr);
-                        sbMap.remove(current);
-                        current.remove();
-                        mergedNodes++;
-                        mergedObjects += childrenArr.size();
-                    }
-                }
-            }
-
+            long[] merged = postprocess(sbMap, 0, Integer.MAX_VALUE);
             logger.info("POSTPROCESS STATS:");
-            logger.info("    Merged nodes:    " + mergedNodes);
-            logger.info("    Merged objects:  " + mergedObjects);
+            logger.info("    Merged nodes:    " + merged[0]);
+            logger.info("    Merged objects:  " + merged[1]);
         }
 
         // Tree is ready, create star groups
-        Set<OctreeNode> nodes = sbMap.keySet();
-        for (OctreeNode node : nodes) {
-            List<ParticleBean> list = sbMap.get(node);
+        createStarGroups(sbMap);
+
+        root.updateNumbers();
+        return root;
+    }
+
+    /**
+     * Merges low-count nodes (<= childcount) with their parents, if the parents' count is <= parentcount. Only
+     * the nodes within the given depth range are merged. They are processed from the deepest, and then by
+     * page id, so that the result does not depend on the map order.
+     *
+     * @param sbMap    The map with the stars of each node
+     * @param minDepth The minimum depth of the nodes to merge
+     * @param maxDepth The maximum depth of the nodes to merge
+     * @return The number of merged nodes and objects
+     */
+    protected long[] postprocess(Map<OctreeNode, List<ParticleBean>> sbMap, int minDepth, int maxDepth) {
+        long mergedNodes = 0;
+        long mergedObjects = 0;
+        List<OctreeNode> nodes = new ArrayList<>(sbMap.size());
+        for (OctreeNode node : sbMap.keySet()) {
+            if (node.depth >= minDepth && node.depth <= maxDepth)
+                nodes.add(node);
+        }
+        nodes.sort(POSTPROCESS_ORDER);
+
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            OctreeNode current = nodes.get(i);
+            if (current.parent != null && sbMap.containsKey(current) && sbMap.containsKey(current.parent)) {
+                List<ParticleBean> childrenArr = sbMap.get(current);
+                List<ParticleBean> parentArr = sbMap.get(current.parent);
+                if (childrenArr.size() <= params.childCount && parentArr.size() <= params.parentCount) {
+                    // Merge children nodes with parent nodes, remove children
+                    parentArr.addAll(childrenArr);
+                    sbMap.remove(current);
+                    current.remove();
+                    mergedNodes++;
+                    mergedObjects += childrenArr.size();
+                }
+            }
+        }
+        return new long[] { mergedNodes, mergedObjects };
+    }
+
+    /**
+     * Creates a star group with the stars of each node and adds it to the node. The stars
+     * of each node are sorted in Morton order (see {@link MortonIndex})
+     *
+     * @param sbMap The map with the stars of each node
+     */
+    protected void createStarGroups(Map<OctreeNode, List<ParticleBean>> sbMap) {
+        for (Map.Entry<OctreeNode, List<ParticleBean>> entry : sbMap.entrySet()) {
+            OctreeNode node = entry.getKey();
+            MortonIndex.sort(entry.getValue(), node);
             StarGroup sg = new StarGroup();
-            sg.setData(list, false);
+            sg.setData(entry.getValue(), false);
             node.add(sg);
             sg.octant = node;
             sg.octantId = node.pageId;
         }
+    }
 
-        root.updateNumbers();
-        return root;
+    protected OctreeNode createOctant(Long id, double x, double y, double z, int level) {
+        return createOctant(root, id, x, y, z, level);
     }
 
-    private OctreeNode createOctant(Long id, double x, double y, double z, int level) {
+    /**
+     * Creates the octant with the given id which contains the given position, and
+     * its missing ancestors below the given octant
+     *
+     * @param from  An existing ancestor of the octant
+     * @param id    The id of the octant
+     * @param x     Position in x
+     * @param y     Position in y
+     * @param z     Position in z
+     * @param level Level of the octant
+     * @return The octant
+     */
+    protected OctreeNode createOctant(OctreeNode from, Long id, double x, double y, double z, int level) {
         Vector3d min = new Vector3d();
-        OctreeNode current = root;
-        for (int l = 1; l <= level; l++) {
+        OctreeNode current = from;
+        for (int l = from.depth + 1; l <= level; l++) {
             BoundingBoxd b = current.box;
             double hs = b.getWidth() / 2d;
             int idx;
@@ -192,7 +233,7 @@ public class OctreeGeneratorMag implements IOctreeGenerator {
         return current;
     }
 
-    private int addStarToNode(StarBean sb, OctreeNode node, Map<OctreeNode, List<ParticleBean>> map) {
+    protected int addStarToNode(StarBean sb, OctreeNode node, Map<OctreeNode, List<ParticleBean>> map) {
         List<ParticleBean> array = map.get(node);
         if (array == null) {
             // Array of a fraction of max part (four array resizes gives max part)
@@ -0,0 +1,379 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.data.octreegen.generator;
+
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.LongMap;
+import gaiasky.scenegraph.ParticleGroup.ParticleBean;
+import gaiasky.scenegraph.StarGroup.StarBean;
+import gaiasky.util.tree.OctreeNode;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Parallel version of {@link OctreeGeneratorMag}, which produces exactly the same octree
+ * regardless of the number of threads. It works in four steps:
+ * <ol>
+ *     <li>The catalog is sorted by magnitude with a parallel (stable) sort.</li>
+ *     <li>The path of each star down the octree, with the index of the child it falls in at each level, is
+ *     computed in parallel.</li>
+ *     <li>The level of each star is found in a sequential pass. Since the paths are known, this only needs
+ *     to count the stars of each octant.</li>
+ *     <li>The stars below the split depth are partitioned by their octant at the split depth, and each of these
+ *     subtrees is built and post-processed concurrently. The octants above the split depth are built and
+ *     post-processed sequentially.</li>
+ * </ol>
+ * The subtrees are independent, since octants are only created below their subtree root and the post-processing
+ * only merges octants with their parents. Octant ids are hashes, so two octants may share an id. In that case
+ * the sequential generator adds the stars of both to the first octant created, so stars whose octant id was first
+ * used in another partition are added to the octant of that partition after the partitions have been built.
+ *
+ * @author tsagrista
+ */
+public class OctreeGeneratorParallel extends OctreeGeneratorMag {
+    /** Depth of the roots of the subtrees which are built concurrently **/
+    private static final int SPLIT_DEPTH = 3;
+    /** Maximum level of the octree **/
+    private static final int MAX_LEVEL = 24;
+    /** Number of levels in the first long of a path, with 3 bits per level **/
+    private static final int PATH_LEVELS = 21;
+
+    private final int nThreads;
+
+    /** Stars, sorted by magnitude **/
+    private ParticleBean[] stars;
+    /** Child indices of each star for levels 1 to 21 **/
+    private long[] paths;
+    /** Child indices of each star for levels 22 to 24 **/
+    private short[] pathTails;
+    /** Level of each star **/
+    private byte[] levels;
+
+    /**
+     * Creates a new parallel generator
+     *
+     * @param params   The generation parameters
+     * @param nThreads The number of threads
+     */
+    public OctreeGeneratorParallel(OctreeGeneratorParams params, int nThreads) {
+        super(params);
+        this.nThreads = Math.max(1, nThreads);
+    }
+
+    @Override
+    public OctreeNode generateOctree(List<ParticleBean> catalog) {
+        ForkJoinPool pool = new ForkJoinPool(nThreads);
+        try {
+            // Parallel sorts and streams run in the pool they are called from
+            return pool.submit(() -> generate(catalog)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+            stars = null;
+            paths = null;
+            pathTails = null;
+            levels = null;
+        }
+    }
+
+    private OctreeNode generate(List<ParticleBean> catalog) {
+        root = IOctreeGenerator.startGeneration(catalog, params);
+
+        int n = catalog.size();
+        logger.info("Sorting source catalog with " + n + " stars (" + nThreads + " threads)");
+        stars = catalog.toArray(new ParticleBean[0]);
+        Arrays.parallelSort(stars, comp);
+        logger.info("Catalog sorting done");
+
+        // Paths of all stars
+        paths = new long[n];
+        pathTails = new short[n];
+        Arrays.parallelSetAll(paths, this::computePath);
+
+        // Level of each star, and partition of the stars by their octant at the split depth
+        levels = new byte[n];
+        Partition top = new Partition(root);
+        top.idMap.put(root.pageId, root);
+        Partition[] subtrees = new Partition[1 << (3 * SPLIT_DEPTH)];
+        // Pairs of (star, first star of its octant id) whose octant id was first used in another
+        // partition. Octant ids are hashes, so different octants may share an id
+        IntArray foreign = new IntArray();
+        // Number of stars and first star of each octant id
+        LongMap<int[]> counts = new LongMap<>();
+        counts.put(root.pageId, new int[] { 0, -1 });
+        int level = 0;
+        logger.info("Generating level " + level + " (" + n + " stars left)");
+        for (int i = 0; i < n && level <= MAX_LEVEL; i++) {
+            long id = octantId(i, level);
+            int[] count = counts.get(id);
+            if (count == null) {
+                count = new int[] { 0, i };
+                counts.put(id, count);
+            }
+            count[0]++;
+            levels[i] = (byte) level;
+
+            int partition = partition(i);
+            if (partition(count[1]) != partition) {
+                foreign.add(i);
+                foreign.add(count[1]);
+            } else if (partition < 0) {
+                top.indices.add(i);
+            } else {
+                if (subtrees[partition] == null)
+                    subtrees[partition] = new Partition(null);
+                subtrees[partition].indices.add(i);
+            }
+
+            if (count[0] >= params.maxPart) {
+                // On to next level!
+                level++;
+                if (level <= MAX_LEVEL && i + 1 < n)
+                    logger.info("Generating level " + level + " (" + (n - i - 1) + " stars left)");
+            }
+        }
+        counts = null;
+
+        // Subtree roots
+        List<Partition> partitions = new ArrayList<>();
+        for (Partition subtree : subtrees) {
+            if (subtree != null) {
+                int first = subtree.indices.get(0);
+                double[] data = stars[first].data;
+                subtree.from = createOctant(octantId(first, SPLIT_DEPTH), data[StarBean.I_X], data[StarBean.I_Y], data[StarBean.I_Z], SPLIT_DEPTH);
+                partitions.add(subtree);
+            }
+        }
+
+        // Octants above the split depth, then subtrees concurrently
+        top.build();
+        logger.info("Building " + partitions.size() + " subtrees from depth " + SPLIT_DEPTH);
+        partitions.parallelStream().forEach(Partition::build);
+
+        // Stars which go to an octant of another partition, keeping the stars of each octant in order
+        for (int j = 0; j < foreign.size; j += 2) {
+            int i = foreign.get(j);
+            int first = foreign.get(j + 1);
+            int partition = partition(first);
+            Partition owner = partition < 0 ? top : subtrees[partition];
+            IntArray indices = owner.lists.get(owner.idMap.get(octantId(first, levels[first])));
+            int pos = indices.size;
+            while (pos > 0 && indices.get(pos - 1) > i)
+                pos--;
+            indices.insert(pos, i);
+        }
+
+        top.finish();
+        partitions.parallelStream().forEach(Partition::finish);
+        Map<OctreeNode, List<ParticleBean>> sbMap = top.sbMap;
+        long mergedNodes = 0;
+        long mergedObjects = 0;
+        for (Partition subtree : partitions) {
+            sbMap.putAll(subtree.sbMap);
+            mergedNodes += subtree.merged[0];
+            mergedObjects += subtree.merged[1];
+        }
+
+        if (params.postprocess) {
+            logger.info("Post-processing octree: childcount=" + params.childCount + ", parentcount=" + params.parentCount);
+            // Octants below the split depth are already post-processed
+            long[] merged = postprocess(sbMap, 0, SPLIT_DEPTH);
+            mergedNodes += merged[0];
+            mergedObjects += merged[1];
+            logger.info("POSTPROCESS STATS:");
+            logger.info("    Merged nodes:    " + mergedNodes);
+            logger.info("    Merged objects:  " + mergedObjects);
+        }
+
+        // Tree is ready, create star groups
+        createStarGroups(sbMap);
+
+        root.updateNumbers();
+        return root;
+    }
+
+    /**
+     * Gets the partition of the given star, which is the index of its octant at the split
+     * depth, or -1 if the star is above the split depth (or is not a star)
+     */
+    private int partition(int i) {
+        if (i < 0 || levels[i] < SPLIT_DEPTH)
+            return -1;
+        return (int) (paths[i] & ((1L << (3 * SPLIT_DEPTH)) - 1));
+    }
+
+    /**
+     * Computes the path of the given star down to the maximum level. Uses the same operations
+     * as {@link #getPositionOctantId(double, double, double, int)}, so that the octants are the same.
+     *
+     * @param i The star index
+     * @return The child indices for levels 1 to 21. The ones for levels 22 to 24 are stored in {@link #pathTails}
+     */
+    private long computePath(int i) {
+        double[] data = stars[i].data;
+        double x = data[StarBean.I_X];
+        double y = data[StarBean.I_Y];
+        double z = data[StarBean.I_Z];
+        double minX = root.box.min.x;
+        double minY = root.box.min.y;
+        double minZ = root.box.min.z;
+        // Half side
+        double hs = (root.box.max.x - minX) / 2d;
+
+        long path = 0;
+        int tail = 0;
+        for (int l = 1; l <= MAX_LEVEL; l++) {
+            int idx;
+            if (x <= minX + hs) {
+                if (y <= minY + hs) {
+                    if (z <= minZ + hs) {
+                        idx = 0;
+                    } else {
+                        minZ = minZ + hs;
+                        idx = 1;
+                    }
+                } else {
+                    if (z <= minZ + hs) {
+                        minY = minY + hs;
+                        idx = 2;
+                    } else {
+                        minY = minY + hs;
+                        minZ = minZ + hs;
+                        idx = 3;
+                    }
+                }
+            } else {
+                minX = minX + hs;
+                if (y <= minY + hs) {
+                    if (z <= minZ + hs) {
+                        idx = 4;
+                    } else {
+                        minZ = minZ + hs;
+                        idx = 5;
+                    }
+                } else {
+                    if (z <= minZ + hs) {
+                        minY = minY + hs;
+                        idx = 6;
+                    } else {
+                        minY = minY + hs;
+                        minZ = minZ + hs;
+                        idx = 7;
+                    }
+                }
+            }
+            if (l <= PATH_LEVELS)
+                path |= (long) idx << (3 * (l - 1));
+            else
+                tail |= idx << (3 * (l - PATH_LEVELS - 1));
+            hs = hs / 2d;
+        }
+        pathTails[i] = (short) tail;
+        return path;
+    }
+
+    /**
+     * Gets the id of the octant of the given star at the given level. This is the same as
+     * {@link #getPositionOctantId(double, double, double, int)}, computed from the path of the star.
+     *
+     * @param i     The star index
+     * @param level The level
+     * @return The octant id
+     */
+    private long octantId(int i, int level) {
+        if (level == 0) {
+            return root.pageId;
+        }
+        // Same as Arrays.hashCode() of {level, idx_1, ..., idx_level, 0, ..., 0}
+        int hash = 31 + level;
+        for (int l = 1; l <= MAX_LEVEL; l++) {
+            int idx = 0;
+            if (l <= level) {
+                if (l <= PATH_LEVELS)
+                    idx = (int) ((paths[i] >>> (3 * (l - 1))) & 7);
+                else
+                    idx = (pathTails[i] >>> (3 * (l - PATH_LEVELS - 1))) & 7;
+            }
+            hash = 31 * hash + idx;
+        }
+        return hash;
+    }
+
+    /**
+     * The stars of a subtree rooted at the split depth, or the stars above the split depth. Within
+     * a partition, the octants are created and filled in the same order as in {@link OctreeGeneratorMag}.
+     */
+    private class Partition {
+        /** Existing ancestor of the octants of the partition **/
+        private OctreeNode from;
+        /** Stars, in order **/
+        private final IntArray indices;
+        /** Octants of the partition with stars, by id **/
+        private final LongMap<OctreeNode> idMap;
+        /** Stars of each octant, in order **/
+        private final Map<OctreeNode, IntArray> lists;
+        private final Map<OctreeNode, List<ParticleBean>> sbMap;
+        private long[] merged = new long[2];
+
+        Partition(OctreeNode from) {
+            this.from = from;
+            this.indices = new IntArray();
+            this.idMap = new LongMap<>();
+            this.lists = new HashMap<>();
+            this.sbMap = new HashMap<>();
+        }
+
+        /**
+         * Adds the stars to their octants, creating the octants if needed
+         */
+        void build() {
+            for (int j = 0; j < indices.size; j++) {
+                int i = indices.get(j);
+                int level = levels[i];
+                long nodeId = octantId(i, level);
+                OctreeNode octant = idMap.get(nodeId);
+                if (octant == null) {
+                    // Create octant and parents if necessary
+                    double[] data = stars[i].data;
+                    octant = createOctant(from, nodeId, data[StarBean.I_X], data[StarBean.I_Y], data[StarBean.I_Z], level);
+                    idMap.put(octant.pageId, octant);
+                }
+                IntArray list = lists.get(octant);
+                if (list == null) {
+                    list = new IntArray();
+                    lists.put(octant, list);
+                }
+                list.add(i);
+            }
+        }
+
+        /**
+         * Creates the star lists of the octants and, in subtrees, post-processes the octants
+         * below the split depth
+         */
+        void finish() {
+            for (Map.Entry<OctreeNode, IntArray> entry : lists.entrySet()) {
+                IntArray list = entry.getValue();
+                for (int j = 0; j < list.size; j++) {
+                    addStarToNode((StarBean) stars[list.get(j)], entry.getKey(), sbMap);
+                }
+            }
+            lists.clear();
+            if (params.postprocess && from != root) {
+                // Octants below the subtree root only merge within the subtree
+                merged = postprocess(sbMap, SPLIT_DEPTH + 1, Integer.MAX_VALUE);
+            }
+        }
+    }
+}
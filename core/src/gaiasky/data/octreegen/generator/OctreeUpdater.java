@@ -0,0 +1,430 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.data.octreegen.generator;
+
+import com.badlogic.gdx.utils.LongMap;
+import gaiasky.data.group.BinaryDataProvider;
+import gaiasky.data.octreegen.*;
+import gaiasky.scenegraph.ParticleGroup.ParticleBean;
+import gaiasky.scenegraph.SceneGraphNode;
+import gaiasky.scenegraph.StarGroup;
+import gaiasky.scenegraph.StarGroup.StarBean;
+import gaiasky.util.Logger;
+import gaiasky.util.Logger.Log;
+import gaiasky.util.math.BoundingBoxd;
+import gaiasky.util.tree.MortonIndex;
+import gaiasky.util.tree.OctreeNode;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Updates an existing octree in place with a delta of added, removed and modified stars, keyed by
+ * source id, so that the whole catalog does not need to be regenerated. The octants of the stars are found
+ * with the source id index of the octree (see {@link SourceIdIndex}), which is built on the first update if
+ * it is not there. Only the octants whose stars change are read and written, so the time depends on the size
+ * of the delta and not on the size of the catalog. The metadata, which only has the octants, is rewritten.
+ * <p>
+ * The octree keeps the level of detail ordering of {@link OctreeGeneratorMag}: the stars of an octant are
+ * brighter than the stars of all its descendants, and octants have at most max part stars. A new star goes to
+ * the first octant down its path which has a fainter star, or to the first leaf with room. If that octant
+ * overflows, its faintest star is pushed down to the next octant in its path, which is created if needed.
+ * Removed stars leave their octant with fewer stars, and octants left empty and without children are removed.
+ * Modified stars are removed and added again. Unlike a full generation, the magnitude thresholds are
+ * kept per octant instead of per level, and the post-processing merges are not redone.
+ *
+ * @author tsagrista
+ */
+public class OctreeUpdater {
+    private static final Log logger = Logger.getLogger(OctreeUpdater.class);
+
+    /** Maximum depth of the octree, as in {@link OctreeGeneratorMag} **/
+    private static final int MAX_DEPTH = 24;
+
+    private final OctreeGeneratorParams params;
+    private final Comparator<ParticleBean> comp;
+    private final boolean compat;
+    private final int nThreads;
+
+    private final File metadataFile;
+    private final File particlesFolder;
+    private final File particlesArchive;
+    private ParticleArchive archive;
+    /** Whether the particles are in the quantized format **/
+    private boolean quantized;
+    /** Whether the particles are in version 3 of the binary format **/
+    private boolean binaryV3;
+
+    private final OctreeNode root;
+    /** All octants, by page id **/
+    private final LongMap<OctreeNode> octants;
+    private SourceIdIndex index;
+
+    /** Stars of the changed octants, sorted by magnitude **/
+    private final Map<OctreeNode, List<ParticleBean>> changed;
+    /** Faintest star of the read octants which have not changed **/
+    private final Map<OctreeNode, ParticleBean> faintest;
+    /** Page ids of the removed octants **/
+    private final List<Long> removedOctants;
+
+    private long nAdded, nRemoved, nModified, nMoved, nNotFound, nOutside, nCreated;
+
+    /**
+     * Opens the octree in the given folder for update
+     *
+     * @param params   The generation parameters. Only the max part is used, which should be the same as in the generation
+     * @param folder   The folder with the metadata and the particles (particles/ or particles.bin)
+     * @param compat   Use compatibility mode (DR1/DR2) to read and write the binary particle files
+     * @param nThreads The number of threads to encode the particle files
+     * @throws IOException If the octree can't be read
+     */
+    public OctreeUpdater(OctreeGeneratorParams params, File folder, boolean compat, int nThreads) throws IOException {
+        this.params = params;
+        this.comp = new StarBrightnessComparator();
+        this.compat = compat;
+        this.nThreads = nThreads;
+        this.metadataFile = new File(folder, "metadata.bin");
+        this.particlesFolder = new File(folder, "particles/");
+        this.particlesArchive = new File(folder, "particles.bin");
+        this.changed = new HashMap<>();
+        this.faintest = new HashMap<>();
+        this.removedOctants = new ArrayList<>();
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(metadataFile))) {
+            root = new MetadataBinaryIO().readMetadata(in);
+        }
+        if (root == null)
+            throw new IOException("Could not read metadata: " + metadataFile.getAbsolutePath());
+        if (ParticleArchive.isArchive(particlesArchive))
+            archive = ParticleArchive.open(particlesArchive.getPath());
+
+        List<OctreeNode> nodes = new ArrayList<>();
+        new MetadataBinaryIO().toList(root, nodes);
+        octants = new LongMap<>(nodes.size());
+        for (OctreeNode node : nodes) {
+            OctreeNode other = octants.get(node.pageId);
+            // Octants with stars first, their page ids are unique
+            if (other == null || other.ownObjects <= 0)
+                octants.put(node.pageId, node);
+        }
+        for (OctreeNode node : nodes) {
+            ByteBuffer buffer = node.ownObjects > 0 ? particles(node) : null;
+            if (buffer != null) {
+                // New octants are written in the format of the existing ones
+                quantized = StarGroupQuantizedIO.isQuantized(buffer);
+                binaryV3 = BinaryDataProvider.isVersion3(buffer);
+                break;
+            }
+        }
+        logger.info("Octree with " + nodes.size() + " octants and " + root.nObjects + " stars opened for update (" + (quantized ? "quantized" : (binaryV3 ? "binary v3" : "binary")) + " particles)");
+
+        if (!SourceIdIndex.exists(folder)) {
+            logger.info("Building source id index, this only happens once");
+            SourceIdIndex.Builder builder = new SourceIdIndex.Builder();
+            for (OctreeNode node : nodes) {
+                if (node.ownObjects > 0)
+                    builder.add(node.pageId, read(node));
+            }
+            builder.write(folder);
+        }
+        index = SourceIdIndex.open(folder);
+    }
+
+    /**
+     * Updates the octree with the given delta. Removals go first. Stars to add which are already in
+     * the octree, by source id, are modified
+     *
+     * @param stars   The stars to add or modify
+     * @param removed The source ids of the stars to remove
+     * @throws IOException If the particles of an octant can't be read
+     */
+    public void update(List<ParticleBean> stars, Collection<Long> removed) throws IOException {
+        for (Long id : removed) {
+            if (remove(id)) {
+                nRemoved++;
+            } else {
+                nNotFound++;
+            }
+        }
+        // Brightest first, so that fewer stars are pushed down
+        List<ParticleBean> sorted = new ArrayList<>(stars);
+        sorted.sort(comp);
+        for (ParticleBean pb : sorted) {
+            add((StarBean) pb);
+        }
+        logger.info("Delta applied: " + nAdded + " added, " + nModified + " modified, " + nRemoved + " removed, " + nNotFound + " to remove not found");
+        if (nOutside > 0)
+            logger.warn(nOutside + " stars to add are outside the bounds of the octree and have been skipped, the octree must be regenerated to include them");
+        logger.info(nMoved + " stars pushed down, " + nCreated + " octants created, " + removedOctants.size() + " octants removed, " + changed.size() + " octants changed");
+    }
+
+    /**
+     * Adds the given star. If a star with the same source id is in the octree, it is replaced. Stars
+     * outside the bounds of the octree are skipped, the octree must be regenerated to include them
+     *
+     * @param star The star
+     * @throws IOException If the particles of an octant can't be read
+     */
+    public void add(StarBean star) throws IOException {
+        if (!contains(root.box, star)) {
+            // The octants can't grow, and the quantized format needs the stars inside their octant
+            nOutside++;
+            return;
+        }
+        if (star.id != null && remove(star.id)) {
+            nModified++;
+        } else {
+            nAdded++;
+        }
+        insert(star);
+    }
+
+    /**
+     * Removes the star with the given source id
+     *
+     * @param id The source id
+     * @return Whether the star was in the octree
+     * @throws IOException If the particles of its octant can't be read
+     */
+    public boolean remove(long id) throws IOException {
+        long pageId = index.get(id);
+        OctreeNode octant = pageId != SourceIdIndex.NONE ? octants.get(pageId) : null;
+        if (octant == null)
+            return false;
+        List<ParticleBean> stars = stars(octant);
+        for (int i = 0; i < stars.size(); i++) {
+            Long starId = ((StarBean) stars.get(i)).id;
+            if (starId != null && starId == id) {
+                stars.remove(i);
+                index.remove(id);
+                prune(octant);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void insert(StarBean star) throws IOException {
+        OctreeNode octant = root;
+        while (true) {
+            ParticleBean octantFaintest = faintest(octant);
+            if ((octantFaintest != null && comp.compare(star, octantFaintest) < 0) || (!hasChildren(octant) && count(octant) < params.maxPart) || octant.depth >= MAX_DEPTH) {
+                List<ParticleBean> stars = stars(octant);
+                // After the stars with the same magnitude
+                int lo = 0, hi = stars.size();
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (comp.compare(stars.get(mid), star) <= 0)
+                        lo = mid + 1;
+                    else
+                        hi = mid;
+                }
+                stars.add(lo, star);
+                if (star.id != null)
+                    index.put(star.id, octant.pageId);
+                if (stars.size() <= params.maxPart || octant.depth >= MAX_DEPTH)
+                    return;
+                // Push the faintest star down
+                star = (StarBean) stars.remove(stars.size() - 1);
+                nMoved++;
+            }
+            octant = child(octant, star);
+        }
+    }
+
+    /**
+     * Gets the child of the given octant which contains the given star, creating it if needed
+     */
+    private OctreeNode child(OctreeNode octant, StarBean star) {
+        double x = star.data[StarBean.I_X];
+        double y = star.data[StarBean.I_Y];
+        double z = star.data[StarBean.I_Z];
+        BoundingBoxd b = octant.box;
+        double hs = b.getWidth() / 2d;
+        int ix = x <= b.min.x + hs ? 0 : 1;
+        int iy = y <= b.min.y + hs ? 0 : 1;
+        int iz = z <= b.min.z + hs ? 0 : 1;
+        int idx = ix * 4 + iy * 2 + iz;
+        if (octant.children[idx] == null) {
+            double nhs = hs / 2d;
+            OctreeNode child = new OctreeNode(b.min.x + ix * hs + nhs, b.min.y + iy * hs + nhs, b.min.z + iz * hs + nhs, nhs, nhs, nhs, octant.depth + 1, octant, idx);
+            // Page ids must be unique, and -1 means no child in the metadata
+            while (octants.containsKey(child.pageId) || child.pageId == -1) {
+                child.pageId = (int) (child.pageId + 1);
+            }
+            octants.put(child.pageId, child);
+            changed.put(child, new ArrayList<>());
+            nCreated++;
+        }
+        return octant.children[idx];
+    }
+
+    /**
+     * Removes the given octant and its ancestors while they have no stars and no children
+     */
+    private void prune(OctreeNode octant) {
+        while (octant != root && count(octant) == 0 && !hasChildren(octant)) {
+            OctreeNode parent = octant.parent;
+            octant.remove();
+            changed.remove(octant);
+            faintest.remove(octant);
+            if (octants.get(octant.pageId) == octant)
+                octants.remove(octant.pageId);
+            removedOctants.add(octant.pageId);
+            octant = parent;
+        }
+    }
+
+    private static boolean contains(BoundingBoxd box, StarBean star) {
+        double[] data = star.data;
+        return data[StarBean.I_X] >= box.min.x && data[StarBean.I_X] <= box.max.x && data[StarBean.I_Y] >= box.min.y && data[StarBean.I_Y] <= box.max.y && data[StarBean.I_Z] >= box.min.z && data[StarBean.I_Z] <= box.max.z;
+    }
+
+    private static boolean hasChildren(OctreeNode octant) {
+        for (OctreeNode child : octant.children) {
+            if (child != null)
+                return true;
+        }
+        return false;
+    }
+
+    private int count(OctreeNode octant) {
+        List<ParticleBean> stars = changed.get(octant);
+        return stars != null ? stars.size() : octant.ownObjects;
+    }
+
+    /**
+     * Gets the faintest star of the given octant, or null if it has no stars
+     */
+    private ParticleBean faintest(OctreeNode octant) throws IOException {
+        List<ParticleBean> stars = changed.get(octant);
+        if (stars != null)
+            return stars.isEmpty() ? null : stars.get(stars.size() - 1);
+        if (octant.ownObjects <= 0)
+            return null;
+        ParticleBean star = faintest.get(octant);
+        if (star == null) {
+            List<ParticleBean> read = read(octant);
+            star = read.get(read.size() - 1);
+            faintest.put(octant, star);
+        }
+        return star;
+    }
+
+    /**
+     * Gets the stars of the given octant to change them
+     */
+    private List<ParticleBean> stars(OctreeNode octant) throws IOException {
+        List<ParticleBean> stars = changed.get(octant);
+        if (stars == null) {
+            stars = octant.ownObjects > 0 ? read(octant) : new ArrayList<>();
+            changed.put(octant, stars);
+            faintest.remove(octant);
+        }
+        return stars;
+    }
+
+    private ByteBuffer particles(OctreeNode octant) throws IOException {
+        if (archive != null)
+            return archive.slice(octant.pageId);
+        File file = particlesFile(octant.pageId);
+        if (!file.exists())
+            return null;
+        try (FileChannel fc = new RandomAccessFile(file, "r").getChannel()) {
+            return fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        }
+    }
+
+    private File particlesFile(long pageId) {
+        return new File(particlesFolder, "particles_" + String.format("%06d", pageId) + ".bin");
+    }
+
+    /**
+     * Reads the stars of the given octant, sorted by magnitude
+     */
+    private List<ParticleBean> read(OctreeNode octant) throws IOException {
+        ByteBuffer buffer = particles(octant);
+        if (buffer == null)
+            throw new IOException("Particles of octant " + octant.pageId + " not found");
+        List<ParticleBean> stars;
+        if (StarGroupQuantizedIO.isQuantized(buffer)) {
+            stars = new ArrayList<>(new StarGroupQuantizedIO().readColumns(buffer, octant).asList());
+        } else {
+            stars = new ArrayList<>(new BinaryDataProvider().loadData(buffer, 1.0, compat));
+        }
+        stars.sort(comp);
+        return stars;
+    }
+
+    /**
+     * Writes the changed octants, the metadata and the source id index
+     *
+     * @return The root of the updated octree
+     * @throws IOException If the files can't be written
+     */
+    public OctreeNode commit() throws IOException {
+        List<OctreeNode> written = new ArrayList<>();
+        for (Map.Entry<OctreeNode, List<ParticleBean>> entry : changed.entrySet()) {
+            OctreeNode octant = entry.getKey();
+            octant.ownObjects = entry.getValue().size();
+            if (octant.ownObjects > 0) {
+                written.add(octant);
+            } else {
+                // Still has children, but no stars
+                removedOctants.add(octant.pageId);
+            }
+        }
+        written.sort(Comparator.comparingLong(octant -> octant.pageId));
+        IOctreeGenerator.updateNumbers(root);
+
+        /** WRITE PARTICLES **/
+        IStarGroupIO particleWriter = quantized ? new StarGroupQuantizedIO() : new StarGroupBinaryIO(binaryV3);
+        ParticleEncoder encoder = new ParticleEncoder(particleWriter, compat, nThreads);
+        ParticleArchive.OctantSource source = octant -> {
+            // Stars are kept by magnitude, but written in Morton order
+            List<ParticleBean> stars = new ArrayList<>(changed.get(octant));
+            MortonIndex.sort(stars, octant);
+            StarGroup sg = new StarGroup();
+            sg.setData(stars, false);
+            sg.octant = octant;
+            sg.octantId = octant.pageId;
+            List<SceneGraphNode> objects = new ArrayList<>(1);
+            objects.add(sg);
+            return objects;
+        };
+        if (archive != null) {
+            logger.info("Updating " + written.size() + " octants in archive: " + particlesArchive.getAbsolutePath());
+            LongMap<byte[]> pages = new LongMap<>(written.size());
+            encoder.encode(written, source, (octant, bytes) -> pages.put(octant.pageId, bytes));
+            archive = null;
+            ParticleArchive.update(particlesArchive, pages, removedOctants);
+        } else {
+            logger.info("Updating " + written.size() + " octants in: " + particlesFolder.getAbsolutePath());
+            for (long pageId : removedOctants) {
+                Files.deleteIfExists(particlesFile(pageId).toPath());
+            }
+            encoder.encode(written, source, (octant, bytes) -> Files.write(particlesFile(octant.pageId).toPath(), bytes));
+        }
+
+        /** WRITE METADATA **/
+        File tmp = new File(metadataFile.getParentFile(), metadataFile.getName() + ".tmp");
+        new MetadataBinaryIO().writeMetadata(root, new FileOutputStream(tmp));
+        Files.move(tmp.toPath(), metadataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        logger.info("Metadata written (" + root.numNodes() + " octants, " + root.nObjects + " stars): " + metadataFile.getAbsolutePath());
+
+        /** WRITE INDEX **/
+        index.write();
+
+        changed.clear();
+        faintest.clear();
+        removedOctants.clear();
+        return root;
+    }
+}
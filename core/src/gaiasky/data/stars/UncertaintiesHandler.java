@@ -13,11 +13,10 @@ import gaiasky.event.IObserver;
 import gaiasky.scenegraph.IStarFocus;
 import gaiasky.scenegraph.ParticleGroup;
 import gaiasky.util.Logger;
+import gaiasky.util.ds.LongIntMap;
 
 import java.io.IOException;
 import java.nio.file.*;
-import java.util.HashSet;
-import java.util.Set;
 
 public class UncertaintiesHandler implements IObserver {
     private static final boolean PRELOAD = true;
@@ -31,7 +30,7 @@ public class UncertaintiesHandler implements IObserver {
     }
 
     private final String path;
-    private final Set<Long> sourceIds;
+    private final LongIntMap sourceIds;
     private final Array<ParticleGroup> particleGroups;
     private final double[][] colors;
     private int coloridx = 0;
@@ -43,7 +42,7 @@ public class UncertaintiesHandler implements IObserver {
         colors = new double[][] { { 0, 1, 0, 1 }, { 1, 0, 0, 1 }, { 0, 0, 1, 1 }, { 1, 1, 0, 1 }, { 1, 0, 1, 1 }, { 0, 1, 1, 1 }, { 0.5, 1, 1, 1 } };
 
         // Generate set with starids for which we have uncertainties
-        sourceIds = new HashSet<Long>();
+        sourceIds = new LongIntMap();
         Path dir = Paths.get(path);
         try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.{csv}")) {
             for (Path entry : stream) {
@@ -51,8 +50,8 @@ public class UncertaintiesHandler implements IObserver {
                 int pos = fname.lastIndexOf(".");
                 if (pos > 0) {
                     fname = fname.substring(0, pos);
-                    Long id = Long.parseLong(fname);
-                    sourceIds.add(id);
+                    long id = Long.parseLong(fname);
+                    sourceIds.put(id, 0);
 
                     if (PRELOAD) {
                         ParticleGroup pg = load(id);
@@ -71,7 +70,7 @@ public class UncertaintiesHandler implements IObserver {
     }
 
     public boolean containsStar(Long id) {
-        return sourceIds != null && sourceIds.contains(id);
+        return sourceIds != null && id != null && sourceIds.containsKey(id);
     }
 
     public boolean containsUncertainties() {
@@ -128,7 +128,15 @@ public class DesktopConfInit extends ConfInit {
         boolean MULTITHREADING = Parser.parseBoolean(p.getProperty("global.conf.multithreading"));
         String propNumthreads = p.getProperty("global.conf.numthreads");
         int NUMBER_THREADS = Parser.parseInt((propNumthreads == null || propNumthreads.isEmpty()) ? "0" : propNumthreads);
-        pc.initialize(MULTITHREADING, NUMBER_THREADS);
+        String propNumLoaderThreads = p.getProperty("global.conf.numloaderthreads");
+        int NUMBER_LOADER_THREADS = Parser.parseInt((propNumLoaderThreads == null || propNumLoaderThreads.isEmpty()) ? "0" : propNumLoaderThreads);
+        String propPrefetchTime = p.getProperty("global.conf.prefetchtime");
+        float OCTREE_PREFETCH_TIME = Parser.parseFloat((propPrefetchTime == null || propPrefetchTime.isEmpty()) ? "2.0" : propPrefetchTime);
+        String propParallelDepth = p.getProperty("global.conf.octreeparalleldepth");
+        int OCTREE_PARALLEL_DEPTH = Parser.parseInt((propParallelDepth == null || propParallelDepth.isEmpty()) ? "3" : propParallelDepth);
+        String propPagedDepth = p.getProperty("global.conf.octreepageddepth");
+        int OCTREE_PAGED_DEPTH = Parser.parseInt((propPagedDepth == null || propPagedDepth.isEmpty()) ? "-1" : propPagedDepth);
+        pc.initialize(MULTITHREADING, NUMBER_THREADS, NUMBER_LOADER_THREADS, OCTREE_PREFETCH_TIME, OCTREE_PARALLEL_DEPTH, OCTREE_PAGED_DEPTH);
 
         /** POSTPROCESS CONF **/
         PostprocessConf ppc = new PostprocessConf();
@@ -314,6 +322,7 @@ public class DesktopConfInit extends ConfInit {
         if (ARCH.equals("32")) {
             MAX_LOADED_STARS = 1500000;
         }
+        long MAX_LOADED_MEMORY_MB = Long.parseLong(p.getProperty("scene.octree.maxmem", "0"));
 
         // Visibility of components
         ComponentType[] cts = ComponentType.values();
@@ -335,7 +344,7 @@ public class DesktopConfInit extends ConfInit {
         double DIST_SCALE_VR = 1e4d;
 
         SceneConf sc = new SceneConf();
-        sc.initialize(STARTUP_OBJECT, GRAPHICS_QUALITY, OBJECT_FADE_MS, STAR_BRIGHTNESS, STAR_BRIGHTNESS_POWER, STAR_TEX_INDEX, STAR_GROUP_N_NEAREST, STAR_GROUP_BILLBOARD_FLAG, AMBIENT_LIGHT, CAMERA_FOV, CAMERA_SPEED, TURNING_SPEED, ROTATION_SPEED, CAMERA_SPEED_LIMIT_IDX, FOCUS_LOCK, FOCUS_LOCK_ORIENTATION, LABEL_SIZE_FACTOR, LABEL_NUMBER_FACTOR, LINE_WIDTH_FACTOR, VISIBILITY, ORBIT_RENDERER, LINE_RENDERER, STAR_TH_ANGLE_NONE, STAR_TH_ANGLE_POINT, STAR_TH_ANGLE_QUAD, STAR_MIN_OPACITY, STAR_MAX_OPACITY, OCTREE_PARTICLE_FADE, OCTANT_THRESHOLD_0, OCTANT_THRESHOLD_1, PM_NUM_FACTOR, PM_LEN_FACTOR, N_PM_STARS, PM_COLOR_MODE, PM_ARROWHEADS, STAR_POINT_SIZE, GALAXY_3D, CROSSHAIR_FOCUS, CROSSHAIR_CLOSEST, CROSSHAIR_HOME, CINEMATIC_CAMERA, LAZY_TEXTURE_INIT, LAZY_MESH_INIT, FREE_CAMERA_TARGET_MODE_ON, SHADOW_MAPPING, SHADOW_MAPPING_N_SHADOWS, SHADOW_MAPPING_RESOLUTION, MAX_LOADED_STARS, ELEVATION_TYPE, ELEVATION_MULTIPLIER, TESSELLATION_QUALITY, DIST_SCALE_DESKTOP, DIST_SCALE_VR);
+        sc.initialize(STARTUP_OBJECT, GRAPHICS_QUALITY, OBJECT_FADE_MS, STAR_BRIGHTNESS, STAR_BRIGHTNESS_POWER, STAR_TEX_INDEX, STAR_GROUP_N_NEAREST, STAR_GROUP_BILLBOARD_FLAG, AMBIENT_LIGHT, CAMERA_FOV, CAMERA_SPEED, TURNING_SPEED, ROTATION_SPEED, CAMERA_SPEED_LIMIT_IDX, FOCUS_LOCK, FOCUS_LOCK_ORIENTATION, LABEL_SIZE_FACTOR, LABEL_NUMBER_FACTOR, LINE_WIDTH_FACTOR, VISIBILITY, ORBIT_RENDERER, LINE_RENDERER, STAR_TH_ANGLE_NONE, STAR_TH_ANGLE_POINT, STAR_TH_ANGLE_QUAD, STAR_MIN_OPACITY, STAR_MAX_OPACITY, OCTREE_PARTICLE_FADE, OCTANT_THRESHOLD_0, OCTANT_THRESHOLD_1, PM_NUM_FACTOR, PM_LEN_FACTOR, N_PM_STARS, PM_COLOR_MODE, PM_ARROWHEADS, STAR_POINT_SIZE, GALAXY_3D, CROSSHAIR_FOCUS, CROSSHAIR_CLOSEST, CROSSHAIR_HOME, CINEMATIC_CAMERA, LAZY_TEXTURE_INIT, LAZY_MESH_INIT, FREE_CAMERA_TARGET_MODE_ON, SHADOW_MAPPING, SHADOW_MAPPING_N_SHADOWS, SHADOW_MAPPING_RESOLUTION, MAX_LOADED_STARS, MAX_LOADED_MEMORY_MB, ELEVATION_TYPE, ELEVATION_MULTIPLIER, TESSELLATION_QUALITY, DIST_SCALE_DESKTOP, DIST_SCALE_VR);
 
         /** FRAME CONF **/
         String renderFolder;
@@ -447,6 +456,10 @@ public class DesktopConfInit extends ConfInit {
         /** PERFORMANCE **/
         p.setProperty("global.conf.multithreading", Boolean.toString(GlobalConf.performance.MULTITHREADING));
         p.setProperty("global.conf.numthreads", Integer.toString(GlobalConf.performance.NUMBER_THREADS));
+        p.setProperty("global.conf.numloaderthreads", Integer.toString(GlobalConf.performance.NUMBER_LOADER_THREADS));
+        p.setProperty("global.conf.prefetchtime", Float.toString(GlobalConf.performance.OCTREE_PREFETCH_TIME));
+        p.setProperty("global.conf.octreeparalleldepth", Integer.toString(GlobalConf.performance.OCTREE_PARALLEL_DEPTH));
+        p.setProperty("global.conf.octreepageddepth", Integer.toString(GlobalConf.performance.OCTREE_PAGED_DEPTH));
 
         /** POSTPROCESS **/
         p.setProperty("postprocess.antialiasing", Integer.toString(GlobalConf.postprocess.POSTPROCESS_ANTIALIAS.getAACode()));
@@ -583,6 +596,7 @@ public class DesktopConfInit extends ConfInit {
         p.setProperty("scene.shadowmapping.nshadows", Integer.toString(GlobalConf.scene.SHADOW_MAPPING_N_SHADOWS));
         p.setProperty("scene.shadowmapping.resolution", Integer.toString(GlobalConf.scene.SHADOW_MAPPING_RESOLUTION));
         p.setProperty("scene.octree.maxstars", Long.toString(GlobalConf.scene.MAX_LOADED_STARS));
+        p.setProperty("scene.octree.maxmem", Long.toString(GlobalConf.scene.MAX_LOADED_MEMORY_MB));
         p.setProperty("scene.elevation.type", GlobalConf.scene.ELEVATION_TYPE.toString().toLowerCase());
         p.setProperty("scene.elevation.multiplier", Double.toString(GlobalConf.scene.ELEVATION_MULTIPLIER));
         p.setProperty("scene.tessellation.quality", Double.toString(GlobalConf.scene.TESSELLATION_QUALITY));
@@ -151,6 +151,48 @@ public class CamRecorder implements IObserver {
 
     }
 
+    public boolean isPlaying() {
+        return mode == RecorderState.PLAYING && is != null;
+    }
+
+    /**
+     * Reads ahead the camera file being played, without consuming it, to get the
+     * camera position and direction at the given upcoming frames.
+     *
+     * @param frames     The frame offsets from the current frame, in strictly ascending order
+     * @param positions  Vectors to put the positions in
+     * @param directions Vectors to put the directions in
+     * @return The number of frames read, which is smaller than the number of frames requested
+     * if the file ends before
+     */
+    public int peekFrames(int[] frames, Vector3d[] positions, Vector3d[] directions) {
+        if (!isPlaying() || frames.length == 0)
+            return 0;
+        int n = 0;
+        try {
+            // Lines are usually well below 512 characters
+            is.mark(frames[frames.length - 1] * 512 + 1024);
+            int frame = 0;
+            String line;
+            while (n < frames.length && (line = is.readLine()) != null) {
+                line = line.strip();
+                if (!line.startsWith("#")) {
+                    frame++;
+                    if (frame == frames[n]) {
+                        String[] tokens = line.split("\\s+");
+                        positions[n].set(Parser.parseDouble(tokens[1]), Parser.parseDouble(tokens[2]), Parser.parseDouble(tokens[3]));
+                        directions[n].set(Parser.parseDouble(tokens[4]), Parser.parseDouble(tokens[5]), Parser.parseDouble(tokens[6]));
+                        n++;
+                    }
+                }
+            }
+            is.reset();
+        } catch (IOException e) {
+            logger.error(e);
+        }
+        return n;
+    }
+
     @Override
     public void notify(final Events event, final Object... data) {
         switch (event) {
@@ -277,6 +277,12 @@ public enum Events {
     DEBUG_OBJECTS,
     DEBUG_QUEUE,
     DEBUG_RAM,
+    /**
+     * Octree streaming info. Contains the bytes read per second, the 95th percentile
+     * of the octant load latency in ms, the evictions per second (doubles), and the
+     * number of reloads and aborted loads (longs)
+     **/
+    DEBUG_STREAMING,
     /**
      * Debug info
      **/
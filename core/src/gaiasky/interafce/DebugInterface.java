@@ -34,6 +34,10 @@ public class DebugInterface extends TableGuiInterface implements IObserver {
     private final OwnLabel debugObjectsLoaded;
     private final OwnLabel debugOcObserved;
     private final OwnLabel debugOcQueue;
+    private final OwnLabel debugStreamRead;
+    private final OwnLabel debugStreamLatency;
+    private final OwnLabel debugStreamEvictions;
+    private final OwnLabel debugStreamReloads;
     private final OwnLabel debugSamp;
     private final OwnLabel fps;
     private final OwnLabel spf;
@@ -228,6 +232,29 @@ public class DebugInterface extends TableGuiInterface implements IObserver {
         extra.add(lodLabel).left().padBottom(pad20);
         extra.row();
 
+        /* STREAMING */
+        debugStreamRead = new OwnLabel("", skin, "hud");
+        debugStreamLatency = new OwnLabel("", skin, "hud");
+        debugStreamEvictions = new OwnLabel("", skin, "hud");
+        debugStreamReloads = new OwnLabel("", skin, "hud");
+
+        Table streamingTable = new Table(skin);
+        streamingTable.add(new OwnLabel(I18n.txt("gui.debug.stream.read"), skin, "hud")).right().padRight(pad10);
+        streamingTable.add(debugStreamRead).right().row();
+        streamingTable.add(new OwnLabel(I18n.txt("gui.debug.stream.latency"), skin, "hud")).right().padRight(pad10);
+        streamingTable.add(debugStreamLatency).right().row();
+        streamingTable.add(new OwnLabel(I18n.txt("gui.debug.stream.evictions"), skin, "hud")).right().padRight(pad10);
+        streamingTable.add(debugStreamEvictions).right().row();
+        streamingTable.add(new OwnLabel(I18n.txt("gui.debug.stream.reloads"), skin, "hud")).right().padRight(pad10);
+        streamingTable.add(debugStreamReloads).right();
+
+        Label streamingLabel = new OwnLabel(I18n.txt("gui.debug.stream"), skin, "hud-big");
+        streamingLabel.addListener(new OwnTextTooltip(I18n.txt("gui.debug.stream.info"), skin));
+        streamingLabel.setColor(skin.getColor("theme"));
+        extra.add(streamingTable).right().padRight(pad10).padBottom(pad20);
+        extra.add(streamingLabel).left().padBottom(pad20);
+        extra.row();
+
         /* SAMP */
         debugSamp = new OwnLabel("", skin, "hud");
         Table sampTable = new Table(skin);
@@ -243,7 +270,7 @@ public class DebugInterface extends TableGuiInterface implements IObserver {
 
         this.setVisible(GlobalConf.program.SHOW_DEBUG_INFO);
         this.lock = lock;
-        EventManager.instance.subscribe(this, Events.DEBUG_TIME, Events.DEBUG_RAM, Events.DEBUG_VRAM, Events.DEBUG_OBJECTS, Events.DEBUG_QUEUE, Events.FPS_INFO, Events.SHOW_DEBUG_CMD, Events.SAMP_INFO);
+        EventManager.instance.subscribe(this, Events.DEBUG_TIME, Events.DEBUG_RAM, Events.DEBUG_VRAM, Events.DEBUG_OBJECTS, Events.DEBUG_QUEUE, Events.DEBUG_STREAMING, Events.FPS_INFO, Events.SHOW_DEBUG_CMD, Events.SAMP_INFO);
     }
 
     private void unsubscribe() {
@@ -331,6 +358,19 @@ public class DebugInterface extends TableGuiInterface implements IObserver {
                     previousQueueSize = queueSize;
                 }
                 break;
+            case DEBUG_STREAMING:
+                if (GlobalConf.program.SHOW_DEBUG_INFO && data.length > 0) {
+                    double bytesRate = (Double) data[0];
+                    double latency = (Double) data[1];
+                    double evictionRate = (Double) data[2];
+                    long reloads = (Long) data[3];
+                    long aborts = (Long) data[4];
+                    debugStreamRead.setText(memFormatter.format(bytesRate / (1024d * 1024d)) + " " + I18n.txt("gui.debug.stream.read.unit"));
+                    debugStreamLatency.setText(spfFormatter.format(latency) + " " + I18n.txt("gui.debug.ms"));
+                    debugStreamEvictions.setText(spfFormatter.format(evictionRate) + " " + I18n.txt("gui.debug.stream.evictions.unit"));
+                    debugStreamReloads.setText(reloads + " / " + aborts);
+                }
+                break;
             case FPS_INFO:
                 if (GlobalConf.program.SHOW_DEBUG_INFO && data.length > 0) {
                     double dfps = (Float) data[0];
@@ -12,6 +12,8 @@ import com.badlogic.gdx.scenes.scene2d.InputEvent.Type;
 import com.badlogic.gdx.scenes.scene2d.Stage;
 import com.badlogic.gdx.scenes.scene2d.ui.Cell;
 import com.badlogic.gdx.scenes.scene2d.ui.Skin;
+import com.badlogic.gdx.scenes.scene2d.ui.Table;
+import com.badlogic.gdx.scenes.scene2d.utils.ChangeListener.ChangeEvent;
 import gaiasky.GaiaSky;
 import gaiasky.event.EventManager;
 import gaiasky.event.Events;
@@ -26,15 +28,20 @@ import gaiasky.util.I18n;
 import gaiasky.util.Logger;
 import gaiasky.util.Logger.Log;
 import gaiasky.util.scene2d.OwnLabel;
+import gaiasky.util.scene2d.OwnTextButton;
 import gaiasky.util.scene2d.OwnTextField;
 
 public class SearchDialog extends GenericDialog {
     private static final Log logger = Logger.getLogger(SearchDialog.class);
+    /** Maximum number of names suggested for the current text **/
+    private static final int MAX_SUGGESTIONS = 10;
 
     private OwnTextField searchInput;
     private String currentInputText = "";
     private Cell<OwnLabel> infoCell;
     private OwnLabel infoMessage;
+    private Cell<Table> suggestionsCell;
+    private Table suggestions;
     private final ISceneGraph sg;
 
     public SearchDialog(Skin skin, Stage ui,  final ISceneGraph sg) {
@@ -65,15 +72,17 @@ public class SearchDialog extends GenericDialog {
                         // Process only if text changed
                         currentInputText = searchInput.getText();
                         String name = currentInputText.toLowerCase().trim();
-                        if(!checkString(name, sg)){
+                        boolean found = checkString(name, sg);
+                        if(!found){
                             if(name.matches("[0-9]+")){
                                 // Check with 'HIP '
-                                checkString("hip " + name, sg);
+                                found = checkString("hip " + name, sg);
                             } else if(name.matches("hip [0-9]+") || name.matches("HIP [0-9]+")){
                                 // Check without 'HIP '
-                                checkString(name.substring(4), sg);
+                                found = checkString(name.substring(4), sg);
                             }
                         }
+                        suggest(found ? null : name);
                     }
 
                     if(GaiaSky.instance.getICamera() instanceof NaturalCamera)
@@ -89,6 +98,38 @@ public class SearchDialog extends GenericDialog {
         content.add(searchInput).top().left().expand().row();
         infoCell = content.add();
         infoCell.top().left().padTop(pad5).expand().row();
+
+        // Names starting with the text
+        suggestions = new Table(skin);
+        suggestionsCell = content.add((Table) null);
+        suggestionsCell.top().left().padTop(pad5).expand().row();
+    }
+
+    /**
+     * Lists the names which start with the given prefix, so that they can be picked
+     *
+     * @param prefix The prefix, or null to clear the list
+     */
+    private void suggest(String prefix) {
+        suggestions.clear();
+        if (prefix != null) {
+            for (String name : sg.findNames(prefix, MAX_SUGGESTIONS)) {
+                OwnTextButton suggestion = new OwnTextButton(name, skin);
+                suggestion.addListener(event -> {
+                    if (event instanceof ChangeEvent) {
+                        searchInput.setText(name);
+                        currentInputText = name;
+                        if (checkString(name, sg))
+                            suggest(null);
+                        return true;
+                    }
+                    return false;
+                });
+                suggestions.add(suggestion).left().padBottom(pad5).row();
+            }
+        }
+        suggestionsCell.setActor(suggestions.hasChildren() ? suggestions : null);
+        pack();
     }
 
     @Override
@@ -156,6 +197,7 @@ public class SearchDialog extends GenericDialog {
 
     public void clearText() {
         searchInput.setText("");
+        suggest(null);
     }
 
     @Override
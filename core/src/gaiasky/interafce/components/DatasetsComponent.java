@@ -5,6 +5,7 @@
 
 package gaiasky.interafce.components;
 
+import com.badlogic.gdx.scenes.scene2d.Action;
 import com.badlogic.gdx.scenes.scene2d.Stage;
 import com.badlogic.gdx.scenes.scene2d.ui.*;
 import com.badlogic.gdx.scenes.scene2d.utils.ChangeListener.ChangeEvent;
@@ -15,6 +16,7 @@ import gaiasky.event.IObserver;
 import gaiasky.interafce.ColormapPicker;
 import gaiasky.interafce.ControlsWindow;
 import gaiasky.interafce.DatasetPreferencesWindow;
+import gaiasky.scenegraph.ParticleGroup;
 import gaiasky.util.*;
 import gaiasky.util.scene2d.*;
 
@@ -152,6 +154,27 @@ public class DatasetsComponent extends GuiComponent implements IObserver {
         OwnLabel typesLabel = new OwnLabel(TextUtils.capString(types, cap), skin);
         typesLabel.addListener(new OwnTextTooltip(types, skin));
         t.add(typesLabel).colspan(2).left().row();
+        if (ci.object instanceof ParticleGroup) {
+            // Number of objects, updated while they are being loaded
+            OwnLabel objects = new OwnLabel(objectsText(ci), skin);
+            if (ci.loading) {
+                objects.addAction(new Action() {
+                    private float time = 0;
+
+                    @Override
+                    public boolean act(float delta) {
+                        time += delta;
+                        boolean done = !ci.loading;
+                        if (time >= 0.5f || done) {
+                            time = 0;
+                            objects.setText(objectsText(ci));
+                        }
+                        return done;
+                    }
+                });
+            }
+            t.add(objects).colspan(2).left().row();
+        }
         OwnLabel desc = new OwnLabel(TextUtils.capString(ci.description, cap), skin);
         desc.addListener(new OwnTextTooltip(ci.description, skin));
         t.add(desc).left().expandX();
@@ -181,6 +204,10 @@ public class DatasetsComponent extends GuiComponent implements IObserver {
         groupMap.put(ci.name, ciGroup);
     }
 
+    private String objectsText(CatalogInfo ci) {
+        return I18n.txt(ci.loading ? "gui.dataset.objects.loading" : "gui.dataset.objects", ci.nParticles);
+    }
+
     @Override
     public void notify(final Events event, final Object... data) {
         switch (event) {
@@ -127,14 +127,15 @@ public class StarGroupRenderSystem extends ImmediateRenderSystem implements IObs
                             int nadded = 0;
                             for (int i = 0; i < n; i++) {
                                 if (starGroup.filter(i)) {
-                                    StarBean sb = (StarBean) starGroup.data().get(i);
-                                    if (!Double.isFinite(sb.size())) {
-                                        logger.debug("Star " + sb.id + " has a non-finite size");
+                                    double size = starGroup.getSize(i);
+                                    if (!Double.isFinite(size)) {
+                                        logger.debug("Star " + starGroup.getId(i) + " has a non-finite size");
                                         continue;
                                     }
                                     // COLOR
                                     if (hlCmap) {
                                         // Color map
+                                        StarBean sb = (StarBean) starGroup.get(i);
                                         double[] color = cmap.colormap(starGroup.getHlcmi(), starGroup.getHlcma().get(sb), starGroup.getHlcmmin(), starGroup.getHlcmmax());
                                         tempVerts[curr.vertexIdx + curr.colorOffset] = Color.toFloatBits((float) color[0], (float) color[1], (float) color[2], 1.0f);
                                     } else {
@@ -143,18 +144,18 @@ public class StarGroupRenderSystem extends ImmediateRenderSystem implements IObs
                                     }
 
                                     // SIZE, APPMAG
-                                    tempVerts[curr.vertexIdx + additionalOffset + 0] = (float) (sb.size() * Constants.STAR_SIZE_FACTOR) * starGroup.highlightedSizeFactor();
-                                    tempVerts[curr.vertexIdx + additionalOffset + 1] = (float) sb.appmag();
+                                    tempVerts[curr.vertexIdx + additionalOffset + 0] = (float) (size * Constants.STAR_SIZE_FACTOR) * starGroup.highlightedSizeFactor();
+                                    tempVerts[curr.vertexIdx + additionalOffset + 1] = starGroup.getAppmag(i);
 
                                     // POSITION [u]
-                                    tempVerts[curr.vertexIdx] = (float) sb.x();
-                                    tempVerts[curr.vertexIdx + 1] = (float) sb.y();
-                                    tempVerts[curr.vertexIdx + 2] = (float) sb.z();
+                                    tempVerts[curr.vertexIdx] = (float) starGroup.getX(i);
+                                    tempVerts[curr.vertexIdx + 1] = (float) starGroup.getY(i);
+                                    tempVerts[curr.vertexIdx + 2] = (float) starGroup.getZ(i);
 
                                     // PROPER MOTION [u/yr]
-                                    tempVerts[curr.vertexIdx + pmOffset] = (float) sb.pmx();
-                                    tempVerts[curr.vertexIdx + pmOffset + 1] = (float) sb.pmy();
-                                    tempVerts[curr.vertexIdx + pmOffset + 2] = (float) sb.pmz();
+                                    tempVerts[curr.vertexIdx + pmOffset] = (float) starGroup.getPmX(i);
+                                    tempVerts[curr.vertexIdx + pmOffset + 1] = (float) starGroup.getPmY(i);
+                                    tempVerts[curr.vertexIdx + pmOffset + 2] = (float) starGroup.getPmZ(i);
 
                                     curr.vertexIdx += curr.vertexSize;
                                     nadded++;
@@ -7,20 +7,18 @@ package gaiasky.scenegraph;
 
 import com.badlogic.gdx.utils.Array;
 import gaiasky.GaiaSky;
-import gaiasky.scenegraph.ParticleGroup.ParticleBean;
-import gaiasky.scenegraph.StarGroup.StarBean;
 import gaiasky.scenegraph.octreewrapper.AbstractOctreeWrapper;
 import gaiasky.util.I18n;
 import gaiasky.util.Logger;
 import gaiasky.util.Logger.Log;
+import gaiasky.util.ds.NameDictionary;
+import gaiasky.util.ds.NameIndex;
 import gaiasky.util.math.Vector3d;
 import gaiasky.util.time.ITimeFrameProvider;
 import gaiasky.util.tree.IPosition;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
+import java.util.stream.Collectors;
 
 public abstract class AbstractSceneGraph implements ISceneGraph {
     private static final Log logger = Logger.getLogger(AbstractSceneGraph.class);
@@ -29,6 +27,8 @@ public abstract class AbstractSceneGraph implements ISceneGraph {
     public SceneGraphNode root;
     /** Quick lookup map. Name to node. **/
     protected Map<String, SceneGraphNode> stringToNode;
+    /** Names of the objects of particle and star groups. Name to group and index. **/
+    protected NameIndex<SceneGraphNode> nameIndex;
     /**
      * Map from integer to position with all Hipparcos stars, for the
      * constellations
@@ -77,6 +77,7 @@ public abstract class AbstractSceneGraph implements ISceneGraph {
         // Initialize stringToNode and starMap maps
         stringToNode = new HashMap<>(nodes.size);
         stringToNode.put(root.names[0].toLowerCase().trim(), root);
+        nameIndex = new NameIndex<>();
         hipMap = new HashMap<>();
         for (SceneGraphNode node : nodes) {
             addToIndex(node, stringToNode);
@@ -142,12 +143,13 @@ public abstract class AbstractSceneGraph implements ISceneGraph {
                         hipMap.put(((Star) s).hip, s);
                     }
                 }
-            } else if (node instanceof StarGroup) {
-                List<ParticleBean> stars = ((StarGroup) node).data();
-                for (ParticleBean pb : stars) {
-                    StarBean s = (StarBean) pb;
-                    if (s.hip() > 0) {
-                        hipMap.put(s.hip(), new Position(s.x(), s.y(), s.z(), s.pmx(), s.pmy(), s.pmz()));
+            } else if (node instanceof StarGroup && ((StarGroup) node).hasHipStars()) {
+                StarGroup sg = (StarGroup) node;
+                int n = sg.size();
+                for (int i = 0; i < n; i++) {
+                    int hip = sg.getHip(i);
+                    if (hip > 0) {
+                        hipMap.put(hip, new Position(sg.getX(i), sg.getY(i), sg.getZ(i), sg.getPmX(i), sg.getPmY(i), sg.getPmZ(i)));
                     }
                 }
             }
@@ -169,12 +171,12 @@ public abstract class AbstractSceneGraph implements ISceneGraph {
                 }
             } else if (node instanceof StarGroup) {
                 StarGroup sg = (StarGroup) node;
-                List<ParticleBean> arr = sg.data();
-                if (arr != null) {
-                    for (ParticleBean pb : arr) {
-                        StarBean sb = (StarBean) pb;
-                        if (sb != null && sb.hip() >= 0)
-                            hipMap.remove(sb.hip());
+                if (sg.data() != null && sg.hasHipStars()) {
+                    int n = sg.size();
+                    for (int i = 0; i < n; i++) {
+                        int hip = sg.getHip(i);
+                        if (hip >= 0)
+                            hipMap.remove(hip);
                     }
                 }
             }
@@ -204,6 +206,8 @@ public abstract class AbstractSceneGraph implements ISceneGraph {
             // Special cases
             node.addToIndex(map);
         }
+        // Names of the objects of groups
+        addNodeNames(node);
     }
 
     private void removeFromIndex(SceneGraphNode node, Map<String, SceneGraphNode> map) {
@@ -221,6 +225,7 @@ public abstract class AbstractSceneGraph implements ISceneGraph {
             // Special cases
             node.removeFromIndex(map);
         }
+        nameIndex.remove(node);
     }
 
     public synchronized void addNodeAuxiliaryInfo(SceneGraphNode node) {
@@ -237,14 +242,50 @@ public abstract class AbstractSceneGraph implements ISceneGraph {
         removeFromHipMap(node);
     }
 
+    public void addNodeNames(SceneGraphNode node) {
+        if (node instanceof ParticleGroup) {
+            Array<NameDictionary> names = ((ParticleGroup) node).getNameIndex();
+            if (names != null) {
+                for (NameDictionary dictionary : names)
+                    nameIndex.add(node, dictionary);
+            }
+        }
+    }
+
+    public void addNodeNames(SceneGraphNode node, NameDictionary names) {
+        nameIndex.add(node, names);
+    }
+
+    public void removeNodeNames(SceneGraphNode node) {
+        nameIndex.remove(node);
+    }
+
+    public synchronized List<String> findNames(String prefix, int max) {
+        String lcprefix = prefix.toLowerCase().trim();
+        List<String> names = new ArrayList<>();
+        for (String name : stringToNode.keySet()) {
+            if (name.startsWith(lcprefix))
+                names.add(name);
+        }
+        for (NameIndex.Match<SceneGraphNode> match : nameIndex.find(lcprefix, max))
+            names.add(match.name);
+        return names.stream().distinct().sorted().limit(max).collect(Collectors.toList());
+    }
+
     public boolean containsNode(String name) {
-        return stringToNode.containsKey(name.toLowerCase().trim());
+        name = name.toLowerCase().trim();
+        return stringToNode.containsKey(name) || nameIndex.contains(name);
     }
 
     public SceneGraphNode getNode(String name) {
         //return root.getNode(name);
         name = name.toLowerCase().strip();
         SceneGraphNode node = stringToNode.get(name);
+        if (node == null) {
+            NameIndex.Match<SceneGraphNode> match = nameIndex.get(name);
+            if (match != null)
+                node = match.owner;
+        }
         if (node != null && node instanceof StarGroup)
             ((StarGroup) node).getFocus(name);
         return node;
@@ -8,9 +8,11 @@ package gaiasky.scenegraph;
 import com.badlogic.gdx.utils.Array;
 import com.badlogic.gdx.utils.Disposable;
 import gaiasky.scenegraph.camera.ICamera;
+import gaiasky.util.ds.NameDictionary;
 import gaiasky.util.time.ITimeFrameProvider;
 import gaiasky.util.tree.IPosition;
 
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -83,6 +85,40 @@ public interface ISceneGraph extends Disposable {
      */
     void removeNodeAuxiliaryInfo(SceneGraphNode node);
 
+    /**
+     * Adds the names of the objects of the node, if it is a particle group, to the name index,
+     * without the rest of the auxiliary info.
+     *
+     * @param node The node
+     */
+    void addNodeNames(SceneGraphNode node);
+
+    /**
+     * Adds the given names of the node to the name index. Used by nodes which grow
+     * after being inserted, like particle groups loaded progressively.
+     *
+     * @param node  The node
+     * @param names The new names
+     */
+    void addNodeNames(SceneGraphNode node, NameDictionary names);
+
+    /**
+     * Removes the names of the objects of the node from the name index.
+     *
+     * @param node The node
+     */
+    void removeNodeNames(SceneGraphNode node);
+
+    /**
+     * Finds the names of the nodes and of the objects of the particle groups which start with the
+     * given prefix, ignoring case.
+     *
+     * @param prefix The prefix
+     * @param max    The maximum number of names
+     * @return The names, in lower case, sorted
+     */
+    List<String> findNames(String prefix, int max);
+
     /**
      * Gets a star map: HIP -&gt; IPosition It only contains the stars with HIP
      * number
@@ -11,6 +11,7 @@ import com.badlogic.gdx.graphics.GL20;
 import com.badlogic.gdx.graphics.PerspectiveCamera;
 import com.badlogic.gdx.math.Vector3;
 import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntArray;
 import com.badlogic.gdx.utils.TimeUtils;
 import gaiasky.GaiaSky;
 import gaiasky.data.group.DatasetOptions;
@@ -32,18 +33,26 @@ import gaiasky.util.*;
 import gaiasky.util.CatalogInfo.CatalogInfoType;
 import gaiasky.util.coord.Coordinates;
 import gaiasky.util.ds.DatasetUpdater;
+import gaiasky.util.ds.IndexSort;
+import gaiasky.util.ds.NameDictionary;
+import gaiasky.util.filter.Filter;
 import gaiasky.util.filter.attrib.IAttribute;
 import gaiasky.util.gdx.g2d.ExtSpriteBatch;
 import gaiasky.util.gdx.shader.ExtShaderProgram;
 import gaiasky.util.gravwaves.RelativisticEffectsManager;
 import gaiasky.util.math.*;
 import gaiasky.util.time.ITimeFrameProvider;
+import gaiasky.util.tree.KdTree;
 import gaiasky.util.tree.OctreeNode;
+import gaiasky.util.tree.SkyGrid;
 import gaiasky.util.ucd.UCD;
 import net.jafama.FastMath;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class represents a group of non-focusable particles, all with the same
@@ -276,8 +285,8 @@ public class ParticleGroup extends FadeNode implements I3DTextRenderable, IFocus
 
     }
 
-    // Sequence id
-    private static long idSeq = 0;
+    // Sequence id, groups may be created concurrently by the octant loaders
+    private static final AtomicLong idSeq = new AtomicLong(0);
 
     /**
      * List that contains the point data. It contains only [x y z]
@@ -390,8 +399,8 @@ public class ParticleGroup extends FadeNode implements I3DTextRenderable, IFocus
     // Has been disposed
     public boolean disposed = false;
 
-    // Name index
-    protected Map<String, Integer> index;
+    // Name index, with one dictionary for the data plus one per streamed batch
+    protected Array<NameDictionary> index;
 
     // Minimum amount of time [ms] between two update calls
     protected static final double MIN_UPDATE_TIME_MS = 200;
@@ -399,17 +408,38 @@ public class ParticleGroup extends FadeNode implements I3DTextRenderable, IFocus
     // Metadata, for sorting
     protected double[] metadata;
 
-    // Comparator
-    private final Comparator<Integer> comp;
+    // Minimum number of objects per metadata task
+    protected static final int METADATA_TASK_SIZE = 50000;
 
     // Indices list buffer 1
-    protected Integer[] indices1;
+    protected int[] indices1;
     // Indices list buffer 2
-    protected Integer[] indices2;
+    protected int[] indices2;
     // Active indices list
-    protected Integer[] active;
+    protected int[] active;
     // Background indices list (the one we sort)
-    protected Integer[] background;
+    protected int[] background;
+
+    // Number of particles with labels, which are the first ones in the active list
+    protected static final int N_LABELS = 50;
+
+    // Whether to sort the whole active list instead of only its first elements, see getSortLimit()
+    protected boolean fullSort = false;
+
+    // Spatial index, built in the sorter thread, see getSpatialIndex(double)
+    protected volatile KdTree spatialIndex;
+    // Whether to use the spatial index. If null, it is used for groups of at least SPATIAL_INDEX_MIN_SIZE objects
+    protected Boolean useSpatialIndex = null;
+    protected static final int SPATIAL_INDEX_MIN_SIZE = 100000;
+
+    // Maximum ratio of the distance to the beam to the distance to the camera of beam hits
+    protected static final double BEAM_HIT_RATIO = 0.01;
+
+    // Angular index of the objects as seen from the camera, to find the ones hit by a click or a beam. Main thread only
+    protected SkyGrid skyGrid;
+    protected static final int SKY_GRID_MIN_SIZE = 20000;
+    // Safety factor of the angles of the sky grid queries, for rounding errors
+    protected static final double PICK_MARGIN = 1.1;
 
     // Is it updating?
     protected volatile boolean updating = false;
@@ -422,15 +452,15 @@ public class ParticleGroup extends FadeNode implements I3DTextRenderable, IFocus
     // Last sort position
     protected Vector3d lastSortCameraPos;
 
-    /**
-     * Uses whatever precomputed value is in index 8 to compare the values
-     */
-    private class ParticleGroupComparator implements Comparator<Integer> {
-        @Override
-        public int compare(Integer i1, Integer i2) {
-            return Double.compare(metadata[i1], metadata[i2]);
-        }
-    }
+    // Batches of streamed objects waiting to be appended
+    protected List<List<ParticleBean>> pendingBatches;
+    // Number of objects in the GPU mesh
+    protected int gpuSize = 0;
+    // Whether the objects are still being streamed
+    protected boolean streaming = false;
+
+    // Grow factor of the group before the GPU mesh is rebuilt while streaming
+    protected static final double STREAM_UPLOAD_GROWTH = 0.25;
 
     // Updates the group
     public class UpdaterTask implements Runnable {
@@ -450,7 +480,7 @@ public class ParticleGroup extends FadeNode implements I3DTextRenderable, IFocus
 
     public ParticleGroup() {
         super();
-        id = idSeq++;
+        id = idSeq.getAndIncrement();
         inGpu = false;
         focusIndex = -1;
         closestPos = new Vector3d();
@@ -458,7 +488,6 @@ public class ParticleGroup extends FadeNode implements I3DTextRenderable, IFocus
         focusPosition = new Vector3d();
         focusPositionSph = new Vector2d();
         lastSortCameraPos = new Vector3d(Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE);
-        this.comp = new ParticleGroupComparator();
         EventManager.instance.subscribe(this, Events.FOCUS_CHANGED, Events.CAMERA_MOTION_UPDATE);
     }
 
@@ -547,8 +576,8 @@ public class ParticleGroup extends FadeNode implements I3DTextRenderable, IFocus
         metadata = new double[pointData.size()];
 
         // Initialise indices list with natural order
-        indices1 = new Integer[pointData.size()];
-        indices2 = new Integer[pointData.size()];
+        indices1 = new int[pointData.size()];
+        indices2 = new int[pointData.size()];
         for (int i = 0; i < pointData.size(); i++) {
             indices1[i] = i;
             indices2[i] = i;
@@ -575,6 +604,8 @@ public class ParticleGroup extends FadeNode implements I3DTextRenderable, IFocus
 
     public void setData(List<ParticleBean> pointData, boolean regenerateIndex) {
         this.pointData = pointData;
+        this.spatialIndex = null;
+        this.skyGrid = null;
 
         // Regenerate index
         if (regenerateIndex)
@@ -585,49 +616,77 @@ public class ParticleGroup extends FadeNode implements I3DTextRenderable, IFocus
      * Regenerates the name index
      */
     public void regenerateIndex() {
-        index = generateIndex(data());
+        setIndex(generateIndex(data()));
+    }
+
+    /**
+     * Sets the name index of this group
+     *
+     * @param names The names of all the objects
+     */
+    protected void setIndex(NameDictionary names) {
+        Array<NameDictionary> index = new Array<>(false, 1, NameDictionary.class);
+        index.add(names);
+        this.index = index;
+    }
+
+    /**
+     * Gets the name index of this group. The scene graph indexes the names of the group with it
+     *
+     * @return The dictionaries with the names of the objects, or null if there is no index
+     */
+    public Array<NameDictionary> getNameIndex() {
+        return index;
     }
 
     /**
      * Generates the index (maps name to array index)
-     * and computes the geometric center of this group
      *
      * @param pointData The data
-     * @return An map{string,int} mapping names to indices
+     * @return The dictionary mapping names to indices
      */
-    public Map<String, Integer> generateIndex(List<? extends ParticleBean> pointData) {
-        Map<String, Integer> index = new HashMap<>();
-        int n = pointData.size();
-        for (int i = 0; i < n; i++) {
+    public NameDictionary generateIndex(List<? extends ParticleBean> pointData) {
+        return generateIndex(pointData, 0, pointData.size());
+    }
+
+    /**
+     * Generates the index of the given range of objects
+     *
+     * @param pointData The data
+     * @param from      The first object
+     * @param to        The end of the range, exclusive
+     * @return The dictionary mapping names to indices
+     */
+    protected NameDictionary generateIndex(List<? extends ParticleBean> pointData, int from, int to) {
+        NameDictionary.Builder index = new NameDictionary.Builder(to - from);
+        for (int i = from; i < to; i++) {
             ParticleBean pb = pointData.get(i);
             if (pb.names != null) {
-                for (String lcname : pb.names) {
-                    lcname = lcname.toLowerCase();
-                    index.put(lcname, i);
+                for (String name : pb.names) {
+                    index.add(name, i);
                 }
             }
         }
-        return index;
-    }
-
-    @Override
-    protected void addToIndex(Map<String, SceneGraphNode> map) {
-        if (index != null) {
-            Set<String> keys = index.keySet();
-            for (String key : keys) {
-                map.put(key, this);
-            }
-        }
+        return index.build();
     }
 
-    @Override
-    protected void removeFromIndex(Map<String, SceneGraphNode> map) {
-        if (index != null) {
-            Set<String> keys = index.keySet();
-            for (String key : keys) {
-                map.remove(key);
-            }
+    /**
+     * Gets the index of the object with the given name
+     *
+     * @param name The name, in any case
+     * @return The index, or -1 if no object has the name
+     */
+    protected int indexOf(String name) {
+        Array<NameDictionary> index = this.index;
+        if (index == null)
+            return -1;
+        byte[] key = NameDictionary.key(name);
+        for (int j = index.size - 1; j >= 0; j--) {
+            int i = index.get(j).get(key);
+            if (i >= 0)
+                return i;
         }
+        return -1;
     }
 
     public ParticleBean get(int index) {
@@ -682,7 +741,134 @@ public class ParticleGroup extends FadeNode implements I3DTextRenderable, IFocus
         return pointData.size();
     }
 
+    /**
+     * Appends a batch of streamed objects to this group, which must have gone through {@link #doneLoading(AssetManager)}.
+     * Runs in the main thread. The objects are added as soon as no sort operation is running, and the name index, the
+     * sorting buffers and the catalog info are extended accordingly. The GPU mesh is rebuilt whenever the group has
+     * grown by {@link #STREAM_UPLOAD_GROWTH} since the last upload, so that the total upload cost stays linear in the
+     * number of objects. Call {@link #finishStreaming()} when the last batch has arrived.
+     *
+     * @param batch The objects to append
+     */
+    public void append(List<ParticleBean> batch) {
+        if (disposed || batch == null || batch.isEmpty())
+            return;
+        if (pendingBatches == null)
+            pendingBatches = new ArrayList<>();
+        pendingBatches.add(batch);
+        streaming = true;
+        if (catalogInfo != null)
+            catalogInfo.loading = true;
+        flushPending();
+    }
+
+    /**
+     * Adds the pending streamed batches, if the sorter is not running
+     */
+    protected void flushPending() {
+        if (pendingBatches == null || pendingBatches.isEmpty() || updating || disposed || active == null)
+            return;
+        int n0 = pointData.size();
+        if (!(pointData instanceof ArrayList))
+            pointData = new ArrayList<>(pointData);
+        for (List<ParticleBean> batch : pendingBatches)
+            pointData.addAll(batch);
+        pendingBatches.clear();
+        int n = pointData.size();
+
+        // Sorting buffers, the new objects go at the end in natural order
+        metadata = Arrays.copyOf(metadata, n);
+        int[] a = Arrays.copyOf(active, n);
+        int[] b = Arrays.copyOf(background, n);
+        for (int i = n0; i < n; i++) {
+            a[i] = i;
+            b[i] = i;
+        }
+        if (active == indices1) {
+            indices1 = a;
+            indices2 = b;
+        } else {
+            indices1 = b;
+            indices2 = a;
+        }
+        active = a;
+        background = b;
+
+        // Name index, a new dictionary per flush
+        NameDictionary names = generateIndex(pointData, n0, n);
+        if (names.size() > 0) {
+            if (index == null)
+                setIndex(names);
+            else
+                index.add(names);
+            if (inSceneGraph)
+                sg.addNodeNames(this, names);
+        }
+
+        if (catalogInfo != null)
+            catalogInfo.nParticles = n;
+
+        spatialIndex = null;
+        skyGrid = null;
+        dataAppended(n0, n);
+
+        if (inGpu && n - gpuSize >= gpuSize * STREAM_UPLOAD_GROWTH)
+            setInGpu(false);
+    }
+
+    /**
+     * Called when streamed objects have been appended to the data list
+     *
+     * @param from Index of the first new object
+     * @param to   The new size
+     */
+    protected void dataAppended(int from, int to) {
+    }
+
+    /**
+     * Marks the end of the streamed data. Once the pending batches are in, the distances and the mean position
+     * are recomputed and the GPU mesh is rebuilt with all the objects. Runs in the main thread.
+     */
+    public void finishStreaming() {
+        if (disposed)
+            return;
+        if (pendingBatches != null && !pendingBatches.isEmpty()) {
+            // Wait for the sorter
+            GaiaSky.postRunnable(this::finishStreaming);
+            return;
+        }
+        streaming = false;
+        pendingBatches = null;
+        updateStreamedStatistics();
+        if (gpuSize != size())
+            setInGpu(false);
+        if (catalogInfo != null) {
+            catalogInfo.nParticles = size();
+            catalogInfo.loading = false;
+        }
+    }
+
+    /**
+     * Recomputes the properties derived from the whole data set once the streaming has finished
+     */
+    protected void updateStreamedStatistics() {
+        computeMinMeanMaxDistances();
+        if (!fixedMeanPosition) {
+            pos.set(0, 0, 0);
+            computeMeanPosition();
+        }
+    }
+
+    /**
+     * @return Whether the objects of this group are still being streamed
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
     public void update(ITimeFrameProvider time, final Vector3d parentTransform, ICamera camera, float opacity) {
+        if (streaming)
+            flushPending();
         if (pointData != null && this.isVisible()) {
             this.opacity = 1;
             super.update(time, parentTransform, camera, opacity);
@@ -691,14 +877,7 @@ public class ParticleGroup extends FadeNode implements I3DTextRenderable, IFocus
                 updateFocus(time, camera);
             }
 
-            if (active.length > 0 && this instanceof StarGroup) {
-                ParticleBean closest = pointData.get(active[0]);
-                closestAbsolutePos.set(closest.x(), closest.y(), closest.z());
-                closestPos.set(closestAbsolutePos).sub(camera.getPos());
-                closestDist = closestPos.len() - getRadius(active[0]);
-                closestName = closest.names != null ? closest.names[0] : this.names[0];
-                camera.checkClosestParticle(this);
-            }
+            // Star groups track their closest star themselves, through the index accessors
         }
     }
 
@@ -747,7 +926,7 @@ public class ParticleGroup extends FadeNode implements I3DTextRenderable, IFocus
         // Particle labels
         float thOverFactor = 1e-15f;
 
-        for (int i = 0; i < Math.min(50, pointData.size()); i++) {
+        for (int i = 0; i < Math.min(N_LABELS, pointData.size()); i++) {
             ParticleBean pb = pointData.get(active[i]);
             if (pb.names != null) {
                 Vector3d lpos = fetchPosition(pb, camera.getPos(), aux3d1.get(), 0);
@@ -943,8 +1122,8 @@ public class ParticleGroup extends FadeNode implements I3DTextRenderable, IFocus
     }
 
     public Vector3d getAbsolutePosition(String name, Vector3d out) {
-        if (index.containsKey(name)) {
-            int idx = index.get(name);
+        int idx = indexOf(name);
+        if (idx >= 0) {
             ParticleBean pb = pointData.get(idx);
             out.set(pb.x(), pb.y(), pb.z());
             return out;
@@ -1050,64 +1229,59 @@ public class ParticleGroup extends FadeNode implements I3DTextRenderable, IFocus
     }
 
     public void addHit(int screenX, int screenY, int w, int h, int pxdist, NaturalCamera camera, Array<IFocus> hits) {
-        int n = pointData.size();
         if (GaiaSky.instance.isOn(ct) && this.opacity > 0) {
-            Array<Pair<Integer, Double>> temporalHits = new Array<>();
-            for (int i = 0; i < n; i++) {
-                if (filter(i)) {
-                    ParticleBean pb = pointData.get(i);
-                    Vector3 pos = aux3f1.get();
-                    Vector3d posd = fetchPosition(pb, camera.getPos(), aux3d1.get(), getDeltaYears());
-                    pos.set(posd.valuesf());
-
-                    if (camera.direction.dot(posd) > 0) {
-                        // The particle is in front of us
-                        // Diminish the size of the star
-                        // when we are close by
-                        double dist = posd.len();
-                        double angle = getRadius(i) / dist / camera.getFovFactor();
-
-                        PerspectiveCamera pcamera;
-                        if (GlobalConf.program.STEREOSCOPIC_MODE) {
-                            if (screenX < Gdx.graphics.getWidth() / 2f) {
-                                pcamera = camera.getCameraStereoLeft();
-                                pcamera.update();
-                            } else {
-                                pcamera = camera.getCameraStereoRight();
-                                pcamera.update();
-                            }
-                        } else {
-                            pcamera = camera.camera;
-                        }
+            PerspectiveCamera pcamera;
+            if (GlobalConf.program.STEREOSCOPIC_MODE) {
+                if (screenX < Gdx.graphics.getWidth() / 2f) {
+                    pcamera = camera.getCameraStereoLeft();
+                    pcamera.update();
+                } else {
+                    pcamera = camera.getCameraStereoRight();
+                    pcamera.update();
+                }
+            } else {
+                pcamera = camera.camera;
+            }
 
-                        angle = (float) Math.toDegrees(angle * camera.fovFactor) * (40f / pcamera.fieldOfView);
-                        double pixelSize = Math.max(pxdist, ((angle * pcamera.viewportHeight) / pcamera.fieldOfView) / 2);
-                        pcamera.project(pos);
-                        pos.y = pcamera.viewportHeight - pos.y;
-                        if (GlobalConf.program.STEREOSCOPIC_MODE) {
-                            pos.x /= 2;
+            int best = -1;
+            double bestAngle = 0;
+            // In stereoscopic mode the screen is split, so all the objects are tested
+            SkyGrid grid = GlobalConf.program.STEREOSCOPIC_MODE ? null : getSkyGrid(camera);
+            if (grid != null) {
+                // Only test the objects around the direction of the click. An angle on the sky spans at least
+                // as many pixels as at the centre of the view, so the pixel distances are turned into angles with it
+                double fov = pcamera.fieldOfView;
+                double pixelsPerRadian = pcamera.viewportHeight / (2d * Math.tan(Math.toRadians(fov) / 2d));
+                double sizeScale = Math.toDegrees(1d) * 40d * pcamera.viewportHeight / (2d * fov * fov * pixelsPerRadian);
+                Vector3d dir = pickDirection(screenX % pcamera.viewportWidth, screenY, pcamera, new Vector3d());
+                IntArray candidates = new IntArray();
+                grid.query(dir.x, dir.y, dir.z, false, PICK_MARGIN * pxdist / pixelsPerRadian, PICK_MARGIN * sizeScale, candidates);
+                for (int j = 0; j < candidates.size; j++) {
+                    int i = candidates.get(j);
+                    if (filter(i)) {
+                        double angle = screenHit(i, screenX, screenY, pxdist, camera, pcamera);
+                        if (angle >= 0 && (best < 0 || angle > bestAngle)) {
+                            best = i;
+                            bestAngle = angle;
                         }
-
-                        // Check click distance
-                        if (pos.dst(screenX % pcamera.viewportWidth, screenY, pos.z) <= pixelSize) {
-                            //Hit
-                            temporalHits.add(new Pair<>(i, angle));
+                    }
+                }
+            } else {
+                int n = pointData.size();
+                for (int i = 0; i < n; i++) {
+                    if (filter(i)) {
+                        double angle = screenHit(i, screenX, screenY, pxdist, camera, pcamera);
+                        if (angle >= 0 && (best < 0 || angle > bestAngle)) {
+                            best = i;
+                            bestAngle = angle;
                         }
                     }
                 }
             }
 
-            Pair<Integer, Double> best = null;
-            for (Pair<Integer, Double> hit : temporalHits) {
-                if (best == null)
-                    best = hit;
-                else if (hit.getSecond() > best.getSecond()) {
-                    best = hit;
-                }
-            }
-            if (best != null) {
+            if (best >= 0) {
                 // We found the best hit
-                candidateFocusIndex = best.getFirst();
+                candidateFocusIndex = best;
                 updateFocusDataPos();
                 hits.add(this);
                 return;
@@ -1118,43 +1292,99 @@ public class ParticleGroup extends FadeNode implements I3DTextRenderable, IFocus
         updateFocusDataPos();
     }
 
+    /**
+     * Tests whether the object is under the given screen position
+     *
+     * @return The angle of the object if it is hit, or -1
+     */
+    private double screenHit(int i, int screenX, int screenY, int pxdist, NaturalCamera camera, PerspectiveCamera pcamera) {
+        Vector3 pos = aux3f1.get();
+        Vector3d posd = fetchPosition(i, camera.getPos(), aux3d1.get(), getDeltaYears());
+        pos.set(posd.valuesf());
+
+        if (camera.direction.dot(posd) > 0) {
+            // The particle is in front of us
+            // Diminish the size of the star
+            // when we are close by
+            double dist = posd.len();
+            double angle = getRadius(i) / dist / camera.getFovFactor();
+
+            angle = (float) Math.toDegrees(angle * camera.fovFactor) * (40f / pcamera.fieldOfView);
+            double pixelSize = Math.max(pxdist, ((angle * pcamera.viewportHeight) / pcamera.fieldOfView) / 2);
+            pcamera.project(pos);
+            pos.y = pcamera.viewportHeight - pos.y;
+            if (GlobalConf.program.STEREOSCOPIC_MODE) {
+                pos.x /= 2;
+            }
+
+            // Check click distance
+            if (pos.dst(screenX % pcamera.viewportWidth, screenY, pos.z) <= pixelSize) {
+                //Hit
+                return angle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the direction, relative to the camera, of the ray through the given screen position
+     *
+     * @param screenX The x screen coordinate, in the viewport of the camera
+     * @param screenY The y screen coordinate, from the top
+     * @param pcamera The camera
+     * @param out     The vector to put the normalised direction in
+     * @return The out vector
+     */
+    private Vector3d pickDirection(float screenX, float screenY, PerspectiveCamera pcamera, Vector3d out) {
+        double tan = Math.tan(Math.toRadians(pcamera.fieldOfView) / 2d);
+        double ndcX = (2d * screenX / pcamera.viewportWidth - 1d) * tan * pcamera.viewportWidth / pcamera.viewportHeight;
+        double ndcY = (1d - 2d * screenY / pcamera.viewportHeight) * tan;
+        // Same basis as the view matrix of the camera
+        Vector3d dir = new Vector3d(pcamera.direction.x, pcamera.direction.y, pcamera.direction.z).nor();
+        Vector3d right = new Vector3d(dir).crs(pcamera.up.x, pcamera.up.y, pcamera.up.z).nor();
+        Vector3d up = new Vector3d(right).crs(dir).nor();
+        return out.set(dir).add(right.scl(ndcX)).add(up.scl(ndcY)).nor();
+    }
+
     public void addHit(Vector3d p0, Vector3d p1, NaturalCamera camera, Array<IFocus> hits) {
-        int n = pointData.size();
         if (GaiaSky.instance.isOn(ct) && this.opacity > 0) {
-            Vector3d beamDir = new Vector3d();
-            Array<Pair<Integer, Double>> temporalHits = new Array<Pair<Integer, Double>>();
-            for (int i = 0; i < n; i++) {
-                if (filter(i)) {
-                    ParticleBean pb = pointData.get(i);
-                    Vector3d posd = fetchPosition(pb, camera.getPos(), aux3d1.get(), getDeltaYears());
-                    beamDir.set(p1).sub(p0);
-                    if (camera.direction.dot(posd) > 0) {
-                        // The star is in front of us
-                        // Diminish the size of the star
-                        // when we are close by
-                        double dist = posd.len();
-                        double angle = getRadius(i) / dist / camera.getFovFactor();
-                        double distToLine = Intersectord.distanceLinePoint(p0, p1, posd);
-                        double value = distToLine / dist;
-
-                        if (value < 0.01) {
-                            temporalHits.add(new Pair<Integer, Double>(i, angle));
+            int best = -1;
+            double bestAngle = 0;
+            SkyGrid grid = getSkyGrid(camera);
+            if (grid != null) {
+                // Only test the objects around the beam. Seen from the camera, the objects at distance d hit by
+                // a beam passing at distance p of the camera are within asin(BEAM_HIT_RATIO + p / d) of its line
+                Vector3d dir = new Vector3d(p1).sub(p0).nor();
+                double minDistance = grid.getMinDistance();
+                double sin = minDistance > 0 ? BEAM_HIT_RATIO + p0.len() / minDistance : 1;
+                IntArray candidates = new IntArray();
+                grid.query(dir.x, dir.y, dir.z, true, Math.asin(Math.min(1, sin)), 0, candidates);
+                for (int j = 0; j < candidates.size; j++) {
+                    int i = candidates.get(j);
+                    if (filter(i)) {
+                        double angle = beamHit(i, p0, p1, camera);
+                        if (angle >= 0 && (best < 0 || angle > bestAngle)) {
+                            best = i;
+                            bestAngle = angle;
                         }
                     }
                 }
-            }
-
-            Pair<Integer, Double> best = null;
-            for (Pair<Integer, Double> hit : temporalHits) {
-                if (best == null)
-                    best = hit;
-                else if (hit.getSecond() > best.getSecond()) {
-                    best = hit;
+            } else {
+                int n = pointData.size();
+                for (int i = 0; i < n; i++) {
+                    if (filter(i)) {
+                        double angle = beamHit(i, p0, p1, camera);
+                        if (angle >= 0 && (best < 0 || angle > bestAngle)) {
+                            best = i;
+                            bestAngle = angle;
+                        }
+                    }
                 }
             }
-            if (best != null) {
+
+            if (best >= 0) {
                 // We found the best hit
-                candidateFocusIndex = best.getFirst();
+                candidateFocusIndex = best;
                 updateFocusDataPos();
                 hits.add(this);
                 return;
@@ -1243,12 +1473,32 @@ public class ParticleGroup extends FadeNode implements I3DTextRenderable, IFocus
         }
     }
 
+    /**
+     * Tests whether the object is hit by the beam
+     *
+     * @return The angle of the object if it is hit, or -1
+     */
+    private double beamHit(int i, Vector3d p0, Vector3d p1, NaturalCamera camera) {
+        Vector3d posd = fetchPosition(i, camera.getPos(), aux3d1.get(), getDeltaYears());
+        if (camera.direction.dot(posd) > 0) {
+            // The star is in front of us
+            // Diminish the size of the star
+            // when we are close by
+            double dist = posd.len();
+            double angle = getRadius(i) / dist / camera.getFovFactor();
+            double distToLine = Intersectord.distanceLinePoint(p0, p1, posd);
+            double value = distToLine / dist;
+
+            if (value < BEAM_HIT_RATIO) {
+                return angle;
+            }
+        }
+        return -1;
+    }
+
     @Override
     public IFocus getFocus(String name) {
-        if (index.containsKey(name))
-            candidateFocusIndex = index.get(name);
-        else
-            candidateFocusIndex = -1;
+        candidateFocusIndex = indexOf(name);
         return this;
     }
 
@@ -1293,6 +1543,20 @@ public class ParticleGroup extends FadeNode implements I3DTextRenderable, IFocus
             return destination.set(pb.data[0], pb.data[1], pb.data[2]);
     }
 
+    /**
+     * Fetches the real position of the particle at the given index. Subclasses
+     * with their own storage may override this to avoid accessing the particle bean.
+     *
+     * @param i           The index of the particle
+     * @param campos      The position of the camera, or null
+     * @param destination The destination factor
+     * @param deltaYears  The delta years
+     * @return The vector for chaining
+     */
+    protected Vector3d fetchPosition(int i, Vector3d campos, Vector3d destination, double deltaYears) {
+        return fetchPosition(pointData.get(i), campos, destination, deltaYears);
+    }
+
     public double getMeanDistance() {
         return meanDistance;
     }
@@ -1351,6 +1615,8 @@ public class ParticleGroup extends FadeNode implements I3DTextRenderable, IFocus
 
     public void inGpu(boolean inGpu) {
         this.inGpu = inGpu;
+        if (inGpu)
+            gpuSize = size();
     }
 
     public void setInGpu(boolean inGpu) {
@@ -1461,21 +1727,203 @@ public class ParticleGroup extends FadeNode implements I3DTextRenderable, IFocus
      */
     public void updateMetadata(ITimeFrameProvider time, ICamera camera) {
         Vector3d camPos = camera.getPos();
-        int n = pointData.size();
+        final double cx = camPos.x, cy = camPos.y, cz = camPos.z;
+        final List<ParticleBean> data = pointData;
+        final double[] metadata = this.metadata;
+        computeMetadata(data.size(), (from, to, filter) -> {
+            for (int i = from; i < to; i++) {
+                ParticleBean pb = data.get(i);
+                double[] d = pb.data;
+                double dx = d[ParticleBean.I_X] - cx, dy = d[ParticleBean.I_Y] - cy, dz = d[ParticleBean.I_Z] - cz;
+                metadata[i] = filter == null || filter.evaluate(pb) ? Math.sqrt(dx * dx + dy * dy + dz * dz) : Double.MAX_VALUE;
+            }
+        });
+    }
+
+    /**
+     * Computes the metadata of a range of objects
+     */
+    protected interface MetadataRange {
+        /**
+         * @param from   The first index
+         * @param to     The index after the last one
+         * @param filter The filter of the dataset, or null. It can be evaluated without locking
+         */
+        void compute(int from, int to, Filter filter);
+    }
+
+    /**
+     * Computes the metadata of all the objects. If multithreading is on, the index range is split into
+     * tasks of at least {@link #METADATA_TASK_SIZE} objects, which run in the common fork-join pool. Each
+     * task gets its own copy of the dataset filter, so that they do not contend for it.
+     *
+     * @param n     The number of objects
+     * @param range Computes the metadata of a range
+     */
+    protected void computeMetadata(int n, MetadataRange range) {
+        Filter filter = catalogInfo != null ? catalogInfo.filter : null;
+        if (!GlobalConf.performance.MULTITHREADING || n < 2 * METADATA_TASK_SIZE || ForkJoinPool.getCommonPoolParallelism() < 2) {
+            range.compute(0, n, filter != null ? filter.deepCopy() : null);
+        } else {
+            ForkJoinPool.commonPool().invoke(new MetadataTask(range, 0, n, filter));
+        }
+    }
+
+    private static class MetadataTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final MetadataRange range;
+        private final int from, to;
+        private final Filter filter;
+
+        MetadataTask(MetadataRange range, int from, int to, Filter filter) {
+            this.range = range;
+            this.from = from;
+            this.to = to;
+            this.filter = filter;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from < 2 * METADATA_TASK_SIZE) {
+                range.compute(from, to, filter != null ? filter.deepCopy() : null);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new MetadataTask(range, from, mid, filter), new MetadataTask(range, mid, to, filter));
+            }
+        }
+    }
+
+    /**
+     * Updates the metadata of the first k objects of the sorted list only, using the spatial index, and sets
+     * the metadata of the rest to {@link Double#MAX_VALUE}. For particles, these are the closest to the camera.
+     *
+     * @param time   The time frame provider
+     * @param camera The camera
+     * @param k      The number of objects
+     * @return False if the group has no spatial index, in which case the metadata is untouched
+     */
+    protected boolean updateMetadata(ITimeFrameProvider time, ICamera camera, int k) {
+        KdTree tree = getSpatialIndex(0);
+        if (tree == null)
+            return false;
+        Vector3d camPos = camera.getPos();
+        int[] found = new int[k];
+        double[] distances = new double[k];
+        int n = tree.nearest(camPos.x, camPos.y, camPos.z, 0, k, this::filter, found, distances);
+        Arrays.fill(metadata, Double.MAX_VALUE);
+        for (int j = 0; j < n; j++)
+            metadata[found[j]] = distances[j];
+        return true;
+    }
+
+    /**
+     * Gets the spatial index of this group, building it, or building it again if the objects have
+     * moved too much, as needed. Runs in the sorter thread.
+     *
+     * @param deltaYears The current time, in years since the epoch
+     * @return The spatial index, or null if this group does not use one
+     */
+    protected KdTree getSpatialIndex(double deltaYears) {
+        if (streaming || pointData == null || !(useSpatialIndex != null ? useSpatialIndex : size() >= SPATIAL_INDEX_MIN_SIZE))
+            return null;
+        KdTree tree = spatialIndex;
+        if (tree == null || tree.needsRebuild(deltaYears)) {
+            tree = buildSpatialIndex(deltaYears);
+            spatialIndex = tree;
+        }
+        return tree;
+    }
+
+    /**
+     * Builds the spatial index with the positions at the given time
+     *
+     * @param deltaYears The time, in years since the epoch
+     * @return The spatial index
+     */
+    protected KdTree buildSpatialIndex(double deltaYears) {
+        int n = size();
+        double[] x = new double[n], y = new double[n], z = new double[n];
+        Vector3d aux = new Vector3d();
         for (int i = 0; i < n; i++) {
-            ParticleBean d = pointData.get(i);
-            // Pos
-            Vector3d x = aux3d1.get().set(d.x(), d.y(), d.z());
-            metadata[i] = filter(i) ? camPos.dst(x) : Double.MAX_VALUE;
+            fetchPosition(i, null, aux, deltaYears);
+            x[i] = aux.x;
+            y[i] = aux.y;
+            z[i] = aux.z;
         }
+        return KdTree.build(n, x, y, z, null, null, null, null, deltaYears);
     }
 
-    public void updateSorter(ITimeFrameProvider time, ICamera camera) {
-        // Prepare metadata to sort
-        updateMetadata(time, camera);
+    /**
+     * Sets whether to use a spatial index to find the objects closest to the camera and the objects
+     * hit by a beam. By default, it is used for large groups.
+     *
+     * @param spatialIndex Whether to use a spatial index
+     */
+    public void setSpatialindex(Boolean spatialIndex) {
+        this.useSpatialIndex = spatialIndex;
+        if (spatialIndex != null && !spatialIndex)
+            this.spatialIndex = null;
+    }
 
-        // Sort background list of indices
-        Arrays.sort(background, comp);
+    /**
+     * Gets the sky grid of this group around the camera, building it, or building it again if the camera
+     * or the objects have moved too much, as needed. Runs in the main thread.
+     *
+     * @param camera The camera
+     * @return The sky grid, or null if this group is too small to use one
+     */
+    protected SkyGrid getSkyGrid(ICamera camera) {
+        if (pointData == null || size() < SKY_GRID_MIN_SIZE)
+            return null;
+        double deltaYears = getDeltaYears();
+        SkyGrid grid = skyGrid;
+        if (grid == null || grid.needsRebuild(camera.getPos(), deltaYears)) {
+            grid = buildSkyGrid(camera.getPos(), deltaYears);
+            skyGrid = grid;
+        }
+        return grid;
+    }
+
+    /**
+     * Builds the sky grid with the positions at the given time, as seen from the given point
+     *
+     * @param origin     The point, usually the camera position
+     * @param deltaYears The time, in years since the epoch
+     * @return The sky grid
+     */
+    protected SkyGrid buildSkyGrid(Vector3d origin, double deltaYears) {
+        int n = size();
+        double[] x = new double[n], y = new double[n], z = new double[n], radii = new double[n];
+        Vector3d aux = new Vector3d();
+        for (int i = 0; i < n; i++) {
+            fetchPosition(i, null, aux, deltaYears);
+            x[i] = aux.x;
+            y[i] = aux.y;
+            z[i] = aux.z;
+            radii[i] = getRadius(i);
+        }
+        return SkyGrid.build(n, x, y, z, radii, origin, deltaYears, getMaxProperMotion());
+    }
+
+    /**
+     * @return The largest proper motion of the objects of this group, in internal units per year
+     */
+    protected double getMaxProperMotion() {
+        return 0;
+    }
+
+    public void updateSorter(ITimeFrameProvider time, ICamera camera) {
+        // Prepare metadata to sort. When only the first elements are sorted, the spatial index finds them
+        if (fullSort || !updateMetadata(time, camera, getSortLimit()))
+            updateMetadata(time, camera);
+
+        // Sort background list of indices, or only as much of it as is used
+        int n = background.length;
+        if (fullSort)
+            IndexSort.sort(background, metadata, n);
+        else
+            IndexSort.select(background, metadata, n, getSortLimit());
 
         // Synchronously with the render thread, update indices, lastSortTime and updating state
         GaiaSky.postRunnable(() -> {
@@ -1485,6 +1933,26 @@ public class ParticleGroup extends FadeNode implements I3DTextRenderable, IFocus
         });
     }
 
+    /**
+     * Gets the number of elements at the beginning of the active list which are used, and which need to be in order.
+     * The rest of the list is left unsorted, unless a full sort has been requested with {@link #setFullSort(boolean)}.
+     *
+     * @return The number of elements to sort
+     */
+    protected int getSortLimit() {
+        return Math.min(N_LABELS, size());
+    }
+
+    /**
+     * Sets whether the sorter produces a full ordering of the particles, instead of only
+     * the first {@link #getSortLimit()} ones. Takes effect in the next sort.
+     *
+     * @param fullSort Whether to sort all the particles
+     */
+    public void setFullSort(boolean fullSort) {
+        this.fullSort = fullSort;
+    }
+
     protected void swapBuffers() {
         if (active == indices1) { //-V6013
             active = indices2;
@@ -0,0 +1,429 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.scenegraph;
+
+import gaiasky.scenegraph.ParticleGroup.ParticleBean;
+import gaiasky.scenegraph.StarGroup.StarBean;
+import gaiasky.util.Constants;
+import gaiasky.util.ds.NameDictionary;
+
+import java.nio.*;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Columnar, off-heap storage for the data of a star group. There is one primitive column
+ * per attribute in a direct buffer: positions, proper motions and the rest of
+ * stored doubles as doubles, magnitudes, colour and size as floats, hip numbers
+ * as ints and source ids as longs. The names of all stars are kept in a single
+ * character block with an offset per star, and are only split when requested.
+ * <p>
+ * The attribute indices are the same as in {@link StarBean}. Star beans are only created
+ * on demand, see {@link #bean(int)} and {@link #asList()}, and are copies: changes to them
+ * are not written back to the columns, use {@link #set(int, int, double)} instead.
+ *
+ * @author tsagrista
+ */
+public class StarColumns {
+    /** Number of attributes stored as doubles **/
+    private static final int N_DOUBLES = StarBean.I_APPMAG;
+    /** Number of attributes stored as floats **/
+    private static final int N_FLOATS = StarBean.I_HIP - StarBean.I_APPMAG;
+
+    private final int size;
+    private final DoubleBuffer[] doubles;
+    private final FloatBuffer[] floats;
+    private final IntBuffer hips;
+    private final LongBuffer ids;
+    /** Names of star i are in [nameOffsets[i], nameOffsets[i + 1]) **/
+    private final IntBuffer nameOffsets;
+    private CharBuffer names;
+
+    // Name block while building
+    private char[] nameBuilder;
+    private int nameLength;
+
+    /**
+     * Creates empty columns for the given number of stars
+     *
+     * @param size The number of stars
+     */
+    public StarColumns(int size) {
+        this.size = size;
+        this.doubles = new DoubleBuffer[N_DOUBLES];
+        for (int i = 0; i < N_DOUBLES; i++)
+            doubles[i] = allocate(size, 8).asDoubleBuffer();
+        this.floats = new FloatBuffer[N_FLOATS];
+        for (int i = 0; i < N_FLOATS; i++)
+            floats[i] = allocate(size, 4).asFloatBuffer();
+        this.hips = allocate(size, 4).asIntBuffer();
+        this.ids = allocate(size, 8).asLongBuffer();
+        this.nameOffsets = allocate(size + 1, 4).asIntBuffer();
+        this.nameLength = 0;
+    }
+
+    private static ByteBuffer allocate(int n, int bytes) {
+        return ByteBuffer.allocateDirect(n * bytes).order(ByteOrder.nativeOrder());
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the off-heap memory used by the columns and the name block, in bytes
+     *
+     * @return The number of bytes in direct buffers
+     */
+    public long offHeapBytes() {
+        long bytes = (long) size * (N_DOUBLES * 8 + N_FLOATS * 4 + 4 + 8) + (size + 1L) * 4;
+        if (names != null)
+            bytes += names.capacity() * 2L;
+        return bytes;
+    }
+
+    /**
+     * Gets the value of the given attribute of the given star
+     *
+     * @param i     The star index
+     * @param field The attribute index, as in {@link StarBean}
+     * @return The value
+     */
+    public double get(int i, int field) {
+        if (field < StarBean.I_APPMAG)
+            return doubles[field].get(i);
+        else if (field < StarBean.I_HIP)
+            return floats[field - StarBean.I_APPMAG].get(i);
+        else
+            return hips.get(i);
+    }
+
+    public void set(int i, int field, double value) {
+        if (field < StarBean.I_APPMAG)
+            doubles[field].put(i, value);
+        else if (field < StarBean.I_HIP)
+            floats[field - StarBean.I_APPMAG].put(i, (float) value);
+        else
+            hips.put(i, (int) value);
+    }
+
+    public double x(int i) {
+        return doubles[ParticleBean.I_X].get(i);
+    }
+
+    public double y(int i) {
+        return doubles[ParticleBean.I_Y].get(i);
+    }
+
+    public double z(int i) {
+        return doubles[ParticleBean.I_Z].get(i);
+    }
+
+    public double pmx(int i) {
+        return doubles[StarBean.I_PMX].get(i);
+    }
+
+    public double pmy(int i) {
+        return doubles[StarBean.I_PMY].get(i);
+    }
+
+    public double pmz(int i) {
+        return doubles[StarBean.I_PMZ].get(i);
+    }
+
+    public double radvel(int i) {
+        return doubles[StarBean.I_RADVEL].get(i);
+    }
+
+    public float appmag(int i) {
+        return floats[StarBean.I_APPMAG - StarBean.I_APPMAG].get(i);
+    }
+
+    public float absmag(int i) {
+        return floats[StarBean.I_ABSMAG - StarBean.I_APPMAG].get(i);
+    }
+
+    public float col(int i) {
+        return floats[StarBean.I_COL - StarBean.I_APPMAG].get(i);
+    }
+
+    public float size(int i) {
+        return floats[StarBean.I_SIZE - StarBean.I_APPMAG].get(i);
+    }
+
+    public int hip(int i) {
+        return hips.get(i);
+    }
+
+    public long id(int i) {
+        return ids.get(i);
+    }
+
+    public void setId(int i, long id) {
+        ids.put(i, id);
+    }
+
+    /**
+     * Copies a whole double column from the given buffer, from its current position
+     *
+     * @param field  The attribute index, which must be stored as a double
+     * @param source The values of all the stars
+     */
+    public void putColumn(int field, DoubleBuffer source) {
+        doubles[field].clear();
+        doubles[field].put(source);
+        doubles[field].clear();
+    }
+
+    /**
+     * Copies a whole float column from the given buffer, from its current position
+     *
+     * @param field  The attribute index, which must be stored as a float
+     * @param source The values of all the stars
+     */
+    public void putColumn(int field, FloatBuffer source) {
+        FloatBuffer column = floats[field - StarBean.I_APPMAG];
+        column.clear();
+        column.put(source);
+        column.clear();
+    }
+
+    /**
+     * Copies all the hip numbers from the given buffer, from its current position
+     *
+     * @param source The hip numbers of all the stars
+     */
+    public void putHips(IntBuffer source) {
+        hips.clear();
+        hips.put(source);
+        hips.clear();
+    }
+
+    /**
+     * Copies all the source ids from the given buffer, from its current position
+     *
+     * @param source The ids of all the stars
+     */
+    public void putIds(LongBuffer source) {
+        ids.clear();
+        ids.put(source);
+        ids.clear();
+    }
+
+    /**
+     * Multiplies all the values of the given attribute by a factor. The results are the same as
+     * multiplying each value when it is set.
+     *
+     * @param field  The attribute index, which must be stored as a double or a float
+     * @param factor The factor
+     */
+    public void scale(int field, double factor) {
+        if (factor == 1)
+            return;
+        if (field < StarBean.I_APPMAG) {
+            DoubleBuffer column = doubles[field];
+            for (int i = 0; i < size; i++)
+                column.put(i, column.get(i) * factor);
+        } else {
+            FloatBuffer column = floats[field - StarBean.I_APPMAG];
+            for (int i = 0; i < size; i++)
+                column.put(i, (float) (column.get(i) * factor));
+        }
+    }
+
+    /**
+     * Sets the names of all the stars at once, and moves them to off-heap storage. This
+     * replaces adding the names star by star and {@link #finish()}.
+     *
+     * @param offsets The offsets of the names of each star in the block, plus the end of the block, from the current position
+     * @param block   The names of all the stars, from the current position
+     * @return This object
+     */
+    public StarColumns setNames(IntBuffer offsets, CharBuffer block) {
+        nameOffsets.clear();
+        nameOffsets.put(offsets);
+        nameOffsets.clear();
+        names = ByteBuffer.allocateDirect(block.remaining() * 2).order(ByteOrder.nativeOrder()).asCharBuffer();
+        names.put(block);
+        names.flip();
+        nameBuilder = null;
+        nameLength = 0;
+        return this;
+    }
+
+    /**
+     * Appends the names of the next star. Names must be added in star order, once per star.
+     *
+     * @param i      The star index
+     * @param source The buffer to read the characters from, at its current position
+     * @param length The number of characters, with the names separated by {@link Constants#nameSeparator}
+     */
+    public void addNames(int i, ByteBuffer source, int length) {
+        ensureNameCapacity(nameLength + length);
+        for (int j = 0; j < length; j++)
+            nameBuilder[nameLength++] = source.getChar();
+        nameOffsets.put(i + 1, nameLength);
+    }
+
+    /**
+     * Appends the names of the next star. Names must be added in star order, once per star.
+     *
+     * @param i     The star index
+     * @param names The names, separated by {@link Constants#nameSeparator}
+     */
+    public void addNames(int i, String names) {
+        int length = names.length();
+        ensureNameCapacity(nameLength + length);
+        names.getChars(0, length, nameBuilder, nameLength);
+        nameLength += length;
+        nameOffsets.put(i + 1, nameLength);
+    }
+
+    private void ensureNameCapacity(int capacity) {
+        if (nameBuilder == null) {
+            nameBuilder = new char[Math.max(capacity, Math.max(16, size * 16))];
+        } else if (capacity > nameBuilder.length) {
+            char[] aux = new char[Math.max(capacity, nameBuilder.length * 2)];
+            System.arraycopy(nameBuilder, 0, aux, 0, nameLength);
+            nameBuilder = aux;
+        }
+    }
+
+    /**
+     * Moves the names to off-heap storage. Must be called once all the stars have been added.
+     *
+     * @return This object
+     */
+    public StarColumns finish() {
+        names = ByteBuffer.allocateDirect(nameLength * 2).order(ByteOrder.nativeOrder()).asCharBuffer();
+        if (nameLength > 0)
+            names.put(nameBuilder, 0, nameLength);
+        names.flip();
+        nameBuilder = null;
+        return this;
+    }
+
+    /**
+     * Gets the first name of the given star
+     *
+     * @param i The star index
+     * @return The first name, which is empty if the star has no names
+     */
+    public String firstName(int i) {
+        int start = nameOffsets.get(i);
+        int end = nameOffsets.get(i + 1);
+        int j = start;
+        while (j < end && names.get(j) != Constants.nameSeparator.charAt(0))
+            j++;
+        return names.subSequence(start, j).toString();
+    }
+
+    /**
+     * Gets the names of the given star
+     *
+     * @param i The star index
+     * @return The names, with a single empty name if the star has none
+     */
+    public String[] names(int i) {
+        int start = nameOffsets.get(i);
+        int end = nameOffsets.get(i + 1);
+        char separator = Constants.nameSeparator.charAt(0);
+        List<String> result = new ArrayList<>(2);
+        int from = start;
+        for (int j = start; j <= end; j++) {
+            if (j == end || names.get(j) == separator) {
+                result.add(names.subSequence(from, j).toString());
+                from = j + 1;
+            }
+        }
+        return result.toArray(new String[0]);
+    }
+
+    /**
+     * Adds the names of the given star to a name dictionary, straight from the name block
+     *
+     * @param i     The star index
+     * @param index The dictionary builder
+     */
+    public void indexNames(int i, NameDictionary.Builder index) {
+        int start = nameOffsets.get(i);
+        int end = nameOffsets.get(i + 1);
+        char separator = Constants.nameSeparator.charAt(0);
+        int from = start;
+        for (int j = start; j <= end; j++) {
+            if (j == end || names.get(j) == separator) {
+                index.add(names, from, j, i);
+                from = j + 1;
+            }
+        }
+    }
+
+    /**
+     * Creates a star bean with the data of the given star
+     *
+     * @param i The star index
+     * @return A new star bean
+     */
+    public StarBean bean(int i) {
+        double[] data = new double[StarBean.SIZE];
+        for (int field = 0; field < StarBean.SIZE; field++)
+            data[field] = get(i, field);
+        return new StarBean(data, ids.get(i), names(i));
+    }
+
+    /**
+     * Loads the data of the given star into an existing star bean, leaving out its names, so
+     * that code which looks at many stars, like the filters, does not create a bean per star
+     *
+     * @param i    The star index
+     * @param bean The bean to overwrite, with room for {@link StarBean#SIZE} values
+     * @return The bean
+     */
+    public StarBean load(int i, StarBean bean) {
+        for (int field = 0; field < StarBean.SIZE; field++)
+            bean.data[field] = get(i, field);
+        bean.id = ids.get(i);
+        bean.names = null;
+        return bean;
+    }
+
+    /**
+     * Gets a read-only list view of these columns, which creates the star beans
+     * on demand. Every call to get returns a new copy of the star, so changes to the
+     * beans are lost. Changes to the list itself fail with an {@link UnsupportedOperationException}.
+     *
+     * @return The list view
+     */
+    public List<ParticleBean> asList() {
+        return new AbstractList<>() {
+            @Override
+            public ParticleBean get(int index) {
+                return bean(index);
+            }
+
+            @Override
+            public ParticleBean set(int index, ParticleBean element) {
+                throw new UnsupportedOperationException("Columnar star data is read-only");
+            }
+
+            @Override
+            public void add(int index, ParticleBean element) {
+                throw new UnsupportedOperationException("Columnar star data is read-only");
+            }
+
+            @Override
+            public ParticleBean remove(int index) {
+                throw new UnsupportedOperationException("Columnar star data is read-only");
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
@@ -20,6 +20,7 @@ import com.badlogic.gdx.graphics.g3d.attributes.TextureAttribute;
 import com.badlogic.gdx.math.Matrix4;
 import com.badlogic.gdx.math.Vector3;
 import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntArray;
 import com.badlogic.gdx.utils.NumberUtils;
 import gaiasky.GaiaSky;
 import gaiasky.data.group.DatasetOptions;
@@ -39,19 +40,23 @@ import gaiasky.scenegraph.component.ModelComponent;
 import gaiasky.util.*;
 import gaiasky.util.color.ColorUtils;
 import gaiasky.util.coord.AstroUtils;
+import gaiasky.util.ds.NameDictionary;
 import gaiasky.util.gdx.IntModelBatch;
 import gaiasky.util.gdx.g2d.ExtSpriteBatch;
 import gaiasky.util.gdx.mesh.IntMesh;
 import gaiasky.util.gdx.model.IntModel;
 import gaiasky.util.gdx.model.IntModelInstance;
 import gaiasky.util.gdx.shader.ExtShaderProgram;
+import gaiasky.util.math.BoundingBoxd;
 import gaiasky.util.math.MathUtilsd;
 import gaiasky.util.math.Vector3d;
 import gaiasky.util.time.ITimeFrameProvider;
+import gaiasky.util.tree.KdTree;
+import gaiasky.util.tree.MortonIndex;
 import gaiasky.util.ucd.UCD;
 import net.jafama.FastMath;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -180,6 +185,27 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
      **/
     private double currDeltaYears = 0;
 
+    /**
+     * Columnar storage of the star data, if the group was created from columns.
+     * In that case {@link #pointData} is a view which creates the beans on demand,
+     * so hot paths must use the index-based accessors
+     **/
+    protected StarColumns columns;
+    /** Reused bean to evaluate the filter on columnar stars, one per thread **/
+    private final ThreadLocal<StarBean> filterCursor = ThreadLocal.withInitial(() -> new StarBean(new double[StarBean.SIZE], 0L, (String[]) null));
+
+    /**
+     * Whether any star of this group has a HIP number. Computed on demand
+     **/
+    private Boolean hasHip;
+
+    /**
+     * Range table for spatial queries. Built on demand, once, by the first thread to query it,
+     * and dropped under the same lock whenever the data changes
+     **/
+    private volatile MortonIndex mortonIndex;
+    private final Object mortonLock = new Object();
+
     private static void initModel() {
         if (mc == null) {
             Texture tex = new Texture(GlobalConf.data.dataFile("tex/base/star.jpg"));
@@ -217,8 +243,12 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
      * CLOSEST
      **/
     private final Vector3d closestPm;
-    private double closestSize;
+    private double closestSize, closestRadius;
     private final float[] closestCol;
+    /** Number of stars nearest to the camera which are checked for the closest surface **/
+    private static final int CLOSEST_CANDIDATES = 8;
+    private final int[] closestCandidates = new int[CLOSEST_CANDIDATES];
+    private final double[] closestDistances = new double[CLOSEST_CANDIDATES];
 
     private double modelDist;
 
@@ -259,7 +289,9 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
     }
 
     /**
-     * Returns the data list
+     * Returns the data list. If the group has columnar storage this is a read-only view
+     * which returns a new copy of the star on every access, so changes to the stars are
+     * lost, see {@link StarColumns#asList()}
      *
      * @return The data list
      */
@@ -269,37 +301,113 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
     }
 
     public void setData(List<ParticleBean> pointData, boolean regenerateIndex) {
+        this.columns = null;
+        this.hasHip = null;
         super.setData(pointData, regenerateIndex);
+        resetMortonIndex();
+    }
+
+    @Override
+    public void append(List<ParticleBean> batch) {
+        if (columns != null) {
+            Logger.getLogger(this.getClass()).warn("Can't append objects to a star group with columnar storage: " + getName());
+            return;
+        }
+        super.append(batch);
+    }
+
+    @Override
+    protected void dataAppended(int from, int to) {
+        this.hasHip = null;
+        resetMortonIndex();
+    }
+
+    @Override
+    protected void updateStreamedStatistics() {
+        // The position of star groups does not depend on the data
+    }
+
+    /**
+     * Sets the data of this group from columnar storage
+     *
+     * @param columns         The star columns
+     * @param regenerateIndex Whether to regenerate the name index
+     */
+    public void setColumns(StarColumns columns, boolean regenerateIndex) {
+        super.setData(columns.asList(), false);
+        this.columns = columns;
+        this.hasHip = null;
+        resetMortonIndex();
+        if (regenerateIndex)
+            regenerateIndex();
+    }
+
+    /**
+     * Returns the columnar storage of this group, if any
+     *
+     * @return The star columns, or null if this group uses star beans
+     */
+    public StarColumns columns() {
+        return columns;
+    }
+
+    @Override
+    public void regenerateIndex() {
+        if (columns != null)
+            setIndex(generateIndex(columns));
+        else
+            super.regenerateIndex();
+    }
+
+    @Override
+    public int size() {
+        return columns != null ? columns.size() : super.size();
+    }
+
+    /**
+     * Generates the index (maps star name to array index) from
+     * columnar storage, without creating the name strings
+     *
+     * @param columns The star columns
+     * @return The dictionary mapping names to indexes
+     */
+    public NameDictionary generateIndex(StarColumns columns) {
+        int n = columns.size();
+        NameDictionary.Builder index = new NameDictionary.Builder(n);
+        for (int i = 0; i < n; i++) {
+            columns.indexNames(i, index);
+        }
+        return index.build();
     }
 
     /**
      * Generates the index (maps star name and id to array index)
      *
      * @param pointData The star data
-     * @return An map{string,int} mapping names/ids to indexes
+     * @return The dictionary mapping names/ids to indexes
      */
-    public Map<String, Integer> generateIndex(Array<? extends ParticleBean> pointData) {
-        Map<String, Integer> index = new HashMap<>();
+    public NameDictionary generateIndex(Array<? extends ParticleBean> pointData) {
         int n = pointData.size;
+        NameDictionary.Builder index = new NameDictionary.Builder(n);
         for (int i = 0; i < n; i++) {
             StarBean sb = (StarBean) pointData.get(i);
             if (sb.names != null) {
                 for (String lcname : sb.names) {
                     lcname = lcname.toLowerCase();
-                    index.put(lcname, i);
+                    index.add(lcname, i);
                     String lcid = sb.id.toString().toLowerCase();
                     if (sb.id > 0 && !lcid.equals(lcname)) {
-                        index.put(lcid, i);
+                        index.add(lcid, i);
                     }
                     if (sb.hip() > 0) {
                         String lchip = "hip " + sb.hip();
                         if (!lchip.equals(lcname))
-                            index.put(lchip, i);
+                            index.add(lchip, i);
                     }
                 }
             }
         }
-        return index;
+        return index.build();
     }
 
     public void update(ITimeFrameProvider time, final Vector3d parentTransform, ICamera camera, float opacity) {
@@ -311,28 +419,57 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
             super.update(time, parentTransform, camera, opacity);
 
             // Update closest star
-            StarBean closestStar = (StarBean) pointData.get(active[0]);
+            int closest = closestStar(camera);
 
-            closestPm.set(closestStar.pmx(), closestStar.pmy(), closestStar.pmz()).scl(currDeltaYears);
-            closestAbsolutePos.set(closestStar.x(), closestStar.y(), closestStar.z()).add(closestPm);
+            closestPm.set(getPmX(closest), getPmY(closest), getPmZ(closest)).scl(currDeltaYears);
+            closestAbsolutePos.set(getX(closest), getY(closest), getZ(closest)).add(closestPm);
             closestPos.set(closestAbsolutePos).sub(camera.getPos());
-            closestDist = closestPos.len() - getRadius(active[0]);
+            closestDist = closestPos.len() - getRadius(closest);
             Color c = new Color();
-            Color.abgr8888ToColor(c, (float) closestStar.col());
+            Color.abgr8888ToColor(c, getCol(closest));
             closestCol[0] = c.r;
             closestCol[1] = c.g;
             closestCol[2] = c.b;
             closestCol[3] = c.a;
-            closestSize = getSize(active[0]);
-            closestName = closestStar.names[0];
+            closestSize = getSize(closest);
+            closestRadius = getRadius(closest);
+            closestName = getFirstName(closest);
             camera.checkClosestParticle(this);
 
             // Model dist
-            modelDist = 172.4643429 * getRadius(active[0]);
+            modelDist = 172.4643429 * closestRadius;
         }
 
     }
 
+    /**
+     * Finds the star whose surface is closest to the camera. If the group has a spatial index, the
+     * stars nearest to the camera are checked. Otherwise, or until the index is built in the sorter
+     * thread, it is the first star of the active list, the one with the largest apparent size.
+     *
+     * @param camera The camera
+     * @return The index of the closest star
+     */
+    private int closestStar(ICamera camera) {
+        KdTree tree = spatialIndex;
+        if (tree != null) {
+            Vector3d camPos = camera.getPos();
+            int n = tree.nearest(camPos.x, camPos.y, camPos.z, currDeltaYears, CLOSEST_CANDIDATES, this::filter, closestCandidates, closestDistances);
+            int closest = -1;
+            double closestSurface = Double.MAX_VALUE;
+            for (int j = 0; j < n; j++) {
+                double surface = closestDistances[j] - getRadius(closestCandidates[j]);
+                if (surface < closestSurface) {
+                    closest = closestCandidates[j];
+                    closestSurface = surface;
+                }
+            }
+            if (closest >= 0)
+                return closest;
+        }
+        return active[0];
+    }
+
     /**
      * Updates the parameters of the focus, if the focus is active in this group
      *
@@ -340,8 +477,7 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
      * @param camera The current camera
      */
     public void updateFocus(ITimeFrameProvider time, ICamera camera) {
-        StarBean focus = (StarBean) pointData.get(focusIndex);
-        Vector3d aux = this.fetchPosition(focus, camera.getPos(), aux3d1.get(), currDeltaYears);
+        Vector3d aux = this.fetchPosition(focusIndex, camera.getPos(), aux3d1.get(), currDeltaYears);
 
         this.focusPosition.set(aux).add(camera.getPos());
         this.focusDistToCamera = aux.len();
@@ -359,7 +495,7 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
             return getAbsolutePosition(aux);
         } else {
             double deltaYears = AstroUtils.getMsSince(time.getTime(), epoch_jd) * Nature.MS_TO_Y;
-            return this.fetchPosition(pointData.get(focusIndex), null, aux, deltaYears);
+            return this.fetchPosition(focusIndex, null, aux, deltaYears);
         }
     }
 
@@ -398,7 +534,7 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
 
         /** RENDER ACTUAL STARS **/
         boolean focusRendered = false;
-        int n = Math.min(GlobalConf.scene.STAR_GROUP_N_NEAREST, pointData.size());
+        int n = Math.min(GlobalConf.scene.STAR_GROUP_N_NEAREST, size());
         for (int i = 0; i < n; i++) {
             renderCloseupStar(active[i], camera, shader, mesh, thpointTimesFovfactor, thupOverFovfactor, thdownOverFovfactor, alpha);
             focusRendered = focusRendered || active[i] == focusIndex;
@@ -412,10 +548,9 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
     Color c = new Color();
 
     private void renderCloseupStar(int idx, ICamera camera, ExtShaderProgram shader, IntMesh mesh, double thpointTimesFovfactor, double thupOverFovfactor, double thdownOverFovfactor, float alpha) {
-        StarBean star = (StarBean) pointData.get(idx);
         double size = getSize(idx);
         double radius = size * Constants.STAR_SIZE_FACTOR;
-        Vector3d starPos = fetchPosition(star, camera.getPos(), aux3d1.get(), currDeltaYears);
+        Vector3d starPos = fetchPosition(idx, camera.getPos(), aux3d1.get(), currDeltaYears);
         double distToCamera = starPos.len();
         double viewAngle = (radius / distToCamera) / camera.getFovFactor();
 
@@ -466,15 +601,23 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
             ((ColorAttribute) mc.env.get(ColorAttribute.AmbientLight)).color.set(col[0], col[1], col[2], 1f);
             ((FloatAttribute) mc.env.get(FloatAttribute.Shininess)).value = (float) t;
             // Local transform
-            mc.instance.transform.idt().translate((float) closestPos.x, (float) closestPos.y, (float) closestPos.z).scl((float) (getRadius(active[0]) * 2d));
+            mc.instance.transform.idt().translate((float) closestPos.x, (float) closestPos.y, (float) closestPos.z).scl((float) (closestRadius * 2d));
             mc.updateRelativisticEffects(GaiaSky.instance.getICamera());
             mc.updateVelocityBufferUniforms(GaiaSky.instance.getICamera());
             modelBatch.render(mc.instance, mc.env);
         }
     }
 
+    /**
+     * The closeup stars, the labels and the proper motions use the first elements of the active list
+     */
+    @Override
+    protected int getSortLimit() {
+        return (int) Math.min(size(), Math.max(GlobalConf.scene.STAR_GROUP_N_NEAREST * 5, getMaxProperMotionLines()));
+    }
+
     private long getMaxProperMotionLines() {
-        int n = Math.min(GlobalConf.scene.STAR_GROUP_N_NEAREST * 5, pointData.size());
+        int n = Math.min(GlobalConf.scene.STAR_GROUP_N_NEAREST * 5, size());
         return GlobalConf.scene.N_PM_STARS > 0 ? GlobalConf.scene.N_PM_STARS : n;
     }
 
@@ -488,21 +631,23 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
     public void render(LineRenderSystem renderer, ICamera camera, float alpha) {
         alpha *= SceneGraphRenderer.alphas[ComponentTypes.ComponentType.VelocityVectors.ordinal()];
         float thPointTimesFovFactor = (float) GlobalConf.scene.STAR_THRESHOLD_POINT * camera.getFovFactor();
-        int n = (int) Math.min(getMaxProperMotionLines(), pointData.size());
+        int n = (int) Math.min(getMaxProperMotionLines(), size());
         for (int i = n - 1; i >= 0; i--) {
-            StarBean star = (StarBean) pointData.get(active[i]);
-            if ((star.radvel() == 0 && !rvLines) || (star.radvel() != 0 && rvLines)) {
-                float radius = (float) (getSize(active[i]) * Constants.STAR_SIZE_FACTOR);
+            int idx = active[i];
+            double radvel = getRadVel(idx);
+            if ((radvel == 0 && !rvLines) || (radvel != 0 && rvLines)) {
+                float radius = (float) (getSize(idx) * Constants.STAR_SIZE_FACTOR);
                 // Position
-                Vector3d lpos = fetchPosition(star, camera.getPos(), aux3d1.get(), currDeltaYears);
+                Vector3d lpos = fetchPosition(idx, camera.getPos(), aux3d1.get(), currDeltaYears);
                 // Proper motion
-                Vector3d pm = aux3d2.get().set(star.pmx(), star.pmy(), star.pmz()).scl(currDeltaYears);
+                double pmx = getPmX(idx), pmy = getPmY(idx), pmz = getPmZ(idx);
+                Vector3d pm = aux3d2.get().set(pmx, pmy, pmz).scl(currDeltaYears);
                 // Rest of attributes
                 float distToCamera = (float) lpos.len();
                 float viewAngle = (float) (((radius / distToCamera) / camera.getFovFactor()) * GlobalConf.scene.STAR_BRIGHTNESS);
-                if (viewAngle >= thPointTimesFovFactor / GlobalConf.scene.PM_NUM_FACTOR && (star.pmx() != 0 || star.pmy() != 0 || star.pmz() != 0)) {
-                    Vector3d p1 = aux3d1.get().set(star.x() + pm.x, star.y() + pm.y, star.z() + pm.z).sub(camera.getPos());
-                    Vector3d ppm = aux3d2.get().set(star.pmx(), star.pmy(), star.pmz()).scl(GlobalConf.scene.PM_LEN_FACTOR);
+                if (viewAngle >= thPointTimesFovFactor / GlobalConf.scene.PM_NUM_FACTOR && (pmx != 0 || pmy != 0 || pmz != 0)) {
+                    Vector3d p1 = aux3d1.get().set(getX(idx) + pm.x, getY(idx) + pm.y, getZ(idx) + pm.z).sub(camera.getPos());
+                    Vector3d ppm = aux3d2.get().set(pmx, pmy, pmz).scl(GlobalConf.scene.PM_LEN_FACTOR);
                     double p1p2len = ppm.len();
                     Vector3d p2 = aux3d3.get().set(ppm).add(p1);
 
@@ -521,7 +666,7 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
                         break;
                     case 1:
                         // LENGTH
-                        ppm.set(star.pmx(), star.pmy(), star.pmz());
+                        ppm.set(pmx, pmy, pmz);
                         // Units/year to Km/s
                         ppm.scl(Constants.U_TO_KM / Nature.Y_TO_S);
                         double len = MathUtilsd.clamp(ppm.len(), 0d, maxSpeedKms) / maxSpeedKms;
@@ -532,7 +677,7 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
                         break;
                     case 2:
                         // HAS RADIAL VELOCITY - blue: stars with RV, red: stars without RV
-                        if (star.radvel() != 0) {
+                        if (radvel != 0) {
                             r = ColorUtils.gBlue[0] + 0.2f;
                             g = ColorUtils.gBlue[1] + 0.4f;
                             b = ColorUtils.gBlue[2] + 0.4f;
@@ -544,7 +689,7 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
                         break;
                     case 3:
                         // REDSHIFT from Sun - blue: -100 Km/s, red: 100 Km/s
-                        double rav = star.radvel();
+                        double rav = radvel;
                         if (rav != 0) {
                             double max = maxSpeedKms;
                             // rv in [0:1]
@@ -561,7 +706,7 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
                         // REDSHIFT from Camera - blue: -100 Km/s, red: 100 Km/s
                         if (ppm.len2() != 0) {
                             double max = maxSpeedKms;
-                            ppm.set(star.pmx(), star.pmy(), star.pmz());
+                            ppm.set(pmx, pmy, pmz);
                             // Units/year to Km/s
                             ppm.scl(Constants.U_TO_KM / Nature.Y_TO_S);
                             Vector3d camstar = aux3d4.get().set(p1);
@@ -622,25 +767,25 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
     public void render(ExtSpriteBatch batch, ExtShaderProgram shader, FontRenderSystem sys, RenderingContext rc, ICamera camera) {
         float thOverFactor = (float) (GlobalConf.scene.STAR_THRESHOLD_POINT / GlobalConf.scene.LABEL_NUMBER_FACTOR / camera.getFovFactor());
 
-        int n = Math.min(pointData.size(), GlobalConf.scene.STAR_GROUP_N_NEAREST);
+        int n = Math.min(size(), GlobalConf.scene.STAR_GROUP_N_NEAREST);
         if (camera.getCurrent() instanceof FovCamera) {
             for (int i = 0; i < n; i++) {
-                StarBean star = (StarBean) pointData.get(active[i]);
-                Vector3d starPosition = fetchPosition(star, camera.getPos(), aux3d1.get(), currDeltaYears);
+                int idx = active[i];
+                Vector3d starPosition = fetchPosition(idx, camera.getPos(), aux3d1.get(), currDeltaYears);
                 float distToCamera = (float) starPosition.len();
-                float radius = (float) getRadius(active[i]);
+                float radius = (float) getRadius(idx);
                 float viewAngle = (float) (((radius / distToCamera) / camera.getFovFactor()) * GlobalConf.scene.STAR_BRIGHTNESS * 6f);
 
                 if (camera.isVisible(GaiaSky.instance.time, viewAngle, starPosition, distToCamera)) {
-                    render2DLabel(batch, shader, rc, sys.font2d, camera, star.names[0], starPosition);
+                    render2DLabel(batch, shader, rc, sys.font2d, camera, getFirstName(idx), starPosition);
                 }
             }
         } else {
             for (int i = 0; i < n; i++) {
-                StarBean star = (StarBean) pointData.get(active[i]);
-                Vector3d starPosition = fetchPosition(star, camera.getPos(), aux3d1.get(), currDeltaYears);
+                int idx = active[i];
+                Vector3d starPosition = fetchPosition(idx, camera.getPos(), aux3d1.get(), currDeltaYears);
                 float distToCamera = (float) starPosition.len();
-                float radius = (float) getRadius(active[i]);
+                float radius = (float) getRadius(idx);
                 float viewAngle = (float) (((radius / distToCamera) / camera.getFovFactor()) * GlobalConf.scene.STAR_BRIGHTNESS * 1.5f);
 
                 if (viewAngle >= thOverFactor && camera.isVisible(GaiaSky.instance.time, viewAngle, starPosition, distToCamera) && distToCamera > radius * 100) {
@@ -653,7 +798,7 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
                     float textSize = (float) FastMath.tanh(viewAngle) * distToCamera * 1e5f;
                     float alpha = Math.min((float) FastMath.atan(textSize / distToCamera), 1.e-3f);
                     textSize = (float) FastMath.tan(alpha) * distToCamera * 0.5f;
-                    render3DLabel(batch, shader, sys.fontDistanceField, camera, rc, star.names[0], starPosition, textScale() * camera.getFovFactor(), textSize * camera.getFovFactor());
+                    render3DLabel(batch, shader, sys.fontDistanceField, camera, rc, getFirstName(idx), starPosition, textScale() * camera.getFovFactor(), textSize * camera.getFovFactor());
 
                 }
             }
@@ -720,7 +865,139 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
      * @return The size
      */
     public double getSize(int i) {
-        return ((StarBean) pointData.get(i)).size();
+        return columns != null ? columns.size(i) : ((StarBean) pointData.get(i)).size();
+    }
+
+    public double getX(int i) {
+        return columns != null ? columns.x(i) : pointData.get(i).x();
+    }
+
+    public double getY(int i) {
+        return columns != null ? columns.y(i) : pointData.get(i).y();
+    }
+
+    public double getZ(int i) {
+        return columns != null ? columns.z(i) : pointData.get(i).z();
+    }
+
+    /**
+     * Adds to the given array the index ranges of the stars which may be in the given box, as
+     * pairs of [start, end) indices. The ranges are sorted and disjoint, and may contain stars outside the box.
+     * Positions are the ones stored in the group, without proper motions.
+     *
+     * @param box    The box, in internal units
+     * @param ranges The array to add the ranges to
+     */
+    public void query(BoundingBoxd box, IntArray ranges) {
+        mortonIndex().query(box, ranges);
+    }
+
+    /**
+     * Adds to the given array the index ranges of the stars which may be in the given sphere, as
+     * pairs of [start, end) indices. The ranges are sorted and disjoint, and may contain stars outside the sphere.
+     * Positions are the ones stored in the group, without proper motions.
+     *
+     * @param centre The centre of the sphere, in internal units
+     * @param radius The radius of the sphere, in internal units
+     * @param ranges The array to add the ranges to
+     */
+    public void query(Vector3d centre, double radius, IntArray ranges) {
+        mortonIndex().query(centre, radius, ranges);
+    }
+
+    private MortonIndex mortonIndex() {
+        MortonIndex index = mortonIndex;
+        if (index == null) {
+            synchronized (mortonLock) {
+                index = mortonIndex;
+                if (index == null) {
+                    index = MortonIndex.build(this);
+                    mortonIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Drops the range table after the data has changed. Waits for any build in progress, so that
+     * a table of the old data is never left behind
+     */
+    private void resetMortonIndex() {
+        synchronized (mortonLock) {
+            mortonIndex = null;
+        }
+    }
+
+    public double getPmX(int i) {
+        return columns != null ? columns.pmx(i) : ((StarBean) pointData.get(i)).pmx();
+    }
+
+    public double getPmY(int i) {
+        return columns != null ? columns.pmy(i) : ((StarBean) pointData.get(i)).pmy();
+    }
+
+    public double getPmZ(int i) {
+        return columns != null ? columns.pmz(i) : ((StarBean) pointData.get(i)).pmz();
+    }
+
+    public double getRadVel(int i) {
+        return columns != null ? columns.radvel(i) : ((StarBean) pointData.get(i)).radvel();
+    }
+
+    public float getAppmag(int i) {
+        return columns != null ? columns.appmag(i) : (float) ((StarBean) pointData.get(i)).appmag();
+    }
+
+    public float getCol(int i) {
+        return columns != null ? columns.col(i) : (float) ((StarBean) pointData.get(i)).col();
+    }
+
+    public int getHip(int i) {
+        return columns != null ? columns.hip(i) : ((StarBean) pointData.get(i)).hip();
+    }
+
+    /**
+     * Whether any star of this group has a HIP number, and must therefore be
+     * in the HIP map of the scene graph
+     *
+     * @return True if there are HIP stars in this group
+     */
+    public boolean hasHipStars() {
+        if (hasHip == null) {
+            boolean hip = false;
+            int n = size();
+            for (int i = 0; i < n && !hip; i++) {
+                hip = getHip(i) > 0;
+            }
+            hasHip = hip;
+        }
+        return hasHip;
+    }
+
+    public long getId(int i) {
+        return columns != null ? columns.id(i) : ((StarBean) pointData.get(i)).id;
+    }
+
+    @Override
+    public boolean filter(int index) {
+        if (columns != null && catalogInfo != null && catalogInfo.filter != null) {
+            return catalogInfo.filter.evaluate(columns.load(index, filterCursor.get()));
+        }
+        return super.filter(index);
+    }
+
+    /**
+     * Returns the first name of the particle at index i
+     *
+     * @param i The index
+     * @return The first name, or null if it has no names
+     */
+    public String getFirstName(int i) {
+        if (columns != null)
+            return columns.firstName(i);
+        String[] names = pointData.get(i).names;
+        return names != null ? names[0] : null;
     }
 
     @Override
@@ -747,12 +1024,12 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
 
     @Override
     public long getCandidateId() {
-        return ((StarBean) pointData.get(candidateFocusIndex)).id;
+        return getId(candidateFocusIndex);
     }
 
     @Override
     public String getCandidateName() {
-        return pointData.get(candidateFocusIndex).names[0];
+        return getFirstName(candidateFocusIndex);
     }
 
     @Override
@@ -805,18 +1082,14 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
 
     @Override
     public IFocus getFocus(String name) {
-        if (index.containsKey(name))
-            candidateFocusIndex = index.get(name);
-        else
-            candidateFocusIndex = -1;
+        candidateFocusIndex = indexOf(name);
         return this;
     }
 
     public Vector3d getAbsolutePosition(String name, Vector3d aux) {
-        if (index.containsKey(name)) {
-            int idx = index.get(name);
-            StarBean sb = (StarBean) pointData.get(idx);
-            fetchPosition(sb, null, aux, currDeltaYears);
+        int idx = indexOf(name);
+        if (idx >= 0) {
+            fetchPosition(idx, null, aux, currDeltaYears);
             return aux;
         } else {
             return null;
@@ -833,6 +1106,25 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
             return destination.set(sb.x(), sb.y(), sb.z()).add(pm);
     }
 
+    /**
+     * Computes the position of the star at the given index at the given time,
+     * without creating any star bean
+     *
+     * @param i           The index
+     * @param campos      The camera position, if the position is to be relative to it
+     * @param destination The vector to store the result
+     * @param deltaYears  The time since the epoch, in years
+     * @return The destination vector
+     */
+    @Override
+    protected Vector3d fetchPosition(int i, Vector3d campos, Vector3d destination, double deltaYears) {
+        Vector3d pm = aux3d2.get().set(getPmX(i), getPmY(i), getPmZ(i)).scl(deltaYears);
+        if (campos != null && !campos.hasNaN())
+            return destination.set(getX(i), getY(i), getZ(i)).sub(campos).add(pm);
+        else
+            return destination.set(getX(i), getY(i), getZ(i)).add(pm);
+    }
+
     @Override
     protected double getDeltaYears() {
         return currDeltaYears;
@@ -866,6 +1158,7 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
         EventManager.instance.post(Events.DISPOSE_STAR_GROUP_GPU_MESH, this.offset);
         // Data to be gc'd
         this.pointData = null;
+        this.columns = null;
         // Remove focus if needed
         CameraManager cam = GaiaSky.instance.getCameraManager();
         if (cam != null && cam.getFocus() != null && cam.getFocus() == this) {
@@ -875,7 +1168,7 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
     }
 
     public float getColor(int index) {
-        return highlighted ? Color.toFloatBits(hlc[0], hlc[1], hlc[2], hlc[3]) : (float) ((StarBean) pointData.get(index)).col();
+        return highlighted ? Color.toFloatBits(hlc[0], hlc[1], hlc[2], hlc[3]) : getCol(index);
     }
 
     /**
@@ -926,6 +1219,30 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
      * @return A new star group with sane parameters
      */
     public static StarGroup getDefaultStarGroup(String name, List<ParticleBean> data, boolean fullInit) {
+        StarGroup sg = getDefaultStarGroup(name);
+        sg.setData(data);
+        if (fullInit)
+            sg.doneLoading(null);
+        return sg;
+    }
+
+    /**
+     * Creates a default star group with some sane parameters, given the name and the data in columnar form
+     *
+     * @param name     The name of the star group. Any occurrence of '%%SGID%%' in name will be replaced with the id of the star group
+     * @param columns  The data of the star group
+     * @param fullInit Initializes the group right away
+     * @return A new star group with sane parameters
+     */
+    public static StarGroup getDefaultStarGroup(String name, StarColumns columns, boolean fullInit) {
+        StarGroup sg = getDefaultStarGroup(name);
+        sg.setColumns(columns, true);
+        if (fullInit)
+            sg.doneLoading(null);
+        return sg;
+    }
+
+    private static StarGroup getDefaultStarGroup(String name) {
         StarGroup sg = new StarGroup();
         sg.setName(name.replace("%%SGID%%", Long.toString(sg.id)));
         sg.setParent("Universe");
@@ -935,9 +1252,6 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
         sg.setSize(6.0);
         sg.setLabelposition(new double[] { 0.0, -5.0e7, -4e8 });
         sg.setCt("Stars");
-        sg.setData(data);
-        if (fullInit)
-            sg.doneLoading(null);
         return sg;
     }
 
@@ -950,19 +1264,101 @@ public class StarGroup extends ParticleGroup implements ILineRenderable, IStarFo
      */
     public void updateMetadata(ITimeFrameProvider time, ICamera camera) {
         Vector3d camPos = camera.getPos();
-        double deltaYears = AstroUtils.getMsSince(time.getTime(), epoch_jd) * Nature.MS_TO_Y;
+        final double cx = camPos.x, cy = camPos.y, cz = camPos.z;
+        final double dt = AstroUtils.getMsSince(time.getTime(), epoch_jd) * Nature.MS_TO_Y;
+        // Apparent size = size * scale / distance
+        final double scale = -(Constants.STAR_SIZE_FACTOR / camera.getFovFactor()) * GlobalConf.scene.STAR_BRIGHTNESS;
+        final double[] metadata = this.metadata;
         if (pointData != null) {
-            int n = pointData.size();
-            for (int i = 0; i < n; i++) {
-                StarBean d = (StarBean) pointData.get(i);
+            final StarColumns cols = columns;
+            final List<ParticleBean> data = pointData;
+            computeMetadata(size(), (from, to, filter) -> {
+                // Columnar stars are filtered through a single reused bean
+                final StarBean cursor = cols != null && filter != null ? new StarBean(new double[StarBean.SIZE], 0L, (String[]) null) : null;
+                for (int i = from; i < to; i++) {
+                    double x, y, z, size;
+                    if (cols != null) {
+                        x = cols.x(i) + cols.pmx(i) * dt;
+                        y = cols.y(i) + cols.pmy(i) * dt;
+                        z = cols.z(i) + cols.pmz(i) * dt;
+                        size = cols.size(i);
+                    } else {
+                        double[] d = data.get(i).data;
+                        x = d[StarBean.I_X] + d[StarBean.I_PMX] * dt;
+                        y = d[StarBean.I_Y] + d[StarBean.I_PMY] * dt;
+                        z = d[StarBean.I_Z] + d[StarBean.I_PMZ] * dt;
+                        size = d[StarBean.I_SIZE];
+                    }
+                    if (filter == null || filter.evaluate(cols != null ? cols.load(i, cursor) : data.get(i))) {
+                        double dx = x - cx, dy = y - cy, dz = z - cz;
+                        metadata[i] = (size * scale) / Math.sqrt(dx * dx + dy * dy + dz * dz);
+                    } else {
+                        metadata[i] = Double.MAX_VALUE;
+                    }
+                }
+            });
+        }
+    }
 
-                // Pm
-                Vector3d dx = aux3d2.get().set(d.pmx(), d.pmy(), d.pmz()).scl(deltaYears);
-                // Pos
-                Vector3d x = aux3d1.get().set(d.x(), d.y(), d.z()).add(dx);
+    /**
+     * Updates the metadata of the k stars with the largest apparent size only, using the spatial index
+     *
+     * @param time   The current time frame provider
+     * @param camera The camera
+     * @param k      The number of stars
+     * @return False if the group has no spatial index
+     */
+    @Override
+    protected boolean updateMetadata(ITimeFrameProvider time, ICamera camera, int k) {
+        double deltaYears = AstroUtils.getMsSince(time.getTime(), epoch_jd) * Nature.MS_TO_Y;
+        KdTree tree = getSpatialIndex(deltaYears);
+        if (tree == null)
+            return false;
+        Vector3d camPos = camera.getPos();
+        int[] found = new int[k];
+        double[] values = new double[k];
+        // Size over distance
+        int n = tree.brightest(camPos.x, camPos.y, camPos.z, deltaYears, k, this::filter, found, values);
+        Arrays.fill(metadata, Double.MAX_VALUE);
+        for (int j = 0; j < n; j++)
+            metadata[found[j]] = -((values[j] * Constants.STAR_SIZE_FACTOR) / camera.getFovFactor()) * GlobalConf.scene.STAR_BRIGHTNESS;
+        return true;
+    }
 
-                metadata[i] = filter(i) ? (-(((d.size() * Constants.STAR_SIZE_FACTOR) / camPos.dst(x)) / camera.getFovFactor()) * GlobalConf.scene.STAR_BRIGHTNESS) : Double.MAX_VALUE;
-            }
+    @Override
+    protected double getMaxProperMotion() {
+        double max = 0;
+        int n = size();
+        for (int i = 0; i < n; i++) {
+            double pmx = getPmX(i), pmy = getPmY(i), pmz = getPmZ(i);
+            max = Math.max(max, pmx * pmx + pmy * pmy + pmz * pmz);
+        }
+        return Math.sqrt(max);
+    }
+
+    /**
+     * Builds the spatial index with the proper motions and the sizes of the stars, so that
+     * it can find the stars with the largest apparent size at any time
+     *
+     * @param deltaYears The time, in years since the epoch
+     * @return The spatial index
+     */
+    @Override
+    protected KdTree buildSpatialIndex(double deltaYears) {
+        int n = size();
+        double[] x = new double[n], y = new double[n], z = new double[n], sizes = new double[n];
+        float[] pmx = new float[n], pmy = new float[n], pmz = new float[n];
+        Vector3d aux = new Vector3d();
+        for (int i = 0; i < n; i++) {
+            fetchPosition(i, null, aux, deltaYears);
+            x[i] = aux.x;
+            y[i] = aux.y;
+            z[i] = aux.z;
+            pmx[i] = (float) getPmX(i);
+            pmy[i] = (float) getPmY(i);
+            pmz[i] = (float) getPmZ(i);
+            sizes[i] = getSize(i);
         }
+        return KdTree.build(n, x, y, z, pmx, pmy, pmz, sizes, deltaYears);
     }
 }
@@ -7,6 +7,7 @@ package gaiasky.scenegraph.octreewrapper;
 
 import com.badlogic.gdx.utils.Array;
 import com.badlogic.gdx.utils.Pool;
+import gaiasky.data.StreamingOctreeLoader;
 import gaiasky.event.EventManager;
 import gaiasky.event.Events;
 import gaiasky.render.ComponentTypes;
@@ -24,6 +25,7 @@ import gaiasky.util.filter.attrib.IAttribute;
 import gaiasky.util.math.Vector3d;
 import gaiasky.util.time.ITimeFrameProvider;
 import gaiasky.util.tree.OctreeNode;
+import gaiasky.util.tree.OctreeTraversal;
 
 import java.util.HashMap;
 import java.util.Iterator;
@@ -43,6 +45,8 @@ public abstract class AbstractOctreeWrapper extends FadeNode implements Iterable
     public OctreeNode root;
     /** Roulette list with the objects to process **/
     protected List<SceneGraphNode> roulette;
+    /** State of the visibility traversal of the octree, which fills the roulette list **/
+    protected OctreeTraversal traversal;
     public Map<SceneGraphNode, OctreeNode> parenthood;
     /** The number of objects added to render in the last frame **/
     protected int lastNumberObjects = 0;
@@ -129,10 +133,19 @@ public abstract class AbstractOctreeWrapper extends FadeNode implements Iterable
             if (!copy) {
 
                 // Compute observed octants and fill roulette list
-                OctreeNode.nOctantsObserved = 0;
-                OctreeNode.nObjectsObserved = 0;
-
-                root.update(translation, camera, roulette, opacity);
+                if (traversal == null)
+                    traversal = new OctreeTraversal(roulette);
+                traversal.traverse(root, translation, camera, opacity);
+                OctreeNode.nOctantsObserved = traversal.getOctantsObserved();
+                OctreeNode.nObjectsObserved = traversal.getObjectsObserved();
+
+                // Queue the octants we will need soon
+                if (OctreeNode.LOAD_ACTIVE)
+                    StreamingOctreeLoader.predict(root, camera);
+
+                // Drop the octants created on demand which are no longer needed
+                if (root.pager != null)
+                    root.pager.release();
 
                 if (OctreeNode.nObjectsObserved != lastNumberObjects) {
                     // Need to update the points in renderer
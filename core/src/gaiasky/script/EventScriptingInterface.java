@@ -15,6 +15,8 @@ import com.badlogic.gdx.scenes.scene2d.Group;
 import com.badlogic.gdx.utils.Array;
 import com.badlogic.gdx.utils.TimeUtils;
 import gaiasky.GaiaSky;
+import gaiasky.data.StreamingOctreeLoader;
+import gaiasky.data.StreamingOctreeMetrics;
 import gaiasky.data.cluster.StarClusterLoader;
 import gaiasky.data.group.DatasetOptions;
 import gaiasky.data.group.STILDataProvider;
@@ -47,6 +49,8 @@ import gaiasky.util.ucd.UCD;
 import uk.ac.starlink.util.DataSource;
 import uk.ac.starlink.util.FileDataSource;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.file.Files;
@@ -69,6 +73,9 @@ import java.util.concurrent.atomic.AtomicReference;
 public class EventScriptingInterface implements IScriptingInterface, IObserver {
     private static final Log logger = Logger.getLogger(EventScriptingInterface.class);
 
+    // Number of objects per batch when streaming datasets
+    private static final int STREAM_BATCH_SIZE = 50000;
+
     private final EventManager em;
     private final AssetManager manager;
     private LruCache<String, Texture> textures;
@@ -2174,6 +2181,31 @@ public class EventScriptingInterface implements IScriptingInterface, IObserver {
         return GaiaSky.instance.frames;
     }
 
+    @Override
+    public Map<String, Double> getStreamingMetrics() {
+        StreamingOctreeMetrics metrics = StreamingOctreeLoader.getMetrics();
+        return metrics != null ? metrics.values() : null;
+    }
+
+    @Override
+    public boolean saveStreamingMetrics(String file) {
+        if (checkString(file, "file")) {
+            StreamingOctreeMetrics metrics = StreamingOctreeLoader.getMetrics();
+            if (metrics == null) {
+                logger.error("No LOD dataset loaded");
+                return false;
+            }
+            try {
+                File histograms = metrics.exportCsv(new File(file));
+                logger.info("Streaming metrics written to " + file + " and " + histograms.getPath());
+                return true;
+            } catch (IOException e) {
+                logger.error(e);
+            }
+        }
+        return false;
+    }
+
     @Override
     public void setLensFlare(boolean state) {
         GaiaSky.postRunnable(() -> em.post(Events.LENS_FLARE_CMD, state, false));
@@ -2528,24 +2560,74 @@ public class EventScriptingInterface implements IScriptingInterface, IObserver {
         return false;
     }
 
-    private List<ParticleBean> loadParticleBeans(DataSource ds, DatasetOptions dops) {
+    /**
+     * Streams the data source into a new star or particle group. The group is created with the first batch of objects
+     * and inserted in the scene right away, and the rest of the batches are appended as they arrive, so that large
+     * datasets show up progressively. The loading stops if the dataset is removed in the meantime.
+     *
+     * @return The group, or null if no objects were loaded
+     */
+    private ParticleGroup streamParticleGroup(String dsName, DataSource ds, CatalogInfoType type, DatasetOptions dops, boolean stars) {
         STILDataProvider provider = new STILDataProvider();
         provider.setDatasetOptions(dops);
-        @SuppressWarnings("unchecked") List<ParticleBean> data = (List<ParticleBean>) provider.loadData(ds, 1.0f, () -> {
-            // Show progress bar
-            EventManager.instance.post(Events.SHOW_LOAD_PROGRESS, true, false);
-            // Reset
-            EventManager.instance.post(Events.UPDATE_LOAD_PROGRESS, 0.1f);
-        }, (current, count) -> {
-            EventManager.instance.post(Events.UPDATE_LOAD_PROGRESS, (float) current / (float) count);
-            if (current % 250000 == 0) {
-                logger.info(current + " objects loaded...");
-            }
-        }, () -> {
+        AtomicReference<ParticleGroup> group = new AtomicReference<>();
+        AtomicBoolean created = new AtomicBoolean(false);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        // Show progress bar
+        EventManager.instance.post(Events.SHOW_LOAD_PROGRESS, true, false);
+        EventManager.instance.post(Events.UPDATE_LOAD_PROGRESS, 0.1f);
+        try {
+            provider.streamData(ds, 1.0, STREAM_BATCH_SIZE, (batch, current, count) -> {
+                if (!created.getAndSet(true)) {
+                    GaiaSky.postRunnable(() -> {
+                        try {
+                            ParticleGroup pg = stars ? StarGroup.getStarGroup(dsName, batch, dops) : ParticleGroup.getParticleGroup(dsName, batch, dops);
+                            group.set(pg);
+
+                            // Catalog info
+                            CatalogInfo ci = new CatalogInfo(dsName, ds.getName(), null, type, 1.5f, pg);
+                            ci.loading = true;
+                            EventManager.instance.post(Events.CATALOG_ADD, ci, true);
+                        } catch (Exception e) {
+                            logger.error(e, "Could not create dataset: " + dsName);
+                            failed.set(true);
+                        }
+                    });
+                } else {
+                    // Runnables run in order, so the group exists by now, unless its creation failed
+                    GaiaSky.postRunnable(() -> {
+                        ParticleGroup pg = group.get();
+                        if (pg != null)
+                            pg.append(batch);
+                    });
+                }
+                if (count > 0)
+                    EventManager.instance.post(Events.UPDATE_LOAD_PROGRESS, (float) current / (float) count);
+                if (current / 250000 > (current - batch.size()) / 250000)
+                    logger.info(current + " objects loaded...");
+                // Cancel if the dataset could not be created or has been removed
+                ParticleGroup pg = group.get();
+                return !failed.get() && (pg == null || !pg.disposed);
+            });
+        } finally {
             // Hide progress bar
             EventManager.instance.post(Events.SHOW_LOAD_PROGRESS, false, false);
+        }
+        if (!created.get())
+            return null;
+
+        // Wait for the group to be created
+        while (group.get() == null && !failed.get()) {
+            sleepFrames(1);
+        }
+        ParticleGroup pg = group.get();
+        if (pg == null)
+            return null;
+        GaiaSky.postRunnable(() -> {
+            pg.finishStreaming();
+            logger.info(pg.size() + (stars ? " stars loaded" : " particles loaded"));
         });
-        return data;
+        return pg;
     }
 
     private boolean loadDatasetImmediate(String dsName, DataSource ds, CatalogInfoType type, DatasetOptions dops, boolean sync) {
@@ -2554,43 +2636,13 @@ public class EventScriptingInterface implements IScriptingInterface, IObserver {
 
             // Create star/particle group or star clusters
             if (checkString(dsName, "datasetName")) {
-                if (dops == null || dops.type == DatasetOptions.DatasetLoadType.STARS) {
-                    List<ParticleBean> data = loadParticleBeans(ds, dops);
-                    if (data != null && !data.isEmpty()) {
-                        // STAR GROUP
-                        AtomicReference<StarGroup> starGroup = new AtomicReference<>();
-                        GaiaSky.postRunnable(() -> {
-                            starGroup.set(StarGroup.getStarGroup(dsName, data, dops));
-
-                            // Catalog info
-                            CatalogInfo ci = new CatalogInfo(dsName, ds.getName(), null, type, 1.5f, starGroup.get());
-                            EventManager.instance.post(Events.CATALOG_ADD, ci, true);
-
-                            logger.info(data.size() + " stars loaded");
-                        });
-                        // Sync waiting until the node is in the scene graph
-                        while (sync && (starGroup.get() == null || !starGroup.get().inSceneGraph)) {
-                            sleepFrames(1);
-                        }
-                    }
-                } else if (dops == null || dops.type == DatasetOptions.DatasetLoadType.PARTICLES) {
-                    // PARTICLE GROUP
-                    List<ParticleBean> data = loadParticleBeans(ds, dops);
-                    if (data != null && !data.isEmpty()) {
-                        AtomicReference<ParticleGroup> particleGroup = new AtomicReference<>();
-                        GaiaSky.postRunnable(() -> {
-                            particleGroup.set(ParticleGroup.getParticleGroup(dsName, data, dops));
-
-                            // Catalog info
-                            CatalogInfo ci = new CatalogInfo(dsName, ds.getName(), null, type, 1.5f, particleGroup.get());
-                            EventManager.instance.post(Events.CATALOG_ADD, ci, true);
-
-                            logger.info(data.size() + " particles loaded");
-                        });
-                        // Sync waiting until the node is in the scene graph
-                        while (sync && (particleGroup.get() == null || !particleGroup.get().inSceneGraph)) {
-                            sleepFrames(1);
-                        }
+                if (dops == null || dops.type == DatasetOptions.DatasetLoadType.STARS || dops.type == DatasetOptions.DatasetLoadType.PARTICLES) {
+                    // STAR GROUP or PARTICLE GROUP
+                    boolean stars = dops == null || dops.type == DatasetOptions.DatasetLoadType.STARS;
+                    ParticleGroup group = streamParticleGroup(dsName, ds, type, dops, stars);
+                    // Sync waiting until the node is in the scene graph
+                    while (sync && group != null && !group.inSceneGraph && !group.disposed) {
+                        sleepFrames(1);
                     }
                 } else if (dops == null || dops.type == DatasetOptions.DatasetLoadType.CLUSTERS) {
                     // STAR CLUSTERS
@@ -11,6 +11,7 @@ import gaiasky.util.Constants;
 import gaiasky.util.gdx.contrib.postprocess.effects.CubemapProjections;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * Scripting interface. Provides an interface to the Gaia Sandbox core and
@@ -1789,6 +1790,28 @@ public interface IScriptingInterface {
      */
     long getCurrentFrameNumber();
 
+    /**
+     * Gets the telemetry of the streaming of LOD datasets: the number of loaded octants, bytes
+     * read, evictions, aborted and failed loads and reloads of octants evicted shortly before,
+     * the read, load and eviction rates per second, and the mean, median, 95th and 99th
+     * percentiles and maximum of the load latency in ms, split into queue wait, I/O,
+     * decoding, main-thread integration and total.
+     *
+     * @return Map with the metric names and values, or null if no LOD dataset is loaded.
+     */
+    Map<String, Double> getStreamingMetrics();
+
+    /**
+     * Exports the telemetry of the streaming of LOD datasets to CSV files. The given file gets
+     * the time series of the queue depths, loaded stars, memory footprint and rates, with
+     * one row per second. The latency histograms of the load phases are written to a file
+     * with the same name plus the suffix "-latency".
+     *
+     * @param file The path of the CSV file.
+     * @return True if the files were written, false otherwise.
+     */
+    boolean saveStreamingMetrics(String file);
+
     /**
      * Enables or deisables the lens flare effect.
      *
@@ -53,6 +53,11 @@ public class CatalogInfo {
     // Reference to scene graph object
     public FadeNode object;
 
+    // Number of objects, for particle and star groups
+    public volatile long nParticles;
+    // Whether the objects are still being loaded
+    public volatile boolean loading;
+
     public CatalogInfo(String name, String description, String source, CatalogInfoType type, float hlSizeFactor, FadeNode object) {
         super();
         this.name = name;
@@ -67,6 +72,9 @@ public class CatalogInfo {
         this.hlAllVisible = true;
         System.arraycopy(ColorUtils.getColorFromIndex(colorIndexSequence++), 0, this.hlColor, 0, 4);
 
+        if (object instanceof ParticleGroup && ((ParticleGroup) object).data() != null) {
+            this.nParticles = ((ParticleGroup) object).size();
+        }
         this.object.setCatalogInfo(this);
     }
 
@@ -133,10 +133,35 @@ public class GlobalConf {
 
         public boolean MULTITHREADING;
         public int NUMBER_THREADS;
+        /**
+         * Number of threads that load and decode octants of LOD datasets
+         * in parallel. Zero or negative lets the program decide
+         */
+        public int NUMBER_LOADER_THREADS;
+        /**
+         * Time window, in seconds, used to predict the octants that will become
+         * visible and prefetch them. Zero or negative disables prefetching
+         */
+        public float OCTREE_PREFETCH_TIME;
+        /**
+         * Depth at which the octree visibility traversal is split into parallel
+         * tasks, one per subtree. Zero or negative traverses the octree sequentially
+         */
+        public int OCTREE_PARALLEL_DEPTH;
+        /**
+         * Depth down to which the octree metadata of LOD datasets is read at startup.
+         * Deeper octants are read from the metadata file when their parent is first
+         * observed. Negative reads the whole octree at startup
+         */
+        public int OCTREE_PAGED_DEPTH;
 
-        public void initialize(boolean MULTITHREADING, int NUMBER_THREADS) {
+        public void initialize(boolean MULTITHREADING, int NUMBER_THREADS, int NUMBER_LOADER_THREADS, float OCTREE_PREFETCH_TIME, int OCTREE_PARALLEL_DEPTH, int OCTREE_PAGED_DEPTH) {
             this.MULTITHREADING = MULTITHREADING;
             this.NUMBER_THREADS = NUMBER_THREADS;
+            this.NUMBER_LOADER_THREADS = NUMBER_LOADER_THREADS;
+            this.OCTREE_PREFETCH_TIME = OCTREE_PREFETCH_TIME;
+            this.OCTREE_PARALLEL_DEPTH = OCTREE_PARALLEL_DEPTH;
+            this.OCTREE_PAGED_DEPTH = OCTREE_PAGED_DEPTH;
         }
 
         /**
@@ -153,6 +178,36 @@ public class GlobalConf {
                 return NUMBER_THREADS;
         }
 
+        /**
+         * Returns the actual number of octant loader threads. If multithreading
+         * is off, only one loader thread is used. If the number of loader threads
+         * is 0 or less, half the number of processors is used, capped to 4, since
+         * the loading is mostly I/O-bound
+         *
+         * @return The number of loader threads
+         */
+        public int NUMBER_LOADER_THREADS() {
+            if (!MULTITHREADING)
+                return 1;
+            else if (NUMBER_LOADER_THREADS <= 0)
+                return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+            else
+                return NUMBER_LOADER_THREADS;
+        }
+
+        /**
+         * Returns the actual depth at which the octree traversal is split into
+         * parallel tasks, or 0 if the traversal must be sequential
+         *
+         * @return The split depth
+         */
+        public int OCTREE_PARALLEL_DEPTH() {
+            if (!MULTITHREADING || OCTREE_PARALLEL_DEPTH <= 0)
+                return 0;
+            else
+                return OCTREE_PARALLEL_DEPTH;
+        }
+
     }
 
     public static class PostprocessConf implements IConf, IObserver {
@@ -1598,6 +1653,13 @@ public class GlobalConf {
          */
         public long MAX_LOADED_STARS;
 
+        /**
+         * In the case of multifile LOD datasets, the maximum estimated memory footprint of the
+         * loaded data, in MB, accounting for both heap and video memory. Octants are unloaded when either this or
+         * {@link #MAX_LOADED_STARS} is surpassed. If zero or negative, it is derived from {@link #MAX_LOADED_STARS}.
+         */
+        public long MAX_LOADED_MEMORY_MB;
+
         /**
          * Distance scaling factor in desktop mode
          **/
@@ -1613,7 +1675,7 @@ public class GlobalConf {
 
         public void initialize(String sTARTUP_OBJECT, GraphicsQuality gRAPHICS_QUALITY, long oBJECT_FADE_MS, float sTAR_BRIGHTNESS, float sTAR_BRIGHTNESS_POWER, int sTAR_TEX_INDEX, int sTAR_GROUP_N_NEAREST, boolean sTAR_GROUP_BILLBOARD_FLAG, float aMBIENT_LIGHT, float cAMERA_FOV, float cAMERA_SPEED, float tURNING_SPEED, float rOTATION_SPEED, int cAMERA_SPEED_LIMIT_IDX, boolean fOCUS_LOCK, boolean fOCUS_LOCK_ORIENTATION, float lABEL_SIZE_FACTOR, float lABEL_NUMBER_FACTOR, float lINE_WIDTH_FACTOR,
                 boolean[] vISIBILITY, int oRBIT_RENDERER, int lINE_RENDERER, double sTAR_TH_ANGLE_NONE, double sTAR_TH_ANGLE_POINT, double sTAR_TH_ANGLE_QUAD, float sTAR_MIN_OPACITY, float sTAR_MAX_OPACITY, boolean oCTREE_PARTICLE_FADE, float oCTANT_TH_ANGLE_0, float oCTANT_TH_ANGLE_1, float pM_NUM_FACTOR, float pM_LEN_FACTOR, long n_PM_STARS, int pM_COLOR_MODE, boolean pM_ARROWHEADS, float sTAR_POINT_SIZE, boolean gALAXY_3D, boolean cROSSHAIR_FOCUS, boolean cROSSHAIR_CLOSEST,
-                boolean cROSSHAIR_HOME, boolean cINEMATIC_CAMERA, boolean lAZY_TEXTURE_INIT, boolean lAZY_MESH_INIT, boolean fREE_CAMERA_TARGET_MODE_ON, boolean sHADOW_MAPPING, int sHADOW_MAPPING_N_SHADOWS, int sHADOW_MAPPING_RESOLUTION, long mAX_LOADED_STARS, ElevationType eLEVATION_TYPE, double eLEVATION_MULTIPLIER, double tESSELLATION_QUALITY, double dIST_SCALE_DESKTOP, double dIST_SCALE_VR) {
+                boolean cROSSHAIR_HOME, boolean cINEMATIC_CAMERA, boolean lAZY_TEXTURE_INIT, boolean lAZY_MESH_INIT, boolean fREE_CAMERA_TARGET_MODE_ON, boolean sHADOW_MAPPING, int sHADOW_MAPPING_N_SHADOWS, int sHADOW_MAPPING_RESOLUTION, long mAX_LOADED_STARS, long mAX_LOADED_MEMORY_MB, ElevationType eLEVATION_TYPE, double eLEVATION_MULTIPLIER, double tESSELLATION_QUALITY, double dIST_SCALE_DESKTOP, double dIST_SCALE_VR) {
             STARTUP_OBJECT = sTARTUP_OBJECT;
             GRAPHICS_QUALITY = gRAPHICS_QUALITY;
             OBJECT_FADE_MS = oBJECT_FADE_MS;
@@ -1664,6 +1726,7 @@ public class GlobalConf {
             SHADOW_MAPPING_N_SHADOWS = sHADOW_MAPPING_N_SHADOWS;
             SHADOW_MAPPING_RESOLUTION = sHADOW_MAPPING_RESOLUTION;
             MAX_LOADED_STARS = mAX_LOADED_STARS;
+            MAX_LOADED_MEMORY_MB = mAX_LOADED_MEMORY_MB;
             ELEVATION_TYPE = eLEVATION_TYPE;
             ELEVATION_MULTIPLIER = eLEVATION_MULTIPLIER;
             TESSELLATION_QUALITY = tESSELLATION_QUALITY;
@@ -0,0 +1,174 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.util.ds;
+
+/**
+ * Sorts arrays of indices by the keys they point to, without boxing. Besides full sorts, it
+ * can bring the k indices with the smallest keys to the front of the array and sort only those, which
+ * takes linear time on average when k is small.
+ *
+ * @author tsagrista
+ */
+public class IndexSort {
+
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    /**
+     * Sorts the first n indices by increasing key
+     *
+     * @param indices The indices into the keys array
+     * @param keys    The keys
+     * @param n       The number of indices to sort
+     */
+    public static void sort(int[] indices, double[] keys, int n) {
+        sort(indices, keys, 0, n - 1, depthLimit(n));
+    }
+
+    /**
+     * Moves the k indices with the smallest keys among the first n to the front of the
+     * array and sorts them by increasing key. The order of the rest of the indices is undefined.
+     *
+     * @param indices The indices into the keys array
+     * @param keys    The keys
+     * @param n       The number of indices
+     * @param k       The number of indices to select
+     */
+    public static void select(int[] indices, double[] keys, int n, int k) {
+        if (k >= n) {
+            sort(indices, keys, n);
+            return;
+        }
+        if (k <= 0)
+            return;
+        int target = k - 1;
+        int lo = 0, hi = n - 1;
+        int depth = depthLimit(n);
+        while (hi - lo > INSERTION_SORT_THRESHOLD) {
+            if (depth-- == 0) {
+                // Bad pivots, sort what is left
+                sort(indices, keys, lo, hi, depthLimit(hi - lo + 1));
+                break;
+            }
+            int mid = pivot(indices, keys, lo, hi);
+            double pivot = keys[indices[mid]];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (keys[indices[i]] < pivot)
+                    i++;
+                while (keys[indices[j]] > pivot)
+                    j--;
+                if (i <= j)
+                    swap(indices, i++, j--);
+            }
+            // Keep only the part which contains the target position
+            if (target <= j)
+                hi = j;
+            else if (target >= i)
+                lo = i;
+            else
+                break;
+        }
+        if (hi - lo <= INSERTION_SORT_THRESHOLD)
+            insertionSort(indices, keys, lo, hi);
+        sort(indices, keys, 0, target, depthLimit(k));
+    }
+
+    /**
+     * Sorts with a quicksort, falling back to a heapsort when the pivots are bad
+     */
+    private static void sort(int[] indices, double[] keys, int lo, int hi, int depth) {
+        while (hi - lo > INSERTION_SORT_THRESHOLD) {
+            if (depth-- == 0) {
+                heapSort(indices, keys, lo, hi);
+                return;
+            }
+            int mid = pivot(indices, keys, lo, hi);
+            double pivot = keys[indices[mid]];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (keys[indices[i]] < pivot)
+                    i++;
+                while (keys[indices[j]] > pivot)
+                    j--;
+                if (i <= j)
+                    swap(indices, i++, j--);
+            }
+            // Recurse into the smaller part, loop on the larger one
+            if (j - lo < hi - i) {
+                sort(indices, keys, lo, j, depth);
+                lo = i;
+            } else {
+                sort(indices, keys, i, hi, depth);
+                hi = j;
+            }
+        }
+        insertionSort(indices, keys, lo, hi);
+    }
+
+    /**
+     * Median of three, which also leaves sentinels at both ends of the range
+     *
+     * @return The position of the pivot
+     */
+    private static int pivot(int[] indices, double[] keys, int lo, int hi) {
+        int mid = (lo + hi) >>> 1;
+        if (keys[indices[mid]] < keys[indices[lo]])
+            swap(indices, mid, lo);
+        if (keys[indices[hi]] < keys[indices[lo]])
+            swap(indices, hi, lo);
+        if (keys[indices[hi]] < keys[indices[mid]])
+            swap(indices, hi, mid);
+        return mid;
+    }
+
+    private static void insertionSort(int[] indices, double[] keys, int lo, int hi) {
+        for (int i = lo + 1; i <= hi; i++) {
+            int index = indices[i];
+            double key = keys[index];
+            int j = i - 1;
+            while (j >= lo && keys[indices[j]] > key) {
+                indices[j + 1] = indices[j];
+                j--;
+            }
+            indices[j + 1] = index;
+        }
+    }
+
+    private static void heapSort(int[] indices, double[] keys, int lo, int hi) {
+        int n = hi - lo + 1;
+        for (int i = n / 2 - 1; i >= 0; i--)
+            siftDown(indices, keys, lo, i, n);
+        for (int end = n - 1; end > 0; end--) {
+            swap(indices, lo, lo + end);
+            siftDown(indices, keys, lo, 0, end);
+        }
+    }
+
+    private static void siftDown(int[] indices, double[] keys, int lo, int i, int n) {
+        int index = indices[lo + i];
+        double key = keys[index];
+        int child;
+        while ((child = 2 * i + 1) < n) {
+            if (child + 1 < n && keys[indices[lo + child + 1]] > keys[indices[lo + child]])
+                child++;
+            if (!(keys[indices[lo + child]] > key))
+                break;
+            indices[lo + i] = indices[lo + child];
+            i = child;
+        }
+        indices[lo + i] = index;
+    }
+
+    private static int depthLimit(int n) {
+        return 2 * (32 - Integer.numberOfLeadingZeros(Math.max(n, 1)));
+    }
+
+    private static void swap(int[] indices, int i, int j) {
+        int index = indices[i];
+        indices[i] = indices[j];
+        indices[j] = index;
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.util.ds;
+
+import java.util.Arrays;
+
+/**
+ * A map from primitive longs to primitive ints, with open addressing and linear probing.
+ * It is meant for source ids, where there may be more than a billion keys, so it does not box keys or
+ * values and has no per-entry objects. Each entry takes between 17 and 35 bytes, depending on the load of its segment.
+ * <p>
+ * The map is split into {@link #SEGMENTS} segments, chosen with the high bits of the hash of the key,
+ * each of which grows independently. This keeps the arrays under the maximum array size and avoids
+ * rehashing the whole map at once. Any long is a valid key. Entries can't be removed.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author tsagrista
+ */
+public class LongIntMap {
+
+    /** Number of segments, a power of two **/
+    public static final int SEGMENTS = 16;
+    private static final int SEGMENT_BITS = 4;
+    /** Maximum capacity of a segment **/
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final float LOAD_FACTOR = 0.7f;
+    /** The empty key. The entry with this key is kept apart **/
+    private static final long EMPTY = 0;
+
+    /**
+     * Receives the entries of a map
+     */
+    public interface EntryConsumer {
+        void accept(long key, int value);
+    }
+
+    private final long[][] keys;
+    private final int[][] values;
+    private final int[] sizes;
+    private final int[] thresholds;
+    private boolean hasEmptyKey;
+    private int emptyKeyValue;
+    private long size;
+
+    /**
+     * Creates an empty map
+     */
+    public LongIntMap() {
+        this(0);
+    }
+
+    /**
+     * Creates an empty map with room for the given number of entries
+     *
+     * @param expectedSize The expected number of entries
+     */
+    public LongIntMap(long expectedSize) {
+        keys = new long[SEGMENTS][];
+        values = new int[SEGMENTS][];
+        sizes = new int[SEGMENTS];
+        thresholds = new int[SEGMENTS];
+        int capacity = capacityFor(expectedSize / SEGMENTS + 1);
+        for (int s = 0; s < SEGMENTS; s++)
+            allocate(s, capacity);
+    }
+
+    private static int capacityFor(long entries) {
+        long needed = (long) Math.ceil(entries / LOAD_FACTOR) + 1;
+        if (needed > MAX_CAPACITY)
+            throw new IllegalStateException("Too many entries for a long-int map: " + entries * SEGMENTS);
+        int capacity = 16;
+        while (capacity < needed)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    private void allocate(int s, int capacity) {
+        keys[s] = new long[capacity];
+        values[s] = new int[capacity];
+        thresholds[s] = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Mixes the bits of the key (finalizer of MurmurHash3), so that sequential ids spread over the table
+     */
+    private static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static int segment(long hash) {
+        return (int) (hash >>> (64 - SEGMENT_BITS));
+    }
+
+    /**
+     * Puts the given entry in the map, replacing the previous value of the key, if any
+     *
+     * @param key   The key
+     * @param value The value
+     */
+    public void put(long key, int value) {
+        if (key == EMPTY) {
+            if (!hasEmptyKey)
+                size++;
+            hasEmptyKey = true;
+            emptyKeyValue = value;
+            return;
+        }
+        long h = hash(key);
+        int s = segment(h);
+        long[] k = keys[s];
+        int mask = k.length - 1;
+        int i = (int) h & mask;
+        while (k[i] != EMPTY) {
+            if (k[i] == key) {
+                values[s][i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        k[i] = key;
+        values[s][i] = value;
+        size++;
+        if (++sizes[s] > thresholds[s])
+            resize(s, k.length << 1);
+    }
+
+    /**
+     * Puts the given entries in the map. The segments are grown once, up front
+     *
+     * @param keys   The keys
+     * @param values The values, in the same order as the keys
+     * @param offset Index of the first entry in the arrays
+     * @param length Number of entries
+     */
+    public void putAll(long[] keys, int[] values, int offset, int length) {
+        // Count the entries per segment, and grow before inserting
+        int[] counts = new int[SEGMENTS];
+        for (int j = offset; j < offset + length; j++)
+            counts[segment(hash(keys[j]))]++;
+        for (int s = 0; s < SEGMENTS; s++) {
+            int capacity = capacityFor((long) sizes[s] + counts[s]);
+            if (capacity > this.keys[s].length)
+                resize(s, capacity);
+        }
+        for (int j = offset; j < offset + length; j++)
+            put(keys[j], values[j]);
+    }
+
+    /**
+     * Gets the value of the given key
+     *
+     * @param key          The key
+     * @param defaultValue The value to return if the key is not in the map
+     * @return The value, or the default value
+     */
+    public int get(long key, int defaultValue) {
+        if (key == EMPTY)
+            return hasEmptyKey ? emptyKeyValue : defaultValue;
+        long h = hash(key);
+        int s = segment(h);
+        long[] k = keys[s];
+        int mask = k.length - 1;
+        int i = (int) h & mask;
+        long current;
+        while ((current = k[i]) != EMPTY) {
+            if (current == key)
+                return values[s][i];
+            i = (i + 1) & mask;
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Gets the values of the given keys
+     *
+     * @param keys         The keys
+     * @param out          The array to put the values in, at the same positions as the keys
+     * @param offset       Index of the first key in the arrays
+     * @param length       Number of keys
+     * @param defaultValue The value to use for the keys which are not in the map
+     * @return The number of keys which are in the map
+     */
+    public int getAll(long[] keys, int[] out, int offset, int length, int defaultValue) {
+        int found = 0;
+        for (int j = offset; j < offset + length; j++) {
+            long key = keys[j];
+            if (key == EMPTY) {
+                out[j] = hasEmptyKey ? emptyKeyValue : defaultValue;
+                found += hasEmptyKey ? 1 : 0;
+                continue;
+            }
+            long h = hash(key);
+            int s = segment(h);
+            long[] k = this.keys[s];
+            int mask = k.length - 1;
+            int i = (int) h & mask;
+            int value = defaultValue;
+            long current;
+            while ((current = k[i]) != EMPTY) {
+                if (current == key) {
+                    value = values[s][i];
+                    found++;
+                    break;
+                }
+                i = (i + 1) & mask;
+            }
+            out[j] = value;
+        }
+        return found;
+    }
+
+    /**
+     * Checks whether the map contains the given key
+     *
+     * @param key The key
+     * @return Whether the key is in the map
+     */
+    public boolean containsKey(long key) {
+        if (key == EMPTY)
+            return hasEmptyKey;
+        long h = hash(key);
+        long[] k = keys[segment(h)];
+        int mask = k.length - 1;
+        int i = (int) h & mask;
+        long current;
+        while ((current = k[i]) != EMPTY) {
+            if (current == key)
+                return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Calls the consumer with each entry of the map, in no particular order
+     *
+     * @param consumer The consumer
+     */
+    public void forEach(EntryConsumer consumer) {
+        if (hasEmptyKey)
+            consumer.accept(EMPTY, emptyKeyValue);
+        for (int s = 0; s < SEGMENTS; s++) {
+            long[] k = keys[s];
+            int[] v = values[s];
+            for (int i = 0; i < k.length; i++) {
+                if (k[i] != EMPTY)
+                    consumer.accept(k[i], v[i]);
+            }
+        }
+    }
+
+    /**
+     * Removes all entries, keeping the allocated memory
+     */
+    public void clear() {
+        for (int s = 0; s < SEGMENTS; s++) {
+            Arrays.fill(keys[s], EMPTY);
+            sizes[s] = 0;
+        }
+        hasEmptyKey = false;
+        size = 0;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void resize(int s, int capacity) {
+        if (capacity > MAX_CAPACITY)
+            throw new IllegalStateException("Long-int map segment is full: " + sizes[s] + " entries");
+        long[] oldKeys = keys[s];
+        int[] oldValues = values[s];
+        allocate(s, capacity);
+        long[] k = keys[s];
+        int[] v = values[s];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            long key = oldKeys[j];
+            if (key != EMPTY) {
+                int i = (int) hash(key) & mask;
+                while (k[i] != EMPTY)
+                    i = (i + 1) & mask;
+                k[i] = key;
+                v[i] = oldValues[j];
+            }
+        }
+    }
+}
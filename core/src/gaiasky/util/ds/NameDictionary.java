@@ -0,0 +1,417 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.util.ds;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact, immutable, off-heap dictionary which maps the names of the objects of a group to their indices.
+ * The names are stored in lower case, in UTF-8, sorted and concatenated in a single direct buffer, together
+ * with the table of their offsets and the table of their values, so that a dictionary is one object on the
+ * heap regardless of its size. Lookups are binary searches on the encoded names, and are case-insensitive.
+ * <p>
+ * Names are trimmed, and empty names are left out. If a name is added more than once, the last value is kept.
+ * Dictionaries are built with a {@link Builder}, and are safe to use from any thread.
+ *
+ * @author tsagrista
+ */
+public class NameDictionary {
+
+    /** The empty dictionary **/
+    public static final NameDictionary EMPTY = new Builder(0).build();
+
+    private final int size;
+    /** Offsets of the names in the name block, plus the end of the block **/
+    private final IntBuffer offsets;
+    private final IntBuffer values;
+    private final ByteBuffer names;
+
+    private NameDictionary(int size, IntBuffer offsets, IntBuffer values, ByteBuffer names) {
+        this.size = size;
+        this.offsets = offsets;
+        this.values = values;
+        this.names = names;
+    }
+
+    /**
+     * @return The number of names
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the value of the given name
+     *
+     * @param name The name, in any case
+     * @return The value, or -1 if the name is not in the dictionary
+     */
+    public int get(String name) {
+        return get(key(name));
+    }
+
+    /**
+     * Gets the value of the given key
+     *
+     * @param key The key, see {@link #key(CharSequence)}
+     * @return The value, or -1 if the key is not in the dictionary
+     */
+    public int get(byte[] key) {
+        int k = find(key);
+        return k >= 0 ? values.get(k) : -1;
+    }
+
+    /**
+     * Finds the position of the given key
+     *
+     * @param key The key, see {@link #key(CharSequence)}
+     * @return The position of the key, or -(insertion point) - 1
+     */
+    public int find(byte[] key) {
+        int lo = 0, hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(mid, key);
+            if (cmp < 0)
+                lo = mid + 1;
+            else if (cmp > 0)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -lo - 1;
+    }
+
+    /**
+     * Gets the first position whose name is not smaller than the given key, which is the first name
+     * starting with the key, if any
+     *
+     * @param key The key, see {@link #key(CharSequence)}
+     * @return The position, or {@link #size()}
+     */
+    public int lowerBound(byte[] key) {
+        int k = find(key);
+        return k >= 0 ? k : -k - 1;
+    }
+
+    /**
+     * Whether the name at the given position starts with the given key
+     *
+     * @param k   The position
+     * @param key The key, see {@link #key(CharSequence)}
+     * @return Whether the name starts with the key
+     */
+    public boolean startsWith(int k, byte[] key) {
+        int from = offsets.get(k);
+        if (offsets.get(k + 1) - from < key.length)
+            return false;
+        for (int j = 0; j < key.length; j++) {
+            if (names.get(from + j) != key[j])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the name at the given position, in lower case
+     *
+     * @param k The position
+     * @return The name
+     */
+    public String name(int k) {
+        int from = offsets.get(k);
+        byte[] bytes = new byte[offsets.get(k + 1) - from];
+        for (int j = 0; j < bytes.length; j++)
+            bytes[j] = names.get(from + j);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the value of the name at the given position
+     *
+     * @param k The position
+     * @return The value
+     */
+    public int value(int k) {
+        return values.get(k);
+    }
+
+    /**
+     * Gets the hash of the name at the given position, which is the same as the hash of its key
+     *
+     * @param k The position
+     * @return The hash, see {@link #hash(byte[])}
+     */
+    public int hash(int k) {
+        int h = 0;
+        for (int j = offsets.get(k), end = offsets.get(k + 1); j < end; j++)
+            h = 31 * h + (names.get(j) & 0xff);
+        return mix(h);
+    }
+
+    /**
+     * Gets the hash of the given key
+     *
+     * @param key The key, see {@link #key(CharSequence)}
+     * @return The hash
+     */
+    public static int hash(byte[] key) {
+        int h = 0;
+        for (byte b : key)
+            h = 31 * h + (b & 0xff);
+        return mix(h);
+    }
+
+    /**
+     * Spreads the bits of a polynomial hash, so that similar names, like catalog numbers, do not cluster
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Compares the name at the given position with the given key, as unsigned bytes
+     */
+    private int compare(int k, byte[] key) {
+        int from = offsets.get(k), length = offsets.get(k + 1) - from;
+        int n = Math.min(length, key.length);
+        for (int j = 0; j < n; j++) {
+            int cmp = Integer.compare(names.get(from + j) & 0xff, key[j] & 0xff);
+            if (cmp != 0)
+                return cmp;
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    /**
+     * Compares the names at the given positions of two dictionaries
+     *
+     * @param a The first dictionary
+     * @param i The position in the first dictionary
+     * @param b The second dictionary
+     * @param j The position in the second dictionary
+     * @return A negative number, zero, or a positive number if the first name is smaller, equal or larger
+     */
+    public static int compare(NameDictionary a, int i, NameDictionary b, int j) {
+        int fromA = a.offsets.get(i), lengthA = a.offsets.get(i + 1) - fromA;
+        int fromB = b.offsets.get(j), lengthB = b.offsets.get(j + 1) - fromB;
+        int n = Math.min(lengthA, lengthB);
+        for (int k = 0; k < n; k++) {
+            int cmp = Integer.compare(a.names.get(fromA + k) & 0xff, b.names.get(fromB + k) & 0xff);
+            if (cmp != 0)
+                return cmp;
+        }
+        return Integer.compare(lengthA, lengthB);
+    }
+
+    /**
+     * Gets the lookup key of a name: the trimmed, lower case name in UTF-8
+     *
+     * @param name The name
+     * @return The key
+     */
+    public static byte[] key(CharSequence name) {
+        Builder builder = new Builder(1);
+        builder.add(name, 0, name.length(), 0);
+        return builder.size == 0 ? new byte[0] : builder.bytes(0);
+    }
+
+    /**
+     * Builds a dictionary. Not thread-safe.
+     */
+    public static class Builder {
+        private byte[] bytes;
+        private int length;
+        private int[] offsets;
+        private int[] values;
+        private int size;
+
+        /**
+         * @param capacity The expected number of names
+         */
+        public Builder(int capacity) {
+            capacity = Math.max(capacity, 4);
+            this.bytes = new byte[capacity * 16];
+            this.offsets = new int[capacity + 1];
+            this.values = new int[capacity];
+        }
+
+        /**
+         * @return The number of names added so far, including the repeated ones
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Adds a name
+         *
+         * @param name  The name
+         * @param value The value, usually the index of the object
+         */
+        public void add(String name, int value) {
+            add(name, 0, name.length(), value);
+        }
+
+        /**
+         * Adds a name given as a range of characters, so that names kept in a character block
+         * need not be turned into strings
+         *
+         * @param chars The characters
+         * @param start The first character of the name
+         * @param end   The end of the name, exclusive
+         * @param value The value, usually the index of the object
+         */
+        public void add(CharSequence chars, int start, int end, int value) {
+            while (start < end && Character.isWhitespace(chars.charAt(start)))
+                start++;
+            while (end > start && Character.isWhitespace(chars.charAt(end - 1)))
+                end--;
+            if (start == end)
+                return;
+            if (size == values.length) {
+                int capacity = size * 2;
+                int[] aux = new int[capacity + 1];
+                System.arraycopy(offsets, 0, aux, 0, size + 1);
+                offsets = aux;
+                aux = new int[capacity];
+                System.arraycopy(values, 0, aux, 0, size);
+                values = aux;
+            }
+            for (int j = start; j < end; j++) {
+                int cp = chars.charAt(j);
+                if (Character.isHighSurrogate((char) cp) && j + 1 < end && Character.isLowSurrogate(chars.charAt(j + 1)))
+                    cp = Character.toCodePoint((char) cp, chars.charAt(++j));
+                encode(Character.toLowerCase(cp));
+            }
+            values[size++] = value;
+            offsets[size] = length;
+        }
+
+        private void encode(int cp) {
+            if (length + 4 > bytes.length) {
+                byte[] aux = new byte[bytes.length * 2];
+                System.arraycopy(bytes, 0, aux, 0, length);
+                bytes = aux;
+            }
+            if (cp < 0x80) {
+                bytes[length++] = (byte) cp;
+            } else if (cp < 0x800) {
+                bytes[length++] = (byte) (0xc0 | (cp >> 6));
+                bytes[length++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (cp < 0x10000) {
+                bytes[length++] = (byte) (0xe0 | (cp >> 12));
+                bytes[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                bytes[length++] = (byte) (0x80 | (cp & 0x3f));
+            } else {
+                bytes[length++] = (byte) (0xf0 | (cp >> 18));
+                bytes[length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                bytes[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                bytes[length++] = (byte) (0x80 | (cp & 0x3f));
+            }
+        }
+
+        private byte[] bytes(int k) {
+            byte[] key = new byte[offsets[k + 1] - offsets[k]];
+            System.arraycopy(bytes, offsets[k], key, 0, key.length);
+            return key;
+        }
+
+        private int compare(int a, int b) {
+            int fromA = offsets[a], lengthA = offsets[a + 1] - fromA;
+            int fromB = offsets[b], lengthB = offsets[b + 1] - fromB;
+            int n = Math.min(lengthA, lengthB);
+            for (int j = 0; j < n; j++) {
+                int cmp = Integer.compare(bytes[fromA + j] & 0xff, bytes[fromB + j] & 0xff);
+                if (cmp != 0)
+                    return cmp;
+            }
+            return Integer.compare(lengthA, lengthB);
+        }
+
+        /**
+         * Sorts the names and moves them to off-heap storage. The builder must not be used afterwards.
+         *
+         * @return The dictionary
+         */
+        public NameDictionary build() {
+            // Stable sort, so that the last of the repeated names comes last
+            int[] order = new int[size];
+            for (int k = 0; k < size; k++)
+                order[k] = k;
+            mergeSort(order, new int[size], 0, size);
+
+            // Drop the repeated names, keeping the last value
+            int unique = 0, nameBytes = 0;
+            for (int k = 0; k < size; k++) {
+                if (k + 1 < size && compare(order[k], order[k + 1]) == 0)
+                    continue;
+                order[unique++] = order[k];
+                nameBytes += offsets[order[k] + 1] - offsets[order[k]];
+            }
+
+            // A single block: offsets, values and names
+            int tables = (2 * unique + 1) * 4;
+            ByteBuffer block = ByteBuffer.allocateDirect(tables + nameBytes).order(ByteOrder.nativeOrder());
+            IntBuffer offsetTable = block.asIntBuffer();
+            block.position((unique + 1) * 4);
+            IntBuffer valueTable = block.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+            block.position(tables);
+            ByteBuffer names = block.slice();
+            int position = 0;
+            for (int k = 0; k < unique; k++) {
+                int id = order[k];
+                int from = offsets[id], len = offsets[id + 1] - from;
+                offsetTable.put(k, position);
+                valueTable.put(k, values[id]);
+                names.position(position);
+                names.put(bytes, from, len);
+                position += len;
+            }
+            offsetTable.put(unique, position);
+            names.clear();
+
+            bytes = null;
+            offsets = null;
+            values = null;
+            return new NameDictionary(unique, offsetTable, valueTable, names);
+        }
+
+        private void mergeSort(int[] a, int[] aux, int from, int to) {
+            if (to - from <= 16) {
+                for (int i = from + 1; i < to; i++) {
+                    int v = a[i], j = i - 1;
+                    while (j >= from && compare(a[j], v) > 0) {
+                        a[j + 1] = a[j];
+                        j--;
+                    }
+                    a[j + 1] = v;
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            mergeSort(a, aux, from, mid);
+            mergeSort(a, aux, mid, to);
+            if (compare(a[mid - 1], a[mid]) <= 0)
+                return;
+            System.arraycopy(a, from, aux, from, to - from);
+            int i = from, j = mid;
+            for (int k = from; k < to; k++) {
+                if (i < mid && (j >= to || compare(aux[i], aux[j]) <= 0))
+                    a[k] = aux[i++];
+                else
+                    a[k] = aux[j++];
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.util.ds;
+
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.IntIntMap;
+import com.badlogic.gdx.utils.IntMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Shared index of the names of the objects of many groups, which maps each name to its group (the owner)
+ * and its index in the group. It is made of the {@link NameDictionary} of each group, so it grows and
+ * shrinks as groups, like the octants of a catalog, are loaded and unloaded, without copying any names.
+ * A group may add more than one dictionary, for instance one per batch of objects streamed in.
+ * <p>
+ * Lookups are case-insensitive. If a name is in more than one dictionary, the most recently added wins.
+ * Lookups by name go through a hash table from the hash of each name to the dictionary which holds it, so
+ * they take constant time regardless of the number of dictionaries. The table takes the index lock, which
+ * is only held long by additions and removals. Prefix searches take no locks.
+ *
+ * @param <T> The type of the owners
+ * @author tsagrista
+ */
+public class NameIndex<T> {
+
+    /**
+     * A name found in the index
+     *
+     * @param <T> The type of the owner
+     */
+    public static class Match<T> {
+        public final String name;
+        public final T owner;
+        public final int index;
+
+        public Match(String name, T owner, int index) {
+            this.name = name;
+            this.owner = owner;
+            this.index = index;
+        }
+    }
+
+    private static class Block<T> {
+        private final int id;
+        private final T owner;
+        private final NameDictionary names;
+
+        private Block(int id, T owner, NameDictionary names) {
+            this.id = id;
+            this.owner = owner;
+            this.names = names;
+        }
+    }
+
+    /** No dictionary has a name with this hash **/
+    private static final int NONE = -1;
+    /** More than one dictionary has a name with this hash, see {@link #shared} **/
+    private static final int SHARED = -2;
+
+    // Copy on write, the most recent last
+    private volatile Block<?>[] blocks = new Block<?>[0];
+    // Name hash -> id of the block with the name, or SHARED
+    private final IntIntMap hashes = new IntIntMap();
+    // Name hash -> ids of the blocks with the name, oldest first, for the shared hashes only
+    private final IntMap<IntArray> shared = new IntMap<>();
+    // Block id -> block
+    private final IntMap<Block<?>> ids = new IntMap<>();
+    // Ids grow with each dictionary, so the newest block has the largest one
+    private int nextId = 0;
+
+    /**
+     * Adds a dictionary of the given owner
+     *
+     * @param owner The owner
+     * @param names The names of its objects
+     */
+    public synchronized void add(T owner, NameDictionary names) {
+        if (names == null || names.size() == 0)
+            return;
+        Block<?> block = new Block<>(nextId++, owner, names);
+        ids.put(block.id, block);
+        for (int k = 0; k < names.size(); k++) {
+            int hash = names.hash(k);
+            int id = hashes.get(hash, NONE);
+            if (id == NONE) {
+                hashes.put(hash, block.id);
+            } else if (id == SHARED) {
+                shared.get(hash).add(block.id);
+            } else {
+                shared.put(hash, new IntArray(new int[] { id, block.id }));
+                hashes.put(hash, SHARED);
+            }
+        }
+        Block<?>[] current = blocks;
+        Block<?>[] aux = new Block<?>[current.length + 1];
+        System.arraycopy(current, 0, aux, 0, current.length);
+        aux[current.length] = block;
+        blocks = aux;
+    }
+
+    /**
+     * Removes all the dictionaries of the given owner
+     *
+     * @param owner The owner
+     */
+    public synchronized void remove(T owner) {
+        Block<?>[] current = blocks;
+        int n = 0;
+        for (Block<?> block : current) {
+            if (block.owner != owner)
+                n++;
+        }
+        if (n == current.length)
+            return;
+        Block<?>[] aux = new Block<?>[n];
+        n = 0;
+        for (Block<?> block : current) {
+            if (block.owner != owner)
+                aux[n++] = block;
+            else
+                unhash(block);
+        }
+        blocks = aux;
+    }
+
+    private void unhash(Block<?> block) {
+        ids.remove(block.id);
+        NameDictionary names = block.names;
+        for (int k = 0; k < names.size(); k++) {
+            int hash = names.hash(k);
+            int id = hashes.get(hash, NONE);
+            if (id == block.id) {
+                hashes.remove(hash, NONE);
+            } else if (id == SHARED) {
+                IntArray owners = shared.get(hash);
+                owners.removeValue(block.id);
+                if (owners.size == 1) {
+                    hashes.put(hash, owners.first());
+                    shared.remove(hash);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of names, counting the names in more than one dictionary once per dictionary
+     */
+    public int size() {
+        int size = 0;
+        for (Block<?> block : blocks)
+            size += block.names.size();
+        return size;
+    }
+
+    /**
+     * Whether the given name is in the index
+     *
+     * @param name The name, in any case
+     * @return Whether it is in the index
+     */
+    public boolean contains(String name) {
+        return get(name) != null;
+    }
+
+    /**
+     * Gets the owner and index of the given name
+     *
+     * @param name The name, in any case
+     * @return The match, or null if the name is not in the index
+     */
+    public synchronized Match<T> get(String name) {
+        byte[] key = NameDictionary.key(name);
+        int hash = NameDictionary.hash(key);
+        int id = hashes.get(hash, NONE);
+        if (id == NONE) {
+            return null;
+        } else if (id != SHARED) {
+            return match(ids.get(id), key);
+        }
+        // Same name or same hash in more than one dictionary, newest first
+        IntArray owners = shared.get(hash);
+        for (int j = owners.size - 1; j >= 0; j--) {
+            Match<T> match = match(ids.get(owners.get(j)), key);
+            if (match != null)
+                return match;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Match<T> match(Block<?> block, byte[] key) {
+        int k = block.names.find(key);
+        return k >= 0 ? new Match<>(block.names.name(k), (T) block.owner, block.names.value(k)) : null;
+    }
+
+    /**
+     * Finds the names starting with the given prefix, in order
+     *
+     * @param prefix The prefix, in any case
+     * @param max    The maximum number of names
+     * @return The matches, in lower case, sorted
+     */
+    @SuppressWarnings("unchecked")
+    public List<Match<T>> find(String prefix, int max) {
+        byte[] key = NameDictionary.key(prefix);
+        Block<?>[] current = blocks;
+        // Merge the ranges of names starting with the prefix, the most recent block first on ties
+        PriorityQueue<int[]> cursors = new PriorityQueue<>((a, b) -> {
+            int cmp = NameDictionary.compare(current[a[0]].names, a[1], current[b[0]].names, b[1]);
+            return cmp != 0 ? cmp : Integer.compare(b[0], a[0]);
+        });
+        for (int j = 0; j < current.length; j++) {
+            NameDictionary names = current[j].names;
+            int k = names.lowerBound(key);
+            if (k < names.size() && names.startsWith(k, key))
+                cursors.add(new int[] { j, k });
+        }
+        List<Match<T>> result = new ArrayList<>();
+        int[] last = null;
+        while (!cursors.isEmpty() && result.size() < max) {
+            int[] cursor = cursors.poll();
+            NameDictionary names = current[cursor[0]].names;
+            if (last == null || NameDictionary.compare(current[last[0]].names, last[1], names, cursor[1]) != 0) {
+                result.add(new Match<>(names.name(cursor[1]), (T) current[cursor[0]].owner, names.value(cursor[1])));
+                last = new int[] { cursor[0], cursor[1] };
+            }
+            if (cursor[1] + 1 < names.size() && names.startsWith(cursor[1] + 1, key)) {
+                cursor[1]++;
+                cursors.add(cursor);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.util.ds;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The on-disk form of a {@link LongIntMap}: a file with the entries sorted by key, which is memory-mapped
+ * and searched in place, so that it does not take heap space. The file format is:
+ * <ul>
+ *     <li>64 bits (long) - The number of entries, and for each entry, by increasing key:</li>
+ *     <li>64 bits (long) - The key</li>
+ *     <li>32 bits (int) - The value</li>
+ * </ul>
+ *
+ * @author tsagrista
+ */
+public class SortedLongIntIndex {
+
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 8 + 4;
+    /** Records per mapped segment of the file **/
+    private static final int SEGMENT_RECORDS = 1 << 27;
+
+    private final long size;
+    private final MappedByteBuffer[] segments;
+
+    private SortedLongIntIndex(long size, MappedByteBuffer[] segments) {
+        this.size = size;
+        this.segments = segments;
+    }
+
+    /**
+     * Maps the given file
+     *
+     * @param file The file
+     * @return The index
+     * @throws IOException If the file can't be read
+     */
+    public static SortedLongIntIndex open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel fc = raf.getChannel()) {
+            long size = raf.readLong();
+            int nSegments = (int) ((size + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS);
+            MappedByteBuffer[] segments = new MappedByteBuffer[nSegments];
+            for (int i = 0; i < nSegments; i++) {
+                long first = (long) i * SEGMENT_RECORDS;
+                long records = Math.min(SEGMENT_RECORDS, size - first);
+                segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * RECORD_SIZE, records * RECORD_SIZE);
+            }
+            return new SortedLongIntIndex(size, segments);
+        }
+    }
+
+    /**
+     * Writes the given entries to a file, sorted by key. The arrays are sorted in place.
+     *
+     * @param file   The file
+     * @param keys   The keys, without duplicates
+     * @param values The values, in the same order as the keys
+     * @param n      The number of entries
+     * @throws IOException If the file can't be written
+     */
+    public static void write(File file, long[] keys, int[] values, int n) throws IOException {
+        sort(keys, values, n);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeLong(n);
+            for (int i = 0; i < n; i++) {
+                out.writeLong(keys[i]);
+                out.writeInt(values[i]);
+            }
+        }
+    }
+
+    /**
+     * Writes the entries of the given map to a file, sorted by key
+     *
+     * @param file The file
+     * @param map  The map
+     * @throws IOException If the file can't be written
+     */
+    public static void write(File file, LongIntMap map) throws IOException {
+        if (map.size() > Integer.MAX_VALUE - 8)
+            throw new IOException("Too many entries to sort in memory: " + map.size());
+        int n = (int) map.size();
+        long[] keys = new long[n];
+        int[] values = new int[n];
+        int[] i = new int[1];
+        map.forEach((key, value) -> {
+            keys[i[0]] = key;
+            values[i[0]++] = value;
+        });
+        write(file, keys, values, n);
+    }
+
+    /**
+     * Loads all the entries into a new map
+     *
+     * @return The map
+     */
+    public LongIntMap load() {
+        LongIntMap map = new LongIntMap(size);
+        for (long i = 0; i < size; i++)
+            map.put(key(i), value(i));
+        return map;
+    }
+
+    /**
+     * @return The number of entries
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Gets the key of the given entry
+     *
+     * @param i The index of the entry, in key order
+     * @return The key
+     */
+    public long key(long i) {
+        return segments[(int) (i / SEGMENT_RECORDS)].getLong((int) (i % SEGMENT_RECORDS) * RECORD_SIZE);
+    }
+
+    /**
+     * Gets the value of the given entry
+     *
+     * @param i The index of the entry, in key order
+     * @return The value
+     */
+    public int value(long i) {
+        return segments[(int) (i / SEGMENT_RECORDS)].getInt((int) (i % SEGMENT_RECORDS) * RECORD_SIZE + 8);
+    }
+
+    /**
+     * Finds the entry with the given key between the given indices
+     *
+     * @return The index of the entry, or -(insertion point) - 1
+     */
+    private long search(long key, long lo, long hi) {
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            long midKey = key(mid);
+            if (midKey < key)
+                lo = mid + 1;
+            else if (midKey > key)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -lo - 1;
+    }
+
+    /**
+     * Gets the value of the given key
+     *
+     * @param key          The key
+     * @param defaultValue The value to return if the key is not in the index
+     * @return The value, or the default value
+     */
+    public int get(long key, int defaultValue) {
+        long i = search(key, 0, size - 1);
+        return i >= 0 ? value(i) : defaultValue;
+    }
+
+    /**
+     * Checks whether the index contains the given key
+     *
+     * @param key The key
+     * @return Whether the key is in the index
+     */
+    public boolean containsKey(long key) {
+        return search(key, 0, size - 1) >= 0;
+    }
+
+    /**
+     * Gets the values of the given keys. Runs of increasing keys only search the part of the index
+     * after the previous key, so sorting the keys first makes the probe a single pass over the file.
+     *
+     * @param keys         The keys
+     * @param out          The array to put the values in, at the same positions as the keys
+     * @param offset       Index of the first key in the arrays
+     * @param length       Number of keys
+     * @param defaultValue The value to use for the keys which are not in the index
+     * @return The number of keys which are in the index
+     */
+    public int getAll(long[] keys, int[] out, int offset, int length, int defaultValue) {
+        int found = 0;
+        long lo = 0;
+        long previous = Long.MIN_VALUE;
+        for (int j = offset; j < offset + length; j++) {
+            long key = keys[j];
+            if (key < previous)
+                lo = 0;
+            previous = key;
+            // Exponential search from the last position, then binary search
+            long step = 1, hi = lo;
+            while (hi < size && key(hi) < key) {
+                lo = hi + 1;
+                hi += step;
+                step <<= 1;
+            }
+            long i = search(key, lo, Math.min(hi, size - 1));
+            if (i >= 0) {
+                out[j] = value(i);
+                found++;
+                lo = i;
+            } else {
+                out[j] = defaultValue;
+                lo = -i - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Sorts the given entries by key, in place
+     *
+     * @param keys   The keys
+     * @param values The values, in the same order as the keys
+     * @param n      The number of entries
+     */
+    public static void sort(long[] keys, int[] values, int n) {
+        sort(keys, values, 0, n - 1);
+    }
+
+    /**
+     * Sorts the keys and values by key, with a quicksort
+     */
+    private static void sort(long[] keys, int[] values, int lo, int hi) {
+        while (hi - lo > 16) {
+            // Median of three
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < keys[lo])
+                swap(keys, values, mid, lo);
+            if (keys[hi] < keys[lo])
+                swap(keys, values, hi, lo);
+            if (keys[hi] < keys[mid])
+                swap(keys, values, hi, mid);
+            long pivot = keys[mid];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot)
+                    i++;
+                while (keys[j] > pivot)
+                    j--;
+                if (i <= j)
+                    swap(keys, values, i++, j--);
+            }
+            // Recurse into the smaller part, loop on the larger one
+            if (j - lo < hi - i) {
+                sort(keys, values, lo, j);
+                lo = i;
+            } else {
+                sort(keys, values, i, hi);
+                hi = j;
+            }
+        }
+        // Insertion sort
+        for (int i = lo + 1; i <= hi; i++) {
+            long key = keys[i];
+            int value = values[i];
+            int j = i - 1;
+            while (j >= lo && keys[j] > key) {
+                keys[j + 1] = keys[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            values[j + 1] = value;
+        }
+    }
+
+    private static void swap(long[] keys, int[] values, int i, int j) {
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        int value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.util.parse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Reads CSV data at the byte level. The input is read in large chunks which end at a line break, and
+ * the chunks are tokenized and parsed by a pool of threads while the next chunks are read. Fields are not
+ * converted to strings: each row gives the byte ranges of its fields, and numbers are parsed straight from
+ * the bytes with {@link Parser#parseDouble(byte[], int, int)} and {@link Parser#parseLong(byte[], int, int)}.
+ * <p>
+ * Each chunk gets its own {@link ChunkHandler}. The rows of a chunk go to its handler in a worker thread,
+ * and then the handlers are finished in the calling thread, in the order of the chunks, so that the results are
+ * the same for any number of threads and the shared state only needs to be updated in {@link ChunkHandler#done()}.
+ * At most two chunks per thread are in flight at a time.
+ * <p>
+ * Quoted fields are not supported. Line breaks may be '\n' or "\r\n".
+ *
+ * @author tsagrista
+ */
+public class CsvChunkReader {
+    /** Default chunk size in bytes **/
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 23;
+
+    /**
+     * Processes the rows of a chunk
+     */
+    public interface ChunkHandler {
+        /**
+         * Called with each row of the chunk, in a worker thread. The row is reused, so it must not be kept
+         *
+         * @param row The row
+         */
+        void row(Row row);
+
+        /**
+         * Called after all rows of the chunk have been processed, in the calling thread, in chunk order
+         */
+        void done();
+    }
+
+    /**
+     * The fields of a row, as byte ranges of the chunk
+     */
+    public static final class Row {
+        private byte[] bytes;
+        private int[] starts = new int[64];
+        private int[] ends = new int[64];
+        private int size;
+
+        /**
+         * @return The number of fields of the row
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Whether the given field is empty or missing
+         *
+         * @param i The index of the field. May be negative or greater than the number of fields
+         * @return Whether the field is empty
+         */
+        public boolean isEmpty(int i) {
+            return i < 0 || i >= size || starts[i] == ends[i];
+        }
+
+        /**
+         * Parses the given field as a double
+         *
+         * @param i The index of the field
+         * @return The value, or NaN if the field is missing or can't be parsed
+         */
+        public double getDouble(int i) {
+            return i < 0 || i >= size ? Double.NaN : Parser.parseDouble(bytes, starts[i], ends[i]);
+        }
+
+        /**
+         * Parses the given field as a float
+         *
+         * @param i The index of the field
+         * @return The value, or NaN if the field is missing or can't be parsed
+         */
+        public float getFloat(int i) {
+            return (float) getDouble(i);
+        }
+
+        /**
+         * Parses the given field as a long
+         *
+         * @param i The index of the field
+         * @return The value, or 0 if the field is missing or can't be parsed
+         */
+        public long getLong(int i) {
+            return i < 0 || i >= size ? 0 : Parser.parseLong(bytes, starts[i], ends[i]);
+        }
+
+        /**
+         * Creates a string with the given field. This allocates, so it should be avoided in hot paths
+         *
+         * @param i The index of the field
+         * @return The field, or an empty string if it is missing
+         */
+        public String getString(int i) {
+            return i < 0 || i >= size ? "" : new String(bytes, starts[i], ends[i] - starts[i], StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Splits the line in the given range into fields
+         */
+        private void tokenize(byte[] bytes, int from, int to, byte separator) {
+            this.bytes = bytes;
+            int n = 0;
+            int start = from;
+            for (int i = from; i < to; i++) {
+                if (bytes[i] == separator) {
+                    add(n++, start, i);
+                    start = i + 1;
+                }
+            }
+            add(n++, start, to);
+            size = n;
+        }
+
+        private void add(int n, int start, int end) {
+            if (n == starts.length) {
+                starts = Arrays.copyOf(starts, n * 2);
+                ends = Arrays.copyOf(ends, n * 2);
+            }
+            starts[n] = start;
+            ends[n] = end;
+        }
+    }
+
+    private final byte separator;
+    private final int nThreads;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /**
+     * Creates a new reader
+     *
+     * @param separator The field separator, an ASCII character
+     * @param nThreads  The number of threads. With one thread, the chunks are processed in the calling thread
+     */
+    public CsvChunkReader(char separator, int nThreads) {
+        this.separator = (byte) separator;
+        this.nThreads = Math.max(1, nThreads);
+    }
+
+    /**
+     * Sets the size of the chunks. Lines longer than this make their chunk grow
+     *
+     * @param chunkSize The chunk size in bytes
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = Math.max(1024, chunkSize);
+    }
+
+    /**
+     * Reads all the rows of the given input
+     *
+     * @param in         The input. It is not closed
+     * @param skipHeader Whether to skip the first line
+     * @param handlers   Creates the handler of each chunk
+     * @return The number of rows
+     * @throws IOException If the input can't be read, or a handler fails
+     */
+    public long read(InputStream in, boolean skipHeader, Supplier<? extends ChunkHandler> handlers) throws IOException {
+        ExecutorService pool = nThreads > 1 ? Executors.newFixedThreadPool(nThreads) : null;
+        Deque<Future<ChunkHandler>> pending = new ArrayDeque<>();
+        AtomicLong rows = new AtomicLong();
+        try {
+            byte[] buffer = new byte[chunkSize];
+            int filled = 0;
+            boolean header = skipHeader;
+            boolean eof = false;
+            while (!eof) {
+                // Fill the buffer
+                int read;
+                while (filled < buffer.length && (read = in.read(buffer, filled, buffer.length - filled)) > 0)
+                    filled += read;
+                eof = filled < buffer.length;
+
+                if (header) {
+                    int nl = indexOf(buffer, (byte) '\n', 0, filled);
+                    if (nl < 0) {
+                        if (eof)
+                            break;
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                        continue;
+                    }
+                    filled -= nl + 1;
+                    System.arraycopy(buffer, nl + 1, buffer, 0, filled);
+                    header = false;
+                    if (!eof)
+                        continue;
+                }
+                // The chunk ends at the last line break, or at the end of the input
+                int end = eof ? filled : lastIndexOf(buffer, (byte) '\n', 0, filled) + 1;
+                if (end == 0 && !eof) {
+                    // A line longer than the buffer
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    continue;
+                }
+                byte[] next = new byte[Math.max(chunkSize, filled - end)];
+                System.arraycopy(buffer, end, next, 0, filled - end);
+                filled = filled - end;
+
+                final byte[] chunk = buffer;
+                final int to = end;
+                final ChunkHandler handler = handlers.get();
+                if (pool == null) {
+                    rows.addAndGet(process(chunk, to, handler));
+                    handler.done();
+                } else {
+                    pending.add(pool.submit(() -> {
+                        rows.addAndGet(process(chunk, to, handler));
+                        return handler;
+                    }));
+                    // Finish completed chunks, and wait if too many are in flight
+                    while (!pending.isEmpty() && (pending.size() >= 2 * nThreads || pending.peek().isDone()))
+                        get(pending.poll()).done();
+                }
+                buffer = next;
+            }
+            while (!pending.isEmpty())
+                get(pending.poll()).done();
+        } finally {
+            if (pool != null)
+                pool.shutdownNow();
+        }
+        return rows.get();
+    }
+
+    /**
+     * Tokenizes the lines of the chunk and hands them to the handler
+     *
+     * @return The number of rows
+     */
+    private long process(byte[] chunk, int to, ChunkHandler handler) {
+        Row row = new Row();
+        long rows = 0;
+        int start = 0;
+        while (start < to) {
+            int nl = indexOf(chunk, (byte) '\n', start, to);
+            int lineEnd = nl < 0 ? to : nl;
+            int end = lineEnd;
+            if (end > start && chunk[end - 1] == '\r')
+                end--;
+            if (end > start) {
+                row.tokenize(chunk, start, end, separator);
+                handler.row(row);
+                rows++;
+            }
+            start = lineEnd + 1;
+        }
+        return rows;
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] bytes, byte b, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (bytes[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private static ChunkHandler get(Future<ChunkHandler> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+}
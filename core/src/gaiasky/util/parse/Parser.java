@@ -80,6 +80,62 @@ public final class Parser {
         return sign * result;
     }
 
+    /**
+     * Same as {@link #parseLong(String)}, but parses the ASCII characters of the given byte range, so that
+     * no string needs to be created
+     *
+     * @param input The bytes
+     * @param from  The index of the first byte
+     * @param to    The index after the last byte
+     * @return Parsed long or 0 if the parsing fails
+     */
+    public static long parseLong(byte[] input, int from, int to) {
+        long result = 0;
+        int pos = from;
+        int len = to;
+        if (len <= from)
+            return 0;
+        char c = (char) (input[from] & 0xff);
+        long sign = 1;
+
+        // skip any starting white space
+        while (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\0') {
+            ++pos;
+            if (pos >= len)
+                return 0;
+            c = (char) (input[pos] & 0xff);
+        }
+
+        // handle both - and + signs
+        if (c == '-') {
+            sign = -1;
+            ++pos;
+            if (pos >= len)
+                return 0;
+        } else if (c == '+') {
+            sign = 1;
+            ++pos;
+            if (pos >= len)
+                return 0;
+        }
+
+        while (true) // breaks inside on pos >= len or non-digit character
+        {
+            if (pos >= len)
+                return sign * result;
+            c = (char) (input[pos++] & 0xff);
+            if (c < '0' || c > '9') {
+                if (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\0') // break on trailing white space or exponent
+                    break;
+                else
+                    return 0;
+            }
+            result = (result * 10) + (c - '0');
+        }
+
+        return sign * result;
+    }
+
     /**
      * <p>
      * Quick long string parser that can handle negative and positive values.
@@ -294,6 +350,150 @@ public final class Parser {
         return sign * result * Math.pow(10.0, expSign * expResult);
     }
 
+    /**
+     * Same as {@link #parseDouble(String)}, but parses the ASCII characters of the given byte range, so that
+     * no string needs to be created
+     *
+     * @param input The bytes
+     * @param from  The index of the first byte
+     * @param to    The index after the last byte
+     * @return Parsed double or Double.NaN if the parsing fails
+     */
+    public static double parseDouble(byte[] input, int from, int to) {
+        double result = 0;
+        int pos = from;
+        int len = to;
+        if (len <= from)
+            return Double.NaN;
+        char c = (char) (input[from] & 0xff);
+        double sign = 1;
+
+        // skip any starting white space
+        while (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\0') {
+            ++pos;
+            if (pos >= len)
+                return Double.NaN;
+            c = (char) (input[pos] & 0xff);
+        }
+
+        // if input looks like N, it probably is
+        if (c == 'N' || c == 'n') {
+            return Double.NaN;
+        }
+
+        // handle both - and + signs
+        if (c == '-') {
+            sign = -1;
+            ++pos;
+            if (pos >= len)
+                return Double.NaN;
+        } else if (c == '+') {
+            sign = 1;
+            ++pos;
+            if (pos >= len)
+                return Double.NaN;
+        }
+
+        c = (char) (input[pos] & 0xff);
+        if (c == 'I' || c == 'i') // probably inf, let's confirm
+        {
+            ++pos;
+            if (pos >= len)
+                return Double.NaN;
+            c = (char) (input[pos] & 0xff);
+            if (!(c == 'N' || c == 'n'))
+                return Double.NaN;
+            ++pos;
+            if (pos >= len)
+                return Double.NaN;
+            c = (char) (input[pos] & 0xff);
+            if (!(c == 'F' || c == 'f'))
+                return Double.NaN;
+            else {
+                if (sign == -1)
+                    return Double.NEGATIVE_INFINITY;
+                else
+                    return Double.POSITIVE_INFINITY;
+            }
+        }
+
+        while (true) // breaks inside on pos >= len or non-digit character
+        {
+            if (pos >= len)
+                return sign * result;
+            c = (char) (input[pos++] & 0xff);
+            if (c < '0' || c > '9')
+                break;
+            result = (result * 10.0) + (c - '0');
+        }
+
+        if (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\0') // break on trailing white space
+            return sign * result;
+
+        if (c != '.' && c != ',')
+            return Double.NaN;
+        double exp = 0.1;
+        while (pos < len) {
+            c = (char) (input[pos++] & 0xff);
+            if (c < '0' || c > '9') {
+                if (c == 'e' || c == 'E' || c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\0') // break on trailing white space or exponent
+                    break;
+                else
+                    return Double.NaN;
+            }
+            result += (c - '0') * exp;
+            exp *= 0.1;
+        }
+        if (!(c == 'e' || c == 'E') || pos == len)
+            return sign * result;
+
+        int expSign = 1;
+        c = (char) (input[pos] & 0xff);
+
+        // handle both - and + signs
+        if (c == '-') {
+            expSign = -1;
+            ++pos;
+            if (pos >= len)
+                return sign * result;
+        } else if (c == '+') {
+            expSign = 1;
+            ++pos;
+            if (pos >= len)
+                return sign * result;
+        }
+
+        double expResult = 0;
+
+        while (true) // breaks inside on pos >= len or non-digit character
+        {
+            if (pos >= len)
+                return sign * result * Math.pow(10.0, expSign * expResult);
+            c = (char) (input[pos++] & 0xff);
+            if (c < '0' || c > '9')
+                break;
+            expResult = (expResult * 10.0) + (c - '0');
+        }
+
+        if (c != '.' && c != ',')
+            return sign * result * Math.pow(10.0, expSign * expResult);
+
+        double expExp = 0.1;
+        while (pos < len) {
+            c = (char) (input[pos++] & 0xff);
+            if (c < '0' || c > '9') {
+                if (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\0') // break on trailing white space or exponent
+                    break;
+                else
+                    return Double.NaN;
+            }
+            expResult += (c - '0') * expExp;
+            expExp *= 0.1;
+        }
+
+        return sign * result * Math.pow(10.0, expSign * expResult);
+    }
+
     /**
      * <p>
      * Quick double string parser that can handle negative and positive doubles
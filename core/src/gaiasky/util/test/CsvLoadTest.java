@@ -59,17 +59,17 @@ public class CsvLoadTest {
         CsvCatalogDataProvider loader = new CsvCatalogDataProvider();
         loader.setColumns("sourceid,ra,dec,pllx,ra_err,dec_err,pllx_err,pmra,pmdec,radvel,gmag,bpmag,rpmag,ruwe,ref_epoch");
         loader.setMagCorrections(true);
-        loader.setParallelBufferSize(500000);
+        loader.setChunkSize(1 << 23);
         loader.setParallaxErrorFactorBright(155);
         loader.setParallaxErrorFactorFaint(155);
         loader.setAdaptiveParallax(true);
 
-        // Parallel 500000
-        logger.info("Running parallel (buffer = 500000)");
-        long startP500k = System.currentTimeMillis();
+        // Parallel, 8 MB chunks
+        logger.info("Running parallel (chunk = 8 MB)");
+        long startP = System.currentTimeMillis();
         loader.setParallel(true);
         List<ParticleBean> p1 = loader.loadData("/home/tsagrista/Downloads/edr2/");
-        long endP500k = System.currentTimeMillis();
+        long endP = System.currentTimeMillis();
 
         // Serial
         logger.info("Running serial");
@@ -106,7 +106,7 @@ public class CsvLoadTest {
         logger.info("Consistency errors: " + errors.get());
 
 
-        logger.info("Parallel (500K):  " + ((endP500k - startP500k) / 1000d) + " seconds");
+        logger.info("Parallel:        " + ((endP - startP) / 1000d) + " seconds");
         logger.info("Serial:          " + ((endS - startS) / 1000d) + " seconds");
 
 
@@ -0,0 +1,159 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.util.test;
+
+import gaiasky.util.parse.CsvChunkReader;
+import gaiasky.util.parse.Parser;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Compares the throughput of the string-based CSV parsing (read lines, split, parse the tokens)
+ * with the byte-level {@link CsvChunkReader}, with one and with all available threads.
+ * The first column is parsed as a long and the rest as doubles. Usage:
+ * <pre>
+ * CsvParseBenchmark [file.csv | number of rows]
+ * </pre>
+ * Without a file, a Gaia-like catalog with one million rows is generated in memory.
+ *
+ * @author tsagrista
+ */
+public class CsvParseBenchmark {
+    private static final int N_RUNS = 5;
+    private static final int N_ROWS = 1000000;
+
+    public static void main(String[] args) throws IOException {
+        byte[] data;
+        if (args.length > 0 && Files.exists(Path.of(args[0]))) {
+            data = Files.readAllBytes(Path.of(args[0]));
+        } else {
+            data = generate(args.length > 0 ? Integer.parseInt(args[0]) : N_ROWS);
+        }
+        double mb = data.length / (1024d * 1024d);
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        System.out.println(String.format("Data: %.1f MB, threads: %d", mb, nThreads));
+
+        long[] result = new long[2];
+        long[] reference = null;
+        long totalStrings = 0, totalChunks = 0, totalChunksParallel = 0;
+        for (int run = 0; run < N_RUNS; run++) {
+            long start = System.nanoTime();
+            parseStrings(data, result);
+            long strings = System.nanoTime() - start;
+            if (reference == null)
+                reference = result.clone();
+            check("strings", reference, result);
+
+            start = System.nanoTime();
+            parseChunks(data, 1, result);
+            long chunks = System.nanoTime() - start;
+            check("chunks", reference, result);
+
+            start = System.nanoTime();
+            parseChunks(data, nThreads, result);
+            long chunksParallel = System.nanoTime() - start;
+            check("chunks (parallel)", reference, result);
+
+            // The first run warms up the JIT
+            if (run > 0) {
+                totalStrings += strings;
+                totalChunks += chunks;
+                totalChunksParallel += chunksParallel;
+            }
+        }
+        int runs = N_RUNS - 1;
+        report("Strings", mb, reference[0], totalStrings / runs);
+        report("Chunks, 1 thread", mb, reference[0], totalChunks / runs);
+        report("Chunks, " + nThreads + " threads", mb, reference[0], totalChunksParallel / runs);
+    }
+
+    /**
+     * The current path: lines, split and parse strings
+     */
+    private static void parseStrings(byte[] data, long[] result) throws IOException {
+        long rows = 0, checksum = 0;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data)))) {
+            // Header
+            String line = br.readLine();
+            while ((line = br.readLine()) != null) {
+                String[] tokens = line.split(",");
+                checksum += Parser.parseLong(tokens[0]);
+                for (int i = 1; i < tokens.length; i++)
+                    checksum += Double.doubleToLongBits(Parser.parseDouble(tokens[i]));
+                rows++;
+            }
+        }
+        result[0] = rows;
+        result[1] = checksum;
+    }
+
+    /**
+     * The chunked path: tokenize and parse bytes
+     */
+    private static void parseChunks(byte[] data, int nThreads, long[] result) throws IOException {
+        long[] checksum = new long[1];
+        CsvChunkReader reader = new CsvChunkReader(',', nThreads);
+        result[0] = reader.read(new ByteArrayInputStream(data), true, () -> new CsvChunkReader.ChunkHandler() {
+            long sum = 0;
+
+            @Override
+            public void row(CsvChunkReader.Row row) {
+                sum += row.getLong(0);
+                for (int i = 1; i < row.size(); i++)
+                    sum += Double.doubleToLongBits(row.getDouble(i));
+            }
+
+            @Override
+            public void done() {
+                checksum[0] += sum;
+            }
+        });
+        result[1] = checksum[0];
+    }
+
+    private static void check(String name, long[] reference, long[] result) {
+        if (reference[0] != result[0] || reference[1] != result[1])
+            System.err.println("Results of " + name + " differ: " + result[0] + " rows, checksum " + result[1] + " (expected " + reference[0] + " rows, checksum " + reference[1] + ")");
+    }
+
+    private static void report(String name, double mb, long rows, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.println(String.format("%-24s %8.3f s  %8.1f MB/s  %12.0f rows/s", name, seconds, mb / seconds, rows / seconds));
+    }
+
+    /**
+     * Generates a catalog with the columns sourceid,ra,dec,pllx,ra_err,dec_err,pllx_err,pmra,pmdec,radvel,gmag,bpmag,rpmag,ruwe,ref_epoch,
+     * with some empty values
+     */
+    private static byte[] generate(int rows) {
+        Random rnd = new Random(1234l);
+        StringBuilder sb = new StringBuilder(rows * 200);
+        sb.append("source_id,ra,dec,parallax,ra_error,dec_error,parallax_error,pmra,pmdec,radial_velocity,phot_g_mean_mag,phot_bp_mean_mag,phot_rp_mean_mag,ruwe,ref_epoch\n");
+        for (int i = 0; i < rows; i++) {
+            sb.append(Math.abs(rnd.nextLong() >> 4)).append(',');
+            sb.append(rnd.nextDouble() * 360d).append(',');
+            sb.append(rnd.nextDouble() * 180d - 90d).append(',');
+            boolean fiveParam = rnd.nextFloat() > 0.2f;
+            sb.append(fiveParam ? String.valueOf(rnd.nextGaussian() * 2d) : "").append(',');
+            sb.append(rnd.nextDouble()).append(',');
+            sb.append(rnd.nextDouble()).append(',');
+            sb.append(fiveParam ? String.valueOf(rnd.nextDouble() * 0.5d) : "").append(',');
+            sb.append(fiveParam ? String.valueOf(rnd.nextGaussian() * 10d) : "").append(',');
+            sb.append(fiveParam ? String.valueOf(rnd.nextGaussian() * 10d) : "").append(',');
+            sb.append(rnd.nextFloat() > 0.95f ? String.valueOf(rnd.nextGaussian() * 40d) : "").append(',');
+            sb.append(3d + rnd.nextDouble() * 18d).append(',');
+            sb.append(3d + rnd.nextDouble() * 18d).append(',');
+            sb.append(3d + rnd.nextDouble() * 18d).append(',');
+            sb.append(0.8d + rnd.nextDouble()).append(',');
+            sb.append("2016.0\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.util.test;
+
+import com.badlogic.gdx.utils.IntArray;
+import gaiasky.scenegraph.ParticleGroup.ParticleBean;
+import gaiasky.scenegraph.StarGroup;
+import gaiasky.scenegraph.StarGroup.StarBean;
+import gaiasky.util.math.BoundingBoxd;
+import gaiasky.util.math.Vector3d;
+import gaiasky.util.tree.OctreeNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Checks the box and sphere queries of {@link OctreeNode}. Stars outside the root box are kept in
+ * the octants at the border of the tree, so the queries must find them even though they are outside
+ * the box of their octant, while octants inside the tree are still discarded.
+ *
+ * @author tsagrista
+ */
+public class OctreeQueryTest {
+
+    public static void main(String[] args) {
+        // Root of half-size 10, with a border and an inner octant at depth 2
+        OctreeNode root = new OctreeNode(0, 0, 0, 10, 10, 10, 0);
+        OctreeNode child = new OctreeNode(-5, -5, -5, 5, 5, 5, 1, root, 0);
+        OctreeNode border = new OctreeNode(-7.5, -7.5, -7.5, 2.5, 2.5, 2.5, 2, child, 0);
+        OctreeNode inner = new OctreeNode(-2.5, -2.5, -2.5, 2.5, 2.5, 2.5, 2, child, 7);
+
+        // The first star of the border octant is outside the root box
+        StarGroup outside = group(border, new Vector3d(-12, -7, -7), new Vector3d(-7, -7, -7));
+        StarGroup in = group(inner, new Vector3d(-2, -2, -2));
+
+        Vector3d far = new Vector3d(-12, -7, -7);
+        BoundingBoxd farBox = new BoundingBoxd(new Vector3d(-12.5, -7.5, -7.5), new Vector3d(-11.5, -6.5, -6.5));
+        Vector3d near = new Vector3d(-2, -2, -2);
+
+        int failed = 0;
+        failed += check("box around a star outside its octant", found(root, farBox, null, 0), outside, 0, in);
+        failed += check("sphere around a star outside its octant", found(root, null, far, 0.5), outside, 0, in);
+        failed += check("sphere from the inner octant", found(child, null, far, 0.5), outside, 0, in);
+        failed += check("sphere around an inner star", found(root, null, near, 0.5), in, 0, outside);
+
+        if (failed > 0) {
+            System.out.println(failed + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static StarGroup group(OctreeNode octant, Vector3d... positions) {
+        List<ParticleBean> stars = new ArrayList<>();
+        long id = 1;
+        for (Vector3d p : positions) {
+            double[] data = new double[StarBean.SIZE];
+            data[StarBean.I_X] = p.x;
+            data[StarBean.I_Y] = p.y;
+            data[StarBean.I_Z] = p.z;
+            stars.add(new StarBean(data, id, "star " + id));
+            id++;
+        }
+        StarGroup sg = new StarGroup();
+        sg.setData(stars, false);
+        sg.octant = octant;
+        octant.add(sg);
+        return sg;
+    }
+
+    /**
+     * Runs a box query if the box is given, or a sphere query otherwise, and returns the star groups found
+     * and the index ranges of each one, as [group, ranges, group, ranges...]
+     */
+    private static List<Object> found(OctreeNode octant, BoundingBoxd box, Vector3d centre, double radius) {
+        List<Object> result = new ArrayList<>();
+        BiConsumer<StarGroup, IntArray> consumer = (sg, ranges) -> {
+            result.add(sg);
+            result.add(new IntArray(ranges));
+        };
+        if (box != null)
+            octant.query(box, consumer);
+        else
+            octant.query(centre, radius, consumer);
+        return result;
+    }
+
+    /**
+     * Checks that the given star of the expected group is in the result, and that the other group is not
+     */
+    private static int check(String name, List<Object> result, StarGroup expected, int star, StarGroup other) {
+        boolean ok = false;
+        for (int i = 0; i < result.size(); i += 2) {
+            if (result.get(i) == other) {
+                ok = false;
+                break;
+            }
+            if (result.get(i) == expected) {
+                IntArray ranges = (IntArray) result.get(i + 1);
+                for (int j = 0; j < ranges.size; j += 2)
+                    ok |= star >= ranges.get(j) && star < ranges.get(j + 1);
+            }
+        }
+        System.out.println((ok ? "OK     " : "FAILED ") + name);
+        return ok ? 0 : 1;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.util.test;
+
+import gaiasky.util.ds.IndexSort;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Compares the sorter of the particle groups before and after the move to primitive indices: a full sort
+ * of boxed indices with a comparator, a full sort of primitive indices with {@link IndexSort}, and the
+ * selection of the nearest elements only. The keys are random, and each run perturbs them slightly
+ * to mimic a camera movement, so that the indices come in almost sorted from the previous run, like
+ * in the application. Usage:
+ * <pre>
+ * ParticleSortBenchmark [number of particles] [number of nearest]
+ * </pre>
+ *
+ * @author tsagrista
+ */
+public class ParticleSortBenchmark {
+    private static final int N_RUNS = 6;
+    private static final int N_PARTICLES = 2000000;
+    // Default star group setting, times five for the proper motions
+    private static final int N_NEAREST = 500 * 5;
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : N_PARTICLES;
+        int k = args.length > 1 ? Integer.parseInt(args[1]) : N_NEAREST;
+        System.out.println(String.format("Particles: %d, nearest: %d", n, k));
+
+        Random rnd = new Random(1234l);
+        double[] keys = new double[n];
+        for (int i = 0; i < n; i++)
+            keys[i] = rnd.nextDouble() * 1e4;
+
+        Integer[] boxed = new Integer[n];
+        int[] full = new int[n];
+        int[] selected = new int[n];
+        for (int i = 0; i < n; i++) {
+            boxed[i] = i;
+            full[i] = i;
+            selected[i] = i;
+        }
+        Comparator<Integer> comp = (i1, i2) -> Double.compare(keys[i1], keys[i2]);
+
+        long totalBoxed = 0, totalFull = 0, totalSelect = 0;
+        for (int run = 0; run < N_RUNS; run++) {
+            long start = System.nanoTime();
+            Arrays.sort(boxed, comp);
+            long tBoxed = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            IndexSort.sort(full, keys, n);
+            long tFull = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            IndexSort.select(selected, keys, n, k);
+            long tSelect = System.nanoTime() - start;
+
+            check(boxed, full, keys, n, "full sort");
+            check(boxed, selected, keys, k, "selection");
+
+            // The first run warms up the JIT
+            if (run > 0) {
+                totalBoxed += tBoxed;
+                totalFull += tFull;
+                totalSelect += tSelect;
+            }
+            // Camera movement
+            for (int i = 0; i < n; i++)
+                keys[i] += rnd.nextGaussian();
+        }
+        int runs = N_RUNS - 1;
+        report("Boxed, full sort", totalBoxed / runs, totalBoxed);
+        report("Primitive, full sort", totalFull / runs, totalBoxed);
+        report("Primitive, nearest " + k, totalSelect / runs, totalBoxed);
+    }
+
+    private static void check(Integer[] reference, int[] result, double[] keys, int n, String name) {
+        for (int i = 0; i < n; i++) {
+            if (keys[reference[i]] != keys[result[i]]) {
+                System.err.println("Results of " + name + " differ at position " + i + ": " + keys[result[i]] + " (expected " + keys[reference[i]] + ")");
+                return;
+            }
+        }
+    }
+
+    private static void report(String name, long nanos, long reference) {
+        System.out.println(String.format("%-28s %10.2f ms  %6.1fx", name, nanos / 1e6, (double) reference / (N_RUNS - 1) / nanos));
+    }
+}
@@ -0,0 +1,576 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.util.tree;
+
+import com.badlogic.gdx.utils.IntArray;
+import gaiasky.util.math.Vector3d;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Implicit kd-tree over the positions of a particle or star group, to answer nearest neighbour, radius and
+ * line proximity queries without visiting all the objects.
+ * <p>
+ * The positions are copied to primitive arrays, in the order of the leaves. All the leaves are at the same
+ * depth and hold at most {@link #LEAF_SIZE} objects, so the tree needs no pointers: the children of node
+ * i are 2i+1 and 2i+2. Objects with non-finite positions are left out.
+ * <p>
+ * Proper motions are supported. The tree is built with the positions at a given time, and the boxes of the
+ * nodes are grown by the maximum drift since then when queried at another time, so the results are always
+ * exact. The queries get slower as the drift grows, and {@link #needsRebuild(double)} tells when the drift
+ * is larger than the leaves and the tree should be built again.
+ *
+ * @author tsagrista
+ */
+public class KdTree {
+
+    /** Maximum number of objects per leaf **/
+    public static final int LEAF_SIZE = 32;
+
+    private final int size, depth;
+    /** Time of the positions, in years since the epoch **/
+    private final double deltaYears;
+    /** Original indices, positions, proper motions (may be null) and weights (may be null), in leaf order **/
+    private final int[] ids;
+    private final double[] x, y, z;
+    private final float[] pmx, pmy, pmz;
+    private final double[] weights;
+    /** Range of each node, box of each node as {minx, miny, minz, maxx, maxy, maxz}, and maximum weight **/
+    private final int[] start, end;
+    private final double[] boxes;
+    private final double[] maxWeights;
+    /** Maximum proper motion, and the drift above which the tree should be rebuilt **/
+    private final double maxPm, rebuildDrift;
+
+    private KdTree(int size, int depth, double deltaYears, int[] ids, double[] x, double[] y, double[] z, float[] pmx, float[] pmy, float[] pmz, double[] weights) {
+        this.size = size;
+        this.depth = depth;
+        this.deltaYears = deltaYears;
+        this.ids = ids;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.pmx = pmx;
+        this.pmy = pmy;
+        this.pmz = pmz;
+        this.weights = weights;
+        int nNodes = (1 << (depth + 1)) - 1;
+        this.start = new int[nNodes];
+        this.end = new int[nNodes];
+        this.boxes = new double[nNodes * 6];
+        this.maxWeights = weights != null ? new double[nNodes] : null;
+        double pm = 0;
+        if (pmx != null) {
+            for (int i = 0; i < size; i++)
+                pm = Math.max(pm, Math.sqrt(pmx[i] * pmx[i] + pmy[i] * pmy[i] + pmz[i] * pmz[i]));
+        }
+        this.maxPm = pm;
+        build(0, 0, size, 0);
+        // Rebuild when the drift is larger than the mean half-diagonal of the leaves
+        int firstLeaf = (1 << depth) - 1;
+        double sum = 0;
+        for (int node = firstLeaf; node < nNodes; node++) {
+            int b = node * 6;
+            if (end[node] > start[node]) {
+                double dx = boxes[b + 3] - boxes[b], dy = boxes[b + 4] - boxes[b + 1], dz = boxes[b + 5] - boxes[b + 2];
+                sum += Math.sqrt(dx * dx + dy * dy + dz * dz) / 2d;
+            }
+        }
+        this.rebuildDrift = sum / (1 << depth);
+    }
+
+    /**
+     * Builds a tree. The arrays are indexed by the index of the object in the group, and are not modified.
+     *
+     * @param n          The number of objects
+     * @param x          The x coordinates at the given time
+     * @param y          The y coordinates at the given time
+     * @param z          The z coordinates at the given time
+     * @param pmx        The x component of the proper motions, in units per year, or null
+     * @param pmy        The y component of the proper motions, or null
+     * @param pmz        The z component of the proper motions, or null
+     * @param weights    The weights for {@link #brightest(double, double, double, double, int, IntPredicate, int[], double[])}
+     *                   (usually the sizes), or null
+     * @param deltaYears The time of the positions, in years since the epoch
+     * @return The tree
+     */
+    public static KdTree build(int n, double[] x, double[] y, double[] z, float[] pmx, float[] pmy, float[] pmz, double[] weights, double deltaYears) {
+        int[] order = new int[n];
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (Double.isFinite(x[i]) && Double.isFinite(y[i]) && Double.isFinite(z[i]))
+                order[m++] = i;
+        }
+        int depth = 0;
+        while ((m + (1 << depth) - 1) >> depth > LEAF_SIZE)
+            depth++;
+
+        // Sort the objects into the leaves, splitting each node at the median of its widest axis
+        double[][] coords = new double[][] { x, y, z };
+        split(order, coords, 0, m, depth);
+
+        int[] ids = new int[m];
+        double[] lx = new double[m], ly = new double[m], lz = new double[m];
+        boolean pm = pmx != null;
+        float[] lpmx = pm ? new float[m] : null, lpmy = pm ? new float[m] : null, lpmz = pm ? new float[m] : null;
+        double[] lw = weights != null ? new double[m] : null;
+        for (int i = 0; i < m; i++) {
+            int id = order[i];
+            ids[i] = id;
+            lx[i] = x[id];
+            ly[i] = y[id];
+            lz[i] = z[id];
+            if (pm) {
+                lpmx[i] = pmx[id];
+                lpmy[i] = pmy[id];
+                lpmz[i] = pmz[id];
+            }
+            if (lw != null)
+                lw[i] = weights[id];
+        }
+        return new KdTree(m, depth, deltaYears, ids, lx, ly, lz, lpmx, lpmy, lpmz, lw);
+    }
+
+    private static void split(int[] order, double[][] coords, int from, int to, int levels) {
+        if (levels == 0 || to - from < 2)
+            return;
+        // Widest axis
+        double[] min = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+        double[] max = { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+        for (int i = from; i < to; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                double v = coords[axis][order[i]];
+                if (v < min[axis])
+                    min[axis] = v;
+                if (v > max[axis])
+                    max[axis] = v;
+            }
+        }
+        int axis = 0;
+        for (int a = 1; a < 3; a++) {
+            if (max[a] - min[a] > max[axis] - min[axis])
+                axis = a;
+        }
+        int mid = (from + to) >>> 1;
+        select(order, coords[axis], from, to - 1, mid);
+        split(order, coords, from, mid, levels - 1);
+        split(order, coords, mid, to, levels - 1);
+    }
+
+    /**
+     * Partitions the range so that the element at k is the one a sort would put there
+     */
+    private static void select(int[] order, double[] keys, int lo, int hi, int k) {
+        while (hi > lo) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[order[mid]] < keys[order[lo]])
+                swap(order, mid, lo);
+            if (keys[order[hi]] < keys[order[lo]])
+                swap(order, hi, lo);
+            if (keys[order[hi]] < keys[order[mid]])
+                swap(order, hi, mid);
+            double pivot = keys[order[mid]];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (keys[order[i]] < pivot)
+                    i++;
+                while (keys[order[j]] > pivot)
+                    j--;
+                if (i <= j)
+                    swap(order, i++, j--);
+            }
+            if (k <= j)
+                hi = j;
+            else if (k >= i)
+                lo = i;
+            else
+                return;
+        }
+    }
+
+    private static void swap(int[] order, int i, int j) {
+        int aux = order[i];
+        order[i] = order[j];
+        order[j] = aux;
+    }
+
+    /**
+     * Sets the ranges, boxes and maximum weights of the node and its descendants
+     */
+    private void build(int node, int from, int to, int level) {
+        start[node] = from;
+        end[node] = to;
+        int b = node * 6;
+        if (level == depth) {
+            boxes[b] = boxes[b + 1] = boxes[b + 2] = Double.MAX_VALUE;
+            boxes[b + 3] = boxes[b + 4] = boxes[b + 5] = -Double.MAX_VALUE;
+            double w = -Double.MAX_VALUE;
+            for (int i = from; i < to; i++) {
+                boxes[b] = Math.min(boxes[b], x[i]);
+                boxes[b + 1] = Math.min(boxes[b + 1], y[i]);
+                boxes[b + 2] = Math.min(boxes[b + 2], z[i]);
+                boxes[b + 3] = Math.max(boxes[b + 3], x[i]);
+                boxes[b + 4] = Math.max(boxes[b + 4], y[i]);
+                boxes[b + 5] = Math.max(boxes[b + 5], z[i]);
+                if (weights != null)
+                    w = Math.max(w, weights[i]);
+            }
+            if (maxWeights != null)
+                maxWeights[node] = w;
+        } else {
+            int mid = (from + to) >>> 1;
+            int left = 2 * node + 1, right = left + 1;
+            build(left, from, mid, level + 1);
+            build(right, mid, to, level + 1);
+            int bl = left * 6, br = right * 6;
+            for (int c = 0; c < 3; c++) {
+                boxes[b + c] = Math.min(boxes[bl + c], boxes[br + c]);
+                boxes[b + c + 3] = Math.max(boxes[bl + c + 3], boxes[br + c + 3]);
+            }
+            if (maxWeights != null)
+                maxWeights[node] = Math.max(maxWeights[left], maxWeights[right]);
+        }
+    }
+
+    /**
+     * @return The number of objects in the tree
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The time of the positions the tree was built with, in years since the epoch
+     */
+    public double getDeltaYears() {
+        return deltaYears;
+    }
+
+    /**
+     * Whether the objects have moved so much since the tree was built that it should be rebuilt
+     *
+     * @param deltaYears The current time, in years since the epoch
+     * @return Whether to rebuild the tree
+     */
+    public boolean needsRebuild(double deltaYears) {
+        return drift(deltaYears) > rebuildDrift;
+    }
+
+    private double drift(double deltaYears) {
+        return maxPm * Math.abs(deltaYears - this.deltaYears);
+    }
+
+    /**
+     * Squared distance from the point to the box of the node, grown by the given drift
+     */
+    private double boxDist2(int node, double px, double py, double pz, double drift) {
+        int b = node * 6;
+        double dx = Math.max(0, Math.max(boxes[b] - drift - px, px - boxes[b + 3] - drift));
+        double dy = Math.max(0, Math.max(boxes[b + 1] - drift - py, py - boxes[b + 4] - drift));
+        double dz = Math.max(0, Math.max(boxes[b + 2] - drift - pz, pz - boxes[b + 5] - drift));
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Squared distance from the point to the object at the given leaf position, at the given time
+     */
+    private double dist2(int i, double px, double py, double pz, double dt) {
+        double dx = x[i] - px, dy = y[i] - py, dz = z[i] - pz;
+        if (pmx != null) {
+            dx += pmx[i] * dt;
+            dy += pmy[i] * dt;
+            dz += pmz[i] * dt;
+        }
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Finds the k objects closest to the given point
+     *
+     * @param px         The x coordinate of the point
+     * @param py         The y coordinate of the point
+     * @param pz         The z coordinate of the point
+     * @param deltaYears The time, in years since the epoch
+     * @param k          The number of objects
+     * @param filter     Accepts the indices of the objects to consider, or null to consider all
+     * @param indices    The array to put the indices of the objects in, by increasing distance
+     * @param distances  The array to put the distances in, or null
+     * @return The number of objects found, at most k
+     */
+    public int nearest(double px, double py, double pz, double deltaYears, int k, IntPredicate filter, int[] indices, double[] distances) {
+        Heap heap = new Heap(k);
+        if (size > 0 && k > 0)
+            nearest(0, 0, px, py, pz, deltaYears - this.deltaYears, drift(deltaYears), filter, heap);
+        int n = heap.drain(indices, distances);
+        if (distances != null) {
+            for (int j = 0; j < n; j++)
+                distances[j] = Math.sqrt(distances[j]);
+        }
+        return n;
+    }
+
+    private void nearest(int node, int level, double px, double py, double pz, double dt, double drift, IntPredicate filter, Heap heap) {
+        if (level == depth) {
+            for (int i = start[node]; i < end[node]; i++) {
+                double d2 = dist2(i, px, py, pz, dt);
+                if (d2 < heap.bound() && (filter == null || filter.test(ids[i])))
+                    heap.offer(ids[i], d2);
+            }
+            return;
+        }
+        int left = 2 * node + 1, right = left + 1;
+        double dl = boxDist2(left, px, py, pz, drift), dr = boxDist2(right, px, py, pz, drift);
+        // Nearest child first
+        if (dr < dl) {
+            int aux = left;
+            left = right;
+            right = aux;
+            double auxd = dl;
+            dl = dr;
+            dr = auxd;
+        }
+        if (dl < heap.bound())
+            nearest(left, level + 1, px, py, pz, dt, drift, filter, heap);
+        if (dr < heap.bound())
+            nearest(right, level + 1, px, py, pz, dt, drift, filter, heap);
+    }
+
+    /**
+     * Finds the k objects with the largest ratio of weight to distance to the given point, which for sizes is the
+     * largest apparent size. Needs the tree to have weights.
+     *
+     * @param px         The x coordinate of the point
+     * @param py         The y coordinate of the point
+     * @param pz         The z coordinate of the point
+     * @param deltaYears The time, in years since the epoch
+     * @param k          The number of objects
+     * @param filter     Accepts the indices of the objects to consider, or null to consider all
+     * @param indices    The array to put the indices of the objects in, by decreasing ratio
+     * @param values     The array to put the ratios in, or null
+     * @return The number of objects found, at most k
+     */
+    public int brightest(double px, double py, double pz, double deltaYears, int k, IntPredicate filter, int[] indices, double[] values) {
+        if (weights == null)
+            throw new IllegalStateException("The tree has no weights");
+        Heap heap = new Heap(k);
+        if (size > 0 && k > 0)
+            brightest(0, 0, px, py, pz, deltaYears - this.deltaYears, drift(deltaYears), filter, heap);
+        int n = heap.drain(indices, values);
+        if (values != null) {
+            for (int j = 0; j < n; j++)
+                values[j] = -values[j];
+        }
+        return n;
+    }
+
+    private void brightest(int node, int level, double px, double py, double pz, double dt, double drift, IntPredicate filter, Heap heap) {
+        if (level == depth) {
+            for (int i = start[node]; i < end[node]; i++) {
+                // Costs are negative ratios, so that the heap keeps the k smallest
+                double cost = -weights[i] / Math.sqrt(dist2(i, px, py, pz, dt));
+                if (cost < heap.bound() && (filter == null || filter.test(ids[i])))
+                    heap.offer(ids[i], cost);
+            }
+            return;
+        }
+        int left = 2 * node + 1, right = left + 1;
+        double cl = -maxWeights[left] / Math.sqrt(boxDist2(left, px, py, pz, drift));
+        double cr = -maxWeights[right] / Math.sqrt(boxDist2(right, px, py, pz, drift));
+        // Most promising child first
+        if (cr < cl) {
+            int aux = left;
+            left = right;
+            right = aux;
+            double auxd = cl;
+            cl = cr;
+            cr = auxd;
+        }
+        if (!(cl >= heap.bound()))
+            brightest(left, level + 1, px, py, pz, dt, drift, filter, heap);
+        if (!(cr >= heap.bound()))
+            brightest(right, level + 1, px, py, pz, dt, drift, filter, heap);
+    }
+
+    /**
+     * Adds to the given array the indices of the objects within the given distance of a point
+     *
+     * @param px         The x coordinate of the point
+     * @param py         The y coordinate of the point
+     * @param pz         The z coordinate of the point
+     * @param radius     The radius
+     * @param deltaYears The time, in years since the epoch
+     * @param filter     Accepts the indices of the objects to consider, or null to consider all
+     * @param out        The array to add the indices to
+     */
+    public void radius(double px, double py, double pz, double radius, double deltaYears, IntPredicate filter, IntArray out) {
+        if (size == 0)
+            return;
+        double r2 = radius * radius, dt = deltaYears - this.deltaYears, drift = drift(deltaYears);
+        int[] stack = new int[depth + 2];
+        int[] levels = new int[depth + 2];
+        int top = 0;
+        stack[top] = 0;
+        levels[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top], level = levels[top];
+            if (boxDist2(node, px, py, pz, drift) > r2)
+                continue;
+            if (level == depth) {
+                for (int i = start[node]; i < end[node]; i++) {
+                    if (dist2(i, px, py, pz, dt) <= r2 && (filter == null || filter.test(ids[i])))
+                        out.add(ids[i]);
+                }
+            } else {
+                stack[top] = 2 * node + 1;
+                levels[top++] = level + 1;
+                stack[top] = 2 * node + 2;
+                levels[top++] = level + 1;
+            }
+        }
+    }
+
+    /**
+     * Adds to the given array the indices of the objects close to the line through p0 and p1, where close
+     * means that the distance to the line is smaller than the given ratio of the distance to the origin.
+     * This is the test used to pick objects with a beam.
+     *
+     * @param p0         A point of the line
+     * @param p1         Another point of the line
+     * @param origin     The origin, usually the camera position
+     * @param ratio      The maximum ratio of the distance to the line to the distance to the origin
+     * @param deltaYears The time, in years since the epoch
+     * @param filter     Accepts the indices of the objects to consider, or null to consider all
+     * @param out        The array to add the indices to
+     */
+    public void nearLine(Vector3d p0, Vector3d p1, Vector3d origin, double ratio, double deltaYears, IntPredicate filter, IntArray out) {
+        if (size == 0)
+            return;
+        double dx = p1.x - p0.x, dy = p1.y - p0.y, dz = p1.z - p0.z;
+        double len = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        if (len == 0)
+            return;
+        dx /= len;
+        dy /= len;
+        dz /= len;
+        double dt = deltaYears - this.deltaYears, drift = drift(deltaYears);
+        int[] stack = new int[depth + 2];
+        int[] levels = new int[depth + 2];
+        int top = 0;
+        stack[top] = 0;
+        levels[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top], level = levels[top];
+            // Bounding sphere of the box
+            int b = node * 6;
+            double cx = (boxes[b] + boxes[b + 3]) / 2d, cy = (boxes[b + 1] + boxes[b + 4]) / 2d, cz = (boxes[b + 2] + boxes[b + 5]) / 2d;
+            double hx = (boxes[b + 3] - boxes[b]) / 2d, hy = (boxes[b + 4] - boxes[b + 1]) / 2d, hz = (boxes[b + 5] - boxes[b + 2]) / 2d;
+            double r = Math.sqrt(hx * hx + hy * hy + hz * hz) + drift;
+            double toOrigin = Math.sqrt((cx - origin.x) * (cx - origin.x) + (cy - origin.y) * (cy - origin.y) + (cz - origin.z) * (cz - origin.z));
+            if (lineDist(cx, cy, cz, p0, dx, dy, dz) - r > ratio * (toOrigin + r))
+                continue;
+            if (level == depth) {
+                for (int i = start[node]; i < end[node]; i++) {
+                    double ox = x[i], oy = y[i], oz = z[i];
+                    if (pmx != null) {
+                        ox += pmx[i] * dt;
+                        oy += pmy[i] * dt;
+                        oz += pmz[i] * dt;
+                    }
+                    double dist = Math.sqrt((ox - origin.x) * (ox - origin.x) + (oy - origin.y) * (oy - origin.y) + (oz - origin.z) * (oz - origin.z));
+                    if (lineDist(ox, oy, oz, p0, dx, dy, dz) < ratio * dist && (filter == null || filter.test(ids[i])))
+                        out.add(ids[i]);
+                }
+            } else {
+                stack[top] = 2 * node + 1;
+                levels[top++] = level + 1;
+                stack[top] = 2 * node + 2;
+                levels[top++] = level + 1;
+            }
+        }
+    }
+
+    /**
+     * Distance from a point to the line through p0 with the given unit direction
+     */
+    private static double lineDist(double px, double py, double pz, Vector3d p0, double dx, double dy, double dz) {
+        double vx = px - p0.x, vy = py - p0.y, vz = pz - p0.z;
+        double cx = vy * dz - vz * dy, cy = vz * dx - vx * dz, cz = vx * dy - vy * dx;
+        return Math.sqrt(cx * cx + cy * cy + cz * cz);
+    }
+
+    /**
+     * Bounded max-heap which keeps the k entries with the smallest cost
+     */
+    private static class Heap {
+        private final int[] ids;
+        private final double[] costs;
+        private int n = 0;
+
+        Heap(int k) {
+            ids = new int[Math.max(k, 0)];
+            costs = new double[Math.max(k, 0)];
+        }
+
+        /**
+         * @return The cost an entry must be below to get in
+         */
+        double bound() {
+            return n < ids.length ? Double.POSITIVE_INFINITY : costs[0];
+        }
+
+        void offer(int id, double cost) {
+            if (n < ids.length) {
+                // Sift up
+                int i = n++;
+                while (i > 0) {
+                    int parent = (i - 1) >> 1;
+                    if (costs[parent] >= cost)
+                        break;
+                    ids[i] = ids[parent];
+                    costs[i] = costs[parent];
+                    i = parent;
+                }
+                ids[i] = id;
+                costs[i] = cost;
+            } else if (cost < costs[0]) {
+                siftDown(id, cost, n);
+            }
+        }
+
+        private void siftDown(int id, double cost, int size) {
+            int i = 0, child;
+            while ((child = 2 * i + 1) < size) {
+                if (child + 1 < size && costs[child + 1] > costs[child])
+                    child++;
+                if (costs[child] <= cost)
+                    break;
+                ids[i] = ids[child];
+                costs[i] = costs[child];
+                i = child;
+            }
+            ids[i] = id;
+            costs[i] = cost;
+        }
+
+        /**
+         * Empties the heap into the arrays, by increasing cost
+         *
+         * @return The number of entries
+         */
+        int drain(int[] outIds, double[] outCosts) {
+            int count = n;
+            for (int j = count - 1; j >= 0; j--) {
+                outIds[j] = ids[0];
+                if (outCosts != null)
+                    outCosts[j] = costs[0];
+                n--;
+                if (n > 0)
+                    siftDown(ids[n], costs[n], n);
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.util.tree;
+
+import com.badlogic.gdx.utils.IntArray;
+import gaiasky.scenegraph.ParticleGroup.ParticleBean;
+import gaiasky.scenegraph.StarGroup;
+import gaiasky.util.math.BoundingBoxd;
+import gaiasky.util.math.Vector3d;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Morton (Z-order) codes of the stars of an octant, and a range table to find the stars
+ * of an octant which may intersect a box or a sphere.
+ * <p>
+ * The octree generators sort the stars of each octant by their Morton code relative to the octant
+ * box (see {@link #sort(List, OctreeNode)}), so that stars which are close in space are also close in the
+ * particle file. The octant box is split into a grid of {@link #CELLS} cells per axis, and the range table
+ * holds the first and last index of the stars of each cell, so queries return a few contiguous index
+ * ranges. The table is built from the loaded stars in linear time, and is correct for any order of the
+ * stars, but the ranges are only tight if the stars are in Morton order.
+ * <p>
+ * The cells at the border of the grid extend to infinity, so that stars outside the octant box, which
+ * can happen in the octants at the border of the tree when the root box does not hold every star,
+ * are also found.
+ *
+ * @author tsagrista
+ */
+public class MortonIndex {
+
+    /** Bits per axis of the Morton codes **/
+    public static final int BITS = 21;
+    /** Levels of the range table **/
+    public static final int LEVELS = 3;
+    /** Cells per axis of the range table **/
+    public static final int CELLS = 1 << LEVELS;
+
+    private static final int NCELLS = CELLS * CELLS * CELLS;
+    private static final double CODE_SCALE = 1 << BITS;
+
+    /** Minimum corner and cell size per axis **/
+    private final double[] min, cell;
+    /** First index of the stars of each cell, and index after the last one. Empty cells have start == end **/
+    private final int[] start, end;
+
+    private MortonIndex(double[] box) {
+        this.min = new double[3];
+        this.cell = new double[3];
+        for (int coord = 0; coord < 3; coord++) {
+            min[coord] = box[coord] - box[coord + 3];
+            cell[coord] = 2d * box[coord + 3] / CELLS;
+        }
+        this.start = new int[NCELLS];
+        this.end = new int[NCELLS];
+    }
+
+    /**
+     * Builds the range table of the given star group. The grid covers the octant of the group or,
+     * if the group has no octant, the bounding box of its stars.
+     *
+     * @param sg The star group
+     * @return The range table
+     */
+    public static MortonIndex build(StarGroup sg) {
+        int n = sg.size();
+        MortonIndex index = new MortonIndex(sg.octant != null ? box(sg.octant) : boundingBox(sg));
+        Arrays.fill(index.start, Integer.MAX_VALUE);
+        for (int i = 0; i < n; i++) {
+            int c = index.cellOf(sg.getX(i), sg.getY(i), sg.getZ(i));
+            if (i < index.start[c])
+                index.start[c] = i;
+            index.end[c] = i + 1;
+        }
+        for (int c = 0; c < NCELLS; c++) {
+            if (index.start[c] == Integer.MAX_VALUE)
+                index.start[c] = 0;
+        }
+        return index;
+    }
+
+    private static double[] boundingBox(StarGroup sg) {
+        BoundingBoxd bb = new BoundingBoxd();
+        bb.inf();
+        Vector3d aux = new Vector3d();
+        int n = sg.size();
+        for (int i = 0; i < n; i++)
+            bb.ext(aux.set(sg.getX(i), sg.getY(i), sg.getZ(i)));
+        if (n == 0)
+            return new double[] { 0, 0, 0, 1, 1, 1 };
+        double[] box = new double[6];
+        box[0] = bb.getCenterX();
+        box[1] = bb.getCenterY();
+        box[2] = bb.getCenterZ();
+        box[3] = Math.max(bb.getWidth() / 2d, 1d);
+        box[4] = Math.max(bb.getHeight() / 2d, 1d);
+        box[5] = Math.max(bb.getDepth() / 2d, 1d);
+        return box;
+    }
+
+    /**
+     * Gets the centre and half-size of the octant box, rounded as in the metadata file. This is the box
+     * the generators use to sort the stars, so it must also be used to build the range table.
+     *
+     * @param octant The octant
+     * @return The box in the form {x, y, z, hx, hy, hz}
+     */
+    public static double[] box(OctreeNode octant) {
+        return new double[] { (float) octant.centre.x, (float) octant.centre.y, (float) octant.centre.z, (float) octant.size.x / 2f, (float) octant.size.y / 2f, (float) octant.size.z / 2f };
+    }
+
+    /**
+     * Sorts the given stars by their Morton code relative to the box of the given octant. The sort
+     * is stable.
+     *
+     * @param stars  The stars to sort in place
+     * @param octant The octant
+     */
+    public static <T extends ParticleBean> void sort(List<T> stars, OctreeNode octant) {
+        int n = stars.size();
+        if (n < 2)
+            return;
+        double[] box = box(octant);
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            ParticleBean pb = stars.get(i);
+            keys[i] = code(pb.data[0], pb.data[1], pb.data[2], box);
+        }
+        int[] order = sortedOrder(keys);
+        List<T> sorted = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            sorted.add(stars.get(order[i]));
+        for (int i = 0; i < n; i++)
+            stars.set(i, sorted.get(i));
+    }
+
+    private static int[] sortedOrder(long[] codes) {
+        int n = codes.length;
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        // Arrays.sort on objects is a stable merge sort
+        Arrays.sort(order, (a, b) -> Long.compare(codes[a], codes[b]));
+        int[] result = new int[n];
+        for (int i = 0; i < n; i++)
+            result[i] = order[i];
+        return result;
+    }
+
+    /**
+     * Computes the Morton code of the given position, with {@link #BITS} bits per axis. Positions
+     * outside the box are clamped to it.
+     *
+     * @param x   Position in x
+     * @param y   Position in y
+     * @param z   Position in z
+     * @param box Centre and half-size of the box, in the form {x, y, z, hx, hy, hz}
+     * @return The Morton code
+     */
+    public static long code(double x, double y, double z, double[] box) {
+        return interleave(quantize(x, box[0], box[3])) << 2 | interleave(quantize(y, box[1], box[4])) << 1 | interleave(quantize(z, box[2], box[5]));
+    }
+
+    private static int quantize(double value, double centre, double halfSize) {
+        double t = (value - centre + halfSize) / (2d * halfSize);
+        if (!(t > 0))
+            return 0;
+        return (int) Math.min(CODE_SCALE - 1, t * CODE_SCALE);
+    }
+
+    /**
+     * Spreads the lower 21 bits of the value so that there are two zero bits between each pair of bits
+     */
+    private static long interleave(int value) {
+        long v = value & 0x1fffffL;
+        v = (v | v << 32) & 0x1f00000000ffffL;
+        v = (v | v << 16) & 0x1f0000ff0000ffL;
+        v = (v | v << 8) & 0x100f00f00f00f00fL;
+        v = (v | v << 4) & 0x10c30c30c30c30c3L;
+        v = (v | v << 2) & 0x1249249249249249L;
+        return v;
+    }
+
+    private int cellCoord(double value, int coord) {
+        double t = (value - min[coord]) / cell[coord];
+        if (!(t > 0))
+            return 0;
+        return (int) Math.min(CELLS - 1, t);
+    }
+
+    /**
+     * Cell of the given position. Cells are numbered in Morton order
+     */
+    private int cellOf(double x, double y, double z) {
+        return (int) (interleave(cellCoord(x, 0)) << 2 | interleave(cellCoord(y, 1)) << 1 | interleave(cellCoord(z, 2)));
+    }
+
+    /**
+     * Lower bound of the given cell along the given axis. The first cell extends to minus infinity
+     */
+    private double lower(int coord, int i) {
+        return i == 0 ? Double.NEGATIVE_INFINITY : min[coord] + i * cell[coord];
+    }
+
+    /**
+     * Upper bound of the given cell along the given axis. The last cell extends to infinity
+     */
+    private double upper(int coord, int i) {
+        return i == CELLS - 1 ? Double.POSITIVE_INFINITY : min[coord] + (i + 1) * cell[coord];
+    }
+
+    /**
+     * Adds to the given array the index ranges of the stars which may be in the given box. The ranges are added
+     * as pairs of [start, end) indices, sorted and disjoint. They may contain stars outside the box, so the
+     * stars must still be tested one by one.
+     *
+     * @param box    The box
+     * @param ranges The array to add the ranges to
+     */
+    public void query(BoundingBoxd box, IntArray ranges) {
+        query(box.min.x, box.min.y, box.min.z, box.max.x, box.max.y, box.max.z, null, 0, ranges);
+    }
+
+    /**
+     * Adds to the given array the index ranges of the stars which may be in the given sphere. The ranges are added
+     * as pairs of [start, end) indices, sorted and disjoint. They may contain stars outside the sphere, so the
+     * stars must still be tested one by one.
+     *
+     * @param centre The centre of the sphere
+     * @param radius The radius of the sphere
+     * @param ranges The array to add the ranges to
+     */
+    public void query(Vector3d centre, double radius, IntArray ranges) {
+        query(centre.x - radius, centre.y - radius, centre.z - radius, centre.x + radius, centre.y + radius, centre.z + radius, centre, radius, ranges);
+    }
+
+    private void query(double x0, double y0, double z0, double x1, double y1, double z1, Vector3d centre, double radius, IntArray ranges) {
+        int cx0 = cellCoord(x0, 0), cx1 = cellCoord(x1, 0);
+        int cy0 = cellCoord(y0, 1), cy1 = cellCoord(y1, 1);
+        int cz0 = cellCoord(z0, 2), cz1 = cellCoord(z1, 2);
+        // Ranges of the intersecting cells, packed as start << 32 | end
+        long[] found = new long[NCELLS];
+        int n = 0;
+        for (int cx = cx0; cx <= cx1; cx++) {
+            for (int cy = cy0; cy <= cy1; cy++) {
+                for (int cz = cz0; cz <= cz1; cz++) {
+                    int c = (int) (interleave(cx) << 2 | interleave(cy) << 1 | interleave(cz));
+                    if (start[c] == end[c])
+                        continue;
+                    // Some slack for the rounding of the cell bounds
+                    if (centre != null && distance2(centre, cx, cy, cz) > radius * radius * (1d + 1e-9))
+                        continue;
+                    found[n++] = (long) start[c] << 32 | end[c];
+                }
+            }
+        }
+        // Sort by start and merge overlapping or adjacent ranges
+        Arrays.sort(found, 0, n);
+        int s = -1, e = -1;
+        for (int i = 0; i < n; i++) {
+            int rs = (int) (found[i] >>> 32);
+            int re = (int) found[i];
+            if (rs <= e) {
+                e = Math.max(e, re);
+            } else {
+                if (s >= 0)
+                    ranges.add(s, e);
+                s = rs;
+                e = re;
+            }
+        }
+        if (s >= 0)
+            ranges.add(s, e);
+    }
+
+    /**
+     * Squared distance from the given point to the given cell
+     */
+    private double distance2(Vector3d p, int cx, int cy, int cz) {
+        double dx = Math.max(0, Math.max(lower(0, cx) - p.x, p.x - upper(0, cx)));
+        double dy = Math.max(0, Math.max(lower(1, cy) - p.y, p.y - upper(1, cy)));
+        double dz = Math.max(0, Math.max(lower(2, cz) - p.z, p.z - upper(2, cz)));
+        return dx * dx + dy * dy + dz * dz;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.util.tree;
+
+/**
+ * Doubly-linked list of octants sorted by last access time, from the least
+ * recently used (head) to the most recently used (tail). The links are stored
+ * in the octants themselves, so that touching, removing and evicting an octant
+ * are constant-time operations. All operations are synchronized.
+ *
+ * @author tsagrista
+ */
+public class OctantLRU {
+    /** Least recently used **/
+    private OctreeNode head;
+    /** Most recently used **/
+    private OctreeNode tail;
+    private int size;
+
+    /**
+     * Moves the given octant to the most recently used position, adding it
+     * to the list if it is not there yet.
+     *
+     * @param octant The octant
+     */
+    public synchronized void touch(OctreeNode octant) {
+        if (octant.lruLinked) {
+            if (octant == tail)
+                return;
+            unlink(octant);
+        }
+        link(octant);
+    }
+
+    /**
+     * Removes the given octant from the list, if present.
+     *
+     * @param octant The octant
+     */
+    public synchronized void remove(OctreeNode octant) {
+        if (octant.lruLinked) {
+            unlink(octant);
+        }
+    }
+
+    /**
+     * Removes and returns the least recently used octant.
+     *
+     * @return The least recently used octant, or null if the list is empty
+     */
+    public synchronized OctreeNode poll() {
+        OctreeNode octant = head;
+        if (octant != null) {
+            unlink(octant);
+        }
+        return octant;
+    }
+
+    public synchronized boolean contains(OctreeNode octant) {
+        return octant.lruLinked;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    public synchronized void clear() {
+        OctreeNode current = head;
+        while (current != null) {
+            OctreeNode next = current.lruNext;
+            current.lruPrev = null;
+            current.lruNext = null;
+            current.lruLinked = false;
+            current = next;
+        }
+        head = null;
+        tail = null;
+        size = 0;
+    }
+
+    private void link(OctreeNode octant) {
+        octant.lruPrev = tail;
+        octant.lruNext = null;
+        if (tail != null)
+            tail.lruNext = octant;
+        else
+            head = octant;
+        tail = octant;
+        octant.lruLinked = true;
+        size++;
+    }
+
+    private void unlink(OctreeNode octant) {
+        OctreeNode prev = octant.lruPrev;
+        OctreeNode next = octant.lruNext;
+        if (prev != null)
+            prev.lruNext = next;
+        else
+            head = next;
+        if (next != null)
+            next.lruPrev = prev;
+        else
+            tail = prev;
+        octant.lruPrev = null;
+        octant.lruNext = null;
+        octant.lruLinked = false;
+        size--;
+    }
+}
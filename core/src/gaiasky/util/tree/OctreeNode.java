@@ -8,14 +8,15 @@ package gaiasky.util.tree;
 import com.badlogic.gdx.graphics.Color;
 import com.badlogic.gdx.graphics.GL20;
 import com.badlogic.gdx.utils.Array;
-import gaiasky.data.StreamingOctreeLoader;
+import com.badlogic.gdx.utils.IntArray;
+import gaiasky.data.octreegen.MetadataPager;
 import gaiasky.render.ComponentTypes;
 import gaiasky.render.ComponentTypes.ComponentType;
 import gaiasky.render.ILineRenderable;
-import gaiasky.render.system.AbstractRenderSystem;
 import gaiasky.render.system.LineRenderSystem;
 import gaiasky.scenegraph.ParticleGroup;
 import gaiasky.scenegraph.SceneGraphNode;
+import gaiasky.scenegraph.StarGroup;
 import gaiasky.scenegraph.camera.ICamera;
 import gaiasky.util.GlobalConf;
 import gaiasky.util.Pair;
@@ -23,6 +24,7 @@ import gaiasky.util.math.*;
 import net.jafama.FastMath;
 
 import java.util.*;
+import java.util.function.BiConsumer;
 
 /**
  * Octree node implementation which contains a list of {@link IPosition} objects
@@ -31,23 +33,15 @@ import java.util.*;
  * @author Toni Sagrista
  */
 public class OctreeNode implements ILineRenderable {
+    /** Number of observed octants in the last traversal, see {@link OctreeTraversal} **/
     public static int nOctantsObserved = 0;
+    /** Number of objects in the observed octants in the last traversal, see {@link OctreeTraversal} **/
     public static int nObjectsObserved = 0;
     /** Max depth of the structure this node belongs to **/
     public static int maxDepth;
     /** Is dynamic loading active? **/
     public static boolean LOAD_ACTIVE;
 
-    /**
-     * Since OctreeNode is not to be parallelised, these can be static.
-     **/
-    private static final BoundingBoxd boxcopy = new BoundingBoxd(new Vector3d(), new Vector3d());
-    private static final Vector3d auxD1 = new Vector3d();
-    private static final Vector3d auxD2 = new Vector3d();
-    private static final Vector3d auxD3 = new Vector3d();
-    private static final Vector3d auxD4 = new Vector3d();
-    private static final Rayd ray = new Rayd(new Vector3d(), new Vector3d());
-
     private final Vector3d aux3d1;
 
     /** The load status of this node **/
@@ -90,6 +84,23 @@ public class OctreeNode implements ILineRenderable {
     Vector3d transform;
     /** The opacity of this node **/
     public float opacity;
+    /** Whether this octant was loaded by the prefetcher and has not been observed yet **/
+    public volatile boolean prefetched;
+    /** Estimated memory footprint (heap and video memory) of the loaded objects of this octant, in bytes **/
+    public long footprint;
+    /** Last time this octant was put in a load queue, in ns, see {@link System#nanoTime()} **/
+    public long queueTime;
+    /** Last time this octant was unloaded to stay within the memory budget, in ms **/
+    public long evictionTime;
+    /** Links of the least recently used list, see {@link OctantLRU} **/
+    OctreeNode lruPrev, lruNext;
+    boolean lruLinked;
+    /** The pager which creates the children of this octant on demand, if the metadata is paged **/
+    public MetadataPager pager;
+    /** Whether this octant has children which have not been created yet, see {@link MetadataPager} **/
+    public boolean childrenPaged;
+    /** Last time this octant was observed, in ms **/
+    public long observedTime;
 
     /**
      * Constructs an octree node
@@ -515,6 +526,77 @@ public class OctreeNode implements ILineRenderable {
         }
     }
 
+    /**
+     * Finds the stars of this subtree which may be in the given box. The consumer gets each star group
+     * with stars in the box, and the index ranges of those stars (see {@link StarGroup#query(BoundingBoxd, IntArray)}).
+     * The array of ranges is reused between calls. Only the octants which are loaded are visited.
+     * Stars outside the root box, which end up in the octants at the border of the tree, are also found.
+     *
+     * @param box      The box, in internal units
+     * @param consumer The consumer of the star groups and their index ranges
+     */
+    public void query(BoundingBoxd box, BiConsumer<StarGroup, IntArray> consumer) {
+        query(box, null, 0, getRoot(), consumer, new IntArray());
+    }
+
+    /**
+     * Finds the stars of this subtree which may be in the given sphere. The consumer gets each star group
+     * with stars in the sphere, and the index ranges of those stars (see {@link StarGroup#query(Vector3d, double, IntArray)}).
+     * The array of ranges is reused between calls. Only the octants which are loaded are visited.
+     * Stars outside the root box, which end up in the octants at the border of the tree, are also found.
+     *
+     * @param centre   The centre of the sphere, in internal units
+     * @param radius   The radius of the sphere, in internal units
+     * @param consumer The consumer of the star groups and their index ranges
+     */
+    public void query(Vector3d centre, double radius, BiConsumer<StarGroup, IntArray> consumer) {
+        query(null, centre, radius, getRoot(), consumer, new IntArray());
+    }
+
+    private void query(BoundingBoxd box, Vector3d centre, double radius, OctreeNode root, BiConsumer<StarGroup, IntArray> consumer, IntArray ranges) {
+        if (!mayContain(box, centre, radius, root))
+            return;
+        if (objects != null) {
+            for (SceneGraphNode object : objects) {
+                if (object instanceof StarGroup) {
+                    StarGroup sg = (StarGroup) object;
+                    ranges.clear();
+                    if (box != null)
+                        sg.query(box, ranges);
+                    else
+                        sg.query(centre, radius, ranges);
+                    if (ranges.size > 0)
+                        consumer.accept(sg, ranges);
+                }
+            }
+        }
+        for (OctreeNode child : children) {
+            if (child != null)
+                child.query(box, centre, radius, root, consumer, ranges);
+        }
+    }
+
+    /**
+     * Whether the stars of this octant may be in the given box or, if the box is null, in the given sphere.
+     * Stars outside the root box end up in the octants at the border of the tree, so the faces of the
+     * octant which lie on the faces of the root box extend to infinity, like the border cells of
+     * {@link MortonIndex}. The root is therefore never discarded.
+     */
+    private boolean mayContain(BoundingBoxd box, Vector3d centre, double radius, OctreeNode root) {
+        double minx = blf.x <= root.blf.x ? Double.NEGATIVE_INFINITY : blf.x;
+        double miny = blf.y <= root.blf.y ? Double.NEGATIVE_INFINITY : blf.y;
+        double minz = blf.z <= root.blf.z ? Double.NEGATIVE_INFINITY : blf.z;
+        double maxx = trb.x >= root.trb.x ? Double.POSITIVE_INFINITY : trb.x;
+        double maxy = trb.y >= root.trb.y ? Double.POSITIVE_INFINITY : trb.y;
+        double maxz = trb.z >= root.trb.z ? Double.POSITIVE_INFINITY : trb.z;
+        if (box != null)
+            return box.max.x >= minx && box.min.x <= maxx && box.max.y >= miny && box.min.y <= maxy && box.max.z >= minz && box.min.z <= maxz;
+        double dx = Math.max(0, Math.max(minx - centre.x, centre.x - maxx));
+        double dy = Math.max(0, Math.max(miny - centre.y, centre.y - maxy));
+        double dz = Math.max(0, Math.max(minz - centre.z, centre.z - maxz));
+        return dx * dx + dy * dy + dz * dz <= radius * radius;
+    }
+
     /**
      * Gets the depth of this subtree, that is, the number of levels of the
      * longest parent-child path starting at this node. If run on the root node,
@@ -538,80 +620,79 @@ public class OctreeNode implements ILineRenderable {
     }
 
     /**
-     * Computes the observed value and the transform of each observed node.
+     * Computes the observed value and the transform of each observed node. This
+     * is re-entrant, all the state of the traversal is in the given traversal object,
+     * so different subtrees may be updated concurrently.
      * 
      * @param parentTransform
      *            The parent transform.
-     * @param cam
-     *            The current camera.
-     * @param roulette
-     *            List where the nodes to be processed are to be added.
+     * @param traversal
+     *            The state of the traversal, where the objects to be processed and the
+     *            octants to load and touch are added.
      * @param opacity
      *            The opacity to set.
      */
-    public void update(Vector3d parentTransform, ICamera cam, List<SceneGraphNode> roulette, float opacity) {
+    public void update(Vector3d parentTransform, OctreeTraversal traversal, float opacity) {
         parentTransform.put(transform);
         this.opacity = opacity;
         this.observed = false;
 
+        ICamera cam = traversal.camera;
         // Compute distance and view angle
-        distToCamera = auxD1.set(centre).add(cam.getInversePos()).len();
+        distToCamera = traversal.auxD1.set(centre).add(cam.getInversePos()).len();
         // View angle is normalized to 40 degrees when the octant is exactly the size of the screen height, regardless of the camera fov
         viewAngle = Math.atan(radius / distToCamera) * 2;
 
-        float cf = MathUtilsd.clamp(cam.getFovFactor() * 2.5f, 0.15f, 1f);
-        float th0 = GlobalConf.scene.OCTANT_THRESHOLD_0 * cf;
-        float th1 = GlobalConf.scene.OCTANT_THRESHOLD_1 * cf;
+        float th0 = traversal.th0;
+        float th1 = traversal.th1;
 
         if (viewAngle < th0) {
             // Not observed
             setChildrenObserved(false);
-        } else if(this.observed = computeObserved2(cam)){
-            nOctantsObserved++;
-            //int L_DEPTH = 5;
+        } else if (this.observed = computeObserved2(cam, traversal)) {
+            traversal.observed();
+            observedTime = traversal.time;
             /**
              * Load lists of pages
              */
-            if (status == LoadStatus.NOT_LOADED && LOAD_ACTIVE /*&& depth == L_DEPTH*/) {
+            if (status == LoadStatus.NOT_LOADED && LOAD_ACTIVE) {
                 // Add to load and go on
-                StreamingOctreeLoader.queue(this);
+                traversal.load(this);
             } else if (status == LoadStatus.LOADED) {
                 // Visited last!
-                StreamingOctreeLoader.touch(this);
+                traversal.touch(this);
 
                 // Add objects
-                //if (depth == L_DEPTH)
-                addObjectsTo(roulette);
+                if (objects != null)
+                    traversal.addObjects(objects);
             } else if (status == LoadStatus.QUEUED) {
                 // What do? Move first in queue?
             }
             double alpha = 1;
             if (GlobalConf.scene.OCTREE_PARTICLE_FADE && viewAngle < th1) {
-                AbstractRenderSystem.POINT_UPDATE_FLAG = true;
+                traversal.pointUpdate();
                 alpha = MathUtilsd.clamp(MathUtilsd.lint(viewAngle, th0, th1, 0d, 1d), 0f, 1f);
             }
             this.opacity *= alpha;
 
             // Update children
-            for (int i = 0; i < 8; i++) {
-                OctreeNode child = children[i];
-                if (child != null /*&& child.depth <= L_DEPTH*/) {
-                    child.update(parentTransform, cam, roulette, this.opacity);
+            if (childrenPaged) {
+                pager.resolveChildren(this);
+            }
+            if (traversal.fork(this)) {
+                traversal.updateChildren(this, parentTransform, this.opacity);
+            } else {
+                for (int i = 0; i < 8; i++) {
+                    OctreeNode child = children[i];
+                    if (child != null) {
+                        child.update(parentTransform, traversal, this.opacity);
+                    }
                 }
             }
 
         }
     }
 
-    private void addObjectsTo(List<SceneGraphNode> roulette) {
-        if (objects != null) {
-            roulette.addAll(objects);
-            for (SceneGraphNode obj : objects) {
-                nObjectsObserved += obj.getStarCount();
-            }
-        }
-    }
-
     private void setChildrenObserved(boolean observed) {
         for (int i = 0; i < 8; i++) {
             OctreeNode child = children[i];
@@ -621,58 +702,37 @@ public class OctreeNode implements ILineRenderable {
         }
     }
 
-    public boolean isObserved() {
-        return observed && (parent == null || parent.isObserved());
+    public double getRadius() {
+        return radius;
     }
 
-    /**
-     * Checks whether the given frustum intersects with the current octant.
-     * 
-     * @param parentTransform The parent transform
-     * @param frustum The frustum
-     */
-    private boolean computeObserved1(Vector3d parentTransform, Frustumd frustum) {
-        boxcopy.set(box);
-        // boxcopy.mul(boxtransf.idt().translate(parentTransform.getTranslation()));
-
-        observed = GlobalConf.program.CUBEMAP_MODE || frustum.pointInFrustum(boxcopy.getCenter(auxD1)) || frustum.pointInFrustum(boxcopy.getCorner000(auxD1)) || frustum.pointInFrustum(boxcopy.getCorner001(auxD1)) || frustum.pointInFrustum(boxcopy.getCorner010(auxD1)) || frustum.pointInFrustum(boxcopy.getCorner011(auxD1)) || frustum.pointInFrustum(boxcopy.getCorner100(auxD1)) || frustum.pointInFrustum(boxcopy.getCorner101(auxD1)) || frustum.pointInFrustum(boxcopy.getCorner110(auxD1))
-                || frustum.pointInFrustum(boxcopy.getCorner111(auxD1));
-
-        for (int i = 0; i < 4; i++) {
-            if (!observed) {
-                // 0-4
-                ray.origin.set(frustum.planePoints[i]);
-                ray.direction.set(frustum.planePoints[i + 4]).sub(ray.origin);
-                observed = Intersectord.intersectRayBoundsFast(ray, boxcopy.getCenter(auxD3), boxcopy.getDimensions(auxD4));
-            } else {
-                break;
-            }
-        }
-
-        return observed;
+    public boolean isObserved() {
+        return observed && (parent == null || parent.isObserved());
     }
 
     /**
      * Second method, which uses a simplification.
      * @param cam The camera
+     * @param traversal The traversal state
      * @return Whether the octant is observed
      */
-    private boolean computeObserved2(ICamera cam) {
-        return cam.getMode().isGaiaFov() || computeObservedFast(cam);
+    private boolean computeObserved2(ICamera cam, OctreeTraversal traversal) {
+        return cam.getMode().isGaiaFov() || computeObservedFast(cam, traversal);
     }
 
     /**
      * Simplification to compute octant visibility. Angle between camera direction and octant centre
      * must be smaller than fov/2 plus a correction (approximates octants to spheres)
      * @param cam The camera
+     * @param traversal The traversal state, with the scratch vectors
      * @return Whether the octant is observed
      */
-    private boolean computeObservedFast(ICamera cam) {
+    private boolean computeObservedFast(ICamera cam, OctreeTraversal traversal) {
         // vector from camera to center of box
-        Vector3d cpospos = auxD1.set(centre).sub(cam.getPos());
+        Vector3d cpospos = traversal.auxD1.set(centre).sub(cam.getPos());
         // auxD2 rotation axis
-        Vector3d axis = auxD2.set(cam.getDirection()).crs(centre);
-        Vector3d edge = auxD3.set(cam.getDirection()).rotate(axis, cam.getCamera().fieldOfView / 2d);
+        Vector3d axis = traversal.auxD2.set(cam.getDirection()).crs(centre);
+        Vector3d edge = traversal.auxD3.set(cam.getDirection()).rotate(axis, cam.getCamera().fieldOfView / 2d);
         // get angle at edge (when far side is radius)
         double angle1 = FastMath.toDegrees(FastMath.atan(radius / cpospos.len()));
         // get actual angle
@@ -741,6 +801,34 @@ public class OctreeNode implements ILineRenderable {
 
     }
 
+    /**
+     * Updates the number of own objects and children of this node, and the number
+     * of objects of this node and its ancestors. Unlike {@link #updateNumbers()}, the
+     * numbers of the descendants are not recomputed, so use this when only the objects of
+     * this node have changed.
+     */
+    public void updateNumbersToRoot() {
+        this.ownObjects = 0;
+        if (objects != null) {
+            for (SceneGraphNode ape : objects) {
+                this.ownObjects += ape.getStarCount();
+            }
+        }
+
+        OctreeNode node = this;
+        while (node != null) {
+            node.nObjects = node.ownObjects;
+            node.childrenCount = 0;
+            for (int i = 0; i < 8; i++) {
+                if (node.children[i] != null) {
+                    node.childrenCount++;
+                    node.nObjects += node.children[i].nObjects;
+                }
+            }
+            node = node.parent;
+        }
+    }
+
     public int countObjects() {
         int n = 0;
         if (objects != null) {
@@ -0,0 +1,239 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.util.tree;
+
+import com.badlogic.gdx.utils.TimeUtils;
+import gaiasky.data.StreamingOctreeLoader;
+import gaiasky.render.system.AbstractRenderSystem;
+import gaiasky.scenegraph.SceneGraphNode;
+import gaiasky.scenegraph.camera.ICamera;
+import gaiasky.util.GlobalConf;
+import gaiasky.util.math.MathUtilsd;
+import gaiasky.util.math.Vector3d;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * State of a visibility traversal of an octree (see {@link OctreeNode#update(Vector3d, OctreeTraversal, float)}).
+ * It holds the scratch vectors, the counters, the objects of the observed octants and the octants
+ * to load and touch. Every task of a traversal has its own state, so that subtrees can be traversed in
+ * parallel. The octants to load and touch are only recorded during the traversal, and the loader is
+ * notified once it has finished, from the calling thread.
+ * <p>
+ * If the split depth is positive, the traversal runs in the common fork-join pool, with one task per
+ * subtree rooted at the split depth. The results of the tasks are merged in child order, so that the
+ * objects and the requests are in the same order as in a sequential traversal.
+ *
+ * @author tsagrista
+ */
+public class OctreeTraversal {
+
+    /** Scratch vectors **/
+    final Vector3d auxD1, auxD2, auxD3;
+
+    /** Objects of the observed octants **/
+    private final List<SceneGraphNode> roulette;
+    /** Observed octants which are not loaded **/
+    private final List<OctreeNode> toLoad;
+    /** Observed octants which are loaded **/
+    private final List<OctreeNode> toTouch;
+    /** Number of observed octants **/
+    private int nOctantsObserved;
+    /** Number of objects in the observed octants **/
+    private int nObjectsObserved;
+    /** Whether the point renderers need to update **/
+    private boolean pointUpdate;
+
+    // Shared by all the tasks of a traversal
+    ICamera camera;
+    float th0, th1;
+    /** Time of the traversal, in ms **/
+    long time;
+    private int splitDepth;
+
+    /**
+     * Creates a new traversal state which adds the objects of the observed octants
+     * to the given list
+     *
+     * @param roulette The list to add the objects of the observed octants to
+     */
+    public OctreeTraversal(List<SceneGraphNode> roulette) {
+        this.auxD1 = new Vector3d();
+        this.auxD2 = new Vector3d();
+        this.auxD3 = new Vector3d();
+        this.roulette = roulette;
+        this.toLoad = new ArrayList<>();
+        this.toTouch = new ArrayList<>();
+    }
+
+    /**
+     * Creates the state of a task of the given traversal
+     *
+     * @param parent The state of the traversal
+     */
+    private OctreeTraversal(OctreeTraversal parent) {
+        this(new ArrayList<>());
+        this.camera = parent.camera;
+        this.th0 = parent.th0;
+        this.th1 = parent.th1;
+        this.time = parent.time;
+        this.splitDepth = parent.splitDepth;
+    }
+
+    /**
+     * Computes the observed octants of the octree with the given root, fills
+     * the roulette list with their objects and notifies the loader of the octants
+     * to load and touch. Must be called from the main thread.
+     *
+     * @param root      The root of the octree
+     * @param transform The parent transform
+     * @param camera    The camera
+     * @param opacity   The opacity
+     */
+    public void traverse(OctreeNode root, Vector3d transform, ICamera camera, float opacity) {
+        this.camera = camera;
+        float cf = MathUtilsd.clamp(camera.getFovFactor() * 2.5f, 0.15f, 1f);
+        this.th0 = GlobalConf.scene.OCTANT_THRESHOLD_0 * cf;
+        this.th1 = GlobalConf.scene.OCTANT_THRESHOLD_1 * cf;
+        this.splitDepth = GlobalConf.performance.OCTREE_PARALLEL_DEPTH();
+        this.time = TimeUtils.millis();
+        this.nOctantsObserved = 0;
+        this.nObjectsObserved = 0;
+        this.pointUpdate = false;
+        this.toLoad.clear();
+        this.toTouch.clear();
+
+        if (splitDepth > root.depth) {
+            ForkJoinPool.commonPool().invoke(new UpdateTask(root, transform, opacity, this));
+        } else {
+            root.update(transform, this, opacity);
+        }
+
+        // Requests, in traversal order
+        for (OctreeNode octant : toLoad) {
+            StreamingOctreeLoader.queue(octant);
+        }
+        for (OctreeNode octant : toTouch) {
+            if (octant.prefetched) {
+                // Prefetched octant came into view
+                StreamingOctreeLoader.prefetchHit(octant);
+            }
+            // Visited last!
+            StreamingOctreeLoader.touch(octant);
+        }
+        toLoad.clear();
+        toTouch.clear();
+        if (pointUpdate) {
+            AbstractRenderSystem.POINT_UPDATE_FLAG = true;
+        }
+    }
+
+    /**
+     * Whether the children of the given octant must be traversed in parallel tasks
+     *
+     * @param octant The octant
+     * @return Whether to fork
+     */
+    boolean fork(OctreeNode octant) {
+        return octant.depth + 1 == splitDepth;
+    }
+
+    /**
+     * Traverses the children of the given octant in parallel, and merges the results
+     * into this state. Must be called from a task of the traversal.
+     *
+     * @param octant          The octant
+     * @param parentTransform The parent transform
+     * @param opacity         The opacity of the octant
+     */
+    void updateChildren(OctreeNode octant, Vector3d parentTransform, float opacity) {
+        List<UpdateTask> tasks = new ArrayList<>(8);
+        for (int i = 0; i < 8; i++) {
+            OctreeNode child = octant.children[i];
+            if (child != null) {
+                tasks.add(new UpdateTask(child, parentTransform, opacity, new OctreeTraversal(this)));
+            }
+        }
+        RecursiveAction.invokeAll(tasks);
+        for (UpdateTask task : tasks) {
+            merge(task.traversal);
+        }
+    }
+
+    private void merge(OctreeTraversal other) {
+        roulette.addAll(other.roulette);
+        toLoad.addAll(other.toLoad);
+        toTouch.addAll(other.toTouch);
+        nOctantsObserved += other.nOctantsObserved;
+        nObjectsObserved += other.nObjectsObserved;
+        pointUpdate = pointUpdate || other.pointUpdate;
+    }
+
+    void observed() {
+        nOctantsObserved++;
+    }
+
+    void load(OctreeNode octant) {
+        toLoad.add(octant);
+    }
+
+    void touch(OctreeNode octant) {
+        toTouch.add(octant);
+    }
+
+    void addObjects(List<SceneGraphNode> objects) {
+        roulette.addAll(objects);
+        for (SceneGraphNode obj : objects) {
+            nObjectsObserved += obj.getStarCount();
+        }
+    }
+
+    void pointUpdate() {
+        pointUpdate = true;
+    }
+
+    /**
+     * Number of octants observed in the last traversal
+     *
+     * @return The number of observed octants
+     */
+    public int getOctantsObserved() {
+        return nOctantsObserved;
+    }
+
+    /**
+     * Number of objects in the octants observed in the last traversal
+     *
+     * @return The number of objects
+     */
+    public int getObjectsObserved() {
+        return nObjectsObserved;
+    }
+
+    private static class UpdateTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final OctreeNode octant;
+        private final Vector3d parentTransform;
+        private final float opacity;
+        private final OctreeTraversal traversal;
+
+        UpdateTask(OctreeNode octant, Vector3d parentTransform, float opacity, OctreeTraversal traversal) {
+            this.octant = octant;
+            this.parentTransform = parentTransform;
+            this.opacity = opacity;
+            this.traversal = traversal;
+        }
+
+        @Override
+        protected void compute() {
+            octant.update(parentTransform, traversal, opacity);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * This file is part of Gaia Sky, which is released under the Mozilla Public License 2.0.
+ * See the file LICENSE.md in the project root for full license details.
+ */
+
+package gaiasky.util.tree;
+
+import com.badlogic.gdx.utils.IntArray;
+import gaiasky.util.ds.IndexSort;
+import gaiasky.util.math.Vector3d;
+
+/**
+ * Angular index of the objects of a particle or star group, as seen from a point (usually the camera), to
+ * find the objects around a direction without visiting all of them. This is what picking needs: a click or
+ * a beam is a direction, and only the objects close to it can be hit.
+ * <p>
+ * The sky is pixelised hierarchically as a cube map: each of the six faces is split into a quadtree of
+ * cells, and the cells of each level are numbered in Morton order, so that every cell covers a contiguous
+ * range of leaves. The objects are sorted by leaf, and each cell keeps the largest angular radius of its
+ * objects, so large or close objects, which can be hit far from their centre, are still found.
+ * <p>
+ * The index stays valid while the point moves, and while the objects move with their proper motions, as long
+ * as the total displacement is smaller than {@link #getDrift()}: the queries are widened by the angular error
+ * this can cause at the distance of the objects in the grid. The closest objects, for which this error would
+ * be too large, are kept apart and always returned. Use {@link #needsRebuild(Vector3d, double)} to know when
+ * to build the index again.
+ *
+ * @author tsagrista
+ */
+public class SkyGrid {
+
+    /** Number of closest objects which are always returned **/
+    public static final int NEAR_OBJECTS = 1024;
+    /** Mean number of objects per leaf **/
+    public static final int LEAF_OBJECTS = 16;
+    /** Maximum depth of the quadtrees of the faces **/
+    public static final int MAX_LEVEL = 9;
+
+    private final int level, side;
+    /** Point the directions are computed from **/
+    private final double ox, oy, oz;
+    /** Time of the positions, in years since the epoch, and maximum proper motion **/
+    private final double deltaYears, maxPm;
+    /** Maximum displacement before rebuilding, angular error it causes, and distance of the closest object in the grid **/
+    private final double drift, error, minDistance;
+    /** Objects always returned **/
+    private final int[] near;
+    /** Objects in leaf order, and start of each leaf in it **/
+    private final int[] ids, leafStart;
+    /** Largest angular radius of the objects of each cell, per level **/
+    private final float[][] maxAngles;
+
+    private SkyGrid(int level, double ox, double oy, double oz, double deltaYears, double maxPm, double drift, double error, double minDistance, int[] near, int[] ids, int[] leafStart, float[][] maxAngles) {
+        this.level = level;
+        this.side = 1 << level;
+        this.ox = ox;
+        this.oy = oy;
+        this.oz = oz;
+        this.deltaYears = deltaYears;
+        this.maxPm = maxPm;
+        this.drift = drift;
+        this.error = error;
+        this.minDistance = minDistance;
+        this.near = near;
+        this.ids = ids;
+        this.leafStart = leafStart;
+        this.maxAngles = maxAngles;
+    }
+
+    /**
+     * Builds the index of the given objects. Objects with non-finite positions are left out.
+     *
+     * @param n          The number of objects
+     * @param x          The x coordinates
+     * @param y          The y coordinates
+     * @param z          The z coordinates
+     * @param radii      The radii of the objects, or null
+     * @param origin     The point to compute the directions from
+     * @param deltaYears The time of the positions, in years since the epoch
+     * @param maxPm      The maximum proper motion of the objects, in internal units per year
+     * @return The index
+     */
+    public static SkyGrid build(int n, double[] x, double[] y, double[] z, double[] radii, Vector3d origin, double deltaYears, double maxPm) {
+        double ox = origin.x, oy = origin.y, oz = origin.z;
+        int[] order = new int[n];
+        double[] dist = new double[n];
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (Double.isFinite(x[i]) && Double.isFinite(y[i]) && Double.isFinite(z[i])) {
+                double dx = x[i] - ox, dy = y[i] - oy, dz = z[i] - oz;
+                dist[i] = Math.sqrt(dx * dx + dy * dy + dz * dz);
+                order[m++] = i;
+            }
+        }
+
+        // The closest objects are kept apart
+        int nNear = Math.min(NEAR_OBJECTS, m);
+        if (nNear < m)
+            IndexSort.select(order, dist, m, nNear);
+        int[] near = new int[nNear];
+        System.arraycopy(order, 0, near, 0, nNear);
+        double nearDistance = nNear > 0 && nNear < m ? dist[order[nNear - 1]] : Double.POSITIVE_INFINITY;
+
+        int level = 0;
+        while (level < MAX_LEVEL && 6L * (1L << (2 * level)) * LEAF_OBJECTS < m - nNear)
+            level++;
+        int side = 1 << level;
+        int nLeaves = 6 * side * side;
+
+        // Allow displacements which move the objects of the grid by about the size of a leaf
+        double error = Math.PI / (2 * side);
+        double drift = Double.isInfinite(nearDistance) ? Double.POSITIVE_INFINITY : nearDistance * Math.sin(error);
+        double minDistance = nearDistance - drift;
+
+        // Sort the objects into the leaves
+        int[] leaves = new int[m - nNear];
+        int[] leafStart = new int[nLeaves + 1];
+        float[] leafAngles = new float[nLeaves];
+        for (int j = nNear; j < m; j++) {
+            int i = order[j];
+            int leaf = leaf(x[i] - ox, y[i] - oy, z[i] - oz, level);
+            leaves[j - nNear] = leaf;
+            leafStart[leaf + 1]++;
+            if (radii != null) {
+                // Largest angular radius from any point within the allowed displacement
+                double d = dist[i] - drift;
+                leafAngles[leaf] = Math.max(leafAngles[leaf], d > 0 ? (float) (radii[i] / d) : Float.POSITIVE_INFINITY);
+            }
+        }
+        for (int leaf = 0; leaf < nLeaves; leaf++)
+            leafStart[leaf + 1] += leafStart[leaf];
+        int[] ids = new int[m - nNear];
+        int[] next = new int[nLeaves];
+        System.arraycopy(leafStart, 0, next, 0, nLeaves);
+        for (int j = nNear; j < m; j++)
+            ids[next[leaves[j - nNear]]++] = order[j];
+
+        // Aggregate the angular radii up the quadtrees
+        float[][] maxAngles = new float[level + 1][];
+        maxAngles[level] = leafAngles;
+        for (int l = level - 1; l >= 0; l--) {
+            float[] children = maxAngles[l + 1];
+            float[] cells = new float[children.length / 4];
+            for (int c = 0; c < cells.length; c++)
+                cells[c] = Math.max(Math.max(children[4 * c], children[4 * c + 1]), Math.max(children[4 * c + 2], children[4 * c + 3]));
+            maxAngles[l] = cells;
+        }
+
+        return new SkyGrid(level, ox, oy, oz, deltaYears, maxPm, drift, error, minDistance, near, ids, leafStart, maxAngles);
+    }
+
+    /**
+     * @return The maximum displacement of the point and the objects for which the index is valid
+     */
+    public double getDrift() {
+        return drift;
+    }
+
+    /**
+     * @return A lower bound of the distance from the point to the objects in the grid, for any displacement
+     * within {@link #getDrift()}. The objects closer than that are always returned
+     */
+    public double getMinDistance() {
+        return minDistance;
+    }
+
+    /**
+     * Whether the point or the objects have moved so much since the index was built that it should be rebuilt
+     *
+     * @param position   The current point
+     * @param deltaYears The current time, in years since the epoch
+     * @return Whether to rebuild the index
+     */
+    public boolean needsRebuild(Vector3d position, double deltaYears) {
+        double dx = position.x - ox, dy = position.y - oy, dz = position.z - oz;
+        double displacement = Math.sqrt(dx * dx + dy * dy + dz * dz) + maxPm * Math.abs(deltaYears - this.deltaYears);
+        return !(displacement <= drift);
+    }
+
+    /**
+     * Finds the objects which may be within the given angle of a direction. The result contains at least
+     * all the objects whose direction from the current point is closer than max(tolerance, sizeScale * r / d)
+     * to the given direction, r being the radius of the object and d its distance, provided that the point
+     * and the objects are within {@link #getDrift()} of their positions when the index was built.
+     * The candidates must be tested again.
+     *
+     * @param dx        The x component of the direction, normalised
+     * @param dy        The y component of the direction, normalised
+     * @param dz        The z component of the direction, normalised
+     * @param line      Whether to also find the objects around the opposite direction
+     * @param tolerance The angle, in radians
+     * @param sizeScale The factor to get the angle within which an object is found from its angular radius, or 0
+     * @param out       The array to add the indices of the candidates to
+     */
+    public void query(double dx, double dy, double dz, boolean line, double tolerance, double sizeScale, IntArray out) {
+        out.addAll(near);
+        double[] corners = new double[15];
+        for (int face = 0; face < 6; face++)
+            query(face, 0, 0, dx, dy, dz, line, tolerance, sizeScale, corners, out);
+    }
+
+    private void query(int face, int l, int code, double dx, double dy, double dz, boolean line, double tolerance, double sizeScale, double[] corners, IntArray out) {
+        int cells = 1 << l;
+        int cu = compact(code), cv = compact(code >>> 1);
+        double u0 = -1 + 2d * cu / cells, u1 = -1 + 2d * (cu + 1) / cells;
+        double v0 = -1 + 2d * cv / cells, v1 = -1 + 2d * (cv + 1) / cells;
+
+        // The cells are bounded by great circles, so the cap around the centre through the corners contains them
+        direction(face, (u0 + u1) / 2, (v0 + v1) / 2, corners, 12);
+        direction(face, u0, v0, corners, 0);
+        direction(face, u1, v0, corners, 3);
+        direction(face, u0, v1, corners, 6);
+        direction(face, u1, v1, corners, 9);
+        double cx = corners[12], cy = corners[13], cz = corners[14];
+        double capCos = 1;
+        for (int k = 0; k < 12; k += 3)
+            capCos = Math.min(capCos, cx * corners[k] + cy * corners[k + 1] + cz * corners[k + 2]);
+        double cap = Math.acos(Math.min(1, capCos));
+
+        double dot = cx * dx + cy * dy + cz * dz;
+        double angle = Math.acos(Math.max(-1, Math.min(1, line ? Math.abs(dot) : dot)));
+        double cellTolerance = Math.max(tolerance, sizeScale * maxAngles[l][face * cells * cells + code]) + error;
+        if (angle - cap > cellTolerance)
+            return;
+
+        if (l == level) {
+            int leaf = face * side * side + code;
+            for (int j = leafStart[leaf]; j < leafStart[leaf + 1]; j++)
+                out.add(ids[j]);
+        } else {
+            for (int child = 0; child < 4; child++)
+                query(face, l + 1, 4 * code + child, dx, dy, dz, line, tolerance, sizeScale, corners, out);
+        }
+    }
+
+    /**
+     * Gets the leaf of the given direction. The face is given by the axis of the largest component and its
+     * sign, and the position in the face by the other two components divided by the largest one.
+     */
+    private static int leaf(double x, double y, double z, int level) {
+        double ax = Math.abs(x), ay = Math.abs(y), az = Math.abs(z);
+        int face;
+        double u, v;
+        if (ax >= ay && ax >= az) {
+            face = x >= 0 ? 0 : 1;
+            u = y / ax;
+            v = z / ax;
+        } else if (ay >= az) {
+            face = y >= 0 ? 2 : 3;
+            u = x / ay;
+            v = z / ay;
+        } else {
+            face = z >= 0 ? 4 : 5;
+            u = x / az;
+            v = y / az;
+        }
+        int side = 1 << level;
+        // NaN (objects at the point) goes to the first cell
+        int iu = Math.max(0, Math.min(side - 1, (int) ((u + 1) / 2 * side)));
+        int iv = Math.max(0, Math.min(side - 1, (int) ((v + 1) / 2 * side)));
+        return face * side * side + (spread(iu) | (spread(iv) << 1));
+    }
+
+    /**
+     * Puts the normalised direction of the given position of a face in the array, at the given offset
+     */
+    private static void direction(int face, double u, double v, double[] out, int offset) {
+        double s = (face & 1) == 0 ? 1 : -1;
+        double x, y, z;
+        switch (face >> 1) {
+        case 0:
+            x = s;
+            y = u;
+            z = v;
+            break;
+        case 1:
+            x = u;
+            y = s;
+            z = v;
+            break;
+        default:
+            x = u;
+            y = v;
+            z = s;
+            break;
+        }
+        double len = Math.sqrt(x * x + y * y + z * z);
+        out[offset] = x / len;
+        out[offset + 1] = y / len;
+        out[offset + 2] = z / len;
+    }
+
+    /**
+     * Interleaves the bits of the given value with zeros
+     */
+    private static int spread(int v) {
+        v &= 0xffff;
+        v = (v | (v << 8)) & 0x00ff00ff;
+        v = (v | (v << 4)) & 0x0f0f0f0f;
+        v = (v | (v << 2)) & 0x33333333;
+        v = (v | (v << 1)) & 0x55555555;
+        return v;
+    }
+
+    /**
+     * Inverse of {@link #spread(int)}, takes the even bits of the given value
+     */
+    private static int compact(int v) {
+        v &= 0x55555555;
+        v = (v | (v >>> 1)) & 0x33333333;
+        v = (v | (v >>> 2)) & 0x0f0f0f0f;
+        v = (v | (v >>> 4)) & 0x00ff00ff;
+        v = (v | (v >>> 8)) & 0x0000ffff;
+        return v;
+    }
+}
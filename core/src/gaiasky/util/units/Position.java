@@ -175,6 +175,127 @@ public class Position {
 
     }
 
+    /**
+     * Converts positions of a given type and units to the internal cartesian equatorial position, in parsecs.
+     * The units are parsed once, when the converter is created, so this is meant for converting the
+     * rows of a table. The results are the same as those of {@link Position}.
+     */
+    public static class Converter {
+        private final PositionType type;
+        private AngleUnit angleA, angleB, angleC;
+        private LengthUnit lengthA, lengthB, lengthC;
+
+        /**
+         * Creates a converter for the given units and type
+         *
+         * @param unitA Unit of the first coordinate
+         * @param unitB Unit of the second coordinate
+         * @param unitC Unit of the third coordinate
+         * @param type  The position type
+         * @throws IllegalArgumentException If a unit is not valid for the given type
+         */
+        public Converter(String unitA, String unitB, String unitC, PositionType type) throws IllegalArgumentException {
+            this.type = type;
+            switch (type) {
+            case EQ_SPH_DIST:
+            case GAL_SPH_DIST:
+            case ECL_SPH_DIST:
+                angleA = Quantity.parseAngle(unitA);
+                angleB = Quantity.parseAngle(unitB);
+                lengthC = Quantity.parseLength(unitC);
+                break;
+            case EQ_SPH_PLX:
+            case GAL_SPH_PLX:
+            case ECL_SPH_PLX:
+                angleA = Quantity.parseAngle(unitA);
+                angleB = Quantity.parseAngle(unitB);
+                angleC = Quantity.parseAngle(unitC);
+                break;
+            default:
+                lengthA = Quantity.parseLength(unitA);
+                lengthB = Quantity.parseLength(unitB);
+                lengthC = Quantity.parseLength(unitC);
+                break;
+            }
+        }
+
+        public PositionType getType() {
+            return type;
+        }
+
+        /**
+         * Gets the first coordinate of a spherical position in radians
+         *
+         * @param a The first coordinate
+         * @return The longitude in radians
+         */
+        public double longitude(double a) {
+            return a * angleA.deg * (1d / AngleUnit.RAD.deg);
+        }
+
+        /**
+         * Gets the second coordinate of a spherical position in radians
+         *
+         * @param b The second coordinate
+         * @return The latitude in radians
+         */
+        public double latitude(double b) {
+            return b * angleB.deg * (1d / AngleUnit.RAD.deg);
+        }
+
+        /**
+         * Converts the given position
+         *
+         * @param a   The first coordinate
+         * @param b   The second coordinate
+         * @param c   The third coordinate, a distance or a parallax. Must not be NaN
+         * @param out The vector to put the result in
+         * @return The out vector
+         * @throws RuntimeException On negative distance or parallax
+         */
+        public Vector3d toCartesian(double a, double b, double c, Vector3d out) throws RuntimeException {
+            switch (type) {
+            case EQ_SPH_DIST:
+            case GAL_SPH_DIST:
+            case ECL_SPH_DIST:
+                double m = c * lengthC.m;
+                if (m <= 0) {
+                    throw new RuntimeException("Negative distance found: " + m + " m");
+                }
+                Coordinates.sphericalToCartesian(longitude(a), latitude(b), m * (1d / LengthUnit.PC.m), out);
+                break;
+            case EQ_SPH_PLX:
+            case GAL_SPH_PLX:
+            case ECL_SPH_PLX:
+                double mas = c * angleC.deg * (1d / AngleUnit.MAS.deg);
+                m = Double.isFinite(mas) && mas <= 0 ? -1 * LengthUnit.PC.m : (1000d / mas) * LengthUnit.PC.m;
+                if (m <= 0) {
+                    throw new RuntimeException("Negative parallax found: " + m + " m");
+                }
+                Coordinates.sphericalToCartesian(longitude(a), latitude(b), m * (1d / LengthUnit.PC.m), out);
+                break;
+            default:
+                out.set(a * lengthA.m * (1d / LengthUnit.PC.m), b * lengthB.m * (1d / LengthUnit.PC.m), c * lengthC.m * (1d / LengthUnit.PC.m));
+                break;
+            }
+            switch (type) {
+            case GAL_SPH_DIST:
+            case GAL_SPH_PLX:
+            case GAL_XYZ:
+                out.mul(Coordinates.galToEq());
+                break;
+            case ECL_SPH_DIST:
+            case ECL_SPH_PLX:
+            case ECL_XYZ:
+                out.mul(Coordinates.eclToEq());
+                break;
+            default:
+                break;
+            }
+            return out;
+        }
+    }
+
     private void swapCoordinates() {
         // Switch axes
         double aux = gsposition.x;
@@ -162,7 +162,7 @@ public class Quantity {
 
     }
 
-    private static LengthUnit parseLength(String unit) throws IllegalArgumentException {
+    static LengthUnit parseLength(String unit) throws IllegalArgumentException {
         // Check format 'measure[unit]'
         if (unit.matches("[^\\[\\]]+\\[[^\\[\\]]+]")) {
             return LengthUnit.valueOf(unit.substring(unit.indexOf('[') + 1, unit.indexOf(']')).toUpperCase()); //-V6009
@@ -171,7 +171,7 @@ public class Quantity {
         }
     }
 
-    private static AngleUnit parseAngle(String unit) throws IllegalArgumentException {
+    static AngleUnit parseAngle(String unit) throws IllegalArgumentException {
         // Check format 'measure[unit]'
         if (unit.matches("[^\\[\\]]+\\[[^\\[\\]]+]")) {
             return AngleUnit.valueOf(unit.substring(unit.indexOf('[') + 1, unit.indexOf(']')).toUpperCase()); //-V6009